@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import exm.stc.common.exceptions.UserException;
+import exm.stc.jmh.Corpus.Compilation;
+import exm.stc.tclbackend.tree.Sequence;
+import exm.stc.tclbackend.tree.TclWriter;
+
+/**
+ * Code generation for optimized programs in corpus: construction of the
+ * Tcl tree by TurbineGenerator, and conversion of the tree to text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xss8m")
+public class CodegenBench {
+
+  /**
+   * Optimized programs.  Code generation doesn't modify the program,
+   * so these can be reused.
+   */
+  @State(Scope.Thread)
+  public static class Optimized {
+    List<Compilation> compilations;
+
+    @Setup(Level.Trial)
+    public void setup(CorpusState state) throws UserException {
+      compilations = state.corpus.compilations();
+      for (Compilation c: compilations) {
+        c.definitions();
+        c.topLevel();
+        c.functions();
+        c.optimize();
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Generated {
+    List<Sequence> trees;
+
+    @Setup(Level.Trial)
+    public void setup(Optimized optimized) throws UserException {
+      trees = new ArrayList<Sequence>();
+      for (Compilation c: optimized.compilations) {
+        trees.add(c.generate().code());
+      }
+    }
+  }
+
+  @Benchmark
+  public void generateTree(Optimized state, Blackhole bh)
+      throws UserException {
+    for (Compilation c: state.compilations) {
+      bh.consume(c.generate());
+    }
+  }
+
+  /**
+   * Stream code as in compiler, discarding output so that only
+   * conversion to text is measured
+   */
+  @Benchmark
+  public void appendTo(Generated state, Blackhole bh) throws IOException {
+    for (Sequence tree: state.trees) {
+      TclWriter out = new TclWriter(NullWriter.NULL_WRITER);
+      tree.appendTo(out);
+      out.flush();
+      bh.consume(out);
+    }
+  }
+}
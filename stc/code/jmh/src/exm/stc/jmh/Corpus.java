@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.frontend.ASTWalker;
+import exm.stc.frontend.VarRepr;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.opt.FlattenNested;
+import exm.stc.ic.opt.PruneFunctions;
+import exm.stc.ic.opt.UniqueVarNames;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.tclbackend.TurbineGenerator;
+import exm.stc.ui.ExitCode;
+import exm.stc.ui.Main;
+
+/**
+ * Fixed corpus of Swift programs for compiler benchmarks.
+ *
+ * The corpus is listed in a file (stc.jmh.corpus property, one path per
+ * line relative to the stc.jmh.root directory).  Sources are run through
+ * the C preprocessor once up front, so that preprocessing is not timed.
+ * Programs that don't compile are excluded with a message, so that
+ * results are comparable as long as the same programs compile.
+ */
+public class Corpus {
+
+  public static final String CORPUS_PROPERTY = "stc.jmh.corpus";
+  public static final String ROOT_PROPERTY = "stc.jmh.root";
+
+  private static final String DEFAULT_CORPUS = "jmh/corpus.txt";
+  private static final String DEFAULT_ROOT = "..";
+
+  /** Fixed timestamp so that generated code is the same each time */
+  private static final String TIMESTAMP = "benchmark";
+
+  public static class Source {
+    /** Preprocessed file */
+    public final String path;
+    /** Original file in corpus */
+    public final String originalPath;
+    public final byte content[];
+
+    Source(String path, String originalPath, byte content[]) {
+      this.path = path;
+      this.originalPath = originalPath;
+      this.content = content;
+    }
+  }
+
+  private final List<Source> sources = new ArrayList<Source>();
+  private final File tmpDir;
+  private final Logger logger;
+  private final Settings.State settings;
+
+  public Corpus() throws IOException {
+    this.tmpDir = Files.createTempDirectory("stc-jmh").toFile();
+    tmpDir.deleteOnExit();
+
+    File root = new File(System.getProperty(ROOT_PROPERTY, DEFAULT_ROOT));
+    File list = new File(System.getProperty(CORPUS_PROPERTY,
+                                            DEFAULT_CORPUS));
+    List<String> paths = new ArrayList<String>();
+    for (String line: Files.readAllLines(list.toPath(),
+                                         StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.length() > 0 && !line.startsWith("#")) {
+        paths.add(line);
+      }
+    }
+
+    for (int i = 0; i < paths.size(); i++) {
+      File file = new File(root, paths.get(i));
+      File preprocessed = new File(tmpDir, i + "-" + file.getName());
+      preprocessed.deleteOnExit();
+      if (preprocess(file, preprocessed)) {
+        sources.add(new Source(preprocessed.getPath(), file.getPath(),
+                           Files.readAllBytes(preprocessed.toPath())));
+      } else {
+        System.err.println("Excluding " + file + ": does not preprocess");
+      }
+    }
+
+    try {
+      Settings.resetState();
+      Settings.initSTCProperties();
+    } catch (InvalidOptionException e) {
+      throw new STCRuntimeError(e.getMessage(), e);
+    }
+    Settings.set(Settings.OUTPUT_FILENAME,
+                 new File(tmpDir, "out.tic").getPath());
+    this.settings = Settings.getState();
+
+    // Warnings would be printed for every iteration
+    this.logger = Logging.setupLogging(null, false);
+    logger.setLevel(Level.ERROR);
+
+    List<Source> compiled = new ArrayList<Source>();
+    for (Source src: sources) {
+      try {
+        Compilation c = new Compilation(src);
+        c.definitions();
+        c.topLevel();
+        c.functions();
+        c.optimize();
+        c.generate();
+        compiled.add(src);
+      } catch (Throwable e) {
+        System.err.println("Excluding " + src.originalPath +
+                           ": does not compile: " + e);
+      }
+    }
+    sources.retainAll(compiled);
+    if (sources.isEmpty()) {
+      throw new STCRuntimeError("No programs in " + list + " compiled");
+    }
+  }
+
+  public List<Source> sources() {
+    return sources;
+  }
+
+  public Logger logger() {
+    return logger;
+  }
+
+  /**
+   * Run C preprocessor via compiler in preprocess-only mode
+   * @return true if successful
+   */
+  private static boolean preprocess(File input, File output) {
+    Properties props = new Properties();
+    props.putAll(System.getProperties());
+    props.setProperty(Settings.USE_C_PREPROCESSOR, "true");
+    props.setProperty(Settings.PREPROCESS_ONLY, "true");
+    String args[] = new String[] {"-I", input.getParent(),
+                                  input.getPath(), output.getPath()};
+    return new Main(null, true).run(args, props) == ExitCode.SUCCESS.code();
+  }
+
+  /**
+   * A single compilation of a source, which can be advanced one phase
+   * at a time.  Phases must be run in order.
+   */
+  public class Compilation {
+    public final Source src;
+    private final STCMiddleEnd middle;
+    private final ASTWalker.Walk walk;
+
+    public Compilation(Source src) throws UserException {
+      this.src = src;
+      enter();
+      ForeignFunctions foreignFuncs = new ForeignFunctions();
+      this.middle = new STCMiddleEnd(logger, null, foreignFuncs);
+      this.walk = new ASTWalker(middle, foreignFuncs).startWalk(src.path,
+                                                  src.originalPath, true);
+    }
+
+    /**
+     * Same per-compilation setup as compiler.  Needed before each phase
+     * since phases of different compilations may be interleaved.
+     */
+    public void enter() {
+      Settings.setState(settings);
+      Settings.set(Settings.INPUT_FILENAME, src.originalPath);
+      VarRepr.clearCache();
+      Logging.clearEmitted();
+    }
+
+    public Program program() {
+      return middle.getProgram();
+    }
+
+    public void definitions() throws UserException {
+      enter();
+      walk.loadDefinitions();
+    }
+
+    public void topLevel() throws UserException {
+      enter();
+      walk.compileTopLevel();
+    }
+
+    public void functions() throws UserException {
+      enter();
+      walk.compileFunctions();
+    }
+
+    /**
+     * Run optimizer preprocessing passes, as in ICOptimizer, which must
+     * be done before other passes
+     */
+    public void preprocess() throws UserException {
+      enter();
+      new PruneFunctions().optimize(logger, program());
+      new UniqueVarNames().optimize(logger, program());
+      new FlattenNested().optimize(logger, program());
+    }
+
+    public void optimize() throws UserException {
+      enter();
+      middle.optimize();
+    }
+
+    public TurbineGenerator generate() throws UserException {
+      enter();
+      TurbineGenerator codeGen = new TurbineGenerator(logger, TIMESTAMP);
+      middle.regenerate(codeGen);
+      return codeGen;
+    }
+  }
+
+  /**
+   * @return a compilation of each source in the corpus
+   */
+  public List<Compilation> compilations() throws UserException {
+    List<Compilation> result = new ArrayList<Compilation>();
+    for (Source src: sources) {
+      result.add(new Compilation(src));
+    }
+    return result;
+  }
+}
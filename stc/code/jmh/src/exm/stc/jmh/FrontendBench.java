@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import exm.stc.common.exceptions.UserException;
+import exm.stc.jmh.Corpus.Compilation;
+
+/**
+ * Each of the three frontend passes over the corpus.  Earlier passes are
+ * run in setup so only the pass being measured is timed.  Modules are
+ * parsed (or loaded from the module cache) during the first pass.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xss8m")
+public class FrontendBench {
+
+  @State(Scope.Thread)
+  public static class BeforeDefinitions {
+    List<Compilation> compilations;
+
+    @Setup(Level.Invocation)
+    public void setup(CorpusState state) throws UserException {
+      compilations = state.corpus.compilations();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class BeforeTopLevel {
+    List<Compilation> compilations;
+
+    @Setup(Level.Invocation)
+    public void setup(CorpusState state) throws UserException {
+      compilations = state.corpus.compilations();
+      for (Compilation c: compilations) {
+        c.definitions();
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class BeforeFunctions {
+    List<Compilation> compilations;
+
+    @Setup(Level.Invocation)
+    public void setup(CorpusState state) throws UserException {
+      compilations = state.corpus.compilations();
+      for (Compilation c: compilations) {
+        c.definitions();
+        c.topLevel();
+      }
+    }
+  }
+
+  @Benchmark
+  public void definitions(BeforeDefinitions state) throws UserException {
+    for (Compilation c: state.compilations) {
+      c.definitions();
+    }
+  }
+
+  @Benchmark
+  public void topLevel(BeforeTopLevel state) throws UserException {
+    for (Compilation c: state.compilations) {
+      c.topLevel();
+    }
+  }
+
+  @Benchmark
+  public void functions(BeforeFunctions state) throws UserException {
+    for (Compilation c: state.compilations) {
+      c.functions();
+    }
+  }
+}
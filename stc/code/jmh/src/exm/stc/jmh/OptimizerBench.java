@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.FixupVariables;
+import exm.stc.ic.opt.HoistLoops;
+import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.WaitCoalescer;
+import exm.stc.ic.opt.valuenumber.ValueNumber;
+import exm.stc.ic.refcount.RefcountPass;
+import exm.stc.jmh.Corpus.Compilation;
+
+/**
+ * Single run of an optimizer pass over each program in the corpus, as
+ * it would be on the first optimizer iteration.  Reference counting is
+ * run on the unoptimized program, as it would be with optimization off.
+ * The "All" pass runs the full optimizer pipeline, as the compiler does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xss8m")
+public class OptimizerBench {
+
+  @Param({"ValueNumber", "WaitCoalescer", "HoistLoops", "FixupVariables",
+          "RefcountPass", "All"})
+  public String pass;
+
+  private CorpusState state;
+  private List<Compilation> compilations;
+
+  @Setup(Level.Invocation)
+  public void setup(CorpusState state) throws UserException {
+    this.state = state;
+    compilations = state.corpus.compilations();
+    for (Compilation c: compilations) {
+      c.definitions();
+      c.topLevel();
+      c.functions();
+      if (pass.equals("All")) {
+        // Optimizer does its own preprocessing
+        continue;
+      }
+      c.preprocess();
+      if (pass.equals("RefcountPass")) {
+        // Refcounting relies on passing annotations
+        new FixupVariables().optimize(state.corpus.logger(), c.program());
+      }
+    }
+  }
+
+  @Benchmark
+  public void optimize() throws UserException {
+    for (Compilation c: compilations) {
+      if (pass.equals("All")) {
+        c.optimize();
+      } else {
+        c.enter();
+        createPass().optimize(state.corpus.logger(), c.program());
+      }
+    }
+  }
+
+  private OptimizerPass createPass() {
+    if (pass.equals("ValueNumber")) {
+      return new ValueNumber(true);
+    } else if (pass.equals("WaitCoalescer")) {
+      return new WaitCoalescer(false, true);
+    } else if (pass.equals("HoistLoops")) {
+      return new HoistLoops(false);
+    } else if (pass.equals("FixupVariables")) {
+      return new FixupVariables();
+    } else if (pass.equals("RefcountPass")) {
+      return new RefcountPass();
+    } else {
+      throw new STCRuntimeError("Unknown pass " + pass);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.jvm.runtime.InvalidReadException;
+import exm.stc.jvm.runtime.JVMRuntime;
+import exm.stc.jvm.runtime.LogicException;
+import exm.stc.jvm.runtime.Task;
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.FloatVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+
+/**
+ * Multithreaded JVM runtime on hand-translated versions of the programs
+ * in stc/bench, for comparison with the same programs under Turbine:
+ * <ul>
+ * <li>foreach-1D: foreach i in [0:N-1] { A[i] = set1_float(delay); }</li>
+ * <li>dataflow-2D: M x N, with A[j] depending on A[randint(0, j)]</li>
+ * <li>wavefront: N x N, with A[i][j] depending on A[i-1][j-1],
+ *     A[i-1][j] and A[i][j-1]</li>
+ * </ul>
+ * Loops are split into tasks as STC would split a range foreach, and
+ * lookups wait on container keys as they would in Turbine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RuntimeBench {
+
+  private static final String FN = "main";
+
+  private static final int SPLIT_DEGREE = 16;
+  private static final int LEAF_DEGREE = 64;
+
+  @Param({"foreach-1D", "dataflow-2D", "wavefront"})
+  public String program;
+
+  @Param({"256"})
+  public int n;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  /**
+   * Task delay in milliseconds for foreach-1D, and multiplier for
+   * set1_integer delay in dataflow-2D
+   */
+  @Param({"0"})
+  public int delay;
+
+  @Benchmark
+  public void run() throws LogicException, InterruptedException {
+    JVMRuntime rt = new JVMRuntime(threads);
+    Task main;
+    if (program.equals("foreach-1D")) {
+      main = foreach1D(rt);
+    } else if (program.equals("dataflow-2D")) {
+      main = dataflow2D(rt);
+    } else if (program.equals("wavefront")) {
+      main = wavefront(rt);
+    } else {
+      throw new STCRuntimeError("Unknown program " + program);
+    }
+    rt.run(main);
+  }
+
+  private Task foreach1D(final JVMRuntime rt) {
+    return new Task() {
+      @Override
+      public void run() throws LogicException {
+        final ContainerVar A = new ContainerVar(1);
+        rangeSplit(rt, 0, n - 1, A, new Body() {
+          @Override
+          public void run(long i) throws LogicException {
+            FloatVar v = new FloatVar(1);
+            A.insert(FN, "A", i, v);
+            sleep(delay);
+            v.set(FN, "A[i]", 1.0);
+          }
+        });
+      }
+    };
+  }
+
+  private Task dataflow2D(final JVMRuntime rt) {
+    return new Task() {
+      @Override
+      public void run() throws LogicException {
+        rangeSplit(rt, 0, n - 1, null, new Body() {
+          @Override
+          public void run(long i) throws LogicException {
+            final ContainerVar A = new ContainerVar(1);
+            final Random random = new Random(i);
+            rangeSplit(rt, 0, n - 1, A, new Body() {
+              @Override
+              public void run(long j) throws LogicException {
+                final IntVar v = new IntVar(1);
+                A.insert(FN, "A", j, v);
+                if (j == 0) {
+                  v.set(FN, "A[j]", 1);
+                } else {
+                  final long r;
+                  synchronized (random) {
+                    r = random.nextInt((int)j);
+                  }
+                  lookupThen(rt, A, r, new Body() {
+                    @Override
+                    public void run(long d) throws LogicException {
+                      sleep(d * delay);
+                      v.set(FN, "A[j]", 1);
+                    }
+                  });
+                }
+              }
+            });
+          }
+        });
+      }
+    };
+  }
+
+  private Task wavefront(final JVMRuntime rt) {
+    return new Task() {
+      @Override
+      public void run() throws LogicException {
+        final ContainerVar A = new ContainerVar(1);
+        // Rows are closed once the outer array is closed and the loop
+        // over the row finishes
+        final ContainerVar row0 = A.createNested(FN, "A", 0L, 1);
+        row0.insert(FN, "A[0]", 0L, new FloatVar(0, 0.0));
+        for (long i = 1; i < n; i++) {
+          A.createNested(FN, "A", i, 1).insert(FN, "A[i]", 0L,
+                                                new FloatVar(0, i));
+          row0.insert(FN, "A[0]", i, new FloatVar(0, i));
+        }
+        A.incrWriters(FN, "A", -1);
+
+        rangeSplit(rt, 1, n - 1, null, new Body() {
+          @Override
+          public void run(final long i) throws LogicException {
+            final ContainerVar prev = row(A, i - 1);
+            final ContainerVar curr = row(A, i);
+            rangeSplit(rt, 1, n - 1, curr, new Body() {
+              @Override
+              public void run(final long j) throws LogicException {
+                final FloatVar v = new FloatVar(1);
+                curr.insert(FN, "A[i]", j, v);
+                rt.newRule(new Task() {
+                  @Override
+                  public void run() throws LogicException {
+                    final FloatVar a = (FloatVar)prev.lookup(FN, "A[i-1]",
+                                                             j - 1);
+                    final FloatVar b = (FloatVar)prev.lookup(FN, "A[i-1]", j);
+                    final FloatVar c = (FloatVar)curr.lookup(FN, "A[i]",
+                                                             j - 1);
+                    rt.rule(new Task() {
+                      @Override
+                      public void run() throws LogicException {
+                        double sum = a.get(FN, "a") + b.get(FN, "b") +
+                                     c.get(FN, "c");
+                        v.set(FN, "A[i][j]", Math.sqrt(sum) + 1);
+                      }
+                    }, a, b, c);
+                  }
+                }).waitOnKey(prev, j - 1).waitOnKey(prev, j)
+                  .waitOnKey(curr, j - 1).activate();
+              }
+            });
+          }
+        });
+      }
+    };
+  }
+
+  private static ContainerVar row(ContainerVar A, long i)
+      throws InvalidReadException {
+    return (ContainerVar)A.lookup(FN, "A", i);
+  }
+
+  private interface Body {
+    void run(long i) throws LogicException;
+  }
+
+  /**
+   * Run body once all iterations of range loop are done.  Splits range
+   * recursively into tasks, closing container when finished.
+   */
+  private static void rangeSplit(final JVMRuntime rt, final long lo,
+      final long hi, final ContainerVar closeOnFinish, final Body body)
+          throws LogicException {
+    long count = hi - lo + 1;
+    if (count <= LEAF_DEGREE) {
+      for (long i = lo; i <= hi; i++) {
+        body.run(i);
+      }
+      if (closeOnFinish != null) {
+        closeOnFinish.incrWriters(FN, "A", -1);
+      }
+      return;
+    }
+
+    long chunk = Math.max(LEAF_DEGREE, (count + SPLIT_DEGREE - 1) /
+                                                SPLIT_DEGREE);
+    int chunks = (int)((count + chunk - 1) / chunk);
+    if (closeOnFinish != null) {
+      // One writer per chunk, in place of the writer held by caller
+      closeOnFinish.incrWriters(FN, "A", chunks - 1);
+    }
+    for (long start = lo; start <= hi; start += chunk) {
+      final long chunkLo = start;
+      final long chunkHi = Math.min(hi, start + chunk - 1);
+      rt.spawn(new Task() {
+        @Override
+        public void run() throws LogicException {
+          rangeSplit(rt, chunkLo, chunkHi, closeOnFinish, body);
+        }
+      });
+    }
+  }
+
+  /**
+   * Wait for integer A[key] to be inserted and set, then run body with
+   * its value
+   */
+  private static void lookupThen(final JVMRuntime rt, final ContainerVar A,
+                                 final long key, final Body body) {
+    rt.newRule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final IntVar v = (IntVar)A.lookup(FN, "A", key);
+        rt.rule(new Task() {
+          @Override
+          public void run() throws LogicException {
+            body.run(v.get(FN, "A[r]"));
+          }
+        }, v);
+      }
+    }).waitOnKey(A, key).activate();
+  }
+
+  private static void sleep(long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
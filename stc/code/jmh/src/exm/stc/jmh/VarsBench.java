@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import exm.stc.jvm.runtime.DoubleWriteException;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+
+/**
+ * Subscribing to and closing JVM runtime variables.
+ * <ul>
+ * <li>contended: several threads subscribe to variables in a shared ring
+ *     while another closes them and replaces them with fresh ones</li>
+ * <li>single: one thread subscribes to a fresh variable then closes it</li>
+ * <li>unsubscribed: one thread closes a fresh variable</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VarsBench {
+
+  private static final String FN = "main";
+
+  /**
+   * Number of variables in ring, power of two
+   */
+  private static final int RING_SIZE = 1024;
+
+  private static final NotifyTarget NOOP = new NotifyTarget() {
+    @Override
+    public void notifyFinal(BaseVar var) {
+      // Do nothing
+    }
+  };
+
+  @State(Scope.Group)
+  public static class Ring {
+    final AtomicReferenceArray<IntVar> vars =
+                      new AtomicReferenceArray<IntVar>(RING_SIZE);
+
+    public Ring() {
+      for (int i = 0; i < RING_SIZE; i++) {
+        vars.set(i, new IntVar(1));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Position {
+    int next = 0;
+
+    int advance() {
+      int i = next;
+      next = (i + 1) & (RING_SIZE - 1);
+      return i;
+    }
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public boolean subscribe(Ring ring, Position pos) {
+    return ring.vars.get(pos.advance()).subscribe(NOOP);
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void close(Ring ring, Position pos) throws DoubleWriteException {
+    int i = pos.advance();
+    IntVar v = ring.vars.getAndSet(i, new IntVar(1));
+    v.set(FN, "v", i);
+  }
+
+  @Benchmark
+  public boolean single() throws DoubleWriteException {
+    IntVar v = new IntVar(1);
+    boolean subscribed = v.subscribe(NOOP);
+    v.set(FN, "v", 0);
+    return subscribed;
+  }
+
+  @Benchmark
+  public IntVar unsubscribed() throws DoubleWriteException {
+    IntVar v = new IntVar(1);
+    v.set(FN, "v", 0);
+    return v;
+  }
+}
@@ -15,9 +15,12 @@
  */
 grammar ExM;
 
-// TODO: need backtracking to disambiguate between function type
-// signature and function call statements in stmt
-options {output=AST; backtrack=true;}
+// Backtracking is only enabled in real_stmt, where it is needed to
+// disambiguate between function definitions and function call
+// statements.  Rules that are attempted speculatively there are memoized.
+// Elsewhere, ambiguities are resolved with fixed-lookahead syntactic
+// predicates so that expression parsing time stays linear in input size.
+options {output=AST;}
 
 tokens {
     PLUS    = '+' ;
@@ -188,8 +191,9 @@ stmt:
     |   (real_stmt) -> real_stmt
     ;
 
-real_stmt:
-        (function_definition)
+real_stmt
+options {backtrack=true; memoize=true;}
+    :   (function_definition)
     |   (new_type_definition)
     |   (global_const_definition)
     |   (import_statement)
@@ -205,8 +209,9 @@ real_stmt:
     |   (update_stmt)
     ;
 
-stmt_chain:
-        chainable_stmt
+stmt_chain
+options {memoize=true;}
+    :   chainable_stmt
           (  SEMICOLON
                     -> chainable_stmt
           | stmt_chain_op real_stmt
@@ -264,8 +269,9 @@ type_field:
     ;
 
 
-function_definition:
-	annotation* (
+function_definition
+options {memoize=true;}
+    :   annotation* (
 		// app function
 		APP o=formal_argument_list f=func_name i=formal_argument_list
         	LBRACE app_body SEMICOLON? RBRACE ->
@@ -426,15 +432,17 @@ switch_case:
         -> ^( DEFAULT ^( BLOCK stmt* ) )
     ;
 
-foreach_loop:
-        annotation* FOREACH v=var_name COMMA i=var_name IN e=expr b=block
+foreach_loop
+options {memoize=true;}
+    :   annotation* FOREACH v=var_name COMMA i=var_name IN e=expr b=block
         -> ^( FOREACH_LOOP $e $b $v $i annotation* )
     |   annotation* FOREACH v=var_name IN e=expr b=block
         -> ^( FOREACH_LOOP $e $b $v annotation* )
     ;
 
-for_loop:
-        annotation*
+for_loop
+options {memoize=true;}
+    :   annotation*
         FOR LPAREN i=for_loop_init SEMICOLON c=expr SEMICOLON
                 u=for_loop_update RPAREN b=block
             -> ^( FOR_LOOP $i $c $u $b annotation* )
@@ -560,7 +568,7 @@ cmpexpr_op: LT|LTE|GT|GTE
 
 aexpr:
         (mexpr->mexpr)
-        (     aexpr_op b=mexpr
+        (     (aexpr_op)=> aexpr_op b=mexpr
             -> ^(OPERATOR aexpr_op $aexpr $b)
         )*
     ;
@@ -599,7 +607,7 @@ uexpr_op: NOT
 // postfix expression
 pfexpr:
         (base_expr->base_expr)
-        (   array_index -> ^(ARRAY_LOAD $pfexpr array_index )
+        (   (LSQUARE)=> array_index -> ^(ARRAY_LOAD $pfexpr array_index )
           | var_subscript -> ^(STRUCT_LOAD $pfexpr var_subscript )
         )*
     ;
@@ -618,7 +626,7 @@ var_subscript:
 
 base_expr:
             literal
-        |   function_call
+        |   (ATSIGN | ID LPAREN)=> function_call
         |   variable
         |   paren_expr
         |   array_constructor
@@ -742,7 +750,7 @@ more_expr:
 paren_expr:
     LPAREN e=expr (
         -> $e
-      | more_expr* -> ^( TUPLE $e more_expr* )
+      | more_expr+ -> ^( TUPLE $e more_expr+ )
     ) RPAREN;
 
 assignment_list:
@@ -15,7 +15,9 @@
  */
 package exm.stc.ast;
 
+import java.util.Collections;
 import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 /** 
@@ -82,6 +84,13 @@ public class FilePosition {
             precedingP.line + diff);
       }
     }
+    /**
+     * @return map of preprocessor output line to original position
+     */
+    public SortedMap<Integer, FilePosition> entries() {
+      return Collections.unmodifiableSortedMap(fileMap);
+    }
+
     public String toString() {
       return fileMap.toString();
     }
@@ -15,12 +15,17 @@
  */
 package exm.stc.ast;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTree;
 
@@ -134,6 +139,74 @@ public class SwiftAST extends CommonTree {
       writer.print(' ');
   }
 
+  /**
+   * Write tree in compact binary form.  Only the information from the
+   * parser is written: annotations added by the frontend are omitted.
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    Token tok = getToken();
+    if (tok == null) {
+      out.writeBoolean(false);
+    } else {
+      out.writeBoolean(true);
+      out.writeInt(tok.getType());
+      String text = tok.getText();
+      if (text == null) {
+        out.writeInt(-1);
+      } else {
+        byte textBytes[] = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(textBytes.length);
+        out.write(textBytes);
+      }
+      out.writeInt(tok.getLine());
+      out.writeInt(tok.getCharPositionInLine());
+    }
+
+    out.writeInt(childCount());
+    for (SwiftAST child: children()) {
+      child.writeTo(out);
+    }
+  }
+
+  /**
+   * Read tree written by {@link #writeTo(DataOutput)}
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static SwiftAST readFrom(DataInput in) throws IOException {
+    CommonToken tok = null;
+    if (in.readBoolean()) {
+      int type = in.readInt();
+      int textLen = in.readInt();
+      String text = null;
+      if (textLen >= 0) {
+        byte textBytes[] = new byte[textLen];
+        in.readFully(textBytes);
+        text = new String(textBytes, StandardCharsets.UTF_8);
+      }
+      tok = new CommonToken(type, text);
+      tok.setLine(in.readInt());
+      tok.setCharPositionInLine(in.readInt());
+    }
+
+    SwiftAST tree = new SwiftAST(tok);
+    int childCount = in.readInt();
+    if (childCount > 0) {
+      // Add children directly: addChild() would flatten nil children
+      tree.children = tree.createChildrenList();
+      for (int i = 0; i < childCount; i++) {
+        SwiftAST child = readFrom(in);
+        child.setParent(tree);
+        child.setChildIndex(i);
+        tree.children.add(child);
+      }
+    }
+    return tree;
+  }
+
   public void resetAnnotations() {
     ArrayList<SwiftAST> stack = new ArrayList<SwiftAST>();
     stack.add(this);
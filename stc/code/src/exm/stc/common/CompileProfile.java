@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Profile of a single compilation: time and memory allocated in each
+ * compiler phase, and for each optimizer pass run, along with the
+ * size of the IC before and after the pass.
+ *
+ * Only collected if {@link Settings#PROFILE_REPORT} is set.  The profile
+ * for the compilation running in the current thread is available through
+ * {@link #current()}.  Measuring IC size between passes is not free,
+ * so the optimizer phase total is inflated when profiling.
+ */
+public class CompileProfile {
+
+  private static final ThreadLocal<CompileProfile> current =
+                                  new ThreadLocal<CompileProfile>();
+
+  /** Null if allocation can't be measured on this JVM */
+  private static final com.sun.management.ThreadMXBean allocMXBean =
+                                                  initAllocMXBean();
+
+  /** Totals for top-level phases of compiler, in order run */
+  private final Map<String, Totals> phases =
+                          new LinkedHashMap<String, Totals>();
+
+  /** Totals for each optimizer pass, in order first run */
+  private final Map<String, Totals> passTotals =
+                          new LinkedHashMap<String, Totals>();
+
+  private final List<PassRecord> passes = new ArrayList<PassRecord>();
+
+  /**
+   * Start profiling compilation in current thread if enabled in settings
+   * @return the profile, or null if profiling not enabled
+   */
+  public static CompileProfile start() {
+    String report = Settings.get(Settings.PROFILE_REPORT);
+    if (report == null || report.length() == 0) {
+      current.remove();
+      return null;
+    }
+    CompileProfile profile = new CompileProfile();
+    current.set(profile);
+    return profile;
+  }
+
+  /**
+   * @return profile for compilation in current thread, or null if not
+   *         profiling
+   */
+  public static CompileProfile current() {
+    return current.get();
+  }
+
+  /**
+   * Stop profiling in current thread
+   */
+  public static void end() {
+    current.remove();
+  }
+
+  /**
+   * @return bytes allocated so far by current thread, or -1 if not
+   *          supported by JVM
+   */
+  public static long threadAllocatedBytes() {
+    if (allocMXBean == null) {
+      return -1;
+    }
+    return allocMXBean.getThreadAllocatedBytes(
+                          Thread.currentThread().getId());
+  }
+
+  private static com.sun.management.ThreadMXBean initAllocMXBean() {
+    try {
+      ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+      if (mx instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sunMX =
+                          (com.sun.management.ThreadMXBean)mx;
+        if (sunMX.isThreadAllocatedMemorySupported()) {
+          sunMX.setThreadAllocatedMemoryEnabled(true);
+          return sunMX;
+        }
+      }
+    } catch (UnsupportedOperationException e) {
+      // Fall through
+    } catch (LinkageError e) {
+      // com.sun.management not available
+    }
+    return null;
+  }
+
+  public void addPhase(String phase, long nanos, long allocBytes) {
+    addTotals(phases, phase, nanos, allocBytes);
+  }
+
+  public void addPass(PassRecord pass) {
+    passes.add(pass);
+    addTotals(passTotals, pass.pass, pass.nanos, pass.allocBytes);
+  }
+
+  private static void addTotals(Map<String, Totals> totals, String name,
+                                long nanos, long allocBytes) {
+    Totals t = totals.get(name);
+    if (t == null) {
+      t = new Totals();
+      totals.put(name, t);
+    }
+    t.count++;
+    t.nanos += nanos;
+    if (allocBytes >= 0 && t.allocBytes >= 0) {
+      t.allocBytes += allocBytes;
+    } else {
+      t.allocBytes = -1;
+    }
+  }
+
+  /**
+   * Accumulated time and allocation
+   */
+  private static class Totals {
+    int count = 0;
+    long nanos = 0;
+    /** -1 if unknown */
+    long allocBytes = 0;
+  }
+
+  /**
+   * Record of a single run of an optimizer pass
+   */
+  public static class PassRecord {
+    public final long iteration;
+    public final String pass;
+    public final long nanos;
+    /** -1 if unknown */
+    public final long allocBytes;
+    public final int functionsBefore;
+    public final int functionsAfter;
+    public final int functionsChanged;
+    public final int instructionsBefore;
+    public final int instructionsAfter;
+    public final int continuationsBefore;
+    public final int continuationsAfter;
+
+    public PassRecord(long iteration, String pass, long nanos,
+        long allocBytes, int functionsBefore, int functionsAfter,
+        int functionsChanged, int instructionsBefore, int instructionsAfter,
+        int continuationsBefore, int continuationsAfter) {
+      this.iteration = iteration;
+      this.pass = pass;
+      this.nanos = nanos;
+      this.allocBytes = allocBytes;
+      this.functionsBefore = functionsBefore;
+      this.functionsAfter = functionsAfter;
+      this.functionsChanged = functionsChanged;
+      this.instructionsBefore = instructionsBefore;
+      this.instructionsAfter = instructionsAfter;
+      this.continuationsBefore = continuationsBefore;
+      this.continuationsAfter = continuationsAfter;
+    }
+  }
+
+  public void writeJSON(Writer out) throws IOException {
+    out.write("{\n");
+    out.write("  \"phases\": ");
+    writeTotalsJSON(out, phases);
+    out.write(",\n  \"passTotals\": ");
+    writeTotalsJSON(out, passTotals);
+    out.write(",\n  \"passes\": [");
+    boolean first = true;
+    for (PassRecord p: passes) {
+      out.write(first ? "\n" : ",\n");
+      first = false;
+      out.write("    {\"iteration\": " + p.iteration +
+          ", \"pass\": " + jsonString(p.pass) +
+          ", \"timeMs\": " + millis(p.nanos) +
+          ", \"allocBytes\": " + p.allocBytes +
+          ", \"functionsBefore\": " + p.functionsBefore +
+          ", \"functionsAfter\": " + p.functionsAfter +
+          ", \"functionsChanged\": " + p.functionsChanged +
+          ", \"instructionsBefore\": " + p.instructionsBefore +
+          ", \"instructionsAfter\": " + p.instructionsAfter +
+          ", \"continuationsBefore\": " + p.continuationsBefore +
+          ", \"continuationsAfter\": " + p.continuationsAfter + "}");
+    }
+    out.write("\n  ]\n}\n");
+  }
+
+  private static void writeTotalsJSON(Writer out, Map<String, Totals> totals)
+      throws IOException {
+    out.write("{");
+    boolean first = true;
+    for (Entry<String, Totals> e: totals.entrySet()) {
+      Totals t = e.getValue();
+      out.write(first ? "\n" : ",\n");
+      first = false;
+      out.write("    " + jsonString(e.getKey()) + ": {\"count\": " +
+                t.count + ", \"timeMs\": " + millis(t.nanos) +
+                ", \"allocBytes\": " + t.allocBytes + "}");
+    }
+    out.write("\n  }");
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String millis(long nanos) {
+    // JSON needs a period as decimal separator
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private static String megabytes(long bytes) {
+    return bytes < 0 ? "?" : String.format("%.1f", bytes / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Write human-readable summary
+   */
+  public void writeTable(PrintStream out) {
+    out.println("Compiler phases:");
+    out.println(String.format("  %-28s %6s %10s %10s",
+                              "Phase", "Runs", "Time(ms)", "Alloc(MB)"));
+    writeTotalsTable(out, phases);
+
+    out.println("Optimizer pass totals:");
+    out.println(String.format("  %-28s %6s %10s %10s",
+                              "Pass", "Runs", "Time(ms)", "Alloc(MB)"));
+    writeTotalsTable(out, passTotals);
+
+    out.println("Optimizer passes:");
+    out.println(String.format("  %4s %-28s %9s %9s %11s %7s %15s %13s",
+        "Iter", "Pass", "Time(ms)", "Alloc(MB)", "Functions", "Changed",
+        "Instructions", "Continuations"));
+    for (PassRecord p: passes) {
+      out.println(String.format("  %4d %-28s %9s %9s %11s %7d %15s %13s",
+          p.iteration, p.pass, millis(p.nanos), megabytes(p.allocBytes),
+          p.functionsBefore + "->" + p.functionsAfter, p.functionsChanged,
+          p.instructionsBefore + "->" + p.instructionsAfter,
+          p.continuationsBefore + "->" + p.continuationsAfter));
+    }
+  }
+
+  private static void writeTotalsTable(PrintStream out,
+                                       Map<String, Totals> totals) {
+    for (Entry<String, Totals> e: totals.entrySet()) {
+      Totals t = e.getValue();
+      out.println(String.format("  %-28s %6d %10s %10s", e.getKey(),
+                    t.count, millis(t.nanos), megabytes(t.allocBytes)));
+    }
+  }
+}
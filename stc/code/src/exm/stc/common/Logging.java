@@ -16,7 +16,9 @@
 package exm.stc.common;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
@@ -32,10 +34,16 @@ public class Logging {
   private static final String STC_LOGGER_NAME = "exm.stc";
 
   /**
-   * Messages already emitted.
+   * Messages already emitted in compilation running in this thread.
+   * Synchronized since helper threads may share it.
    */
-  private static final HashSet<Pair<org.apache.log4j.Level, String>> emitted =
-          new HashSet<Pair<org.apache.log4j.Level, String>>();
+  private static final ThreadLocal<Set<Pair<Level, String>>> emitted =
+          new ThreadLocal<Set<Pair<Level, String>>>() {
+    @Override
+    protected Set<Pair<Level, String>> initialValue() {
+      return Collections.synchronizedSet(new HashSet<Pair<Level, String>>());
+    }
+  };
 
   public static Logger getSTCLogger() {
     return Logger.getLogger(STC_LOGGER_NAME);
@@ -96,7 +104,31 @@ public class Logging {
    * @return true if not already emitted
    */
   public static boolean addEmitted(org.apache.log4j.Level level, String msg) {
-    return emitted.add(Pair.create(level, msg));
+    return emitted.get().add(Pair.create(level, msg));
+  }
+
+  /**
+   * @return messages emitted by compilation running in this thread
+   */
+  public static Set<Pair<Level, String>> getEmitted() {
+    return emitted.get();
+  }
+
+  /**
+   * Share emitted messages with another thread, e.g. a helper thread
+   * working on behalf of a compilation
+   * @param newEmitted
+   */
+  public static void setEmitted(Set<Pair<Level, String>> newEmitted) {
+    assert(newEmitted != null);
+    emitted.set(newEmitted);
+  }
+
+  /**
+   * Forget previously emitted messages, e.g. at start of new compilation
+   */
+  public static void clearEmitted() {
+    emitted.remove();
   }
 
   public static void uniqueWarn(String msg) {
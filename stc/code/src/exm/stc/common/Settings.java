@@ -25,7 +25,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -37,6 +39,11 @@ import exm.stc.common.util.Pair;
  *
  * List of Java properties not processed here:
  * stc.logfile: used to set up logging in Main
+ *
+ * Settings are tracked per-thread in a {@link State} object so that
+ * multiple compilations can proceed concurrently in the same JVM, e.g.
+ * in the compile server.  Any thread that starts a fresh compilation
+ * should call {@link #resetState()} first.
  * */
 public class Settings {
 
@@ -49,6 +56,7 @@ public class Settings {
   public static final String OPT_CONSTANT_FOLD = "stc.opt.constant-fold";
   public static final String OPT_SHARED_CONSTANTS = "stc.opt.shared-constants";
   public static final String OPT_DEMOTE_GLOBALS = "stc.opt.demote-globals";
+  public static final String OPT_DEMOTE_LOCALS = "stc.opt.demote-locals";
   public static final String OPT_FLATTEN_NESTED = "stc.opt.flatten-nested";
   public static final String OPT_DEAD_CODE_ELIM = "stc.opt.dead-code-elim";
   public static final String OPT_VALUE_NUMBER = "stc.opt.value-number";
@@ -94,6 +102,24 @@ public class Settings {
   // Threshold extra instructions for unrolling loop
   public static final String OPT_UNROLL_LOOP_THRESHOLD_INSTS =
                             "stc.opt.unroll-loop-threshold-insts";
+  /* Choose split and leaf degree of loops without annotations from
+   * estimated cost of loop body */
+  public static final String OPT_AUTO_SPLIT = "stc.opt.auto-split";
+  // Target amount of work per leaf task of split loop, in cost units
+  public static final String OPT_LOOP_TASK_GRANULARITY =
+                            "stc.opt.loop-task-granularity";
+  // Number of workers that split loops should aim to keep busy
+  public static final String OPT_LOOP_TARGET_WORKERS =
+                            "stc.opt.loop-target-workers";
+  /* Properties file with costs used by optimizer to estimate task
+   * cost, overriding defaults.  Empty to use defaults */
+  public static final String OPT_COST_MODEL = "stc.opt.cost-model";
+  /* Execution profile files from instrumented run, separated by path
+   * separator.  Empty for no profile */
+  public static final String OPT_PROFILE = "stc.opt.profile";
+  // Set priority of long running tasks using execution profile
+  public static final String OPT_PROFILE_PRIORITY =
+                            "stc.opt.profile-priority";
   public static final String OPT_HOIST = "stc.opt.hoist";
   public static final String OPT_REORDER_INSTS = "stc.opt.reorder-insts";
   public static final String OPT_ARRAY_BUILD = "stc.opt.array-build";
@@ -108,6 +134,30 @@ public class Settings {
 
   public static final String OPT_MAX_ITERATIONS = "stc.opt.max-iterations";
 
+  /**
+   * Run function-local optimizer passes on multiple functions in
+   * parallel.  Number of threads defaults to number of processors.
+   */
+  public static final String OPT_PARALLEL = "stc.opt.parallel";
+  public static final String OPT_PARALLEL_THREADS = "stc.opt.parallel-threads";
+
+  /**
+   * Skip optimizer passes on functions that are unchanged since the pass
+   * last had no effect on them, and skip iterations that can't change
+   * the program once it reaches a fixed point.
+   */
+  public static final String OPT_TRACK_CHANGES = "stc.opt.track-changes";
+
+  /**
+   * How much to validate IC between optimizer passes: off, sampled,
+   * incremental or exhaustive.  In sampled mode, the number of functions
+   * validated after each pass is given by OPT_VALIDATE_SAMPLE.
+   * Incremental mode relies on OPT_TRACK_CHANGES to find modified
+   * functions, and falls back to sampled mode if it is disabled.
+   */
+  public static final String OPT_VALIDATE = "stc.opt.validate";
+  public static final String OPT_VALIDATE_SAMPLE = "stc.opt.validate-sample";
+
   public static final String ENABLE_REFCOUNTING = "stc.refcounting";
   public static final String ENABLE_CHECKPOINTING = "stc.checkpointing";
 
@@ -115,6 +165,12 @@ public class Settings {
 
   public static final String INPUT_FILENAME = "stc.input_filename";
   public static final String OUTPUT_FILENAME = "stc.output_filename";
+
+  /**
+   * Code to generate: turbine for Tcl code to run on Turbine, or java for
+   * Java source to run on the multithreaded JVM runtime
+   */
+  public static final String OUTPUT_MODE = "stc.output-mode";
   public static final String STC_HOME = "stc.stc_home";
   public static final String STC_VERSION = "stc.version";
   public static final String TURBINE_HOME = "stc.turbine_home";
@@ -123,9 +179,24 @@ public class Settings {
   public static final String LOG_TRACE = "stc.log.trace";
   public static final String COMPILER_DEBUG = "stc.compiler-debug";
 
+  /**
+   * Cache parsed library modules (e.g. builtins and imports) across
+   * compilations in the same process.  If a cache directory is set,
+   * also cache them on disk across processes.
+   */
+  public static final String MODULE_CACHE = "stc.module-cache";
+  public static final String MODULE_CACHE_DIR = "stc.module-cache-dir";
+
   /** Run compiler repeatedly so can be profiled */
   public static final String PROFILE_STC = "stc.profile";
 
+  /**
+   * Write report with time spent in each compiler phase and optimizer
+   * pass to this file as JSON, and a summary to stderr.  Empty for
+   * no report.
+   */
+  public static final String PROFILE_REPORT = "stc.profile.report";
+
   public static final String USE_C_PREPROCESSOR = "stc.c_preprocess";
   public static final String PREPROCESS_ONLY = "stc.preprocess_only";
   public static final String PREPROCESSOR_FORCE_GCC = "stc.preproc.force-gcc";
@@ -136,13 +207,41 @@ public class Settings {
   public static final String MUST_PASS_WAIT_VARS = "stc.must_pass_wait_vars";
 
   private static final Properties defaults;
-  private static final Properties properties;
 
-  private static final List<String> modulePath = new ArrayList<String>();
+  /**
+   * Settings for a single compilation.
+   */
+  public static class State {
+    private final Properties properties;
+
+    private final List<String> modulePath = new ArrayList<String>();
+
+    /** Additional metadata */
+    private final List<Pair<String, String>> metadata =
+              new ArrayList<Pair<String, String>>();
+
+    /** Compile-time argument bindings: store in sorted order as nicety */
+    private final Map<String, String> compileTimeArgs =
+              new TreeMap<String, String>();
 
-  /** Additional metadata */
-  private static final List<Pair<String, String>> metadata =
-            new ArrayList<Pair<String, String>>();
+    private State() {
+      this.properties = new Properties(defaults);
+    }
+
+    public Map<String, String> compileTimeArgs() {
+      return compileTimeArgs;
+    }
+  }
+
+  /**
+   * State for compilation running in current thread.
+   */
+  private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue() {
+      return new State();
+    }
+  };
 
   static {
     defaults = new Properties();
@@ -153,6 +252,7 @@ public class Settings {
     defaults.setProperty(RPATH, "");
     defaults.setProperty(INPUT_FILENAME, "");
     defaults.setProperty(OUTPUT_FILENAME, "");
+    defaults.setProperty(OUTPUT_MODE, "turbine");
     defaults.setProperty(STC_HOME, "");
     defaults.setProperty(TURBINE_HOME, "");
     defaults.setProperty(COMPILER_DEBUG, "true");
@@ -166,6 +266,7 @@ public class Settings {
     defaults.setProperty(OPT_CONSTANT_FOLD, "true");
     defaults.setProperty(OPT_SHARED_CONSTANTS, "true");
     defaults.setProperty(OPT_DEMOTE_GLOBALS, "true");
+    defaults.setProperty(OPT_DEMOTE_LOCALS, "true");
     defaults.setProperty(OPT_DEAD_CODE_ELIM, "true");
     defaults.setProperty(OPT_UNROLL_LOOPS, "true");
     defaults.setProperty(OPT_EXPAND_LOOPS, "true");
@@ -174,6 +275,12 @@ public class Settings {
     defaults.setProperty(OPT_UNROLL_LOOP_THRESHOLD_ITERS, "8");
     defaults.setProperty(OPT_EXPAND_LOOP_THRESHOLD_INSTS, "256");
     defaults.setProperty(OPT_UNROLL_LOOP_THRESHOLD_INSTS, "192");
+    defaults.setProperty(OPT_AUTO_SPLIT, "true");
+    defaults.setProperty(OPT_LOOP_TASK_GRANULARITY, "1000");
+    defaults.setProperty(OPT_LOOP_TARGET_WORKERS, "16");
+    defaults.setProperty(OPT_COST_MODEL, "");
+    defaults.setProperty(OPT_PROFILE, "");
+    defaults.setProperty(OPT_PROFILE_PRIORITY, "true");
     defaults.setProperty(OPT_DISABLE_ASSERTS, "false");
     defaults.setProperty(OPT_VALUE_NUMBER, "true");
     defaults.setProperty(OPT_FINALIZED_VAR, "true");
@@ -200,10 +307,18 @@ public class Settings {
     defaults.setProperty(OPT_BATCH_REFCOUNTS, "true");
     defaults.setProperty(OPT_HOIST_REFCOUNTS, "true");
     defaults.setProperty(OPT_MAX_ITERATIONS, "10");
+    defaults.setProperty(OPT_PARALLEL, "false");
+    defaults.setProperty(OPT_PARALLEL_THREADS, "0");
+    defaults.setProperty(OPT_TRACK_CHANGES, "true");
+    defaults.setProperty(OPT_VALIDATE, "incremental");
+    defaults.setProperty(OPT_VALIDATE_SAMPLE, "4");
     defaults.setProperty(ENABLE_REFCOUNTING, "true");
     defaults.setProperty(ENABLE_CHECKPOINTING, "true");
     defaults.setProperty(AUTO_DECLARE, "true");
     defaults.setProperty(PROFILE_STC, "false");
+    defaults.setProperty(PROFILE_REPORT, "");
+    defaults.setProperty(MODULE_CACHE, "true");
+    defaults.setProperty(MODULE_CACHE_DIR, "");
     defaults.setProperty(LOG_FILE, "");
     defaults.setProperty(LOG_TRACE, "false");
 
@@ -215,7 +330,35 @@ public class Settings {
     // Turbine code generation
     // Turbine version
     defaults.setProperty(TURBINE_VERSION, "unknown");
-    properties = new Properties(defaults);
+  }
+
+  /**
+   * @return settings state for the current thread
+   */
+  public static State getState() {
+    return state.get();
+  }
+
+  /**
+   * Use the provided settings in the current thread, e.g. in a helper
+   * thread working on behalf of a compilation
+   * @param newState
+   */
+  public static void setState(State newState) {
+    assert(newState != null);
+    state.set(newState);
+  }
+
+  /**
+   * Discard all settings for the current thread and start again
+   * from defaults.
+   */
+  public static void resetState() {
+    state.set(new State());
+  }
+
+  private static Properties properties() {
+    return state.get().properties;
   }
 
   /**
@@ -224,48 +367,62 @@ public class Settings {
    */
   public static void initSTCProperties() throws InvalidOptionException {
     // Pull in properties from wrapper script
+    initSTCProperties(System.getProperties(), ".");
+  }
+
+  /**
+   * Try to overwrite each default property in properties with value
+   * from the provided source.
+   * @param source
+   * @param currentDir directory to search for modules last
+   * @throws InvalidOptionException
+   */
+  public static void initSTCProperties(Properties source, String currentDir)
+      throws InvalidOptionException {
+    Properties properties = properties();
     for (String key: properties.stringPropertyNames()) {
-      String sysVal = System.getProperty(key);
-      if (sysVal != null) {
-        properties.setProperty(key, sysVal);
+      String val = source.getProperty(key);
+      if (val != null) {
+        properties.setProperty(key, val);
       }
     }
     validateProperties();
     loadVersionNumber();
-    initModulePath();
+    initModulePath(currentDir);
   }
 
   public static void set(String key, String value) {
-    properties.setProperty(key, value);
+    properties().setProperty(key, value);
   }
 
-  private static void initModulePath() {
+  private static void initModulePath(String currentDir) {
+    List<String> modulePath = state.get().modulePath;
     // Search Turbine directory first
     modulePath.add(0, Settings.get(Settings.TURBINE_HOME) + "/export");
     // Search current directory last
-    modulePath.add(".");
+    modulePath.add(currentDir);
   }
 
   public static void addModulePath(String dir) {
-    modulePath.add(dir);
+    state.get().modulePath.add(dir);
   }
 
   /**
    * @return list of directory paths to search, from first to last
    */
   public static List<String> getModulePath() {
-    return Collections.unmodifiableList(modulePath);
+    return Collections.unmodifiableList(state.get().modulePath);
   }
 
   public static void addMetadata(String key, String val) {
-    metadata.add(Pair.create(key, val));
+    state.get().metadata.add(Pair.create(key, val));
   }
 
   /**
    * @return list of directory paths to search, from first to last
    */
   public static List<Pair<String, String>> getMetadata() {
-    return Collections.unmodifiableList(metadata);
+    return Collections.unmodifiableList(state.get().metadata);
   }
 
   private static void loadVersionNumber() {
@@ -277,7 +434,7 @@ public class Settings {
       BufferedReader r = new BufferedReader(new FileReader(versionFile));
       String version = r.readLine().trim();
       r.close();
-      properties.setProperty(STC_VERSION, version);
+      properties().setProperty(STC_VERSION, version);
     } catch (FileNotFoundException e) {
       throw new STCRuntimeError("Version file missing: " + versionFile);
     } catch (IOException e) {
@@ -289,7 +446,7 @@ public class Settings {
 
   public static List<String> getKeys() {
     ArrayList<String> keys;
-    keys = new ArrayList<String>(properties.stringPropertyNames());
+    keys = new ArrayList<String>(properties().stringPropertyNames());
     Collections.sort(keys);
     return keys;
   }
@@ -315,6 +472,7 @@ public class Settings {
     getBoolean(OPT_CONSTANT_FOLD);
     getBoolean(OPT_SHARED_CONSTANTS);
     getBoolean(OPT_DEMOTE_GLOBALS);
+    getBoolean(OPT_DEMOTE_LOCALS);
     getBoolean(OPT_DEAD_CODE_ELIM);
     getBoolean(OPT_DISABLE_ASSERTS);
     getBoolean(OPT_VALUE_NUMBER);
@@ -337,6 +495,13 @@ public class Settings {
     getLong(OPT_UNROLL_LOOP_THRESHOLD_ITERS);
     getLong(OPT_EXPAND_LOOP_THRESHOLD_INSTS);
     getLong(OPT_UNROLL_LOOP_THRESHOLD_INSTS);
+    getBoolean(OPT_AUTO_SPLIT);
+    getBoolean(OPT_PROFILE_PRIORITY);
+    if (getLong(OPT_LOOP_TASK_GRANULARITY) <= 0) {
+      throw new InvalidOptionException(OPT_LOOP_TASK_GRANULARITY +
+                                       " must be positive");
+    }
+    getPositiveLong(OPT_LOOP_TARGET_WORKERS);
     getBoolean(OPT_MERGE_REFCOUNTS);
     getBoolean(OPT_CANCEL_REFCOUNTS);
     getBoolean(OPT_PIGGYBACK_REFCOUNTS);
@@ -347,6 +512,7 @@ public class Settings {
     getBoolean(AUTO_DECLARE);
     getBoolean(COMPILER_DEBUG);
     getBoolean(PROFILE_STC);
+    getBoolean(MODULE_CACHE);
     getBoolean(USE_C_PREPROCESSOR);
     getBoolean(PREPROCESS_ONLY);
     getBoolean(PREPROCESSOR_FORCE_CPP);
@@ -354,10 +520,23 @@ public class Settings {
     getBoolean(MUST_PASS_WAIT_VARS);
 
     getLong(OPT_MAX_ITERATIONS);
+    getBoolean(OPT_PARALLEL);
+    if (getLong(OPT_PARALLEL_THREADS) < 0) {
+      throw new InvalidOptionException(OPT_PARALLEL_THREADS +
+                                        " must be non-negative");
+    }
+    getBoolean(OPT_TRACK_CHANGES);
+    checkOneOf(OPT_VALIDATE, Arrays.asList("off", "sampled", "incremental",
+                                           "exhaustive"));
+    if (getLong(OPT_VALIDATE_SAMPLE) <= 0) {
+      throw new InvalidOptionException(OPT_VALIDATE_SAMPLE +
+                                        " must be positive");
+    }
 
     initInlineProperties();
 
     checkOneOf(DEBUG_LEVEL, Arrays.asList("off", "comments", "debugger"));
+    checkOneOf(OUTPUT_MODE, Arrays.asList("turbine", "java"));
   }
 
   private static void initInlineProperties() throws InvalidOptionException {
@@ -365,8 +544,12 @@ public class Settings {
     boolean fullInline = getBoolean(OPT_FULL_FUNCTION_INLINE);
 
     if (fullInline) {
-      defaults.setProperty(OPT_FUNCTION_INLINE_THRESHOLD,
-                Long.toString(FUNCTION_INLINE_THRESHOLD_FULL));
+      // Change default for this compilation only: don't override user
+      Properties properties = properties();
+      if (!properties.containsKey(OPT_FUNCTION_INLINE_THRESHOLD)) {
+        properties.setProperty(OPT_FUNCTION_INLINE_THRESHOLD,
+                  Long.toString(FUNCTION_INLINE_THRESHOLD_FULL));
+      }
       properties.setProperty(OPT_FUNCTION_INLINE, "true");
     }
 
@@ -378,7 +561,7 @@ public class Settings {
   public static String get(String key)
   {
     // System.out.println("Setting: " + key + " " + properties.getProperty(key));
-    return properties.getProperty(key);
+    return properties().getProperty(key);
   }
 
   /**
@@ -393,7 +576,7 @@ public class Settings {
 
     boolean found = false;
     // Case insensitive
-    String val = properties.getProperty(key);
+    String val = properties().getProperty(key);
     if (val == null) {
       throw new InvalidOptionException("Could not find property " + key);
     }
@@ -421,7 +604,7 @@ public class Settings {
   }
 
   public static long getLong(String key) throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = properties().getProperty(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
@@ -433,6 +616,22 @@ public class Settings {
     }
   }
 
+  /**
+   * Return long int, raise error if not at least one
+   * @param key
+   * @return
+   * @throws InvalidOptionException
+   */
+  public static long getPositiveLong(String key)
+      throws InvalidOptionException {
+    long val = getLong(key);
+    if (val <= 0) {
+      throw new InvalidOptionException(key + " must be positive, but was " +
+                                       val);
+    }
+    return val;
+  }
+
   /**
    * Return long int, raise runtime exception on error
    * @param key
@@ -448,7 +647,7 @@ public class Settings {
   }
 
   public static int getInt(String key) throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = properties().getProperty(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
@@ -476,7 +675,7 @@ public class Settings {
 
   public static boolean getBoolean(String key)
                   throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = properties().getProperty(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
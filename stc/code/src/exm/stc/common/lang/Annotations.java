@@ -57,4 +57,5 @@ public class Annotations {
   public static final String LOOP_SYNC = "sync";
   public static final String LOOP_ASYNC = "async";
   public static final Object LOOP_NOSPLIT = "nosplit";
+  public static final String LOOP_STREAM = "stream";
 }
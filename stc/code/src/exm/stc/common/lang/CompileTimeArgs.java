@@ -2,20 +2,21 @@ package exm.stc.common.lang;
 
 import java.util.Collections;
 import java.util.Map;
-import java.util.TreeMap;
 
 import exm.stc.common.Logging;
+import exm.stc.common.Settings;
 
 /**
- * Store bindings for argv that are specified at compile time
+ * Store bindings for argv that are specified at compile time.
+ * Bindings are stored as part of the current compilation's settings.
  */
 public class CompileTimeArgs {
-  /** Store in sorted order as nicety */
-  private static final Map<String, String> compileTimeArgs =
-                                    new TreeMap<String, String>();
-  
+  private static Map<String, String> compileTimeArgs() {
+    return Settings.getState().compileTimeArgs();
+  }
+
   public static void addCompileTimeArg(String key, String value) {
-    String prev = compileTimeArgs.put(key, value);
+    String prev = compileTimeArgs().put(key, value);
     if (prev != null) {
       Logging.getSTCLogger().warn("Overwriting old value of \"" + key + "\"."
           + " Replaced \"" + prev + "\" with \"" + value + "\"");
@@ -23,10 +24,10 @@ public class CompileTimeArgs {
   }
   
   public static String lookup(String key) {
-    return compileTimeArgs.get(key);
+    return compileTimeArgs().get(key);
   }
   
   public static Map<String, String> getCompileTimeArgs() {
-    return Collections.unmodifiableMap(compileTimeArgs);
+    return Collections.unmodifiableMap(compileTimeArgs());
   }
 }
@@ -27,6 +27,8 @@ import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.TypeMismatchException;
@@ -49,18 +51,23 @@ public class Types {
     private final Type keyType;
     private final Type memberType;
 
-    public ArrayType(boolean local, Type keyType, Type memberType) {
+    private ArrayType(boolean local, Type keyType, Type memberType) {
       this.local = local;
       this.keyType = keyType;
       this.memberType = memberType;
     }
 
+    public static ArrayType create(boolean local, Type keyType,
+                                   Type memberType) {
+      return intern(new ArrayType(local, keyType, memberType));
+    }
+
     public static ArrayType sharedArray(Type keyType, Type memberType) {
-      return new ArrayType(false, keyType, memberType);
+      return ArrayType.create(false, keyType, memberType);
     }
 
     public static ArrayType localArray(Type keyType, Type memberType) {
-      return new ArrayType(true, keyType, memberType);
+      return ArrayType.create(true, keyType, memberType);
     }
 
     @Override
@@ -101,35 +108,33 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing ArrayType with non-type " +
-                "object");
-      }
-      if (!(other instanceof ArrayType)) {
-        return false;
-      }
+    protected boolean sameStructure(Type other, boolean exact) {
       ArrayType otherT = (ArrayType) other;
       return otherT.local == this.local &&
-              otherT.memberType.equals(memberType) &&
-              otherT.keyType.equals(keyType);
+              sameType(otherT.memberType, memberType, exact) &&
+              sameType(otherT.keyType, keyType, exact);
     }
 
     @Override
-    public int hashCode() {
+    protected boolean hasLooseEquality() {
+      return memberType.hasLooseEquality() || keyType.hasLooseEquality();
+    }
+
+    @Override
+    protected int calcHashCode() {
       return memberType.hashCode() + 13 *
             (ArrayType.class.hashCode() + 13 * (local ? 0 : 1));
     }
 
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new ArrayType(local, keyType.bindTypeVars(vals),
+      return ArrayType.create(local, keyType.bindTypeVars(vals),
                            memberType.bindTypeVars(vals));
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new ArrayType(local, keyType.bindAllTypeVars(type),
+      return ArrayType.create(local, keyType.bindAllTypeVars(type),
           memberType.bindAllTypeVars(type));
     }
 
@@ -165,7 +170,7 @@ public class Types {
       Type cKey = keyType.concretize(concreteArray.keyType);
       if (cMember == this.memberType && cKey == this.keyType)
         return this;
-      return new ArrayType(this.local, cKey, cMember);
+      return ArrayType.create(this.local, cKey, cMember);
     }
 
     @Override
@@ -194,7 +199,7 @@ public class Types {
       if (implMember == memberType && implKey == keyType) {
         return this;
       } else {
-        return new ArrayType(local, implKey, implMember);
+        return ArrayType.create(local, implKey, implMember);
       }
     }
 
@@ -204,7 +209,7 @@ public class Types {
     }
 
     public Type substituteElemType(Type newElem) {
-      return new ArrayType(local, keyType, newElem);
+      return ArrayType.create(local, keyType, newElem);
     }
   }
 
@@ -217,17 +222,21 @@ public class Types {
     public static final String BAG = "bag";
     private final Type elemType;
 
-    public BagType(boolean local, Type elemType) {
+    private BagType(boolean local, Type elemType) {
       this.local = local;
       this.elemType = elemType;
     }
 
+    public static BagType create(boolean local, Type elemType) {
+      return intern(new BagType(local, elemType));
+    }
+
     public static BagType sharedBag(Type memberType) {
-      return new BagType(false, memberType);
+      return BagType.create(false, memberType);
     }
 
     public static BagType localBag(Type memberType) {
-      return new BagType(true, memberType);
+      return BagType.create(true, memberType);
     }
 
     @Override
@@ -264,33 +273,31 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing BagType with non-type " +
-                "object");
-      }
-      if (!(other instanceof BagType)) {
-        return false;
-      }
+    protected boolean sameStructure(Type other, boolean exact) {
       BagType otherT = (BagType) other;
       return this.local == otherT.local &&
-              otherT.elemType.equals(elemType);
+              sameType(otherT.elemType, elemType, exact);
     }
 
     @Override
-    public int hashCode() {
+    protected boolean hasLooseEquality() {
+      return elemType.hasLooseEquality();
+    }
+
+    @Override
+    protected int calcHashCode() {
       return local ? 0 : 1 + 31 *
               (elemType.hashCode() + 31 * BagType.class.hashCode());
     }
 
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new BagType(local, elemType.bindTypeVars(vals));
+      return BagType.create(local, elemType.bindTypeVars(vals));
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new BagType(local, elemType.bindAllTypeVars(type));
+      return BagType.create(local, elemType.bindAllTypeVars(type));
     }
 
     @Override
@@ -311,7 +318,7 @@ public class Types {
       Type cElem = elemType.concretize(concreteBag.memberType());
       if (cElem == this.elemType)
         return this;
-      return new BagType(local, cElem);
+      return BagType.create(local, cElem);
     }
 
     @Override
@@ -338,7 +345,7 @@ public class Types {
       if (implElem == elemType)
         return this;
       else
-        return new BagType(local, implElem);
+        return BagType.create(local, implElem);
     }
 
     @Override
@@ -347,7 +354,7 @@ public class Types {
     }
 
     public Type substituteElemType(Type newElem) {
-      return new BagType(local, newElem);
+      return BagType.create(local, newElem);
     }
   }
 
@@ -355,11 +362,15 @@ public class Types {
     private final Type referencedType;
     private final boolean mutable;
 
-    public RefType(Type referencedType, boolean mutable) {
+    private RefType(Type referencedType, boolean mutable) {
       this.referencedType = referencedType;
       this.mutable = mutable;
     }
 
+    public static RefType create(Type referencedType, boolean mutable) {
+      return intern(new RefType(referencedType, mutable));
+    }
+
     public boolean mutable() {
       return mutable;
     }
@@ -395,11 +406,16 @@ public class Types {
       return refSigil() + "(" + referencedType.typeName() + ")";
     }
 
+    /**
+     * References are equal regardless of mutability
+     */
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing ReferenceType with " +
-              "non-type object");
+        return false;
       }
       Type otherT = (Type) other;
       if (!(otherT instanceof RefType)) {
@@ -409,6 +425,18 @@ public class Types {
       }
     }
 
+    @Override
+    protected boolean sameStructure(Type other, boolean exact) {
+      RefType otherT = (RefType) other;
+      return otherT.mutable == this.mutable &&
+             sameType(otherT.referencedType, referencedType, exact);
+    }
+
+    @Override
+    protected boolean hasLooseEquality() {
+      return true;
+    }
+
     @Override
     public boolean assignableTo(Type otherT) {
       if (!(otherT instanceof RefType)) {
@@ -425,20 +453,20 @@ public class Types {
 
 
     @Override
-    public int hashCode() {
-      return (referencedType.hashCode() * 13 + RefType.class.hashCode()) +
-              (mutable ? 1 : 0);
+    protected int calcHashCode() {
+      // Ignore mutability, to be consistent with equals
+      return referencedType.hashCode() * 13 + RefType.class.hashCode();
     }
 
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new RefType(referencedType.bindTypeVars(vals), mutable);
+      return RefType.create(referencedType.bindTypeVars(vals), mutable);
     }
 
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new RefType(referencedType.bindAllTypeVars(type), mutable);
+      return RefType.create(referencedType.bindAllTypeVars(type), mutable);
     }
 
 
@@ -458,7 +486,7 @@ public class Types {
       Type cMember = referencedType.concretize(concrete.memberType());
       if (cMember == this.referencedType)
         return this;
-      return new RefType(cMember, mutable);
+      return RefType.create(cMember, mutable);
     }
 
     @Override
@@ -474,7 +502,7 @@ public class Types {
       else if (implMember == null)
         return null;
       else
-        return new RefType(implMember, mutable);
+        return RefType.create(implMember, mutable);
     }
 
     @Override
@@ -507,31 +535,33 @@ public class Types {
       }
     }
 
-    public StructType(boolean local, String typeName,
+    private StructType(boolean local, String typeName,
                        List<StructField> fields) {
       this.local = local;
       this.typeName = typeName;
       this.fields = new ArrayList<StructField>(fields);
-      this.hashCode = calcHashCode();
+    }
+
+    public static StructType create(boolean local, String typeName,
+                                    List<StructField> fields) {
+      return intern(new StructType(local, typeName, fields));
     }
 
     private final boolean local;
     private final List<StructField> fields;
     private final String typeName;
 
-    private final int hashCode;
-
     public static StructType localStruct(StructType structType) {
       if (structType.local) {
         return structType;
       } else {
-        return new StructType(true, structType.typeName, structType.fields);
+        return StructType.create(true, structType.typeName, structType.fields);
       }
     }
 
     public static StructType sharedStruct(StructType structType) {
       if (structType.local) {
-        return new StructType(false, structType.typeName, structType.fields);
+        return StructType.create(false, structType.typeName, structType.fields);
       } else {
         return structType;
       }
@@ -539,12 +569,12 @@ public class Types {
 
     public static StructType localStruct(String typeName,
                                    List<StructField> fields) {
-      return new StructType(true, typeName, fields);
+      return StructType.create(true, typeName, fields);
     }
 
     public static StructType sharedStruct(String typeName,
                                   List<StructField> fields) {
-      return new StructType(false, typeName, fields);
+      return StructType.create(false, typeName, fields);
     }
 
     /**
@@ -618,34 +648,36 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing ReferenceType with " +
-              "non-type object");
-      }
-      Type otherT = (Type) other;
-      if (!isStruct(otherT) && !isStructLocal(otherT)) {
+    protected boolean sameStructure(Type other, boolean exact) {
+      // Type names should match, along with fields
+      StructType otherST = (StructType)other;
+      if (otherST.local != this.local ||
+              !otherST.getStructTypeName().equals(typeName)) {
         return false;
       } else {
-        // Type names should match, along with fields
-        StructType otherST = (StructType)otherT;
-        if (otherST.local != this.local ||
-                !otherST.getStructTypeName().equals(typeName)) {
+        // Names match, now check that fields match.
+        if (otherST.fields.size() != fields.size()) {
           return false;
-        } else {
-          // Names match, now check that fields match.
-          if (otherST.fields.size() != fields.size()) {
+        }
+        for (int i = 0; i < fields.size(); i++) {
+          StructField f1 = fields.get(i), f2 = otherST.fields.get(i);
+          if (!f1.name.equals(f2.name) ||
+              !sameType(f1.type, f2.type, exact)) {
             return false;
           }
-          for (int i = 0; i < fields.size(); i++) {
-            StructField f1 = fields.get(i), f2 = otherST.fields.get(i);
-            if (!f1.name.equals(f2.name) || !f1.type.equals(f2.type)) {
-              return false;
-            }
-          }
+        }
+        return true;
+      }
+    }
+
+    @Override
+    protected boolean hasLooseEquality() {
+      for (StructField f: fields) {
+        if (f.type.hasLooseEquality()) {
           return true;
         }
       }
+      return false;
     }
 
     @Override
@@ -680,12 +712,7 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
-      // Use cached hashcode
-      return hashCode;
-    }
-
-    private int calcHashCode() {
+    protected int calcHashCode() {
       int code = ((StructType.class.hashCode() * 13) +
                typeName.hashCode()) * 2 + (local ? 0 : 1);
 
@@ -881,22 +908,12 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing " + this.getClass().getName() +
-                                  " with non-type object");
-      }
-      Type otherT = (Type) other;
-      // Check that class and primType match
-      if (this.getClass().equals(other.getClass())) {
-        return ((AbstractScalarType)otherT).primType == this.primType;
-      } else {
-        return false;
-      }
+    protected boolean sameStructure(Type other, boolean exact) {
+      return ((AbstractScalarType)other).primType == this.primType;
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       return primType.hashCode() * 31 + getClass().hashCode();
     }
 
@@ -905,10 +922,14 @@ public class Types {
 
   public static class ScalarValueType extends AbstractScalarType {
 
-    public ScalarValueType(PrimType type) {
+    private ScalarValueType(PrimType type) {
       super(type);
     }
 
+    public static ScalarValueType create(PrimType type) {
+      return intern(new ScalarValueType(type));
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_VALUE;
@@ -922,10 +943,14 @@ public class Types {
 
 
   public static class ScalarFutureType extends AbstractScalarType {
-    public ScalarFutureType(PrimType primType) {
+    private ScalarFutureType(PrimType primType) {
       super(primType);
     }
 
+    public static ScalarFutureType create(PrimType primType) {
+      return intern(new ScalarFutureType(primType));
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_FUTURE;
@@ -938,10 +963,14 @@ public class Types {
   }
 
   public static class ScalarUpdateableType extends AbstractScalarType {
-    public ScalarUpdateableType(PrimType primType) {
+    private ScalarUpdateableType(PrimType primType) {
       super(primType);
     }
 
+    public static ScalarUpdateableType create(PrimType primType) {
+      return intern(new ScalarUpdateableType(primType));
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_UPDATEABLE;
@@ -954,12 +983,12 @@ public class Types {
 
     public static ScalarFutureType asScalarFuture(Type upType) {
       assert(upType instanceof ScalarUpdateableType);
-      return new ScalarFutureType(upType.primType());
+      return ScalarFutureType.create(upType.primType());
     }
 
     public static ScalarValueType asScalarValue(Type valType) {
       assert(valType instanceof ScalarUpdateableType);
-      return new ScalarValueType(valType.primType());
+      return ScalarValueType.create(valType.primType());
     }
 
   }
@@ -1033,33 +1062,26 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       return kind.hashCode() + 13 * getClass().hashCode();
     }
 
     @Override
-    public boolean equals(Object other) {
-      // Generic comparison algorithm for files
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing " + this.getClass().getName() +
-                                  "with non-type object");
-      }
-      Type otherT = (Type) other;
-      if (this.getClass().isInstance(otherT)) {
-        // Check that the kind matches
-        return ((AbstractFileType)otherT).kind == this.kind;
-      } else {
-        return false;
-      }
+    protected boolean sameStructure(Type other, boolean exact) {
+      return ((AbstractFileType)other).kind == this.kind;
     }
   }
 
   public static class FileValueType extends AbstractFileType {
 
-    public FileValueType(FileKind kind) {
+    private FileValueType(FileKind kind) {
       super(kind);
     }
 
+    public static FileValueType create(FileKind kind) {
+      return intern(new FileValueType(kind));
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.FILE_VALUE;
@@ -1074,10 +1096,14 @@ public class Types {
 
   public static class FileFutureType extends AbstractFileType {
 
-    public FileFutureType(FileKind kind) {
+    private FileFutureType(FileKind kind) {
       super(kind);
     }
 
+    public static FileFutureType create(FileKind kind) {
+      return intern(new FileFutureType(kind));
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.FILE_FUTURE;
@@ -1104,6 +1130,10 @@ public class Types {
       this.alts = Collections.unmodifiableList(alts);
     }
 
+    private static UnionType create(ArrayList<Type> alts) {
+      return intern(new UnionType(alts));
+    }
+
     public List<Type> getAlternatives() {
       return alts;
     }
@@ -1131,7 +1161,7 @@ public class Types {
       if (deduplicated.size() == 1) {
         return deduplicated.get(0);
       } else {
-        return new UnionType(new ArrayList<Type>(deduplicated));
+        return UnionType.create(new ArrayList<Type>(deduplicated));
       }
     }
 
@@ -1143,7 +1173,7 @@ public class Types {
         for (Type alt: alts) {
           list.add(alt);
         }
-        return new UnionType(list);
+        return UnionType.create(list);
       }
     }
 
@@ -1186,11 +1216,16 @@ public class Types {
       return sb.toString();
     }
 
+    /**
+     * Unions are equal if they have the same alternatives in any order
+     */
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing UnionType " +
-            "with non-type object");
+        return false;
       }
       Type otherT = (Type) other;
       if (otherT.structureType() != StructureType.TYPE_UNION) {
@@ -1212,6 +1247,17 @@ public class Types {
       }
     }
 
+    @Override
+    protected boolean sameStructure(Type other, boolean exact) {
+      // Order of alternatives is significant for exact structure
+      return sameTypes(this.alts, ((UnionType)other).alts, exact);
+    }
+
+    @Override
+    protected boolean hasLooseEquality() {
+      return true;
+    }
+
     @Override
     public boolean assignableTo(Type other) {
       if (isUnion(other)) {
@@ -1229,7 +1275,7 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       int hash = UnionType.class.hashCode();
       for (Type alt: alts) {
         // Iteration order doesn't matter for xor
@@ -1244,7 +1290,7 @@ public class Types {
       for (Type alt: alts) {
         boundAlts.add(alt.bindTypeVars(vals));
       }
-      return new UnionType(boundAlts);
+      return UnionType.create(boundAlts);
     }
 
     @Override
@@ -1253,7 +1299,7 @@ public class Types {
       for (Type alt: alts) {
         boundAlts.add(alt.bindAllTypeVars(type));
       }
-      return new UnionType(boundAlts);
+      return UnionType.create(boundAlts);
     }
 
     @Override
@@ -1289,7 +1335,7 @@ public class Types {
       for (Type t: alts) {
         implAlts.add(t.getImplType());
       }
-      return new UnionType(implAlts);
+      return UnionType.create(implAlts);
     }
 
     @Override
@@ -1310,6 +1356,10 @@ public class Types {
       this.fields = Collections.unmodifiableList(alts);
     }
 
+    private static TupleType create(ArrayList<Type> fields) {
+      return intern(new TupleType(fields));
+    }
+
     public List<Type> getFields() {
       return fields;
     }
@@ -1342,7 +1392,7 @@ public class Types {
       if (fields.size() == 1) {
         return fields.get(0);
       } else {
-        return new TupleType(new ArrayList<Type>(fields));
+        return TupleType.create(new ArrayList<Type>(fields));
       }
     }
 
@@ -1390,31 +1440,13 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Type)) {
-        throw new STCRuntimeError("Comparing TupleType " +
-            "with non-type object");
-      }
-      Type otherT = (Type) other;
-      if (otherT.structureType() != StructureType.TUPLE) {
-        return false;
-      } else {
-        TupleType otherTT = (TupleType)otherT;
-        // Sets must be same size
-        if (this.fields.size() != otherTT.fields.size()) {
-          return false;
-        }
+    protected boolean sameStructure(Type other, boolean exact) {
+      return sameTypes(this.fields, ((TupleType)other).fields, exact);
+    }
 
-        // Check members are the same
-        for (int i = 0; i < this.fields.size(); i++) {
-          Type field1 = this.fields.get(i);
-          Type field2 = otherTT.fields.get(i);
-          if (!field1.equals(field2)) {
-            return false;
-          }
-        }
-        return true;
-      }
+    @Override
+    protected boolean hasLooseEquality() {
+      return anyLooseEquality(fields);
     }
 
     @Override
@@ -1437,7 +1469,7 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       int hash = TupleType.class.hashCode();
       for (Type field: fields) {
         hash = hash * 13 + field.hashCode();
@@ -1451,7 +1483,7 @@ public class Types {
       for (Type field: fields) {
         boundFields.add(field.bindTypeVars(vals));
       }
-      return new TupleType(boundFields);
+      return TupleType.create(boundFields);
     }
 
     @Override
@@ -1460,7 +1492,7 @@ public class Types {
       for (Type field: fields) {
         boundFields.add(field.bindAllTypeVars(type));
       }
-      return new TupleType(boundFields);
+      return TupleType.create(boundFields);
     }
 
     @Override
@@ -1535,7 +1567,7 @@ public class Types {
       }
 
       // Avoid creating identical type objects
-      return differences ? new TupleType(implFields) : this;
+      return differences ? TupleType.create(implFields) : this;
     }
 
     @Override
@@ -1555,11 +1587,15 @@ public class Types {
   public static class TypeVariable extends Type {
     private final String typeVarName;
 
-    public TypeVariable(String typeVarName) {
+    private TypeVariable(String typeVarName) {
       super();
       this.typeVarName = typeVarName;
     }
 
+    public static TypeVariable create(String typeVarName) {
+      return intern(new TypeVariable(typeVarName));
+    }
+
     /**
      * Check two sets of bindings are compatible with each other
      * @param m1
@@ -1612,20 +1648,12 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object obj) {
-      if (!(obj instanceof Type)) {
-        throw new STCRuntimeError("Comparing TypeVariable " +
-            "with non-type object");
-      }
-      if (((Type)obj).structureType() == StructureType.TYPE_VARIABLE) {
-        TypeVariable other = (TypeVariable) obj;
-        return this.typeVarName.equals(other.typeVarName);
-      }
-      return false;
+    protected boolean sameStructure(Type other, boolean exact) {
+      return this.typeVarName.equals(((TypeVariable)other).typeVarName);
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       return typeVarName.hashCode() ^ TypeVariable.class.hashCode();
     }
 
@@ -1674,6 +1702,13 @@ public class Types {
 
   public static class WildcardType extends Type {
 
+    private WildcardType() {
+    }
+
+    public static WildcardType create() {
+      return intern(new WildcardType());
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.WILDCARD;
@@ -1690,16 +1725,13 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof Type)) {
-        return false;
-      } else {
-        return ((Type)o).structureType() == StructureType.WILDCARD;
-      }
+    protected boolean sameStructure(Type other, boolean exact) {
+      // Only one wildcard type
+      return true;
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       return WildcardType.class.hashCode();
     }
 
@@ -1809,9 +1841,63 @@ public class Types {
     /** Print out a short unique name for type */
     public abstract String typeName();
 
-    /** equals is required */
+    /** Cached hash code, 0 if not yet computed */
+    private int hashCode = 0;
+
+    /** Key in table of interned types */
+    @SuppressWarnings("unused")
+    private InternKey internKey = null;
+
+    /**
+     * Types are interned, so types with the same structure are the
+     * same object, and most types are only equal to themselves.  Types
+     * with a looser notion of equality override this, and types
+     * containing them are compared structurally.
+     */
     @Override
-    public abstract boolean equals(Object o);
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Type)) {
+        return false;
+      }
+      Type other = (Type)o;
+      if (hasLooseEquality()) {
+        return other.getClass() == this.getClass() &&
+               sameStructure(other, false);
+      }
+      assert(!isDuplicate(other)) : "Type was not interned: " + this;
+      return false;
+    }
+
+    /**
+     * @return true if other is a different object with same structure
+     */
+    private boolean isDuplicate(Type other) {
+      return other != this && other.getClass() == this.getClass() &&
+             other.hashCode() == this.hashCode() &&
+             sameStructure(other, true);
+    }
+
+    /**
+     * Check if a type has the same structure as this.
+     * @param other a type of the same class as this
+     * @param exact if true, check for exactly the same structure, for
+     *        interning.  Member types are already interned, so are
+     *        compared by identity.  Otherwise compare member types
+     *        with equals()
+     */
+    protected abstract boolean sameStructure(Type other, boolean exact);
+
+    /**
+     * @return true if equals() is looser than identity for this type,
+     *         either because the type overrides it or because it
+     *         contains such a type
+     */
+    protected boolean hasLooseEquality() {
+      return false;
+    }
 
     /**
      * Check if this type can be assigned to other type.
@@ -1825,9 +1911,18 @@ public class Types {
       return equals(other);
     }
 
-    /** hashcode is required */
     @Override
-    public abstract int hashCode();
+    public final int hashCode() {
+      int h = hashCode;
+      if (h == 0) {
+        h = calcHashCode();
+        hashCode = h;
+      }
+      return h;
+    }
+
+    /** hashcode is required */
+    protected abstract int calcHashCode();
 
     /**
      * Bind any type variables provided in map
@@ -1913,11 +2008,7 @@ public class Types {
     /** if varargs is true, the final argument can be repeated many times */
     private final boolean varargs;
 
-    public FunctionType(List<Type> inputs, List<Type> outputs,
-                                                boolean varargs) {
-      this(inputs, outputs, varargs, null);
-    }
-    public FunctionType(List<Type> inputs, List<Type> outputs,
+    private FunctionType(List<Type> inputs, List<Type> outputs,
           boolean varargs, Collection<String> typeVars) {
       this.inputs.addAll(inputs);
       this.outputs.addAll(outputs);
@@ -1928,6 +2019,16 @@ public class Types {
       }
     }
 
+    public static FunctionType create(List<Type> inputs,
+                            List<Type> outputs, boolean varargs) {
+      return create(inputs, outputs, varargs, null);
+    }
+
+    public static FunctionType create(List<Type> inputs,
+          List<Type> outputs, boolean varargs, Collection<String> typeVars) {
+      return intern(new FunctionType(inputs, outputs, varargs, typeVars));
+    }
+
     public List<Type> getInputs() {
       return Collections.unmodifiableList(inputs);
     }
@@ -1974,11 +2075,17 @@ public class Types {
       return StructureType.FUNCTION;
     }
 
+    /**
+     * Function types are equal if inputs and outputs match, regardless
+     * of type variable names
+     */
     @Override
     public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
       if (!(obj instanceof Type)) {
-        throw new STCRuntimeError("Comparing FunctionType " +
-            "with non-type object");
+        return false;
       }
       if (obj instanceof FunctionType) {
         FunctionType other = (FunctionType) obj;
@@ -1994,6 +2101,20 @@ public class Types {
       return false;
     }
 
+    @Override
+    protected boolean sameStructure(Type other, boolean exact) {
+      FunctionType otherF = (FunctionType)other;
+      return this.varargs == otherF.varargs &&
+             sameTypes(this.inputs, otherF.inputs, exact) &&
+             sameTypes(this.outputs, otherF.outputs, exact) &&
+             this.typeVars.equals(otherF.typeVars);
+    }
+
+    @Override
+    protected boolean hasLooseEquality() {
+      return true;
+    }
+
     @Override
     public String typeName() {
       // TODO: canonical way to show function type?
@@ -2001,7 +2122,7 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       int code = FunctionType.class.hashCode();
       for (Type t: inputs) {
         code ^= t.hashCode();
@@ -2024,7 +2145,7 @@ public class Types {
         boundOutputs.add(output.bindTypeVars(vals));
       }
 
-      return new FunctionType(boundInputs, boundOutputs, varargs);
+      return FunctionType.create(boundInputs, boundOutputs, varargs);
     }
 
     @Override
@@ -2039,7 +2160,7 @@ public class Types {
         boundOutputs.add(output.bindAllTypeVars(type));
       }
 
-      return new FunctionType(boundInputs, boundOutputs, varargs);
+      return FunctionType.create(boundInputs, boundOutputs, varargs);
     }
 
     @Override
@@ -2077,7 +2198,7 @@ public class Types {
         concreteOut.add(out.concretize(cOut));
       }
       // TODO: how to handle varargs?
-      return new FunctionType(concreteIn, concreteOut, varargs);
+      return FunctionType.create(concreteIn, concreteOut, varargs);
     }
 
     @Override
@@ -2108,7 +2229,7 @@ public class Types {
         outs.add(out.getImplType());
       }
 
-      return new FunctionType(ins, outs, varargs);
+      return FunctionType.create(ins, outs, varargs);
     }
 
     @Override
@@ -2122,12 +2243,16 @@ public class Types {
     private final Type baseType;
     private final String name;
 
-    public SubType(Type baseType, String name) {
+    private SubType(Type baseType, String name) {
       super();
       this.baseType = baseType;
       this.name = name;
     }
 
+    public static SubType create(Type baseType, String name) {
+      return intern(new SubType(baseType, name));
+    }
+
     @Override
     public StructureType structureType() {
       return baseType.structureType();
@@ -2158,12 +2283,12 @@ public class Types {
 
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new SubType(baseType.bindTypeVars(vals), name);
+      return SubType.create(baseType.bindTypeVars(vals), name);
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new SubType(baseType.bindAllTypeVars(type), name);
+      return SubType.create(baseType.bindAllTypeVars(type), name);
     }
 
     @Override
@@ -2211,13 +2336,15 @@ public class Types {
     }
 
     @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof SubType)) {
-        return false;
-      }
-      SubType ot = (SubType)o;
+    protected boolean sameStructure(Type other, boolean exact) {
+      SubType ot = (SubType)other;
       return ot.name.equals(name) &&
-              baseType.equals(ot.baseType);
+              sameType(baseType, ot.baseType, exact);
+    }
+
+    @Override
+    protected boolean hasLooseEquality() {
+      return baseType.hasLooseEquality();
     }
 
     @Override
@@ -2238,7 +2365,7 @@ public class Types {
     }
 
     @Override
-    public int hashCode() {
+    protected int calcHashCode() {
       return baseType.hashCode() ^ name.hashCode();
     }
 
@@ -2374,7 +2501,7 @@ public class Types {
     }
 
     if (isRef) {
-      return new RefType(newCont, isMutableRef);
+      return RefType.create(newCont, isMutableRef);
     } else {
       return newCont;
     }
@@ -2706,9 +2833,9 @@ public class Types {
    */
   public static Type retrievedType(Typed t, boolean recursive) {
     if (isScalarFuture(t) || isScalarUpdateable(t))  {
-      return new ScalarValueType(t.type().primType());
+      return ScalarValueType.create(t.type().primType());
     } else if (isFile(t)) {
-      return new FileValueType(t.type().fileKind());
+      return FileValueType.create(t.type().fileKind());
     } else if (isRef(t)) {
       return t.type().baseType().memberType();
     } else if (recursive &&
@@ -2745,12 +2872,12 @@ public class Types {
   public static Type storeResultType(Typed t, boolean mutable) {
     if (isScalarFuture(t) || isScalarUpdateable(t) ||
             isFile(t) || isRef(t) || isContainer(t) || isStruct(t))  {
-      return new RefType(t.type(), mutable);
+      return RefType.create(t.type(), mutable);
     } else if (isScalarValue(t)) {
-      return new ScalarFutureType(t.type().primType());
+      return ScalarFutureType.create(t.type().primType());
     } else if (isFileVal(t)) {
       FileValueType fv = (FileValueType)t.type().getImplType();
-      return new FileFutureType(fv.fileKind());
+      return FileFutureType.create(fv.fileKind());
     } else if (isArrayLocal(t)) {
       ArrayType at = (ArrayType)t.type().getImplType();
       Type storedMemberType = storeResultType(at.memberType(), mutable);
@@ -2822,7 +2949,7 @@ public class Types {
     }
 
     if (differences) {
-      return new StructType(true, "unpacked:" + structType.typeName(),
+      return StructType.create(true, "unpacked:" + structType.typeName(),
                             unpackedFields);
     } else {
       return StructType.localStruct(structType);
@@ -2999,7 +3126,7 @@ public static boolean isTypeVar(Typed type) {
    */
   public static List<Type> typeIntersection(List<Type> types) {
     if(types.size() == 0) {
-      return Collections.<Type>singletonList(new WildcardType());
+      return Collections.<Type>singletonList(WildcardType.create());
     }
     // Shortcircuit common cases
     if (types.size() == 1 ||
@@ -3042,7 +3169,7 @@ public static boolean isTypeVar(Typed type) {
 
     if (intersection == null) {
       assert(sawWildcard);
-      return Collections.<Type>singletonList(new WildcardType());
+      return Collections.<Type>singletonList(WildcardType.create());
     }
 
     // Make sure alternatives in original order
@@ -3067,41 +3194,116 @@ public static boolean isTypeVar(Typed type) {
     return t;
   }
 
-  public static final Type F_INT = new ScalarFutureType(PrimType.INT);
-  public static final Type V_INT = new ScalarValueType(PrimType.INT);
+  private static boolean sameType(Type t1, Type t2, boolean exact) {
+    return exact ? t1 == t2 : t1.equals(t2);
+  }
+
+  private static boolean sameTypes(List<Type> l1, List<Type> l2,
+                                   boolean exact) {
+    if (l1.size() != l2.size()) {
+      return false;
+    }
+    for (int i = 0; i < l1.size(); i++) {
+      if (!sameType(l1.get(i), l2.get(i), exact)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean anyLooseEquality(List<Type> types) {
+    for (Type t: types) {
+      if (t.hasLooseEquality()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Table of interned types, keyed by exact structure.  The table is
+   * shared by all compilations, which may run concurrently.  Keys are
+   * weakly referenced, so that types no longer used by any compilation
+   * can be collected in a long-running compile server.
+   */
+  private static final Interner<InternKey> internedTypes =
+                                          Interners.newWeakInterner();
+
+  /**
+   * Return the canonical instance of a type, so that each distinct type
+   * only exists once.  All types are created through this.
+   * @param type a newly created type
+   * @return the existing type with same structure, or type if none
+   */
+  @SuppressWarnings("unchecked")
+  private static <T extends Type> T intern(T type) {
+    InternKey key = internedTypes.intern(new InternKey(type));
+    // Interned type has same class as type
+    return (T)key.type;
+  }
+
+  /**
+   * Compare types by exact structure, rather than by equals(),
+   * which is identity for interned types.
+   */
+  private static class InternKey {
+    private final Type type;
+
+    InternKey(Type type) {
+      this.type = type;
+      // Keep key reachable for as long as the type is
+      type.internKey = this;
+    }
+
+    @Override
+    public int hashCode() {
+      return type.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      Type other = ((InternKey)obj).type;
+      return other == type || (other.getClass() == type.getClass() &&
+                               type.sameStructure(other, true));
+    }
+  }
+
+  public static final Type F_INT = ScalarFutureType.create(PrimType.INT);
+  public static final Type V_INT = ScalarValueType.create(PrimType.INT);
 
-  public static final Type F_STRING = new ScalarFutureType(PrimType.STRING);
-  public static final Type V_STRING = new ScalarValueType(PrimType.STRING);
+  public static final Type F_STRING = ScalarFutureType.create(PrimType.STRING);
+  public static final Type V_STRING = ScalarValueType.create(PrimType.STRING);
 
-  public static final Type F_FLOAT = new ScalarFutureType(PrimType.FLOAT);
-  public static final Type V_FLOAT = new ScalarValueType(PrimType.FLOAT);
-  public static final Type UP_FLOAT = new ScalarUpdateableType(PrimType.FLOAT);
+  public static final Type F_FLOAT = ScalarFutureType.create(PrimType.FLOAT);
+  public static final Type V_FLOAT = ScalarValueType.create(PrimType.FLOAT);
+  public static final Type UP_FLOAT =
+                        ScalarUpdateableType.create(PrimType.FLOAT);
 
-  public static final Type F_BOOL = new ScalarFutureType(PrimType.BOOL);
-  public static final Type V_BOOL = new ScalarValueType(PrimType.BOOL);
+  public static final Type F_BOOL = ScalarFutureType.create(PrimType.BOOL);
+  public static final Type V_BOOL = ScalarValueType.create(PrimType.BOOL);
 
-  public static final Type F_BLOB = new ScalarFutureType(PrimType.BLOB);
-  public static final Type V_BLOB = new ScalarValueType(PrimType.BLOB);
+  public static final Type F_BLOB = ScalarFutureType.create(PrimType.BLOB);
+  public static final Type V_BLOB = ScalarValueType.create(PrimType.BLOB);
 
-  public static final Type F_FILE = new FileFutureType(FileKind.LOCAL_FS);
-  public static final Type V_FILE = new FileValueType(FileKind.LOCAL_FS);
+  public static final Type F_FILE = FileFutureType.create(FileKind.LOCAL_FS);
+  public static final Type V_FILE = FileValueType.create(FileKind.LOCAL_FS);
 
-  public static final Type F_URL = new FileFutureType(FileKind.URL);
-  public static final Type V_URL = new FileValueType(FileKind.URL);
+  public static final Type F_URL = FileFutureType.create(FileKind.URL);
+  public static final Type V_URL = FileValueType.create(FileKind.URL);
 
-  public static final Type V_VOID = new ScalarValueType(PrimType.VOID);
-  public static final Type F_VOID = new ScalarFutureType(PrimType.VOID);
+  public static final Type V_VOID = ScalarValueType.create(PrimType.VOID);
+  public static final Type F_VOID = ScalarFutureType.create(PrimType.VOID);
 
   /**
    * Represents location of execution
    */
   public static final Type F_LOC_STRICTNESS =
-                        new SubType(F_STRING, "LocationStrictness");
+                        SubType.create(F_STRING, "LocationStrictness");
   public static final Type V_LOC_STRICTNESS =
                         V_STRING; // Internally a string
 
   public static final Type F_LOC_ACCURACY =
-                        new SubType(F_STRING, "LocationAccuracy");
+                        SubType.create(F_STRING, "LocationAccuracy");
   public static final Type V_LOC_ACCURACY =
                         V_STRING; // Internally a string
 
@@ -3150,7 +3352,7 @@ public static boolean isTypeVar(Typed type) {
     fields.add(new StructField(F_LOC_STRICTNESS, "strictness"));
     fields.add(new StructField(F_LOC_ACCURACY, "accuracy"));
 
-    return new StructType(local, "location", fields);
+    return StructType.create(local, "location", fields);
   }
 
 }
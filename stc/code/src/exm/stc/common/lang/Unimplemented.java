@@ -1,5 +1,6 @@
 package exm.stc.common.lang;
 
+import exm.stc.common.Settings;
 import exm.stc.common.lang.Types.Type;
 import exm.stc.common.lang.Types.Typed;
 
@@ -14,6 +15,10 @@ public class Unimplemented {
    * @return
    */
   public static boolean subscriptAliasSupported(Typed arr) {
+    if (Settings.get(Settings.OUTPUT_MODE).equalsIgnoreCase("java")) {
+      // Java runtime stores container members by value
+      return false;
+    }
     Type keyType = Types.arrayKeyType(arr);
     if (Types.isInt(keyType) || Types.isBool(keyType) ||
         Types.isFloat(keyType)) {
@@ -25,6 +30,15 @@ public class Unimplemented {
     }
   }
 
+  /**
+   * Check if foreach loops can start iterations before container is
+   * closed
+   */
+  public static boolean streamingForeachSupported() {
+    // ADLB doesn't notify subscribers of individual inserts
+    return Settings.get(Settings.OUTPUT_MODE).equalsIgnoreCase("java");
+  }
+
   public static FnID makeFunctionID(String originalName) {
     // TODO: need to implement proper mapping mechanisms
     return new FnID(originalName, originalName);
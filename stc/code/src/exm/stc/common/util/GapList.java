@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Array-backed list with a gap at the last point of insertion or removal.
+ *
+ * Inserting or removing at the gap is constant time, and moving the gap
+ * costs the distance moved, so a sequence of edits through a ListIterator
+ * in one pass over the list takes time linear in the list's size, as
+ * with a LinkedList, while elements are stored contiguously.
+ */
+public class GapList<T> extends AbstractList<T> implements RandomAccess {
+  private static final int MIN_CAPACITY = 8;
+
+  private Object[] elems;
+
+  /** Elements are in [0, gapStart) and [gapEnd, elems.length) */
+  private int gapStart;
+  private int gapEnd;
+
+  public GapList() {
+    this(MIN_CAPACITY);
+  }
+
+  public GapList(int capacity) {
+    this.elems = new Object[Math.max(capacity, MIN_CAPACITY)];
+    this.gapStart = 0;
+    this.gapEnd = elems.length;
+  }
+
+  public GapList(Collection<? extends T> c) {
+    this(c.size());
+    addAll(c);
+  }
+
+  @Override
+  public int size() {
+    return elems.length - (gapEnd - gapStart);
+  }
+
+  @Override
+  public T get(int index) {
+    checkIndex(index, size());
+    return elementAt(physical(index));
+  }
+
+  @Override
+  public T set(int index, T element) {
+    checkIndex(index, size());
+    int pos = physical(index);
+    T prev = elementAt(pos);
+    elems[pos] = element;
+    return prev;
+  }
+
+  @Override
+  public boolean add(T element) {
+    add(size(), element);
+    return true;
+  }
+
+  @Override
+  public void add(int index, T element) {
+    checkIndex(index, size() + 1);
+    moveGap(index, 1);
+    elems[gapStart++] = element;
+    modCount++;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends T> c) {
+    return addAll(size(), c);
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<? extends T> c) {
+    checkIndex(index, size() + 1);
+    moveGap(index, c.size());
+    for (T element: c) {
+      elems[gapStart++] = element;
+    }
+    modCount++;
+    return !c.isEmpty();
+  }
+
+  @Override
+  public T remove(int index) {
+    checkIndex(index, size());
+    moveGap(index, 0);
+    T prev = elementAt(gapEnd);
+    elems[gapEnd++] = null;
+    modCount++;
+    return prev;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(elems, 0, gapStart, null);
+    Arrays.fill(elems, gapEnd, elems.length, null);
+    gapStart = 0;
+    gapEnd = elems.length;
+    modCount++;
+  }
+
+  private int physical(int index) {
+    return index < gapStart ? index : index + (gapEnd - gapStart);
+  }
+
+  @SuppressWarnings("unchecked")
+  private T elementAt(int pos) {
+    return (T)elems[pos];
+  }
+
+  private static void checkIndex(int index, int bound) {
+    if (index < 0 || index >= bound) {
+      throw new IndexOutOfBoundsException(index + " of " + bound);
+    }
+  }
+
+  /**
+   * Move gap to start at index, making sure it has room for at least
+   * minGap elements
+   */
+  private void moveGap(int index, int minGap) {
+    if (gapEnd - gapStart < minGap) {
+      grow(minGap);
+    }
+    if (index < gapStart) {
+      int n = gapStart - index;
+      System.arraycopy(elems, index, elems, gapEnd - n, n);
+      Arrays.fill(elems, index, Math.min(gapStart, gapEnd - n), null);
+      gapStart = index;
+      gapEnd -= n;
+    } else if (index > gapStart) {
+      int n = index - gapStart;
+      System.arraycopy(elems, gapEnd, elems, gapStart, n);
+      Arrays.fill(elems, Math.max(gapEnd, index), gapEnd + n, null);
+      gapStart = index;
+      gapEnd += n;
+    }
+  }
+
+  private void grow(int minGap) {
+    int size = size();
+    int capacity = Math.max(elems.length * 2, size + minGap);
+    Object[] newElems = new Object[capacity];
+    int tailLength = elems.length - gapEnd;
+    System.arraycopy(elems, 0, newElems, 0, gapStart);
+    System.arraycopy(elems, gapEnd, newElems, capacity - tailLength,
+                     tailLength);
+    this.elems = newElems;
+    this.gapEnd = capacity - tailLength;
+  }
+}
@@ -15,9 +15,13 @@
  */
 package exm.stc.common.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import exm.stc.common.exceptions.STCRuntimeError;
 
@@ -27,10 +31,30 @@ import exm.stc.common.exceptions.STCRuntimeError;
  * the key is in the parent map.  Attempts to remove items that appear in
  * the parent result in a copy of the parent map.
  *
+ * Lookups check the maps of this and ancestors up to the nearest
+ * checkpoint, an ancestor at a depth that is a multiple of
+ * CHECKPOINT_INTERVAL.  Checkpoints keep a persistent map of entries of
+ * all their ancestors, which shares structure with the next checkpoint
+ * up, so lookups take bounded time regardless of how deeply nested the
+ * map is.  The persistent map is rebuilt if an ancestor is modified.
  */
 public class HierarchicalMap<K, V> implements Map<K, V> {
+  private static final int CHECKPOINT_INTERVAL = 8;
+
   private final HashMap<K, V> map;
   private HierarchicalMap<K, V> parent;
+  private final int nestingDepth;
+
+  /** Nearest checkpoint, possibly this */
+  private HierarchicalMap<K, V> checkpoint;
+
+  /**
+   * If a checkpoint, all entries in ancestors, or null if must be rebuilt
+   */
+  private PersistentHashMap<K, V> ancestors;
+
+  /** Checkpoints with ancestor entries built from our map */
+  private Set<HierarchicalMap<K, V>> dependents = null;
 
   public HierarchicalMap() {
     this(null);
@@ -39,33 +63,115 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
   private HierarchicalMap(HierarchicalMap<K, V> parent) {
     this.map = new HashMap<K, V>();
     this.parent = parent;
+    if (parent == null) {
+      this.nestingDepth = 0;
+      this.checkpoint = this;
+      this.ancestors = PersistentHashMap.empty();
+    } else {
+      this.nestingDepth = parent.nestingDepth + 1;
+      this.checkpoint = nestingDepth % CHECKPOINT_INTERVAL == 0 ?
+                          this : parent.checkpoint;
+      this.ancestors = null;
+    }
   }
 
   public HierarchicalMap<K, V> makeChildMap() {
     return new HierarchicalMap<K,V>(this);
   }
+
+  /**
+   * @return entries in ancestors of this checkpoint
+   */
+  private PersistentHashMap<K, V> ancestors() {
+    assert(checkpoint == this);
+    if (ancestors == null) {
+      // Parent may have been detached by clear()
+      ancestors = parent == null ? PersistentHashMap.<K, V>empty()
+                                 : parent.flatten(this);
+    }
+    return ancestors;
+  }
+
+  /**
+   * @param dependent checkpoint to invalidate if result changes, or null
+   * @return all entries visible in this map
+   */
+  private PersistentHashMap<K, V> flatten(HierarchicalMap<K, V> dependent) {
+    List<HierarchicalMap<K, V>> levels = new ArrayList<HierarchicalMap<K, V>>();
+    HierarchicalMap<K, V> curr = this;
+    while (true) {
+      levels.add(curr);
+      if (dependent != null) {
+        curr.addDependent(dependent);
+      }
+      if (curr.checkpoint == curr) {
+        break;
+      }
+      curr = curr.parent;
+    }
+
+    // Apply outermost first so that inner entries take precedence
+    PersistentHashMap<K, V> result = curr.ancestors();
+    for (int i = levels.size() - 1; i >= 0; i--) {
+      for (Entry<K, V> e: levels.get(i).map.entrySet()) {
+        result = result.plus(e.getKey(), e.getValue());
+      }
+    }
+    return result;
+  }
+
+  private void addDependent(HierarchicalMap<K, V> checkpoint) {
+    if (dependents == null) {
+      dependents = new HashSet<HierarchicalMap<K, V>>();
+    }
+    dependents.add(checkpoint);
+  }
+
+  /**
+   * Invalidate ancestor entries of checkpoints after modification
+   */
+  private void invalidateDependents() {
+    if (dependents != null) {
+      Set<HierarchicalMap<K, V>> invalid = dependents;
+      dependents = null;
+      for (HierarchicalMap<K, V> checkpoint: invalid) {
+        checkpoint.invalidate();
+      }
+    }
+  }
+
+  private void invalidate() {
+    if (ancestors != null) {
+      ancestors = null;
+      invalidateDependents();
+    }
+  }
+
   @Override
   public boolean containsKey(Object key) {
     HierarchicalMap<K, V> curr = this;
-    do {
+    while (true) {
       if (curr.map.containsKey(key)) {
         return true;
+      } else if (curr.checkpoint == curr) {
+        return curr.ancestors().containsKey(key);
       }
       curr = curr.parent;
-    } while (curr != null);
-    return false;
+    }
   }
 
   @Override
   public V get(Object key) {
     HierarchicalMap<K, V> curr = this;
-    do {
-      if (curr.map.containsKey(key)) {
-        return curr.map.get(key);
+    while (true) {
+      V val = curr.map.get(key);
+      if (val != null || curr.map.containsKey(key)) {
+        return val;
+      } else if (curr.checkpoint == curr) {
+        return curr.ancestors().get(key);
       }
       curr = curr.parent;
-    } while (curr != null);
-    return null;
+    }
   }
 
   /**
@@ -87,18 +193,25 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
 
   @Override
   public V put(K key, V value) {
-    return map.put(key, value);
+    V prev = map.put(key, value);
+    invalidateDependents();
+    return prev;
   }
 
   @Override
   public void putAll(Map<? extends K, ? extends V> m) {
-    map.putAll(m);
+    for (Entry<? extends K, ? extends V> e: m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
   }
 
   @Override
   public void clear() {
     map.clear();
     parent = null; // Don't modify parent
+    checkpoint = this;
+    ancestors = PersistentHashMap.empty();
+    invalidateDependents();
   }
 
   @Override
@@ -106,34 +219,33 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
     throw new STCRuntimeError("not implemented");
   }
 
+  /**
+   * @return snapshot of visible entries
+   */
   @Override
-  public HierarchicalSet<Entry<K, V>> entrySet() {
-    if (parent != null) {
-      return parent.entrySet().makeChild(this.map.entrySet());
-    } else {
-      return new HierarchicalSet<Entry<K,V>>(this.map.entrySet());
-    }
+  public Set<Entry<K, V>> entrySet() {
+    return flatten(null).entrySet();
   }
 
   @Override
   public boolean isEmpty() {
     HierarchicalMap<K, V> curr = this;
-    do {
+    while (true) {
       if (!curr.map.isEmpty()) {
         return false;
+      } else if (curr.checkpoint == curr) {
+        return curr.ancestors().isEmpty();
       }
       curr = curr.parent;
-    } while (curr != null);
-    return true;
+    }
   }
 
+  /**
+   * @return snapshot of visible keys
+   */
   @Override
-  public HierarchicalSet<K> keySet() {
-    if (parent != null) {
-      return parent.keySet().makeChild(this.map.keySet());
-    } else {
-      return new HierarchicalSet<K>(this.map.keySet());
-    }
+  public Set<K> keySet() {
+    return flatten(null).keySet();
   }
 
   @Override
@@ -147,18 +259,21 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
         }
       }
     }
+    invalidateDependents();
     return removed;
   }
 
   @Override
   public int size() {
-    int parentSize = parent == null ? 0 : parent.size();
-    return parentSize + map.size();
+    return flatten(null).size();
   }
 
+  /**
+   * @return snapshot of visible values
+   */
   @Override
   public Collection<V> values() {
-    throw new STCRuntimeError("not implemented");
+    return flatten(null).values();
   }
 
   @Override
@@ -15,9 +15,11 @@
  */
 package exm.stc.common.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
@@ -26,27 +28,49 @@ import exm.stc.common.exceptions.STCRuntimeError;
 /**
  * An implementation of the set interface that allows cheap
  * creation of child maps.
+ *
+ * Lookups check the sets of this and ancestors up to the nearest
+ * checkpoint, an ancestor at a depth that is a multiple of
+ * CHECKPOINT_INTERVAL.  Checkpoints keep a persistent set of elements of
+ * all their ancestors, which shares structure with the next checkpoint
+ * up, so lookups take bounded time regardless of how deeply nested the
+ * set is.  The persistent set is rebuilt if an ancestor is modified.
  */
 public class HierarchicalSet<T> implements Set<T> {
+  private static final int CHECKPOINT_INTERVAL = 8;
+
   private final HierarchicalSet<T> parent;
   private final Set<T> set;
+  private final int nestingDepth;
+
+  /** Nearest checkpoint, possibly this */
+  private final HierarchicalSet<T> checkpoint;
+
+  /**
+   * If a checkpoint, all elements in ancestors, or null if must be rebuilt
+   */
+  private PersistentHashSet<T> ancestors;
 
+  /** Checkpoints with ancestor elements built from our set */
+  private Set<HierarchicalSet<T>> dependents = null;
 
-  private HierarchicalSet(HierarchicalSet<T> parent, Set<T> set) {
+  private HierarchicalSet(HierarchicalSet<T> parent) {
     this.parent = parent;
-    if (set == null) {
-      this.set = new HashSet<T>();
+    this.set = new HashSet<T>();
+    if (parent == null) {
+      this.nestingDepth = 0;
+      this.checkpoint = this;
+      this.ancestors = PersistentHashSet.empty();
     } else {
-      this.set = set;
+      this.nestingDepth = parent.nestingDepth + 1;
+      this.checkpoint = nestingDepth % CHECKPOINT_INTERVAL == 0 ?
+                          this : parent.checkpoint;
+      this.ancestors = null;
     }
   }
 
   public HierarchicalSet() {
-    this(null, null);
-  }
-
-  public HierarchicalSet(Set<T> innerSet) {
-    this(null, innerSet);
+    this(null);
   }
 
   /**
@@ -54,27 +78,91 @@ public class HierarchicalSet<T> implements Set<T> {
    * @return
    */
   public HierarchicalSet<T> makeChild() {
-    return new HierarchicalSet<T>(this, null);
+    return new HierarchicalSet<T>(this);
   }
 
   /**
-   * Make a new hierarchical set with this as the parent,
-   * and innerSet as the backing set
-   * @param innerSet
-   * @return
+   * @return elements in ancestors of this checkpoint
    */
-  public HierarchicalSet<T> makeChild(Set<T> innerSet) {
-    return new HierarchicalSet<T>(this, innerSet);
+  private PersistentHashSet<T> ancestors() {
+    assert(checkpoint == this);
+    if (ancestors == null) {
+      ancestors = parent.flatten(this);
+    }
+    return ancestors;
   }
 
+  /**
+   * @param dependent checkpoint to invalidate if result changes
+   * @return all elements visible in this set
+   */
+  private PersistentHashSet<T> flatten(HierarchicalSet<T> dependent) {
+    List<HierarchicalSet<T>> levels = new ArrayList<HierarchicalSet<T>>();
+    HierarchicalSet<T> curr = this;
+    while (true) {
+      levels.add(curr);
+      curr.addDependent(dependent);
+      if (curr.checkpoint == curr) {
+        break;
+      }
+      curr = curr.parent;
+    }
+
+    PersistentHashSet<T> result = curr.ancestors();
+    for (HierarchicalSet<T> level: levels) {
+      for (T e: level.set) {
+        result = result.plus(e);
+      }
+    }
+    return result;
+  }
+
+  private void addDependent(HierarchicalSet<T> checkpoint) {
+    if (dependents == null) {
+      dependents = new HashSet<HierarchicalSet<T>>();
+    }
+    dependents.add(checkpoint);
+  }
+
+  /**
+   * Invalidate ancestor elements of checkpoints after modification
+   */
+  private void invalidateDependents() {
+    if (dependents != null) {
+      Set<HierarchicalSet<T>> invalid = dependents;
+      dependents = null;
+      for (HierarchicalSet<T> checkpoint: invalid) {
+        checkpoint.invalidate();
+      }
+    }
+  }
+
+  private void invalidate() {
+    if (ancestors != null) {
+      ancestors = null;
+      invalidateDependents();
+    }
+  }
+
+  /**
+   * @return true if not already in this set, ignoring ancestors
+   */
   @Override
   public boolean add(T e) {
-    return set.add(e);
+    boolean added = set.add(e);
+    if (added) {
+      invalidateDependents();
+    }
+    return added;
   }
 
   @Override
   public boolean addAll(Collection<? extends T> c) {
-    return set.addAll(c);
+    boolean changed = false;
+    for (T e: c) {
+      changed |= add(e);
+    }
+    return changed;
   }
 
   @Override
@@ -85,13 +173,14 @@ public class HierarchicalSet<T> implements Set<T> {
   @Override
   public boolean contains(Object o) {
     HierarchicalSet<T> curr = this;
-    while (curr != null) {
+    while (true) {
       if (curr.set.contains(o)) {
         return true;
+      } else if (curr.checkpoint == curr) {
+        return curr.ancestors().contains(o);
       }
       curr = curr.parent;
     }
-    return false;
   }
 
 
@@ -103,13 +192,14 @@ public class HierarchicalSet<T> implements Set<T> {
   @Override
   public boolean isEmpty() {
     HierarchicalSet<T> curr = this;
-    while (curr != null) {
+    while (true) {
       if (!curr.set.isEmpty()) {
         return false;
+      } else if (curr.checkpoint == curr) {
+        return curr.ancestors().isEmpty();
       }
       curr = curr.parent;
     }
-    return true;
   }
 
   @Override
@@ -132,6 +222,10 @@ public class HierarchicalSet<T> implements Set<T> {
     throw new STCRuntimeError("not implemented");
   }
 
+  /**
+   * @return number of elements, counting elements in multiple levels
+   *        multiple times, consistent with iterator
+   */
   @Override
   public int size() {
     int parentSize = parent == null ? 0 : parent.size();
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Set that remembers insertion order, with constant time add, remove and
+ * contains, and with elements able to be added at the front.
+ *
+ * Elements are kept in an array with a hash index of positions.  Removed
+ * elements leave gaps, which are closed up when the array is resized or
+ * when gaps outnumber elements.  Reads never modify the set.
+ */
+public class IndexedSet<T> extends AbstractSet<T> {
+  private static final int MIN_CAPACITY = 8;
+
+  /** Elements in order, with nulls for removed elements */
+  private Object[] slots;
+
+  /** Position of first element, or first free slot if empty */
+  private int head;
+
+  /** Position after last element */
+  private int tail;
+
+  private int size = 0;
+
+  private final HashMap<T, Integer> positions;
+
+  /** Incremented on structural changes to detect concurrent modification */
+  private int modCount = 0;
+
+  public IndexedSet() {
+    this.slots = new Object[MIN_CAPACITY];
+    this.head = 0;
+    this.tail = 0;
+    this.positions = new HashMap<T, Integer>();
+  }
+
+  public IndexedSet(Collection<? extends T> c) {
+    this.slots = new Object[Math.max(MIN_CAPACITY, c.size())];
+    this.head = 0;
+    this.tail = 0;
+    this.positions = new HashMap<T, Integer>(c.size() * 2);
+    addAll(c);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return positions.containsKey(o);
+  }
+
+  /**
+   * Add at end if not already present
+   */
+  @Override
+  public boolean add(T e) {
+    if (positions.containsKey(e)) {
+      return false;
+    }
+    if (tail == slots.length) {
+      relocate(0);
+    }
+    slots[tail] = e;
+    positions.put(e, tail);
+    tail++;
+    size++;
+    modCount++;
+    return true;
+  }
+
+  /**
+   * Add at front if not already present
+   */
+  public boolean addFirst(T e) {
+    if (positions.containsKey(e)) {
+      return false;
+    }
+    if (head == 0) {
+      relocate(Math.max(MIN_CAPACITY, size));
+    }
+    head--;
+    slots[head] = e;
+    positions.put(e, head);
+    size++;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    Integer pos = positions.remove(o);
+    if (pos == null) {
+      return false;
+    }
+    clearSlot(pos);
+    modCount++;
+    compactIfSparse();
+    return true;
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    // Avoid AbstractSet's iteration over the whole set
+    boolean changed = false;
+    for (Object o: c) {
+      changed |= remove(o);
+    }
+    return changed;
+  }
+
+  /**
+   * Replace elements simultaneously, keeping positions, so that the
+   * replacement for one element is never itself replaced.  Elements
+   * replaced with null, or with an element already present, are removed.
+   * @param replacements map from old to new elements
+   */
+  public void replaceAll(Map<T, T> replacements) {
+    int[] replacedPos = new int[replacements.size()];
+    Object[] replacedWith = new Object[replacements.size()];
+    int n = 0;
+    for (Map.Entry<T, T> e: replacements.entrySet()) {
+      Integer pos = positions.remove(e.getKey());
+      if (pos != null) {
+        replacedPos[n] = pos;
+        replacedWith[n] = e.getValue();
+        n++;
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      @SuppressWarnings("unchecked")
+      T newE = (T)replacedWith[i];
+      if (newE == null || positions.containsKey(newE)) {
+        clearSlot(replacedPos[i]);
+      } else {
+        slots[replacedPos[i]] = newE;
+        positions.put(newE, replacedPos[i]);
+      }
+    }
+    if (n > 0) {
+      modCount++;
+      compactIfSparse();
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (int i = head; i < tail; i++) {
+      slots[i] = null;
+    }
+    head = 0;
+    tail = 0;
+    size = 0;
+    positions.clear();
+    modCount++;
+  }
+
+  /**
+   * @return read-only view of elements in order
+   */
+  public List<T> asList() {
+    return new AbstractList<T>() {
+      @Override
+      public T get(int index) {
+        if (index < 0 || index >= size) {
+          throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+        if (tail - head == size) {
+          return elementAt(head + index);
+        }
+        // Skip over gaps
+        int remaining = index;
+        for (int pos = head; pos < tail; pos++) {
+          if (slots[pos] != null) {
+            if (remaining == 0) {
+              return elementAt(pos);
+            }
+            remaining--;
+          }
+        }
+        throw new ConcurrentModificationException();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<T> iterator() {
+        return new Itr(false);
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return positions.containsKey(o);
+      }
+    };
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Itr(true);
+  }
+
+  @SuppressWarnings("unchecked")
+  private T elementAt(int pos) {
+    return (T)slots[pos];
+  }
+
+  private void clearSlot(int pos) {
+    slots[pos] = null;
+    size--;
+    // Keep ends pointing at elements
+    while (head < tail && slots[head] == null) {
+      head++;
+    }
+    while (tail > head && slots[tail - 1] == null) {
+      tail--;
+    }
+  }
+
+  /**
+   * Close up gaps if they outnumber elements, so that access by position
+   * and iteration stay proportional to size
+   */
+  private void compactIfSparse() {
+    if (tail - head - size > Math.max(MIN_CAPACITY, size)) {
+      relocate(0);
+    }
+  }
+
+  /**
+   * Move elements to start of a new array with given number of free slots
+   * at the front, closing up any gaps
+   */
+  private void relocate(int headRoom) {
+    Object[] newSlots = new Object[Math.max(MIN_CAPACITY,
+                                            headRoom + size * 2)];
+    int pos = headRoom;
+    for (int i = head; i < tail; i++) {
+      Object e = slots[i];
+      if (e != null) {
+        newSlots[pos] = e;
+        positions.put(elementAt(i), pos);
+        pos++;
+      }
+    }
+    this.slots = newSlots;
+    this.head = headRoom;
+    this.tail = pos;
+    modCount++;
+  }
+
+  private class Itr implements Iterator<T> {
+    private final boolean removable;
+    private int pos;
+    private int lastPos = -1;
+    private int expectedModCount = modCount;
+
+    Itr(boolean removable) {
+      this.removable = removable;
+      this.pos = head;
+    }
+
+    @Override
+    public boolean hasNext() {
+      checkModCount();
+      while (pos < tail && slots[pos] == null) {
+        pos++;
+      }
+      return pos < tail;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastPos = pos;
+      return elementAt(pos++);
+    }
+
+    @Override
+    public void remove() {
+      if (!removable) {
+        throw new UnsupportedOperationException();
+      }
+      checkModCount();
+      if (lastPos < 0 || slots[lastPos] == null) {
+        throw new IllegalStateException();
+      }
+      positions.remove(slots[lastPos]);
+      clearSlot(lastPos);
+      lastPos = -1;
+      if (pos < head) {
+        pos = head;
+      }
+      // Removing through iterator doesn't move other elements
+      modCount++;
+      expectedModCount = modCount;
+    }
+
+    private void checkModCount() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
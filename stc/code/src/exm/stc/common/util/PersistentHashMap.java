@@ -0,0 +1,447 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map that shares structure with the maps it is derived from.
+ *
+ * This is a hash array mapped trie: each level of the trie indexes five
+ * bits of the hash code, so lookups and updates take O(log32 n) time,
+ * and an update copies only the nodes on the path to the changed entry.
+ *
+ * Null keys are not supported.  The Map interface is read-only: use
+ * {@link #plus(Object, Object)} and {@link #minus(Object)} to derive
+ * updated maps.
+ */
+public class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  /** Deep enough for all bitmap levels plus a collision node */
+  private static final int MAX_DEPTH = 32 / BITS + 2;
+
+  private static final Object NOT_FOUND = new Object();
+
+  private static final PersistentHashMap<Object, Object> EMPTY =
+                        new PersistentHashMap<Object, Object>(null, 0);
+
+  /** Null if empty */
+  private final Node root;
+  private final int size;
+
+  private PersistentHashMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentHashMap<K, V> empty() {
+    return (PersistentHashMap<K, V>)EMPTY;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return find(key) != NOT_FOUND;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    Object val = find(key);
+    return val == NOT_FOUND ? null : (V)val;
+  }
+
+  /**
+   * Iterative rather than recursive to keep lookups compact
+   * @return value, or NOT_FOUND
+   */
+  private Object find(Object key) {
+    if (root == null) {
+      return NOT_FOUND;
+    }
+    int hash = key.hashCode();
+    int shift = 0;
+    Node node = root;
+    while (node instanceof BitmapNode) {
+      BitmapNode bnode = (BitmapNode)node;
+      int bit = bitpos(hash, shift);
+      if ((bnode.bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+      int i = 2 * bnode.index(bit);
+      Object k = bnode.array[i];
+      if (k == null) {
+        node = (Node)bnode.array[i + 1];
+        shift += BITS;
+      } else if (k == key || key.equals(k)) {
+        return bnode.array[i + 1];
+      } else {
+        return NOT_FOUND;
+      }
+    }
+    return ((CollisionNode)node).find(hash, key);
+  }
+
+  /**
+   * @return map with key mapped to value, which may be this map if the
+   *         key was already mapped to the same value
+   */
+  public PersistentHashMap<K, V> plus(K key, V value) {
+    assert(key != null);
+    int hash = key.hashCode();
+
+    // Bitmap nodes on path from root and index of child pointer in each.
+    // Iterative so that updates compile to compact code
+    BitmapNode[] path = new BitmapNode[MAX_DEPTH];
+    int[] childIndices = new int[MAX_DEPTH];
+    int depth = 0;
+
+    int shift = 0;
+    Node node = root != null ? root : BitmapNode.EMPTY;
+    Node newNode;
+    boolean added;
+    while (true) {
+      if (node instanceof CollisionNode) {
+        CollisionNode cnode = (CollisionNode)node;
+        if (cnode.hash != hash) {
+          // Nest inside a bitmap node to separate from new key
+          node = new BitmapNode(bitpos(cnode.hash, shift),
+                                new Object[] {null, cnode});
+          continue;
+        }
+        int i = cnode.indexOf(key);
+        if (i >= 0) {
+          if (cnode.array[i + 1] == value) {
+            return this;
+          }
+          newNode = new CollisionNode(hash,
+                              cloneAndSet(cnode.array, i + 1, value));
+          added = false;
+        } else {
+          Object[] newArray = Arrays.copyOf(cnode.array,
+                                            cnode.array.length + 2);
+          newArray[cnode.array.length] = key;
+          newArray[cnode.array.length + 1] = value;
+          newNode = new CollisionNode(hash, newArray);
+          added = true;
+        }
+        break;
+      }
+
+      BitmapNode bnode = (BitmapNode)node;
+      int bit = bitpos(hash, shift);
+      int i = 2 * bnode.index(bit);
+      if ((bnode.bitmap & bit) == 0) {
+        Object[] newArray = new Object[bnode.array.length + 2];
+        System.arraycopy(bnode.array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = value;
+        System.arraycopy(bnode.array, i, newArray, i + 2,
+                         bnode.array.length - i);
+        newNode = new BitmapNode(bnode.bitmap | bit, newArray);
+        added = true;
+        break;
+      }
+
+      Object k = bnode.array[i];
+      Object v = bnode.array[i + 1];
+      if (k == null) {
+        path[depth] = bnode;
+        childIndices[depth] = i + 1;
+        depth++;
+        node = (Node)v;
+        shift += BITS;
+      } else if (k == key || key.equals(k)) {
+        if (v == value) {
+          return this;
+        }
+        newNode = new BitmapNode(bnode.bitmap,
+                                 cloneAndSet(bnode.array, i + 1, value));
+        added = false;
+        break;
+      } else {
+        // Push both entries down a level
+        Object[] newArray = cloneAndSet(bnode.array, i, null);
+        newArray[i + 1] = createNode(shift + BITS, k, v, hash, key, value);
+        newNode = new BitmapNode(bnode.bitmap, newArray);
+        added = true;
+        break;
+      }
+    }
+
+    // Copy nodes on path with updated children
+    for (int d = depth - 1; d >= 0; d--) {
+      newNode = new BitmapNode(path[d].bitmap,
+                    cloneAndSet(path[d].array, childIndices[d], newNode));
+    }
+    return new PersistentHashMap<K, V>(newNode, added ? size + 1 : size);
+  }
+
+  /**
+   * Create node holding two entries with different keys
+   */
+  private static Node createNode(int shift, Object k1, Object v1,
+                                 int hash2, Object k2, Object v2) {
+    int hash1 = k1.hashCode();
+    if (hash1 == hash2) {
+      return new CollisionNode(hash1, new Object[] {k1, v1, k2, v2});
+    }
+    // Hashes differ, so will be separated by shift 30 at most
+    int pos1 = (hash1 >>> shift) & MASK;
+    int pos2 = (hash2 >>> shift) & MASK;
+    int bits = (1 << pos1) | (1 << pos2);
+    if (pos1 == pos2) {
+      Node child = createNode(shift + BITS, k1, v1, hash2, k2, v2);
+      return new BitmapNode(bits, new Object[] {null, child});
+    } else if (pos1 < pos2) {
+      return new BitmapNode(bits, new Object[] {k1, v1, k2, v2});
+    } else {
+      return new BitmapNode(bits, new Object[] {k2, v2, k1, v1});
+    }
+  }
+
+  /**
+   * @return map without key, which may be this map if key wasn't present
+   */
+  public PersistentHashMap<K, V> minus(Object key) {
+    if (root == null) {
+      return this;
+    }
+    Node newRoot = root.minus(0, key.hashCode(), key);
+    if (newRoot == root) {
+      return this;
+    } else if (newRoot == null) {
+      return empty();
+    }
+    return new PersistentHashMap<K, V>(newRoot, size - 1);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator<K, V>(root);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  private static int bitpos(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static Object[] cloneAndSet(Object[] array, int i, Object val) {
+    Object[] result = array.clone();
+    result[i] = val;
+    return result;
+  }
+
+  private static Object[] removePair(Object[] array, int i) {
+    Object[] result = new Object[array.length - 2];
+    System.arraycopy(array, 0, result, 0, 2 * i);
+    System.arraycopy(array, 2 * i + 2, result, 2 * i,
+                     result.length - 2 * i);
+    return result;
+  }
+
+  /**
+   * Node of trie.  The array holds key/value pairs.  A null key means
+   * that the value is a child node.
+   */
+  private static abstract class Node {
+    final Object[] array;
+
+    Node(Object[] array) {
+      this.array = array;
+    }
+
+    /**
+     * @return updated node, this if unchanged, or null if now empty
+     */
+    abstract Node minus(int shift, int hash, Object key);
+  }
+
+  private static class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    /** Which of the 32 possible entries are present */
+    final int bitmap;
+
+    BitmapNode(int bitmap, Object[] array) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Node minus(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = 2 * index(bit);
+      Object k = array[i];
+      if (k == null) {
+        Node child = (Node)array[i + 1];
+        Node newChild = child.minus(shift + BITS, hash, key);
+        if (newChild == child) {
+          return this;
+        } else if (newChild != null) {
+          return new BitmapNode(bitmap, cloneAndSet(array, i + 1, newChild));
+        }
+      } else if (k != key && !key.equals(k)) {
+        return this;
+      }
+
+      if (bitmap == bit) {
+        return null;
+      }
+      return new BitmapNode(bitmap ^ bit, removePair(array, i / 2));
+    }
+  }
+
+  /**
+   * Node for distinct keys with the same hash code
+   */
+  private static class CollisionNode extends Node {
+    final int hash;
+
+    CollisionNode(int hash, Object[] array) {
+      super(array);
+      this.hash = hash;
+    }
+
+    int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (array[i] == key || key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return value, or NOT_FOUND
+     */
+    Object find(int hash, Object key) {
+      if (hash != this.hash) {
+        return NOT_FOUND;
+      }
+      int i = indexOf(key);
+      return i < 0 ? NOT_FOUND : array[i + 1];
+    }
+
+    @Override
+    Node minus(int shift, int hash, Object key) {
+      if (hash != this.hash) {
+        return this;
+      }
+      int i = indexOf(key);
+      if (i < 0) {
+        return this;
+      } else if (array.length == 2) {
+        return null;
+      }
+      return new CollisionNode(hash, removePair(array, i / 2));
+    }
+  }
+
+  private static class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth;
+    private Entry<K, V> next;
+
+    EntryIterator(Node root) {
+      if (root == null) {
+        depth = -1;
+      } else {
+        depth = 0;
+        arrays[0] = root.array;
+        positions[0] = 0;
+      }
+      next = advance();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<K, V> advance() {
+      while (depth >= 0) {
+        Object[] array = arrays[depth];
+        int pos = positions[depth];
+        if (pos >= array.length) {
+          arrays[depth] = null;
+          depth--;
+          continue;
+        }
+        positions[depth] = pos + 2;
+        if (array[pos] == null) {
+          depth++;
+          arrays[depth] = ((Node)array[pos + 1]).array;
+          positions[depth] = 0;
+        } else {
+          return new SimpleImmutableEntry<K, V>((K)array[pos],
+                                                (V)array[pos + 1]);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> result = next;
+      next = advance();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
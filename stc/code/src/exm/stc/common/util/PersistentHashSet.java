@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Immutable set that shares structure with the sets it is derived from.
+ * See {@link PersistentHashMap}.
+ */
+public class PersistentHashSet<T> extends AbstractSet<T> {
+  private static final PersistentHashSet<Object> EMPTY =
+      new PersistentHashSet<Object>(PersistentHashMap.<Object, Object>empty());
+
+  private final PersistentHashMap<T, Object> map;
+
+  private PersistentHashSet(PersistentHashMap<T, Object> map) {
+    this.map = map;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> PersistentHashSet<T> empty() {
+    return (PersistentHashSet<T>)EMPTY;
+  }
+
+  /**
+   * @return set with element added, which may be this set
+   */
+  public PersistentHashSet<T> plus(T elem) {
+    PersistentHashMap<T, Object> newMap = map.plus(elem, Boolean.TRUE);
+    return newMap == map ? this : new PersistentHashSet<T>(newMap);
+  }
+
+  /**
+   * @return set without element, which may be this set
+   */
+  public PersistentHashSet<T> minus(Object elem) {
+    PersistentHashMap<T, Object> newMap = map.minus(elem);
+    return newMap == map ? this : new PersistentHashSet<T>(newMap);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return map.containsKey(o);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    // Key set of read-only map doesn't support removal
+    return map.keySet().iterator();
+  }
+}
@@ -1,8 +1,10 @@
 package exm.stc.common.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -22,9 +24,17 @@ import com.google.common.collect.SetMultimap;
  *
  * Merging in a non-leaf node is more
  *
+ * Lookups check the scopes up to the nearest checkpoint, an ancestor at
+ * a depth that is a multiple of CHECKPOINT_INTERVAL.  Checkpoints keep
+ * persistent maps with the contents of all their ancestors, which share
+ * structure with the next checkpoint up, so lookups take bounded time
+ * regardless of nesting depth.  The persistent maps are rebuilt if an
+ * ancestor is modified.
+ *
  * @param <T>
  */
 public class ScopedUnionFind<T> {
+  private static final int CHECKPOINT_INTERVAL = 8;
 
   /**
    * Parent of the union find, null if this is root
@@ -39,6 +49,29 @@ public class ScopedUnionFind<T> {
    */
   private final TwoWayMap<T, T> canonical;
 
+  private final int nestingDepth;
+
+  /**
+   * Nearest checkpoint, possibly this
+   */
+  private final ScopedUnionFind<T> checkpoint;
+
+  /**
+   * If a checkpoint, mapping from member to canonical in ancestors, or
+   * null if must be rebuilt.
+   */
+  private PersistentHashMap<T, T> ancestorCanonical;
+
+  /**
+   * If a checkpoint, mapping from canonical to members in ancestors,
+   * including the canonical itself.  Null if ancestorCanonical is null.
+   */
+  private PersistentHashMap<T, PersistentHashSet<T>> ancestorMembers;
+
+  /**
+   * Checkpoints with ancestor mappings built from ours
+   */
+  private Set<ScopedUnionFind<T>> dependents = null;
 
   /**
    * Children that we might need to propagate changes to
@@ -51,6 +84,16 @@ public class ScopedUnionFind<T> {
     this.parent = parent;
     this.canonical = TwoWayMap.create();
     this.subscribed = HashMultimap.create();
+    if (parent == null) {
+      this.nestingDepth = 0;
+      this.checkpoint = this;
+      this.ancestorCanonical = PersistentHashMap.empty();
+      this.ancestorMembers = PersistentHashMap.empty();
+    } else {
+      this.nestingDepth = parent.nestingDepth + 1;
+      this.checkpoint = nestingDepth % CHECKPOINT_INTERVAL == 0 ?
+                          this : parent.checkpoint;
+    }
   }
 
   public static <T1> ScopedUnionFind<T1> createRoot() {
@@ -61,19 +104,106 @@ public class ScopedUnionFind<T> {
     return new ScopedUnionFind<T>(this);
   }
 
+  /**
+   * Rebuild ancestor mappings of this checkpoint if needed
+   */
+  private void syncAncestors() {
+    assert(checkpoint == this);
+    if (ancestorCanonical == null) {
+      rebuildAncestors();
+    }
+  }
+
+  /**
+   * Separate from syncAncestors() to keep rebuilding off the lookup path
+   */
+  private void rebuildAncestors() {
+    List<ScopedUnionFind<T>> levels = new ArrayList<ScopedUnionFind<T>>();
+    ScopedUnionFind<T> curr = parent;
+    while (true) {
+      levels.add(curr);
+      curr.addDependent(this);
+      if (curr.checkpoint == curr) {
+        break;
+      }
+      curr = curr.parent;
+    }
+
+    curr.syncAncestors();
+    PersistentHashMap<T, T> canon = curr.ancestorCanonical;
+    PersistentHashMap<T, PersistentHashSet<T>> members = curr.ancestorMembers;
+    // Apply outermost first so that inner mappings take precedence
+    for (int i = levels.size() - 1; i >= 0; i--) {
+      TwoWayMap<T, T> levelCanonical = levels.get(i).canonical;
+      for (Entry<T, T> e: levelCanonical.entrySet()) {
+        canon = canon.plus(e.getKey(), e.getValue());
+      }
+
+      for (Entry<T, Collection<T>> e:
+                  levelCanonical.inverse().asMap().entrySet()) {
+        PersistentHashSet<T> memberSet = memberSet(members, e.getKey());
+        for (T member: e.getValue()) {
+          memberSet = memberSet.plus(member);
+        }
+        members = members.plus(e.getKey(), memberSet);
+      }
+    }
+
+    this.ancestorCanonical = canon;
+    this.ancestorMembers = members;
+  }
+
+  private static <T> PersistentHashSet<T> memberSet(
+      PersistentHashMap<T, PersistentHashSet<T>> members, T canon) {
+    PersistentHashSet<T> result = members.get(canon);
+    if (result == null) {
+      result = PersistentHashSet.<T>empty().plus(canon);
+    }
+    return result;
+  }
+
+  private void addDependent(ScopedUnionFind<T> checkpoint) {
+    if (dependents == null) {
+      dependents = new HashSet<ScopedUnionFind<T>>();
+    }
+    dependents.add(checkpoint);
+  }
+
+  /**
+   * Invalidate ancestor mappings of checkpoints after modification
+   */
+  private void invalidateDependents() {
+    if (dependents != null) {
+      Set<ScopedUnionFind<T>> invalid = dependents;
+      dependents = null;
+      for (ScopedUnionFind<T> checkpoint: invalid) {
+        checkpoint.invalidate();
+      }
+    }
+  }
+
+  private void invalidate() {
+    if (ancestorCanonical != null) {
+      ancestorCanonical = null;
+      ancestorMembers = null;
+      invalidateDependents();
+    }
+  }
+
   public T lookup(T x) {
     ScopedUnionFind<T> curr = this;
-    while (curr != null) {
+    while (true) {
       T canon = curr.canonical.get(x);
       if (canon != null) {
         return canon;
+      } else if (curr.checkpoint == curr) {
+        curr.syncAncestors();
+        canon = curr.ancestorCanonical.get(x);
+        // x is on its own if not found
+        return canon != null ? canon : x;
       }
-
       curr = curr.parent;
     }
-
-    // x is on its own
-    return x;
   }
 
   /**
@@ -97,11 +227,13 @@ public class ScopedUnionFind<T> {
     // Notify before change
     notifyChanged(true, winnerCanon, loserCanon);
 
+    // Immutable, so not affected by updates
     Set<T> affectedMembers = members(loserCanon);
 
     for (T affectedMember: affectedMembers) {
       canonical.put(affectedMember, winnerCanon);
     }
+    invalidateDependents();
 
     subscribeToParentUpdates(winnerCanon);
     subscribeToParentUpdates(loserCanon);
@@ -109,27 +241,41 @@ public class ScopedUnionFind<T> {
     // Notify after change
     notifyChanged(false, winnerCanon, loserCanon);
 
-    return Collections.unmodifiableSet(affectedMembers);
+    return affectedMembers;
   }
 
   /**
    * Find all member of set associated with canonical value, including
    * the value itself
    * @param val
-   * @return
+   * @return unmodifiable set of members
    */
   public Set<T> members(T canon) {
-    // Search up to find all members
-    Set<T> members = new HashSet<T>();
-    members.add(canon);
-
+    // Search up to checkpoint to find members in this and nearby scopes
+    Set<T> members = null;
     ScopedUnionFind<T> curr = this;
-    while (curr != null) {
-      members.addAll(curr.canonical.getByValue(canon));
+    while (true) {
+      Collection<T> levelMembers = curr.canonical.getByValue(canon);
+      if (!levelMembers.isEmpty()) {
+        if (members == null) {
+          members = new HashSet<T>();
+        }
+        members.addAll(levelMembers);
+      }
+      if (curr.checkpoint == curr) {
+        break;
+      }
       curr = curr.parent;
     }
 
-    return members;
+    curr.syncAncestors();
+    PersistentHashSet<T> ancestorSet = memberSet(curr.ancestorMembers, canon);
+    if (members == null) {
+      // Can share checkpoint's set
+      return ancestorSet;
+    }
+    members.addAll(ancestorSet);
+    return Collections.unmodifiableSet(members);
   }
 
   /**
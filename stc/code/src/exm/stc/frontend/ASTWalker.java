@@ -74,6 +74,7 @@ import exm.stc.common.lang.Types.SubType;
 import exm.stc.common.lang.Types.TupleType;
 import exm.stc.common.lang.Types.Type;
 import exm.stc.common.lang.Types.UnionType;
+import exm.stc.common.lang.Unimplemented;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
@@ -158,28 +159,70 @@ public class ASTWalker {
    */
   public void walk(String mainFilePath, String originalMainFilePath,
                  boolean preprocessed) throws UserException {
+    Walk walk = startWalk(mainFilePath, originalMainFilePath, preprocessed);
 
+    /*
+     * Three passes:
+     * 1. find definitions so they can be resolved during compilation
+     * 2. compile top-level code, so that any variables can be referenced in funcitons
+     * 3. compile functions
+     */
+    walk.loadDefinitions();
+
+    walk.compileTopLevel();
+
+    walk.compileFunctions();
+  }
+
+  /**
+   * Set up a walk of the AST without running any passes, so that the
+   * passes can be run separately, e.g. for benchmarking.
+   * @param mainFilePath the main file path to process
+   * @param originalMainFilePath original main file
+   * @param preprocessed true if module was preprocessed
+   * @return
+   * @throws UserException
+   */
+  public Walk startWalk(String mainFilePath, String originalMainFilePath,
+                        boolean preprocessed) throws UserException {
     GlobalContext context = new GlobalContext(mainFilePath,
                       Logging.getSTCLogger(), foreignFuncs);
 
     // Assume root module for now
     String mainModuleName =  FilenameUtils.getBaseName(originalMainFilePath);
     LocatedModule mainModule = new LocatedModule(mainFilePath, mainModuleName,
-                                                 preprocessed);
+                                                 preprocessed, false);
     LocatedModule builtins = LocatedModule.fromPath(context,
                           Arrays.asList("builtins"), false);
+    return new Walk(context, mainModule, builtins);
+  }
 
-    /*
-     * Three passes:
-     * 1. find definitions so they can be resolved during compilation
-     * 2. compile top-level code, so that any variables can be referenced in funcitons
-     * 3. compile functions
-     */
-    loadDefinitions(context, mainModule, builtins);
+  /**
+   * Frontend passes over a program.  Each pass must be run once, in order.
+   */
+  public class Walk {
+    private final GlobalContext context;
+    private final LocatedModule mainModule;
+    private final LocatedModule builtins;
 
-    compileTopLevel(context, mainModule, builtins);
+    private Walk(GlobalContext context, LocatedModule mainModule,
+                 LocatedModule builtins) {
+      this.context = context;
+      this.mainModule = mainModule;
+      this.builtins = builtins;
+    }
+
+    public void loadDefinitions() throws UserException {
+      ASTWalker.this.loadDefinitions(context, mainModule, builtins);
+    }
+
+    public void compileTopLevel() throws UserException {
+      ASTWalker.this.compileTopLevel(context, mainModule, builtins);
+    }
 
-    compileFunctions(context);
+    public void compileFunctions() throws UserException {
+      ASTWalker.this.compileFunctions(context);
+    }
   }
 
   private void loadDefinitions(GlobalContext context,
@@ -1064,7 +1107,7 @@ public class ASTWalker {
             VarRepr.backendArg(startVal), VarRepr.backendArg(endVal),
             VarRepr.backendArg(stepVal),
             loop.getDesiredUnroll(), loop.getSplitDegree(),
-            loop.getLeafDegree());
+            loop.getLeafDegree(), loop.isAutoDegree());
     // Need to spawn off task per iteration
     if (!loop.isSyncLoop()) {
       backend.startWaitStatement(fc.getFunctionName() + "range-iter" + loopNum,
@@ -1139,11 +1182,20 @@ public class ASTWalker {
       outsideLoopContext = context;
     }
 
-    // Block on array
-    backend.startWaitStatement(
-        fc.getFunctionName() + "-foreach-wait" + loopNum,
-        VarRepr.backendVar(realArray).asList(),
-        WaitMode.WAIT_ONLY, false, false, ExecTarget.nonDispatchedControl());
+    // Block on array, unless streaming iterations as members are inserted
+    boolean streaming = loop.isStreaming();
+    if (streaming && !Unimplemented.streamingForeachSupported()) {
+      LogHelper.warn(context, "@" + Annotations.LOOP_STREAM + " not " +
+          "supported by this backend: foreach loop will wait for " +
+          "container to be closed");
+      streaming = false;
+    }
+    if (!streaming) {
+      backend.startWaitStatement(
+          fc.getFunctionName() + "-foreach-wait" + loopNum,
+          VarRepr.backendVar(realArray).asList(),
+          WaitMode.WAIT_ONLY, false, false, ExecTarget.nonDispatchedControl());
+    }
 
     loop.setupLoopBodyContext(outsideLoopContext, false, false);
     Context loopBodyContext = loop.getBodyContext();
@@ -1161,7 +1213,8 @@ public class ASTWalker {
     backend.startForeachLoop(fc.getFunctionName() + "-foreach" + loopNum,
             VarRepr.backendVar(realArray), backendIterVar,
             loopCountVal == null ? null : VarRepr.backendVar(loopCountVal),
-            loop.getSplitDegree(), loop.getLeafDegree(), true);
+            loop.getSplitDegree(), loop.getLeafDegree(),
+            loop.isAutoDegree(), !streaming);
 
 
     if (memberIsVal) {
@@ -1193,7 +1246,9 @@ public class ASTWalker {
     backend.endForeachLoop();
 
     // Wait for array
-    backend.endWaitStatement();
+    if (!streaming) {
+      backend.endWaitStatement();
+    }
     if (Types.isContainerRef(arrayVar.type())) {
       // Wait for array ref
       backend.endWaitStatement();
@@ -2434,7 +2489,7 @@ public class ASTWalker {
       // Unpack to flat representation
       NestedContainerInfo ci = new NestedContainerInfo(in.type());
       Type memberValType = Types.retrievedType(ci.baseType);
-      Type localInType =  new ArrayType(true, Types.F_INT, memberValType);
+      Type localInType =  ArrayType.create(true, Types.F_INT, memberValType);
       localInput = varCreator.createValueVar(context, localInType, in, true);
       backend.unpackArrayToFlat(VarRepr.backendVar(localInput),
                                 VarRepr.backendArg(in));
@@ -2668,7 +2723,7 @@ public class ASTWalker {
     if (aliasOnly) {
       newType = baseType;
     } else {
-      newType = new SubType(baseType, typeName);
+      newType = SubType.create(baseType, typeName);
     }
 
     context.defineType(typeName, newType);
@@ -58,8 +58,13 @@ public class LoadedModules {
       didLoad = true;
       // Load the file
       try {
-        parsed = ParsedModule.parse(module.canonicalName, module.filePath,
-                                    module.preprocessed);
+        if (module.library) {
+          parsed = ModuleCache.parse(module.canonicalName, module.filePath,
+                                     module.preprocessed);
+        } else {
+          parsed = ParsedModule.parse(module.canonicalName, module.filePath,
+                                      module.preprocessed);
+        }
       } catch (IOException e) {
         throw new ModuleLoadException(context, module.filePath, e);
       }
@@ -138,12 +143,15 @@ public class LoadedModules {
     public final String filePath;
     public final String canonicalName;
     public final boolean preprocessed;
+    /** True if module was found in module search path */
+    public final boolean library;
 
     public LocatedModule(String filePath, String canonicalName,
-      boolean preprocessed) {
+      boolean preprocessed, boolean library) {
       this.filePath = filePath;
       this.canonicalName = canonicalName;
       this.preprocessed = preprocessed;
+      this.library = library;
     }
 
     /**
@@ -158,7 +166,7 @@ public class LoadedModules {
         boolean preprocessed) throws ModuleLoadException {
       String canonicalName = moduleCanonicalName(modulePath);
       String filePath = locateModule(context, canonicalName, modulePath);
-      return new LocatedModule(filePath, canonicalName, preprocessed);
+      return new LocatedModule(filePath, canonicalName, preprocessed, true);
     }
 
     /**
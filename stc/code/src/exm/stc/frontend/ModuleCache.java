@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.frontend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.ast.FilePosition;
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.ast.SwiftAST;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.util.Pair;
+
+/**
+ * Cache of parsed library modules, so that builtins and commonly imported
+ * modules don't need to be lexed and parsed on every compilation.
+ *
+ * Modules are cached in serialized form, since the frontend annotates
+ * the AST and each compilation needs a fresh copy.  Entries are keyed by
+ * canonical path, file contents, preprocessor settings and STC version,
+ * so a modified module is never served from the cache.  Entries are kept
+ * in memory for the lifetime of the process (e.g. the compile server),
+ * and also on disk if {@link Settings#MODULE_CACHE_DIR} is set.
+ */
+public class ModuleCache {
+
+  /** Bump whenever the serialized format changes */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String FILE_SUFFIX = ".ast";
+
+  /** Serialized modules by cache key */
+  private static final ConcurrentHashMap<String, byte[]> memCache =
+                              new ConcurrentHashMap<String, byte[]>();
+
+  /**
+   * Parse module, using cached version if possible.
+   * @param moduleName
+   * @param path
+   * @param preprocessed
+   * @return
+   * @throws IOException
+   */
+  public static ParsedModule parse(String moduleName, String path,
+                            boolean preprocessed) throws IOException {
+    if (!Settings.getBooleanUnchecked(Settings.MODULE_CACHE)) {
+      return ParsedModule.parse(moduleName, path, preprocessed);
+    }
+
+    Logger logger = Logging.getSTCLogger();
+    File file = new File(path);
+    byte content[];
+    try {
+      content = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      // Report error in standard way
+      return ParsedModule.parse(moduleName, path, preprocessed);
+    }
+
+    String key = cacheKey(moduleName, file.getCanonicalPath(),
+                          content, preprocessed);
+    File cacheFile = cacheFile(key);
+
+    byte serialized[] = memCache.get(key);
+    if (serialized == null && cacheFile != null && cacheFile.isFile()) {
+      serialized = Files.readAllBytes(cacheFile.toPath());
+    }
+
+    if (serialized != null) {
+      try {
+        ParsedModule cached = deserialize(key, serialized);
+        memCache.put(key, serialized);
+        logger.debug("Loaded module " + moduleName + " from cache");
+        return cached;
+      } catch (IOException e) {
+        logger.debug("Ignoring invalid module cache entry for " +
+                     moduleName + ": " + e.getMessage());
+      }
+    }
+
+    // Parse from contents we hashed, in case file changes underneath us
+    ParsedModule parsed = ParsedModule.parse(moduleName, path,
+                        new ByteArrayInputStream(content), preprocessed);
+    serialized = serialize(key, parsed);
+    memCache.put(key, serialized);
+    if (cacheFile != null) {
+      writeCacheFile(logger, cacheFile, serialized);
+    }
+    return parsed;
+  }
+
+  /**
+   * Compute cache key that changes if anything that affects parsing changes
+   */
+  private static String cacheKey(String moduleName, String canonicalPath,
+      byte content[], boolean preprocessed) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(FORMAT_VERSION).append('\n');
+    sb.append(Settings.get(Settings.STC_VERSION)).append('\n');
+    sb.append(moduleName).append('\n');
+    sb.append(canonicalPath).append('\n');
+    sb.append(preprocessed).append('\n');
+    sb.append(Settings.get(Settings.USE_C_PREPROCESSOR)).append('\n');
+    for (Pair<String, String> metadata: Settings.getMetadata()) {
+      if (metadata.val1.equals("Macro")) {
+        sb.append(metadata.val2).append('\n');
+      }
+    }
+    sb.append(sha256(content));
+    return sb.toString();
+  }
+
+  private static File cacheFile(String key) {
+    String dir = Settings.get(Settings.MODULE_CACHE_DIR);
+    if (dir == null || dir.length() == 0) {
+      return null;
+    }
+    return new File(dir,
+        sha256(key.getBytes(StandardCharsets.UTF_8)) + FILE_SUFFIX);
+  }
+
+  /**
+   * Write file atomically so that concurrent compilers never see
+   * partial entries.  Failure to write the cache is not an error.
+   */
+  private static void writeCacheFile(Logger logger, File cacheFile,
+                                     byte serialized[]) {
+    try {
+      File dir = cacheFile.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        logger.debug("Could not create module cache directory " + dir);
+        return;
+      }
+      File tmp = File.createTempFile("module", ".tmp", dir);
+      try {
+        Files.write(tmp.toPath(), serialized);
+        Files.move(tmp.toPath(), cacheFile.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      logger.debug("Could not write module cache file " + cacheFile + ": "
+                   + e.getMessage());
+    }
+  }
+
+  private static byte[] serialize(String key, ParsedModule module)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(key);
+    out.writeUTF(module.moduleName);
+    out.writeUTF(module.inputFilePath);
+
+    out.writeInt(module.lineMapping.entries().size());
+    for (Entry<Integer, FilePosition> e:
+                  module.lineMapping.entries().entrySet()) {
+      out.writeInt(e.getKey());
+      out.writeUTF(e.getValue().file);
+      out.writeInt(e.getValue().line);
+    }
+
+    module.ast.writeTo(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static ParsedModule deserialize(String key, byte serialized[])
+      throws IOException {
+    DataInputStream in = new DataInputStream(
+                            new ByteArrayInputStream(serialized));
+    // Check key to guard against hash collisions and stale files
+    if (!in.readUTF().equals(key)) {
+      throw new IOException("Cache key mismatch");
+    }
+    String moduleName = in.readUTF();
+    String inputFilePath = in.readUTF();
+
+    LineMapping lineMapping = new LineMapping();
+    int mappings = in.readInt();
+    for (int i = 0; i < mappings; i++) {
+      int preprocOutLine = in.readInt();
+      String origFile = in.readUTF();
+      int origLine = in.readInt();
+      lineMapping.addPreprocInfo(preprocOutLine, origFile, origLine);
+    }
+
+    SwiftAST ast = SwiftAST.readFrom(in);
+    return new ParsedModule(moduleName, inputFilePath, ast, lineMapping);
+  }
+
+  private static String sha256(byte data[]) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder sb = new StringBuilder();
+      for (byte b: digest.digest(data)) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new STCRuntimeError("SHA-256 not available", e);
+    }
+  }
+}
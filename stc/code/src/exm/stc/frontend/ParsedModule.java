@@ -3,6 +3,7 @@ package exm.stc.frontend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 
@@ -49,8 +50,27 @@ public class ParsedModule {
   public static ParsedModule parse(String moduleName, String path,
                                    boolean preprocessed) throws IOException {
     FileInputStream inputStream = setupInput(path);
-    /* Parse the input file and build AST */
-    ANTLRInputStream antlrInput = new ANTLRInputStream(inputStream);
+    try {
+      return parse(moduleName, path, inputStream, preprocessed);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Parse module from the provided input stream
+   * @param moduleName
+   * @param path path of file the input was read from
+   * @param inputStream
+   * @param preprocessed
+   * @return
+   * @throws IOException
+   */
+  public static ParsedModule parse(String moduleName, String path,
+        InputStream inputStream, boolean preprocessed) throws IOException {
+    /* Parse the input file and build AST.  Source is UTF-8, like the
+     * generated code, regardless of platform default encoding */
+    ANTLRInputStream antlrInput = new ANTLRInputStream(inputStream, "UTF-8");
     LineMapping lineMapping;
     if (preprocessed) {
       int startMark = antlrInput.mark();
@@ -2,7 +2,7 @@ package exm.stc.frontend;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -33,10 +33,22 @@ import exm.stc.common.lang.WaitVar;
 public class VarRepr {
 
   /**
-   * Cache results of conversions, to avoid recomputing.
+   * Cache results of conversions, to avoid recomputing.  Results depend
+   * on settings, so cache is per-thread and must be cleared with
+   * {@link #clearCache()} at start of each compilation.  Types are
+   * interned, so can be looked up by identity.
    */
-  private static HashMap<Type, Type> conversionCache
-                          = new HashMap<Type, Type>();
+  private static final ThreadLocal<IdentityHashMap<Type, Type>>
+      conversionCache = new ThreadLocal<IdentityHashMap<Type, Type>>() {
+    @Override
+    protected IdentityHashMap<Type, Type> initialValue() {
+      return new IdentityHashMap<Type, Type>();
+    }
+  };
+
+  public static void clearCache() {
+    conversionCache.remove();
+  }
 
   public static Var backendVar(Var frontendVar) {
     assert(frontendVar != null);
@@ -136,7 +148,7 @@ public class VarRepr {
                             boolean checkInstantiate) {
     Type originalType = type;
 
-    Type lookup = conversionCache.get(type);
+    Type lookup = conversionCache.get().get(type);
     if (lookup != null) {
       return lookup;
     }
@@ -147,14 +159,15 @@ public class VarRepr {
       Type backendElemType = backendTypeInternal(frontendElemType,
                                                  checkInstantiate);
       if (storeRefInContainer(backendElemType)) {
-        type = Types.substituteElemType(type, new RefType(backendElemType, true));
+        type = Types.substituteElemType(type,
+                              RefType.create(backendElemType, true));
       }
     } else if (Types.isRef(type)) {
       Type frontendDerefT = type.memberType();
       Type backendDerefT = backendTypeInternal(frontendDerefT,
                                                checkInstantiate);
       if (!frontendDerefT.equals(backendDerefT)) {
-        type = new RefType(backendDerefT, Types.isMutableRef(type));
+        type = RefType.create(backendDerefT, Types.isMutableRef(type));
       }
     } else if (Types.isStruct(type) || Types.isStructLocal(type)) {
       type = backendStructType((StructType)type, checkInstantiate);
@@ -165,7 +178,7 @@ public class VarRepr {
 
     Logging.getSTCLogger().trace("Type conversion frontend => backend: " +
                                     originalType + " to backend " + type);
-    conversionCache.put(originalType, type);
+    conversionCache.get().put(originalType, type);
     return type;
   }
 
@@ -184,12 +197,12 @@ public class VarRepr {
                                         checkInstantiate);
       if (storeRefInStruct(fieldT)) {
         // Need to store as ref to separate data
-        fieldT = new RefType(fieldT, true);
+        fieldT = RefType.create(fieldT, true);
       }
       backendFields.add(new StructField(fieldT, frontendF.name()));
     }
 
-    return new StructType(frontend.isLocal(), frontend.typeName(),
+    return StructType.create(frontend.isLocal(), frontend.typeName(),
                             backendFields);
   }
 
@@ -245,7 +258,7 @@ public class VarRepr {
 
   public static FunctionType backendFnType(FunctionType frontendType) {
 
-    Type lookup = conversionCache.get(frontendType);
+    Type lookup = conversionCache.get().get(frontendType);
     if (lookup != null) {
       return (FunctionType)lookup;
     }
@@ -262,10 +275,10 @@ public class VarRepr {
       backendOutputs.add(backendType(out, false));
     }
 
-    FunctionType result = new FunctionType(backendInputs, backendOutputs,
+    FunctionType result = FunctionType.create(backendInputs, backendOutputs,
                frontendType.hasVarargs(), frontendType.getTypeVars());
 
-    conversionCache.put(frontendType, result);
+    conversionCache.get().put(frontendType, result);
 
     return result;
   }
@@ -274,7 +287,7 @@ public class VarRepr {
   public static Type elemRepr(Type memberType, CompoundType c,
                               boolean mutable) {
     if (storeRefInCompound(memberType, c)) {
-      return new RefType(memberType, mutable);
+      return RefType.create(memberType, mutable);
     } else {
       return memberType;
     }
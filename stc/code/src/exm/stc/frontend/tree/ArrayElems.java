@@ -144,7 +144,7 @@ public class ArrayElems {
       throws UserException, TypeMismatchException {
 
     if (exprs.size() == 0) {
-      return Collections.<Type>singletonList(new WildcardType());
+      return Collections.<Type>singletonList(WildcardType.create());
     } else {
       List<Type> valTypes = new ArrayList<Type>(exprs.size());
       for (SwiftAST elem: exprs) {
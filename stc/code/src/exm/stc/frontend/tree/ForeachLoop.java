@@ -58,6 +58,7 @@ public class ForeachLoop {
   private int unroll = 1;
   private int splitDegree = DEFAULT_SPLIT_DEGREE;
   private int leafDegree = DEFAULT_LEAF_DEGREE;
+  private boolean autoDegree = true;
 
   public int getDesiredUnroll() {
     return unroll;
@@ -71,6 +72,14 @@ public class ForeachLoop {
     return leafDegree;
   }
 
+  /**
+   * @return true if split and leaf degree weren't specified by user,
+   *        so the compiler can choose them
+   */
+  public boolean isAutoDegree() {
+    return autoDegree;
+  }
+
   public List<String> getAnnotations() {
     return Collections.unmodifiableList(annotations);
   }
@@ -79,6 +88,14 @@ public class ForeachLoop {
     return !annotations.contains(Annotations.LOOP_ASYNC);
   }
 
+  /**
+   * @return true if iterations should start as members are inserted,
+   *        rather than waiting for container to be closed
+   */
+  public boolean isStreaming() {
+    return annotations.contains(Annotations.LOOP_STREAM);
+  }
+
   public Var getMemberVar() {
     return memberVar;
   }
@@ -139,7 +156,7 @@ public class ForeachLoop {
     int unrollFactor = 1;
     int splitDegree = DEFAULT_SPLIT_DEGREE;
     int leafDegree = DEFAULT_LEAF_DEGREE;
-
+    boolean autoDegree = true;
 
     int annotationCount = 0;
     for (int i = tree.getChildCount() - 1; i >= 0; i--) {
@@ -162,6 +179,9 @@ public class ForeachLoop {
                 assert(key.equals(Annotations.LOOP_LEAF_DEGREE));
                 leafDegree = (int)Math.min(Integer.MAX_VALUE, val);;
               }
+              if (!key.equals(Annotations.LOOP_UNROLL)) {
+                autoDegree = false;
+              }
               annotationCount++;
             }
             if (!posint) {
@@ -185,6 +205,7 @@ public class ForeachLoop {
     if (annotations.contains(Annotations.LOOP_NOSPLIT)) {
       // Disable splitting
       splitDegree = -1;
+      autoDegree = false;
     }
 
     int childCount = tree.getChildCount() - annotationCount;
@@ -210,6 +231,7 @@ public class ForeachLoop {
     loop.unroll = unrollFactor;
     loop.splitDegree = splitDegree;
     loop.leafDegree = leafDegree;
+    loop.autoDegree = autoDegree;
     return loop;
   }
 
@@ -218,7 +240,8 @@ public class ForeachLoop {
     for (String annotation: annotations) {
       if (!annotation.equals(Annotations.LOOP_SYNC) &&
           !annotation.equals(Annotations.LOOP_ASYNC) &&
-          !annotation.equals(Annotations.LOOP_NOSPLIT)) {
+          !annotation.equals(Annotations.LOOP_NOSPLIT) &&
+          !annotation.equals(Annotations.LOOP_STREAM)) {
         throw new InvalidAnnotationException(context, "foreach loop",
                                              annotation, false);
       }
@@ -229,6 +252,12 @@ public class ForeachLoop {
                               " loop annotations @" + Annotations.LOOP_SYNC +
                               " and @" + Annotations.LOOP_ASYNC);
     }
+    if (annotations.contains(Annotations.LOOP_STREAM) &&
+        iteratesOverRange()) {
+      throw new InvalidAnnotationException(context, "@" +
+          Annotations.LOOP_STREAM + " is only valid for loops over " +
+          "containers");
+    }
   }
 
   /**
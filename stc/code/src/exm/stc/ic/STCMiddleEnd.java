@@ -30,6 +30,7 @@ import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.RefCount;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UndefinedTypeException;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.AsyncExecutor;
@@ -125,6 +126,10 @@ public class STCMiddleEnd {
                          Arg.newString("nowait"));
   }
 
+  public Program getProgram() {
+    return program;
+  }
+
   public void optimize() throws UserException {
     logger.debug("Optimising Swift IC");
     this.program = ICOptimizer.optimize(logger, icOutput, program);
@@ -138,7 +143,11 @@ public class STCMiddleEnd {
    */
   public void regenerate(CompilerBackend backend) throws UserException {
     logger.debug("Using Swift IC to regenerate code");
-    this.program.generate(logger, backend);
+    try {
+      this.program.generate(logger, backend);
+    } catch (UnsupportedFeatureException.Unchecked e) {
+      throw e.getCause();
+    }
     logger.debug("Done using Swift IC to regenerate code");
   }
 
@@ -305,7 +314,8 @@ public class STCMiddleEnd {
 
   public void startForeachLoop(String loopName,
           Var container, Var memberVar, Var loopCountVar,
-          int splitDegree, int leafDegree, boolean arrayClosed) {
+          int splitDegree, int leafDegree, boolean autoDegree,
+          boolean arrayClosed) {
     assert(Types.isContainer(container) || Types.isContainerLocal(container)):
           "foreach loop over bad type: " + container.toString();
 
@@ -322,6 +332,7 @@ public class STCMiddleEnd {
             arrayClosed, PassedVar.NONE, Var.NONE,
             RefCount.NONE, ArrayListMultimap.<Var, RefCount>create(),
             RefCount.NONE);
+    loop.setAutoDegree(autoDegree);
     currBlock().addContinuation(loop);
     blockStack.push(loop.getLoopBody());
   }
@@ -333,12 +344,13 @@ public class STCMiddleEnd {
 
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int desiredUnroll, int splitDegree,
-      int leafDegree) {
+      int leafDegree, boolean autoDegree) {
     RangeLoop loop = new RangeLoop(loopName, loopVar, countVar,
           start, end, increment,
           PassedVar.NONE, Var.NONE, desiredUnroll, false,
           splitDegree, leafDegree, RefCount.NONE,
           ArrayListMultimap.<Var, RefCount>create(), RefCount.NONE);
+    loop.setAutoDegree(autoDegree);
     currBlock().addContinuation(loop);
     blockStack.push(loop.getLoopBody());
   }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.OptimizerPass.StatefulPass;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Track which optimizer passes are known to have no effect on the
+ * program in its current state, so that they can be skipped.
+ *
+ * A pass is quiet if it was run and didn't change the program, and the
+ * program hasn't been changed by any other pass since.  This assumes
+ * that passes are deterministic, i.e. that running a pass twice on the
+ * same program gives the same result, which is not true of a
+ * {@link StatefulPass}.
+ */
+public class ChangeTracker {
+
+  /** Keys of passes that would not change program */
+  private final Set<String> quietPasses = new HashSet<String>();
+
+  /** Fingerprint of program after last pass */
+  private long fingerprint;
+
+  public ChangeTracker(Program program) {
+    program.invalidateFingerprints();
+    this.fingerprint = program.fingerprint();
+  }
+
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return true if running pass now would not change program
+   */
+  public boolean isQuiet(OptimizerPass pass) {
+    return !(pass instanceof StatefulPass) &&
+           quietPasses.contains(passKey(pass));
+  }
+
+  /**
+   * Update state after running pass
+   * @param program
+   * @param pass
+   * @return true if pass changed program
+   */
+  public boolean passRan(Program program, OptimizerPass pass) {
+    if (!(pass instanceof FunctionOptimizerPass)) {
+      // Function passes invalidate fingerprints of any functions they
+      // modify, but other passes could have modified anything
+      program.invalidateFingerprints();
+    }
+
+    long newFingerprint = program.fingerprint();
+    boolean changed = newFingerprint != fingerprint;
+    fingerprint = newFingerprint;
+
+    if (changed) {
+      quietPasses.clear();
+    } else if (!(pass instanceof StatefulPass)) {
+      quietPasses.add(passKey(pass));
+    }
+    return changed;
+  }
+
+  private static String passKey(OptimizerPass pass) {
+    if (pass instanceof FunctionOptimizerPass) {
+      return ((FunctionOptimizerPass)pass).passKey();
+    } else {
+      return pass.getPassName();
+    }
+  }
+}
@@ -36,6 +36,7 @@ import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmChange;
 import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmRequest;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 
@@ -56,7 +57,7 @@ public class DataflowOpInline extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) throws UserException {
+  public void optimize(Logger logger, Program program, Function f) throws UserException {
     HierarchicalSet<Var> waitedFor = new HierarchicalSet<Var>();
     waitedFor.addAll(WaitVar.asVarList(f.blockingInputs()));
     
@@ -16,8 +16,9 @@
 package exm.stc.ic.opt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -25,9 +26,6 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -38,6 +36,7 @@ import exm.stc.ic.ICUtil;
 import exm.stc.ic.componentaliases.Component;
 import exm.stc.ic.componentaliases.ComponentAlias;
 import exm.stc.ic.componentaliases.ComponentGraph;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -47,8 +46,9 @@ import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.Opcode;
+import exm.stc.ic.tree.VarIndex;
 
-public class DeadCodeEliminator implements OptimizerPass {
+public class DeadCodeEliminator extends FunctionOptimizerPass {
 
   @Override
   public String getPassName() {
@@ -61,10 +61,8 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program program) throws UserException {
-    for (Function f: program.functions()) {
-      eliminate(logger, f, program.globalVars());
-    }
+  public void optimize(Logger logger, Program program, Function f) {
+    eliminate(logger, f, program.globalVars());
   }
 
   /**
@@ -83,6 +81,10 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param globalVars
    */
   public static void eliminate(Logger logger, Function f, GlobalVars globalVars) {
+    // Vars removed in one iteration aren't seen in later iterations, so
+    // the same numbering can be reused
+    VarIndex index = f.buildVarIndex();
+
     boolean converged = false;
     boolean changed = false;
     while (!converged) {
@@ -91,7 +93,7 @@ public class DeadCodeEliminator implements OptimizerPass {
        * which can allow more variables to be removed.  So we should just
        * iterate until no more changes were made
        */
-      boolean changeThisIter = eliminateIter(logger, f, globalVars);
+      boolean changeThisIter = eliminateIter(logger, f, globalVars, index);
       converged = !changeThisIter;
       changed = changed || changeThisIter;
     }
@@ -106,16 +108,17 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param logger
    * @param f
    * @param globalVars
+   * @param index numbering of vars, used for all sets of vars
    * @return true if changes made
    */
   private static boolean eliminateIter(Logger logger, Function f,
-                                        GlobalVars globalVars) {
+                          GlobalVars globalVars, VarIndex index) {
     /* All vars defined in function blocks that could possibly be eliminated */
-    HashSet<Var> removeCandidates = new HashSet<Var>();
+    BitSet removeCandidates = new BitSet(index.size());
 
     /* Set of vars that are definitely required */
-    HashSet<Var> needed = new HashSet<Var>();
-    needed.addAll(globalVars.variables());
+    BitSet needed = new BitSet(index.size());
+    index.setAll(needed, globalVars.variables());
 
     /* List of vars that were written.  Need to ensure that all variables
      * that are keys in writeEffect are tracked. */
@@ -124,19 +127,21 @@ public class DeadCodeEliminator implements OptimizerPass {
      * Graph of dependencies from vars to other vars. If edge exists v1 -> v2
      * this means that if v1 is required, then v2 is required
      */
-    ListMultimap<Var, Var> dependencyGraph = ArrayListMultimap.create();
+    DepGraph dependencyGraph = new DepGraph(index.size());
 
     /* Track components so that we know if a write from A may flow to B*/
     ComponentGraph components = new ComponentGraph();
 
-    walkFunction(logger, f, removeCandidates, needed, dependencyGraph,
-                 modifiedComponents, components);
+    walkFunction(logger, f, index, removeCandidates, needed,
+                 dependencyGraph, modifiedComponents, components);
 
     if (logger.isTraceEnabled()) {
       logger.trace("Dead code elimination in function " + f.id() + "\n" +
-                   "removal candidates: " + removeCandidates + "\n" +
-                   "definitely needed: "+ needed + "\n" +
-                   "dependencies: \n" + printDepGraph(dependencyGraph, 4) +
+                   "removal candidates: " + index.toList(removeCandidates) +
+                   "\n" +
+                   "definitely needed: "+ index.toList(needed) + "\n" +
+                   "dependencies: \n" +
+                   printDepGraph(index, dependencyGraph, 4) +
                    "modifiedComponents: " + modifiedComponents + "\n" +
                    "components: \n" + components);
     }
@@ -153,53 +158,110 @@ public class DeadCodeEliminator implements OptimizerPass {
         logger.trace("Modified var " + written + " potential aliases: " +
                       potentialAliases);
       }
+      int writtenIx = index.index(written.var);
       for (Var maybeAffected: potentialAliases) {
         if (logger.isTraceEnabled()) {
           logger.trace("Add transitive dep " + maybeAffected +
                         " => " + written);
         }
         // Need to keep var that we wrote the affected var through
-        dependencyGraph.put(maybeAffected, written.var);
+        dependencyGraph.add(index.index(maybeAffected), writtenIx);
       }
     }
 
     if (logger.isTraceEnabled())
       logger.trace("dependencies after component updates: \n" +
-                   printDepGraph(dependencyGraph, 4));
+                   printDepGraph(index, dependencyGraph, 4));
     /*
      * Expand set of needed based on dependency graph
      */
-    StackLite<Var> workStack = new StackLite<Var>();
-    workStack.addAll(needed);
-
-    while (!workStack.isEmpty()) {
-      Var neededVar = workStack.pop();
-      // This loop converges as dependencyGraph is taken apart
-      List<Var> deps = dependencyGraph.removeAll(neededVar);
-      if (deps != null) {
-        needed.addAll(deps);
-        workStack.addAll(deps);
+    BitSet work = (BitSet)needed.clone();
+    for (int v = work.nextSetBit(0); v >= 0; v = work.nextSetBit(0)) {
+      work.clear(v);
+      // Each var is only added to work set once, so this converges
+      for (int e = dependencyGraph.firstEdge(v); e != 0;
+           e = dependencyGraph.nextEdge(e)) {
+        int dep = dependencyGraph.target(e);
+        if (!needed.get(dep)) {
+          needed.set(dep);
+          work.set(dep);
+        }
       }
     }
 
-    removeCandidates.removeAll(needed);
+    removeCandidates.andNot(needed);
 
     if (logger.isDebugEnabled()) {
-      logger.debug("Final variables to be eliminated: " + removeCandidates);
+      logger.debug("Final variables to be eliminated: " +
+                   index.toList(removeCandidates));
     }
     if (removeCandidates.isEmpty()) {
       return false;
     } else {
-      f.mainBlock().removeVars(removeCandidates);
+      f.mainBlock().removeVars(index.toSet(removeCandidates));
       return true;
     }
   }
 
+  /**
+   * Graph of dependencies between var indices.  Edges are stored as
+   * linked lists in flat arrays so that adding an edge doesn't allocate.
+   * Edges are numbered from 1, so that 0 can terminate lists.
+   */
+  private static class DepGraph {
+    /** First edge from each var, or 0 if none */
+    private int[] first;
+    private int[] next = new int[64];
+    private int[] target = new int[64];
+    private int edgeCount = 0;
+
+    DepGraph(int vars) {
+      this.first = new int[Math.max(vars, 16)];
+    }
+
+    void add(int from, int to) {
+      if (from >= first.length) {
+        first = Arrays.copyOf(first, Math.max(from + 1, first.length * 2));
+      }
+      int e = ++edgeCount;
+      if (e >= next.length) {
+        next = Arrays.copyOf(next, next.length * 2);
+        target = Arrays.copyOf(target, target.length * 2);
+      }
+      target[e] = to;
+      next[e] = first[from];
+      first[from] = e;
+    }
+
+    /**
+     * @return first edge from var, or 0 if none
+     */
+    int firstEdge(int from) {
+      return from < first.length ? first[from] : 0;
+    }
+
+    /**
+     * @return next edge from same var, or 0 if none
+     */
+    int nextEdge(int edge) {
+      return next[edge];
+    }
+
+    int target(int edge) {
+      return target[edge];
+    }
+
+    int maxVar() {
+      return first.length;
+    }
+  }
+
   /**
    * Collect information for dead code elimination
    *
    * @param logger
    * @param f
+   * @param index
    * @param removeCandidates list of vars declared in function that
    *                           could be removed
    * @param needed
@@ -207,21 +269,21 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param modifiedVars
    * @param components
    */
-  private static void walkFunction(Logger logger, Function f,
-      HashSet<Var> removeCandidates, HashSet<Var> needed,
-      ListMultimap<Var, Var> dependencyGraph, List<Component> modifiedComponents,
+  private static void walkFunction(Logger logger, Function f, VarIndex index,
+      BitSet removeCandidates, BitSet needed,
+      DepGraph dependencyGraph, List<Component> modifiedComponents,
       ComponentGraph components) {
     StackLite<Block> workStack = new StackLite<Block>();
     workStack.push(f.mainBlock());
 
-    needed.addAll(f.getOutputList());
+    index.setAll(needed, f.getOutputList());
 
     while (!workStack.isEmpty()) {
       Block block = workStack.pop();
 
-      walkBlockVars(block, removeCandidates, dependencyGraph);
+      walkBlockVars(block, index, removeCandidates);
 
-      walkInstructions(logger, block, needed, dependencyGraph,
+      walkInstructions(logger, block, index, needed, dependencyGraph,
                        modifiedComponents, components);
 
       Iterator<Continuation> it = block.allComplexStatements().iterator();
@@ -231,7 +293,7 @@ public class DeadCodeEliminator implements OptimizerPass {
           it.remove();
         } else {
           // Add vars for continuation
-          needed.addAll(c.requiredVars(true));
+          index.setAll(needed, c.requiredVars(true));
 
           for (Block inner: c.getBlocks()) {
             workStack.push(inner);
@@ -242,14 +304,14 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkInstructions(Logger logger,
-      Block block, HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
+      Block block, VarIndex index, BitSet needed, DepGraph dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
     ListIterator<Statement> it = block.statementIterator();
     while (it.hasNext()) {
       Statement stmt = it.next();
       if (stmt.type() == StatementType.INSTRUCTION) {
-        walkInstruction(logger, stmt.instruction(), needed, dependencyGraph,
-                        modifiedComponents, components);
+        walkInstruction(logger, stmt.instruction(), index, needed,
+                        dependencyGraph, modifiedComponents, components);
       } else if (stmt.type() == StatementType.CONDITIONAL) {
         if (stmt.conditional().isNoop()) {
           it.remove();
@@ -259,14 +321,14 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkInstruction(Logger logger, Instruction inst,
-      HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
+      VarIndex index, BitSet needed, DepGraph dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
     // If it has side-effects, need all inputs and outputs
     if (inst.hasSideEffects()) {
-      needed.addAll(inst.getOutputs());
+      index.setAll(needed, inst.getOutputs());
       for (Arg input: inst.getInputs()) {
         if (input.isVar()) {
-          needed.add(input.getVar());
+          index.set(needed, input.getVar());
         }
       }
     } else {
@@ -282,7 +344,8 @@ public class DeadCodeEliminator implements OptimizerPass {
         // strongly connected component
         for (int i = 0; i < modOutputs.size(); i++) {
           int j = (i + 1) % modOutputs.size();
-          dependencyGraph.put(modOutputs.get(i), modOutputs.get(j));
+          dependencyGraph.add(index.index(modOutputs.get(i)),
+                              index.index(modOutputs.get(j)));
         }
       }
       if (modOutputs.size() > 0) {
@@ -291,14 +354,13 @@ public class DeadCodeEliminator implements OptimizerPass {
         Var out = modOutputs.get(0);
         for (Arg in: inputs) {
           if (in.isVar()) {
-            addOutputDep(logger, inst, dependencyGraph, components, out,
+            addOutputDep(logger, inst, index, dependencyGraph, out,
                          in.getVar());
           }
         }
 
         for (Var readOut: readOutputs) {
-          addOutputDep(logger, inst, dependencyGraph, components, out,
-                       readOut);
+          addOutputDep(logger, inst, index, dependencyGraph, out, readOut);
         }
       }
       // Writing mapped var can have side-effect, unless we're storing a
@@ -306,7 +368,7 @@ public class DeadCodeEliminator implements OptimizerPass {
       for (Var output: outputs) {
         if (output.isMapped() != Ternary.FALSE &&
             inst.op != Opcode.STORE_FILE) {
-          needed.add(output);
+          index.set(needed, output);
         }
       }
 
@@ -347,34 +409,45 @@ public class DeadCodeEliminator implements OptimizerPass {
     }
   }
 
-  private static void addOutputDep(Logger logger,
-      Instruction inst, ListMultimap<Var, Var> dependencyGraph,
-      ComponentGraph components, Var out, Var in) {
+  private static void addOutputDep(Logger logger, Instruction inst,
+      VarIndex index, DepGraph dependencyGraph, Var out, Var in) {
     if (logger.isTraceEnabled())
       logger.trace("Add dep " + out + " => " + in + " for inst " + inst);
-    dependencyGraph.put(out, in);
+    dependencyGraph.add(index.index(out), index.index(in));
   }
 
-  private static void walkBlockVars(Block block,
-      HashSet<Var> removeCandidates, ListMultimap<Var, Var> dependencyGraph) {
+  private static void walkBlockVars(Block block, VarIndex index,
+                                    BitSet removeCandidates) {
     for (Var v: block.variables()) {
       if (!v.storage().isGlobal()) {
-        removeCandidates.add(v);
+        index.set(removeCandidates, v);
       }
     }
   }
 
-  private static String printDepGraph(ListMultimap<Var, Var> dependencyGraph,
-                                      int indent) {
-    List<Var> keys = new ArrayList<Var>(dependencyGraph.keySet());
+  private static String printDepGraph(VarIndex index,
+                              DepGraph dependencyGraph, int indent) {
+    List<Var> keys = new ArrayList<Var>();
+    for (int v = 0; v < dependencyGraph.maxVar(); v++) {
+      if (dependencyGraph.firstEdge(v) != 0) {
+        keys.add(index.get(v));
+      }
+    }
     Collections.sort(keys);
     StringBuilder sb = new StringBuilder();
     for (Var key: keys) {
       for (int i = 0; i < indent; i++) {
         sb.append(' ');
       }
+      List<Var> deps = new ArrayList<Var>();
+      for (int e = dependencyGraph.firstEdge(index.indexOf(key)); e != 0;
+           e = dependencyGraph.nextEdge(e)) {
+        deps.add(index.get(dependencyGraph.target(e)));
+      }
+      // Edges are stored in reverse order
+      Collections.reverse(deps);
       sb.append(key.name() + " => [");
-      ICUtil.prettyPrintVarList(sb, dependencyGraph.get(key));
+      ICUtil.prettyPrintVarList(sb, deps);
       sb.append("]\n");
     }
 
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.ic.aliases.AliasTracker;
+import exm.stc.ic.componentaliases.Component;
+import exm.stc.ic.componentaliases.ComponentAlias;
+import exm.stc.ic.componentaliases.ComponentGraph;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Convert local scalar futures that don't escape the task they are
+ * declared in to local values.  Each future in the shared store costs
+ * a create, a store and a retrieve, plus reference counting, all of
+ * which are round trips to the data server, while a value is just a
+ * local variable in the generated code.
+ *
+ * A future escapes if it is used by anything other than a store or
+ * load in the same task, e.g. if it is passed to another task or
+ * function, waited on, or inserted into a data structure.  We also
+ * need the future to be assigned on all paths before each load, so
+ * that replacing the load with a read of the value is valid.
+ *
+ * This runs after the main optimization passes, since earlier passes
+ * rely on futures being single-assignment, and before variable
+ * passing and reference counting are added.
+ */
+public class DemoteLocalFutures extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Demote local futures";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_DEMOTE_LOCALS;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program, Function f)
+      throws UserException {
+    EscapeAnalysis analysis = new EscapeAnalysis();
+    analysis.walkBlock(f.mainBlock(), analysis.newTask(),
+                       new HashSet<Var>());
+
+    Map<Var, Var> demoted = new HashMap<Var, Var>();
+    Map<Block, List<Var>> removeDecls = new HashMap<Block, List<Var>>();
+    for (Map.Entry<Var, Block> e: analysis.declBlocks.entrySet()) {
+      Var future = e.getKey();
+      Block declBlock = e.getValue();
+      if (!analysis.canDemote(future)) {
+        continue;
+      }
+
+      Var value = OptUtil.createDerefTmp(declBlock, future);
+      demoted.put(future, value);
+
+      List<Var> blockVars = removeDecls.get(declBlock);
+      if (blockVars == null) {
+        blockVars = new ArrayList<Var>();
+        removeDecls.put(declBlock, blockVars);
+      }
+      blockVars.add(future);
+
+      if (logger.isTraceEnabled()) {
+        logger.trace("Demote " + future + " to " + value + " in " + f.id());
+      }
+    }
+
+    if (demoted.isEmpty()) {
+      return;
+    }
+
+    for (Map.Entry<Block, List<Var>> e: removeDecls.entrySet()) {
+      e.getKey().removeVarDeclarations(e.getValue());
+    }
+    replaceAccessesRec(f.mainBlock(), demoted);
+  }
+
+  /**
+   * Find candidate futures and record which escape
+   */
+  private static class EscapeAnalysis {
+
+    /**
+     * Block each candidate is declared in
+     */
+    final Map<Var, Block> declBlocks = new HashMap<Var, Block>();
+
+    /**
+     * Task each candidate is declared in
+     */
+    final Map<Var, Integer> declTasks = new HashMap<Var, Integer>();
+
+    final Set<Var> escaped = new HashSet<Var>();
+
+    /**
+     * Struct field aliases of variables
+     */
+    final AliasTracker aliases = new AliasTracker();
+
+    /**
+     * Structural relationships between variables, e.g. array members
+     */
+    final ComponentGraph components = new ComponentGraph();
+
+    private int nextTask = 0;
+
+    int newTask() {
+      return nextTask++;
+    }
+
+    /**
+     * @param block
+     * @param task id of task block runs in
+     * @param assigned candidates assigned on all paths to this point,
+     *                 updated with any assigned in block
+     */
+    void walkBlock(Block block, int task, Set<Var> assigned) {
+      for (Var v: block.variables()) {
+        if (isCandidate(v)) {
+          declBlocks.put(v, block);
+          declTasks.put(v, task);
+        }
+      }
+
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          visitInstruction(stmt.instruction(), task, assigned);
+        } else {
+          visitContinuation(stmt.conditional(), task, assigned);
+        }
+      }
+
+      for (Continuation c: block.getContinuations()) {
+        // Nothing runs after these in the block
+        visitContinuation(c, task, new HashSet<Var>(assigned));
+      }
+
+      for (CleanupAction cleanup: block.getCleanups()) {
+        escapeAll(cleanup.action());
+      }
+    }
+
+    private void visitContinuation(Continuation c, int task,
+                                   Set<Var> assigned) {
+      escaped.addAll(c.requiredVars(false));
+
+      int innerTask = c.isAsync() ? newTask() : task;
+      Set<Var> assignedAllPaths = null;
+      for (Block inner: c.getBlocks()) {
+        Set<Var> innerAssigned = new HashSet<Var>(assigned);
+        walkBlock(inner, innerTask, innerAssigned);
+        if (assignedAllPaths == null) {
+          assignedAllPaths = innerAssigned;
+        } else {
+          assignedAllPaths.retainAll(innerAssigned);
+        }
+      }
+
+      if (c.isExhaustiveSyncConditional() && assignedAllPaths != null) {
+        assigned.addAll(assignedAllPaths);
+      }
+    }
+
+    private void visitInstruction(Instruction inst, int task,
+                                  Set<Var> assigned) {
+      aliases.update(inst);
+      for (ComponentAlias componentAlias: inst.getComponentAliases()) {
+        components.addPotentialComponent(componentAlias);
+      }
+
+      if (inst.op == Opcode.STORE_SCALAR &&
+          declTasks.containsKey(inst.getOutput(0))) {
+        Var future = inst.getOutput(0);
+        if (declTasks.get(future) == task) {
+          assigned.add(future);
+        } else {
+          escaped.add(future);
+        }
+      } else if (inst.op == Opcode.LOAD_SCALAR &&
+          inst.getInput(0).isVar() &&
+          declTasks.containsKey(inst.getInput(0).getVar())) {
+        Var future = inst.getInput(0).getVar();
+        if (declTasks.get(future) != task || !assigned.contains(future)) {
+          escaped.add(future);
+        }
+      } else {
+        escapeAll(inst);
+      }
+    }
+
+    private void escapeAll(Instruction inst) {
+      escaped.addAll(inst.getOutputs());
+      for (Arg in: inst.getInputs()) {
+        if (in.isVar()) {
+          escaped.add(in.getVar());
+        }
+      }
+    }
+
+    boolean canDemote(Var future) {
+      if (escaped.contains(future)) {
+        return false;
+      }
+
+      // Check it isn't part of a larger structure
+      if (aliases.getCanonical(future).pathLength() > 0) {
+        return false;
+      }
+      for (Var alias: components.findPotentialAliases(
+                                  new Component(future, Arg.NONE))) {
+        if (!alias.equals(future)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static boolean isCandidate(Var v) {
+    if (v.storage() != Alloc.STACK && v.storage() != Alloc.TEMP) {
+      return false;
+    }
+    if (v.mappedDecl()) {
+      return false;
+    }
+    return Types.isScalarFuture(v) &&
+        (Types.isInt(v) || Types.isFloat(v) || Types.isBool(v) ||
+         Types.isString(v));
+  }
+
+  /**
+   * Replace loads and stores of demoted futures with value copies
+   */
+  private static void replaceAccessesRec(Block block, Map<Var, Var> demoted) {
+    ListIterator<Statement> it = block.statementIterator();
+    while (it.hasNext()) {
+      Statement stmt = it.next();
+      if (stmt.type() != StatementType.INSTRUCTION) {
+        continue;
+      }
+      Instruction inst = stmt.instruction();
+      if (inst.op == Opcode.STORE_SCALAR) {
+        Var value = demoted.get(inst.getOutput(0));
+        if (value != null) {
+          it.set(ICInstructions.valueSet(value, inst.getInput(0)));
+        }
+      } else if (inst.op == Opcode.LOAD_SCALAR &&
+                 inst.getInput(0).isVar()) {
+        Var value = demoted.get(inst.getInput(0).getVar());
+        if (value != null) {
+          it.set(ICInstructions.valueSet(inst.getOutput(0), value.asArg()));
+        }
+      }
+    }
+
+    for (Continuation c: block.allComplexStatements()) {
+      for (Block inner: c.getBlocks()) {
+        replaceAccessesRec(inner, demoted);
+      }
+    }
+  }
+}
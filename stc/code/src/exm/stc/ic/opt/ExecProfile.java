@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.lang.FnID;
+import exm.stc.tclbackend.TclNamer;
+
+/**
+ * Execution profile from an instrumented run of a previously compiled
+ * version of the program, used to guide optimization.  Turbine writes
+ * a profile file per worker when TURBINE_PROFILE is set.  The files to
+ * use are given by the stc.opt.profile setting, separated by the path
+ * separator, and their entries are summed.
+ *
+ * Each line of a file has the name of a Tcl proc, the number of times
+ * it was called and the total time in seconds it ran for, including
+ * procs it called.  For loop leaf procs, the count is the number of
+ * loop iterations.
+ *
+ * Procs are matched to functions and continuations in the IC by the
+ * names the Tcl backend generates for them.  The backend makes proc
+ * names unique by adding a numeric suffix, which can't be reliably
+ * mapped back to IC after the program has changed, so all procs that
+ * share a base name are combined.
+ */
+public class ExecProfile {
+
+  private static final ExecProfile EMPTY =
+                          new ExecProfile(new HashMap<String, Entry>());
+
+  /**
+   * Profile loaded from settings, and the files it was loaded from with
+   * their modification times, so that a rewritten profile is reloaded
+   */
+  private static ExecProfile current = null;
+  private static String currentFiles = null;
+  private static List<Long> currentModified = null;
+
+  private static class Entry {
+    long count = 0;
+    double seconds = 0.0;
+  }
+
+  /**
+   * Map from base proc name to entry
+   */
+  private final Map<String, Entry> entries;
+
+  private ExecProfile(Map<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Get profile for current settings, loading files if needed.  The
+   * optimizer gets the profile once per compilation and passes it to
+   * the passes that use it.
+   * @return profile, empty if none was provided
+   * @throws InvalidOptionException if a profile file is invalid
+   */
+  public static synchronized ExecProfile get()
+      throws InvalidOptionException {
+    String files = Settings.get(Settings.OPT_PROFILE);
+    if (files == null) {
+      files = "";
+    }
+    List<String> fileList = new ArrayList<String>();
+    List<Long> modified = new ArrayList<Long>();
+    for (String file: files.split(File.pathSeparator)) {
+      if (file.length() > 0) {
+        fileList.add(file);
+        modified.add(new File(file).lastModified());
+      }
+    }
+
+    if (current == null || !files.equals(currentFiles) ||
+        !modified.equals(currentModified)) {
+      if (fileList.isEmpty()) {
+        current = EMPTY;
+      } else {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (String file: fileList) {
+          loadFile(file, entries);
+        }
+        current = new ExecProfile(entries);
+        Logging.getSTCLogger().debug("Loaded profile with " +
+                          entries.size() + " entries from " + files);
+      }
+      currentFiles = files;
+      currentModified = modified;
+    }
+    return current;
+  }
+
+  private static void loadFile(String file, Map<String, Entry> entries)
+      throws InvalidOptionException {
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new FileReader(file));
+      int lineNum = 0;
+      String line;
+      while ((line = in.readLine()) != null) {
+        lineNum++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+
+        String toks[] = line.split("\\s+");
+        if (toks.length != 3) {
+          throw new InvalidOptionException("Expected proc, count and " +
+                      "seconds at " + file + ":" + lineNum + ": " + line);
+        }
+        Entry e = entries.get(baseName(toks[0]));
+        if (e == null) {
+          e = new Entry();
+          entries.put(baseName(toks[0]), e);
+        }
+        try {
+          e.count += Long.parseLong(toks[1]);
+          e.seconds += Double.parseDouble(toks[2]);
+        } catch (NumberFormatException ex) {
+          throw new InvalidOptionException("Invalid number at " + file +
+                                           ":" + lineNum + ": " + line);
+        }
+      }
+    } catch (IOException e) {
+      throw new InvalidOptionException("Could not read profile file " +
+                                       file + ": " + e.getMessage());
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove suffix added by backend to make proc name unique
+   */
+  private static String baseName(String procName) {
+    return procName.replaceFirst("-[0-9]+$", "");
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * @return number of times proc ran, 0 if not in profile
+   */
+  public long count(String procName) {
+    Entry e = entries.get(baseName(procName));
+    return e == null ? 0 : e.count;
+  }
+
+  /**
+   * @return average cost of running proc once, in cost model units,
+   *         or -1 if not in profile
+   */
+  public long avgCost(String procName, TaskCostModel costModel) {
+    Entry e = entries.get(baseName(procName));
+    if (e == null || e.count <= 0) {
+      return -1;
+    }
+    return costModel.secondsToCost(e.seconds / e.count);
+  }
+
+  /**
+   * @return name of proc for function
+   */
+  public static String functionProc(FnID id) {
+    return TclNamer.swiftFuncName(id);
+  }
+
+  /**
+   * @return name of proc that runs iterations of a split loop
+   */
+  public static String loopLeafProc(String loopName) {
+    return TclNamer.loopLeafProcName(loopName);
+  }
+}
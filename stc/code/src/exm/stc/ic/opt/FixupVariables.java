@@ -18,6 +18,7 @@ package exm.stc.ic.opt;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
@@ -588,7 +589,7 @@ public class FixupVariables implements OptimizerPass {
   }
 
   private static void removeGlobalImports(Block block) {
-    ListIterator<Var> varIt = block.variableIterator();
+    Iterator<Var> varIt = block.variableIterator();
     while (varIt.hasNext()) {
       Var v = varIt.next();
       if (v.defType().isGlobal()) {
@@ -44,6 +44,7 @@ import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.Counters;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
+import exm.stc.ic.opt.OptimizerPass.StatefulPass;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -60,7 +61,7 @@ import exm.stc.ic.tree.ICTree.RenameMode;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.Opcode;
 
-public class FunctionInline implements OptimizerPass {
+public class FunctionInline implements StatefulPass {
 
   private static int MAX_ITERS_PER_PASS = 10;
 
@@ -86,11 +87,19 @@ public class FunctionInline implements OptimizerPass {
    */
   private final long alwaysInlineThreshold;
 
-  public FunctionInline() {
+  /**
+   * Also always inline functions that are cheaper to run than to spawn
+   */
+  private final TaskCostModel costModel;
+  private final ExecProfile profile;
+
+  public FunctionInline(TaskCostModel costModel, ExecProfile profile) {
     inlineThreshold = Settings.getLongUnchecked(
         Settings.OPT_FUNCTION_INLINE_THRESHOLD);
     alwaysInlineThreshold = Settings.getLongUnchecked(
         Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD);
+    this.costModel = costModel;
+    this.profile = profile;
   }
 
   private static boolean isFunctionCall(Instruction inst) {
@@ -189,7 +198,8 @@ public class FunctionInline implements OptimizerPass {
         // Always inline functions that were only called once
         alwaysInline.add(f.id());
         inlineCandidates.putAll(f.id(), callLocs);
-      } else if (functionSize <= alwaysInlineThreshold &&
+      } else if ((functionSize <= alwaysInlineThreshold ||
+                  cheapToInline(f)) &&
           callLocs.size() * functionSize  <= inlineThreshold) {
         inlineCandidates.putAll(f.id(), callLocs);
         if (!functionCalls.containsKey(f.id())) {
@@ -204,6 +214,20 @@ public class FunctionInline implements OptimizerPass {
     return Pair.create(inlineCandidates, toRemove);
   }
 
+  /**
+   * @return true if function is cheaper to run than to spawn, going by
+   *          measured cost from profile if available, or else if its
+   *          estimated cost is within the cost model's inline limit
+   */
+  private boolean cheapToInline(Function f) {
+    long cost = profile.avgCost(ExecProfile.functionProc(f.id()),
+                                costModel);
+    if (cost >= 0) {
+      return cost <= costModel.spawnCost();
+    }
+    return costModel.cheapToInline(costModel.blockCost(f.mainBlock()));
+  }
+
   private ListMultimap<FnID, FnID> findCycleFree(
       ListMultimap<FnID, FnID> inlineCandidates,
           Set<FnID> toRemove) {
@@ -15,6 +15,7 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -32,6 +33,7 @@ import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.HierarchicalMap;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
@@ -54,7 +56,7 @@ import exm.stc.ic.tree.ICTree.Statement;
  *                                            output
  *
  */
-public class HoistLoops implements OptimizerPass {
+public class HoistLoops extends FunctionOptimizerPass {
 
   /**
    * If true, hoist array reads in such a way that could prevent
@@ -77,33 +79,31 @@ public class HoistLoops implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      HoistTracking global = new HoistTracking();
-      // Global constants already written
-      for (Var gv: prog.allGlobals()) {
-        if (gv.storage().isConst()) {
-          // Constants are pre-written
-          global.write(gv, false);
-        }
-        global.declare(gv);
+  public void optimize(Logger logger, Program prog, Function f) {
+    HoistTracking global = new HoistTracking();
+    // Global constants already written
+    for (Var gv: prog.allGlobals()) {
+      if (gv.storage().isConst()) {
+        // Constants are pre-written
+        global.write(gv, false);
       }
+      global.declare(gv);
+    }
 
-      // Set up map for top block of function
-      HoistTracking mainBlockState =
-          global.makeChild(f.mainBlock(), true, true,
-                           ExecContext.control(), 0, 0);
+    // Set up map for top block of function
+    HoistTracking mainBlockState =
+        global.makeChild(f.mainBlock(), true, true,
+                         ExecContext.control(), 0, 0);
 
-      // Inputs are written elsewhere
-      for (Var in: f.getInputList()) {
-        mainBlockState.write(in, false);
-        mainBlockState.declare(in);
-      }
-      for (Var out: f.getOutputList()) {
-        mainBlockState.declare(out);
-      }
-      hoistRec(logger, mainBlockState);
+    // Inputs are written elsewhere
+    for (Var in: f.getInputList()) {
+      mainBlockState.write(in, false);
+      mainBlockState.declare(in);
+    }
+    for (Var out: f.getOutputList()) {
+      mainBlockState.declare(out);
     }
+    hoistRec(logger, mainBlockState);
   }
 
   /**
@@ -645,7 +645,7 @@ public class HoistLoops implements OptimizerPass {
   private static void relocateVarDefsFromBlock(HoistTracking source,
       HoistTracking target, Instruction inst) {
     assert(source != target);
-    ListIterator<Var> varIt = source.block.variableIterator();
+    Iterator<Var> varIt = source.block.variableIterator();
     while (varIt.hasNext()) {
       Var def = varIt.next();
       for (Var out: inst.getOutputs()) {
@@ -28,11 +28,6 @@ import exm.stc.ic.tree.ICTree.Program;
 
 public class ICOptimizer {
 
-  /**
-   * If true, validate as frequently as possible
-   */
-  public static final boolean SUPER_DEBUG = true;
-
   /**
    * Optimize the program and return a new one
    *
@@ -51,11 +46,33 @@ public class ICOptimizer {
 
     long nIterations = Settings.getLongUnchecked(Settings.OPT_MAX_ITERATIONS);
 
-    boolean debug = Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG);
+    // Load cost model and profile once up front to report any problems
+    TaskCostModel costModel = TaskCostModel.get();
+    ExecProfile profile = ExecProfile.get();
+
+    Validate.Mode validation = Validate.Mode.fromSettings();
+    // Extra whole-program validation at points in pipeline.  Only done
+    // in exhaustive mode, since it is too slow for large programs.
+    boolean debug = validation == Validate.Mode.EXHAUSTIVE &&
+                    Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG);
 
-    preprocess(icOutput, logger, debug, prog);
-    iterate(icOutput, logger, prog, debug, nIterations);
-    postprocess(icOutput, logger, debug, prog, nIterations);
+    ParallelOptimizer parallel = null;
+    if (Settings.getBooleanUnchecked(Settings.OPT_PARALLEL)) {
+      parallel = new ParallelOptimizer((int)Settings.getLongUnchecked(
+                                        Settings.OPT_PARALLEL_THREADS));
+    }
+
+    try {
+      preprocess(icOutput, logger, debug, prog, parallel);
+      iterate(icOutput, logger, prog, debug, validation, nIterations,
+              costModel, profile, parallel);
+      postprocess(icOutput, logger, validation, prog, nIterations,
+                  costModel, profile, parallel);
+    } finally {
+      if (parallel != null) {
+        parallel.shutdown();
+      }
+    }
 
     if (logIC) {
       prog.log(icOutput, "Final optimized IC");
@@ -69,11 +86,13 @@ public class ICOptimizer {
    * @param logger
    * @param debug
    * @param program
+   * @param parallel executor for function passes, or null to run serially
    * @throws Exception
    */
   private static void preprocess(PrintStream icOutput, Logger logger,
-                         boolean debug, Program program) throws UserException {
-    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput);
+                         boolean debug, Program program,
+                         ParallelOptimizer parallel) throws UserException {
+    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput, parallel);
 
     // Cut down size of IR right away
     preprocess.addPass(new PruneFunctions());
@@ -94,22 +113,40 @@ public class ICOptimizer {
    * @param logger
    * @param prog
    * @param debug
+   * @param validation how much to validate after each pass
    * @param iteration
    * @param nIterations
+   * @param costModel cost model for passes that estimate task cost
+   * @param profile execution profile, empty if none
+   * @param parallel executor for function passes, or null to run serially
    * @throws Exception
    */
   private static void iterate(PrintStream icOutput, Logger logger,
-      Program prog, boolean debug, long nIterations) throws UserException {
+      Program prog, boolean debug, Validate.Mode validation, long nIterations,
+      TaskCostModel costModel, ExecProfile profile,
+      ParallelOptimizer parallel) throws UserException {
 
     // FunctionInline is stateful
-    FunctionInline inliner = new FunctionInline();
+    FunctionInline inliner = new FunctionInline(costModel, profile);
     boolean canReorder = true;
 
+    // Passes that would have no effect are skipped.  Once the program
+    // reaches a fixed point, we skip ahead to the next iteration that
+    // schedules a one-shot pass, since iterations in between do no work.
+    ChangeTracker tracker = null;
+    if (Settings.getBooleanUnchecked(Settings.OPT_TRACK_CHANGES)) {
+      tracker = new ChangeTracker(prog);
+    }
+    // Consecutive iterations without changes since last one-shot iteration
+    int quietIterations = 0;
+
     for (long iteration = 0; iteration < nIterations; iteration++) {
-      OptimizerPipeline pipe = new OptimizerPipeline(icOutput);
-      if (SUPER_DEBUG) {
-        pipe.setValidator(Validate.standardValidator());
+      if (isOneShotIteration(iteration, nIterations)) {
+        quietIterations = 0;
       }
+      OptimizerPipeline pipe = new OptimizerPipeline(icOutput, parallel);
+      pipe.setChangeTracker(tracker);
+      pipe.setValidator(Validate.standardValidator(), validation);
 
       // First prune and inline any functions
       if (iteration == nIterations / 2) {
@@ -128,8 +165,9 @@ public class ICOptimizer {
 
         // Try occasionally to unroll loops.  Don't do it on first iteration
         // so the code can be shrunk a little first
-        pipe.addPass(new LoopUnroller());
-        pipe.addPass(Validate.standardValidator());
+        pipe.addPass(new LoopUnroller(costModel));
+        if (debug)
+          pipe.addPass(Validate.standardValidator());
       }
 
       boolean lastHalf = iteration > nIterations * 2;
@@ -182,7 +220,7 @@ public class ICOptimizer {
       // Can only run this pass once. Do it near end so that
       // results can be cleaned up by forward dataflow
       if (iteration == nIterations - (nIterations / 4) - 1) {
-        pipe.addPass(new Pipeline());
+        pipe.addPass(new Pipeline(costModel, profile));
         if (debug)
           pipe.addPass(Validate.standardValidator());
       }
@@ -196,21 +234,70 @@ public class ICOptimizer {
       // Do merges near end since it can be detrimental to other optimizations
       boolean doWaitMerges = (iteration >= nIterations - (nIterations / 4) - 2)
                               && iteration % 2 == 0;
-      pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder));
+      pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder, costModel));
 
       if (debug)
         pipe.addPass(Validate.standardValidator());
 
-      pipe.runPipeline(logger, prog, iteration);
+      boolean changed = pipe.runPipeline(logger, prog, iteration);
+
+      if (changed) {
+        // Cleanup internal indices, etc.
+        prog.cleanup();
+        quietIterations = 0;
+      } else {
+        logger.debug("Iteration: " + iteration + " made no changes");
+        quietIterations++;
+        if (quietIterations >= FIXED_POINT_ITERATIONS) {
+          long next = nextOneShotIteration(iteration, nIterations);
+          logger.debug("Iteration: " + iteration + " reached fixed point, " +
+                       "skipping to iteration " + next);
+          iteration = next - 1;
+        }
+      }
+    }
+  }
+
+  /**
+   * Number of consecutive iterations without changes after which all
+   * passes that run every few iterations have run on the current program.
+   * Passes are scheduled on every second or third iteration, so any
+   * three consecutive iterations include all of them.
+   */
+  private static final int FIXED_POINT_ITERATIONS = 3;
+
+  /**
+   * @return true if iteration schedules passes that don't run on
+   *         neighbouring iterations, or changes arguments of passes.
+   *         Must be kept in sync with schedule in iterate().
+   */
+  private static boolean isOneShotIteration(long iteration,
+                                            long nIterations) {
+    return iteration == 3 ||                      // Inlining
+           iteration == nIterations / 2 ||        // DataflowOpInline, prune
+           iteration == nIterations - (nIterations / 4) - 2 || // Wait merges
+           iteration == nIterations - (nIterations / 4) - 1 || // Pipeline
+           iteration == nIterations - 2;          // Inlining, no reordering
+  }
 
-      // Cleanup internal indices, etc.
-      prog.cleanup();
+  /**
+   * @return first one-shot iteration after iteration, or nIterations if
+   *         there are no more
+   */
+  private static long nextOneShotIteration(long iteration, long nIterations) {
+    for (long i = iteration + 1; i < nIterations; i++) {
+      if (isOneShotIteration(i, nIterations)) {
+        return i;
+      }
     }
+    return nIterations;
   }
 
   private static void postprocess(PrintStream icOutput, Logger logger,
-      boolean debug, Program prog, long nIterations) throws UserException {
-    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput);
+      Validate.Mode validation, Program prog, long nIterations,
+      TaskCostModel costModel, ExecProfile profile,
+      ParallelOptimizer parallel) throws UserException {
+    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput, parallel);
 
     // Final dead code elimination to clean up any remaining dead code
     // (from last iteration or constant sharing)
@@ -219,6 +306,14 @@ public class ICOptimizer {
     // Final pruning to remove unused functions
     postprocess.addPass(new PruneFunctions());
 
+    // Convert futures to values once passes relying on single
+    // assignment are done
+    postprocess.addPass(new DemoteLocalFutures());
+
+    // Loop bodies are now final, so we can estimate their cost
+    postprocess.addPass(new LoopSplitDegrees(costModel, profile));
+    postprocess.addPass(new ProfilePriorities(costModel, profile));
+
     // Add in all the variable passing annotations now that instructions,
     // continuations and variables are fixed
     postprocess.addPass(new FixupVariables());
@@ -228,7 +323,8 @@ public class ICOptimizer {
     // workaround to make sure that passing annotations are still correct
     postprocess.addPass(new FixupVariables());
 
-    postprocess.addPass(Validate.finalValidator());
+    if (validation != Validate.Mode.OFF)
+      postprocess.addPass(Validate.finalValidator());
     postprocess.runPipeline(logger, prog,  nIterations - 1);
   }
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Choose split degree and leaf degree of foreach loops that weren't
+ * annotated by the user.  The defaults from the frontend suit neither
+ * tiny loop bodies over many iterations, which are dominated by task
+ * overhead, nor expensive bodies over a few iterations, which don't
+ * get split enough to run in parallel.
+ *
+ * We estimate the cost of each iteration from the loop body with the
+ * task cost model, or use the measured cost if the loop is in the
+ * execution profile, then pick the leaf degree so that each leaf task
+ * does roughly the target amount of work, and the split degree from
+ * the number of leaf tasks if the iteration count is known.  Loops
+ * with few enough iterations aren't split at all.
+ *
+ * This runs after the main optimization passes once the loop bodies
+ * are final.
+ */
+public class LoopSplitDegrees extends FunctionOptimizerPass {
+
+  /**
+   * Minimum work per leaf, as a multiple of spawn cost, so that task
+   * overhead doesn't dominate
+   */
+  private static final long MIN_LEAF_SPAWNS = 4;
+
+  private static final int MIN_SPLIT_DEGREE = 2;
+  private static final int MAX_SPLIT_DEGREE = 64;
+
+  private final TaskCostModel costModel;
+  private final ExecProfile profile;
+
+  public LoopSplitDegrees(TaskCostModel costModel, ExecProfile profile) {
+    this.costModel = costModel;
+    this.profile = profile;
+  }
+
+  @Override
+  public String getPassName() {
+    return "Choose loop split degrees";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_AUTO_SPLIT;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program, Function f)
+      throws UserException {
+    // Checked here too since settings can be changed after validation
+    long workers = Settings.getPositiveLong(
+                              Settings.OPT_LOOP_TARGET_WORKERS);
+    chooseDegreesRec(logger, f, f.mainBlock(), costModel, profile, workers);
+  }
+
+  /**
+   * Choose degrees for inner loops first, since whether an inner loop
+   * is split affects the cost of the outer loop body
+   */
+  private static void chooseDegreesRec(Logger logger, Function f,
+      Block block, TaskCostModel costModel, ExecProfile profile,
+      long workers) {
+    for (Continuation c: block.allComplexStatements()) {
+      for (Block inner: c.getBlocks()) {
+        chooseDegreesRec(logger, f, inner, costModel, profile, workers);
+      }
+
+      if (c instanceof AbstractForeachLoop) {
+        AbstractForeachLoop loop = (AbstractForeachLoop)c;
+        if (loop.isAutoDegree() && loop.getSplitDegree() > 0) {
+          chooseDegrees(logger, f, loop, costModel, profile, workers);
+        }
+      }
+    }
+  }
+
+  private static void chooseDegrees(Logger logger, Function f,
+      AbstractForeachLoop loop, TaskCostModel costModel,
+      ExecProfile profile, long workers) {
+    long granularity = costModel.taskGranularity();
+    long iterCost = profile.avgCost(
+                ExecProfile.loopLeafProc(loop.loopName()), costModel);
+    if (iterCost < 0) {
+      iterCost = costModel.blockCost(loop.getLoopBody());
+    }
+    iterCost = Math.max(1, iterCost);
+    long iters = loop.constIterCount();
+
+    int splitDegree;
+    int leafDegree;
+    if (iters >= 0 &&
+        TaskCostModel.saturatedMul(iters, iterCost) <= granularity) {
+      // Whole loop fits in one task
+      splitDegree = -1;
+      leafDegree = loop.getLeafDegree();
+    } else {
+      long leaf = ceilDiv(granularity, iterCost);
+      if (iters >= 0) {
+        // Make enough leaves to keep workers busy, unless leaves
+        // would become too small to be worth spawning
+        long minLeaf = ceilDiv(MIN_LEAF_SPAWNS * costModel.spawnCost(),
+                               iterCost);
+        leaf = Math.min(leaf, Math.max(ceilDiv(iters, workers), minLeaf));
+      }
+      leafDegree = (int)Math.max(1, Math.min(Integer.MAX_VALUE, leaf));
+
+      if (iters >= 0) {
+        // Aim for a two-level tree of tasks above the leaves
+        long leaves = ceilDiv(iters, leafDegree);
+        long split = (long)Math.ceil(Math.sqrt(leaves));
+        splitDegree = (int)Math.max(MIN_SPLIT_DEGREE,
+                                    Math.min(MAX_SPLIT_DEGREE, split));
+      } else {
+        splitDegree = loop.getSplitDegree();
+      }
+    }
+
+    if (logger.isTraceEnabled()) {
+      logger.trace("Loop in " + f.id() + ": iteration cost " + iterCost +
+                   " iterations " + iters + " split degree " +
+                   loop.getSplitDegree() + "->" + splitDegree +
+                   " leaf degree " + loop.getLeafDegree() + "->" +
+                   leafDegree);
+    }
+    loop.setDegrees(splitDegree, leafDegree);
+  }
+
+  /**
+   * @param a non-negative
+   * @param b positive
+   */
+  private static long ceilDiv(long a, long b) {
+    // Avoid overflow of a + b - 1 for large a
+    return a / b + (a % b == 0 ? 0 : 1);
+  }
+}
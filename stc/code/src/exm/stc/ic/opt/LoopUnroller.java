@@ -22,12 +22,19 @@ import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
 import exm.stc.common.util.Pair;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
-public class LoopUnroller implements OptimizerPass {
+public class LoopUnroller extends FunctionOptimizerPass {
+  private final TaskCostModel costModel;
+
+  public LoopUnroller(TaskCostModel costModel) {
+    this.costModel = costModel;
+  }
+
   @Override
   public String getPassName() {
     return "Unroll loops";
@@ -39,19 +46,17 @@ public class LoopUnroller implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      logger.debug("looking to unroll loops in " + f.id());
-      if (unrollLoops(logger, prog, f, f.mainBlock())) {
-        // Unrolling can introduce duplicate vars
-        UniqueVarNames.makeVarNamesUnique(f, prog.allGlobals());
-        FlattenNested.flattenNestedBlocks(f.mainBlock());
-      }
+  public void optimize(Logger logger, Program prog, Function f) {
+    logger.debug("looking to unroll loops in " + f.id());
+    if (unrollLoops(logger, prog, f, f.mainBlock(), costModel)) {
+      // Unrolling can introduce duplicate vars
+      UniqueVarNames.makeVarNamesUnique(f, prog.allGlobals());
+      FlattenNested.flattenNestedBlocks(f.mainBlock());
     }
   }
 
   private static boolean unrollLoops(Logger logger, Program prog, Function f,
-      Block block) {
+      Block block, TaskCostModel costModel) {
     boolean unrolled = false;
 
     ListIterator<Continuation> it = block.continuationIterator();
@@ -59,11 +64,11 @@ public class LoopUnroller implements OptimizerPass {
       Continuation c = it.next();
       // Doing from bottom up gives us better estimate of inner loop size after expansion
       for (Block b: c.getBlocks()) {
-        boolean res = unrollLoops(logger, prog, f, b);
+        boolean res = unrollLoops(logger, prog, f, b, costModel);
         unrolled = unrolled || res;
       }
       Pair<Boolean, List<Continuation>> cRes;
-      cRes = c.tryUnroll(logger, f.id(), block);
+      cRes = c.tryUnroll(logger, f.id(), block, costModel);
       if (cRes.val1) {
         unrolled = true;
         for (Continuation newC: cRes.val2) {
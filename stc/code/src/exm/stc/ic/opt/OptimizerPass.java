@@ -17,6 +17,7 @@ package exm.stc.ic.opt;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
@@ -32,16 +33,84 @@ public interface OptimizerPass {
   public abstract String getConfigEnabledKey();
   public abstract void optimize(Logger logger, Program program)
                                               throws UserException;
-  
+
+  /**
+   * Marker for passes that keep state between runs, so may have an
+   * effect even if the program is unchanged since the last run.
+   * These are never skipped by {@link ChangeTracker}.
+   */
+  public static interface StatefulPass extends OptimizerPass {
+    // No methods
+  }
+
+  /**
+   * A pass that optimizes each function independently.  Implementations
+   * may read, but not modify, other functions and program-wide state,
+   * apart from creating global constants, so that the optimizer can
+   * process functions in parallel.  Any work that must be done once
+   * all functions are optimized can be done in
+   * {@link #finish(Logger, Program)}.
+   */
   public static abstract class FunctionOptimizerPass implements OptimizerPass {
 
     @Override
     public void optimize(Logger logger, Program program) throws UserException {
+      boolean track = Settings.getBooleanUnchecked(
+                                      Settings.OPT_TRACK_CHANGES);
+      long shared = track ? program.sharedFingerprint() : 0;
       for (Function f: program.functions()) {
-        optimize(logger, f);
+        if (!track) {
+          optimize(logger, program, f);
+        } else if (optimizeIfChanged(logger, program, f, shared)) {
+          // May have created constants or changed signature
+          shared = program.sharedFingerprint();
+        }
       }
+      finish(logger, program);
+    }
+
+    public abstract void optimize(Logger logger, Program program, Function f)
+                                                      throws UserException;
+
+    /**
+     * Optimize function, unless this pass previously had no effect on
+     * an identical function in an identical program context.
+     * @param sharedFingerprint current value of
+     *                {@link Program#sharedFingerprint()}
+     * @return true if function was modified
+     */
+    public boolean optimizeIfChanged(Logger logger, Program program,
+        Function f, long sharedFingerprint) throws UserException {
+      String key = passKey();
+      long before = f.fingerprint();
+      long input = before * 31 + sharedFingerprint;
+      if (f.passWasNoOp(key, input)) {
+        logger.trace("Skipping " + key + " on unchanged function " + f.id());
+        return false;
+      }
+
+      optimize(logger, program, f);
+
+      f.invalidateFingerprint();
+      boolean changed = f.fingerprint() != before;
+      f.recordPassResult(key, input, !changed);
+      return changed;
+    }
+
+    /**
+     * @return key identifying this pass and any options that affect
+     *         its behaviour, used to track which functions the pass
+     *         has already optimized.
+     */
+    public String passKey() {
+      return getPassName();
+    }
+
+    /**
+     * Called after all functions are optimized
+     */
+    public void finish(Logger logger, Program program) throws UserException {
+      // Nothing by default
     }
-    
-    public abstract void optimize(Logger logger, Function f) throws UserException;
   }
 }
@@ -17,52 +17,317 @@ package exm.stc.ic.opt;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompileProfile;
+import exm.stc.common.CompileProfile.PassRecord;
 import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.FnID;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
 
 public class OptimizerPipeline {
 
   public OptimizerPipeline(PrintStream icOutput) {
+    this(icOutput, null);
+  }
+
+  /**
+   * @param icOutput
+   * @param parallel if not null, used to run function passes in parallel
+   */
+  public OptimizerPipeline(PrintStream icOutput, ParallelOptimizer parallel) {
     this.icOutput = icOutput;
+    this.parallel = parallel;
   }
 
   private final List<OptimizerPass> passes = new ArrayList<OptimizerPass>();
   private final PrintStream icOutput;
+  private final ParallelOptimizer parallel;
   private Validate validator = null;
+  private Validate.Mode validateMode = Validate.Mode.OFF;
+  private ChangeTracker tracker = null;
+
+  /**
+   * Fingerprints as of last validation, for incremental validation
+   */
+  private long sharedFingerprint;
+  private Map<Function, Long> fingerprints = null;
 
   public void addPass(OptimizerPass pass) {
     passes.add(pass);
   }
 
-  public void setValidator(Validate validator) {
+  /**
+   * @param validator validator to run after each pass
+   * @param mode how much of program to validate after each pass
+   */
+  public void setValidator(Validate validator, Validate.Mode mode) {
     this.validator = validator;
+    this.validateMode = mode;
   }
 
-  public void runPipeline(Logger logger, Program program, long iteration) throws UserException {
+  /**
+   * @param tracker if not null, used to skip passes that would not
+   *                change the program
+   */
+  public void setChangeTracker(ChangeTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  /**
+   * @return true if program may have been changed
+   */
+  public boolean runPipeline(Logger logger, Program program, long iteration)
+      throws UserException {
+    CompileProfile profile = CompileProfile.current();
+    // Seed with iteration so that validation is reproducible
+    Random random = new Random(iteration);
+    Validate.Mode mode = validateMode;
+    if (mode == Validate.Mode.INCREMENTAL && tracker == null) {
+      // Cached fingerprints are only kept up to date by change tracking:
+      // recomputing fingerprints of whole program after every pass would
+      // cost as much as validating it
+      mode = Validate.Mode.SAMPLED;
+    }
+    if (validator != null && mode == Validate.Mode.INCREMENTAL) {
+      updateFingerprints(program);
+    }
+
+    boolean changed = tracker == null;
+    String lastPass = null;
     for (OptimizerPass pass: passes) {
       if (passEnabled(pass)) {
+        if (tracker != null && tracker.isQuiet(pass)) {
+          logger.debug("Iteration: " + iteration + " Skip pass: "
+                     + pass.getPassName() + " (no changes since last run)");
+          continue;
+        }
         logger.debug("Iteration: " + iteration + " Pass: "
                    + pass.getPassName());
-        pass.optimize(logger, program);
+        if (pass instanceof Validate) {
+          runValidator(logger, program, iteration, (Validate)pass,
+                       lastPass, profile);
+        } else {
+          runPass(logger, program, iteration, pass, profile);
+          lastPass = pass.getPassName();
+        }
+        if (tracker != null && tracker.passRan(program, pass)) {
+          changed = true;
+        }
         if (icOutput != null) {
           program.log(icOutput, "Iteration " + iteration + " IC after " +
                                  pass.getPassName());
         }
-        if (validator != null) {
-          validator.optimize(logger, program);
+        if (validator != null && !(pass instanceof Validate)) {
+          validateAfter(logger, program, iteration, mode, lastPass, random,
+                        profile);
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Run validator after pass according to validation mode
+   */
+  private void validateAfter(Logger logger, Program program, long iteration,
+      Validate.Mode mode, String pass, Random random,
+      CompileProfile profile) {
+    Validate v;
+    switch (mode) {
+      case OFF:
+        return;
+      case EXHAUSTIVE:
+        v = validator;
+        break;
+      case SAMPLED: {
+        long sampleSize = Settings.getLongUnchecked(
+                                      Settings.OPT_VALIDATE_SAMPLE);
+        List<Function> sample = new ArrayList<Function>(program.functions());
+        if (sample.size() <= sampleSize) {
+          v = validator;
+        } else {
+          Collections.shuffle(sample, random);
+          v = validator.restrictTo(sample.subList(0, (int)sampleSize));
+        }
+        break;
+      }
+      case INCREMENTAL: {
+        long prevShared = sharedFingerprint;
+        Map<Function, Long> prev = fingerprints;
+        updateFingerprints(program);
+        if (sharedFingerprint != prevShared) {
+          // Change to globals or signatures could affect any function
+          v = validator;
+        } else {
+          List<Function> modified = new ArrayList<Function>();
+          for (Entry<Function, Long> e: fingerprints.entrySet()) {
+            if (!e.getValue().equals(prev.get(e.getKey()))) {
+              modified.add(e.getKey());
+            }
+          }
+          if (modified.isEmpty()) {
+            return;
+          }
+          v = validator.restrictTo(modified);
         }
+        break;
       }
+      default:
+        throw new STCRuntimeError("Unknown validation mode " + mode);
+    }
+    runValidator(logger, program, iteration, v, pass, profile);
+  }
+
+  private void updateFingerprints(Program program) {
+    sharedFingerprint = program.sharedFingerprint();
+    fingerprints = new HashMap<Function, Long>();
+    for (Function f: program.functions()) {
+      fingerprints.put(f, f.fingerprint());
     }
   }
 
+  /**
+   * Run validator, identifying pass that invalidated IC if it fails
+   * @param pass name of last pass run, or null if none
+   */
+  private void runValidator(Logger logger, Program program, long iteration,
+      Validate v, String pass, CompileProfile profile) {
+    try {
+      runPass(logger, program, iteration, v, profile);
+    } catch (STCRuntimeError e) {
+      throw validationError(iteration, pass, e);
+    } catch (AssertionError e) {
+      throw validationError(iteration, pass, e);
+    } catch (UserException e) {
+      throw validationError(iteration, pass, e);
+    }
+  }
+
+  private static STCRuntimeError validationError(long iteration,
+                                    String pass, Throwable e) {
+    String where = pass == null ? "before first pass"
+                                : "after pass " + pass;
+    return new STCRuntimeError("Invalid IC " + where + " in iteration " +
+                               iteration + ": " + e.getMessage(), e);
+  }
+
+  /**
+   * Run pass, recording statistics if profiling
+   */
+  private void runPass(Logger logger, Program program, long iteration,
+        OptimizerPass pass, CompileProfile profile) throws UserException {
+    if (profile == null) {
+      runPass(logger, program, pass);
+      return;
+    }
+
+    ICSize before = new ICSize(logger, program);
+    long startAlloc = allocatedBytes();
+    long start = System.nanoTime();
+
+    runPass(logger, program, pass);
+
+    long nanos = System.nanoTime() - start;
+    long alloc = startAlloc < 0 ? -1 : allocatedBytes() - startAlloc;
+    ICSize after = new ICSize(logger, program);
+
+    profile.addPass(new PassRecord(iteration, pass.getPassName(), nanos,
+        alloc, before.functions, after.functions, after.changedSince(before),
+        before.instructions, after.instructions,
+        before.continuations, after.continuations));
+  }
+
+  private void runPass(Logger logger, Program program, OptimizerPass pass)
+      throws UserException {
+    if (parallel != null && pass instanceof FunctionOptimizerPass) {
+      parallel.optimize(logger, program, (FunctionOptimizerPass)pass);
+    } else {
+      pass.optimize(logger, program);
+    }
+  }
+
+  /**
+   * @return bytes allocated by this thread and any optimizer threads,
+   *         or -1 if unknown
+   */
+  private long allocatedBytes() {
+    long alloc = CompileProfile.threadAllocatedBytes();
+    if (alloc >= 0 && parallel != null) {
+      alloc += parallel.allocatedBytes();
+    }
+    return alloc;
+  }
+
   public boolean passEnabled(OptimizerPass pass) {
     String key = pass.getConfigEnabledKey();
     return key == null || Settings.getBooleanUnchecked(key);
   }
+
+  /**
+   * Size of IC at a point in time, with fingerprints of each function
+   * so that we can tell which functions changed.
+   */
+  private static class ICSize {
+    int functions = 0;
+    int instructions = 0;
+    int continuations = 0;
+    final Map<FnID, Integer> fingerprints = new HashMap<FnID, Integer>();
+
+    ICSize(Logger logger, Program program) {
+      TreeWalker counter = new TreeWalker() {
+        @Override
+        protected void visit(Instruction inst) {
+          instructions++;
+        }
+
+        @Override
+        protected void visit(Continuation cont) {
+          continuations++;
+        }
+      };
+
+      for (Function f: program.functions()) {
+        functions++;
+        TreeWalk.walk(logger, f, counter);
+
+        StringBuilder sb = new StringBuilder();
+        f.prettyPrint(sb);
+        fingerprints.put(f.id(), sb.toString().hashCode());
+      }
+    }
+
+    /**
+     * @return number of functions added, removed or modified
+     */
+    int changedSince(ICSize prev) {
+      int changed = 0;
+      for (Entry<FnID, Integer> e: fingerprints.entrySet()) {
+        if (!e.getValue().equals(prev.fingerprints.get(e.getKey()))) {
+          changed++;
+        }
+      }
+      for (FnID prevFunction: prev.fingerprints.keySet()) {
+        if (!fingerprints.containsKey(prevFunction)) {
+          changed++;
+        }
+      }
+      return changed;
+    }
+  }
 }
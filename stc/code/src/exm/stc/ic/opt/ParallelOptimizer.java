@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import exm.stc.common.CompileProfile;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.util.Pair;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.GlobalConstants;
+import exm.stc.ic.tree.ICTree.GlobalConstants.LocalConstants;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Run function-local optimizer passes on multiple functions at once.
+ *
+ * All functions are optimized before the pass returns, so the next pass
+ * (which may be a whole-program pass) sees the complete result.  Global
+ * constants created by each function are merged in function order
+ * afterwards, so that the output doesn't depend on scheduling.
+ */
+public class ParallelOptimizer {
+
+  private final ForkJoinPool pool;
+
+  /** Bytes allocated by optimizer tasks, if measurable */
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * @param threads number of threads, or 0 to use all processors
+   */
+  public ParallelOptimizer(int threads) {
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    this.pool = new ForkJoinPool(threads);
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * @return total bytes allocated by optimizer threads while running
+   *          passes, or 0 if not measurable
+   */
+  public long allocatedBytes() {
+    return allocated.get();
+  }
+
+  public void optimize(Logger logger, Program program,
+              FunctionOptimizerPass pass) throws UserException {
+    boolean track = Settings.getBooleanUnchecked(Settings.OPT_TRACK_CHANGES);
+    // Functions only see each others' signatures as of the start of the pass
+    Long shared = track ? program.sharedFingerprint() : null;
+
+    List<FunctionTask> tasks = new ArrayList<FunctionTask>();
+    for (Function f: program.functions()) {
+      tasks.add(new FunctionTask(logger, program, pass, f, shared,
+                Settings.getState(), Logging.getEmitted(), allocated));
+    }
+
+    for (FunctionTask task: tasks) {
+      pool.execute(task);
+    }
+
+    // Wait for all tasks before touching shared state
+    for (FunctionTask task: tasks) {
+      task.quietlyJoin();
+    }
+
+    GlobalConstants constants = program.constants();
+    for (FunctionTask task: tasks) {
+      if (task.error != null) {
+        rethrow(task.error);
+      }
+      constants.mergeLocal(task.localConsts, task.f);
+    }
+
+    pass.finish(logger, program);
+  }
+
+  private static void rethrow(Throwable t) throws UserException {
+    if (t instanceof UserException) {
+      throw (UserException)t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    } else if (t instanceof Error) {
+      throw (Error)t;
+    } else {
+      throw new STCRuntimeError("Unexpected exception in optimizer", t);
+    }
+  }
+
+  /**
+   * Optimize a single function on behalf of the compiling thread
+   */
+  private static class FunctionTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Logger logger;
+    private final Program program;
+    private final FunctionOptimizerPass pass;
+    private final Function f;
+    /** Shared program fingerprint if tracking changes, otherwise null */
+    private final Long sharedFingerprint;
+    private final Settings.State settings;
+    private final Set<Pair<Level, String>> emitted;
+    private final AtomicLong allocated;
+
+    private LocalConstants localConsts = null;
+    private Throwable error = null;
+
+    FunctionTask(Logger logger, Program program, FunctionOptimizerPass pass,
+                 Function f, Long sharedFingerprint, Settings.State settings,
+                 Set<Pair<Level, String>> emitted, AtomicLong allocated) {
+      this.logger = logger;
+      this.program = program;
+      this.pass = pass;
+      this.f = f;
+      this.sharedFingerprint = sharedFingerprint;
+      this.settings = settings;
+      this.emitted = emitted;
+      this.allocated = allocated;
+    }
+
+    @Override
+    protected void compute() {
+      Settings.State prevSettings = Settings.getState();
+      Set<Pair<Level, String>> prevEmitted = Logging.getEmitted();
+      Settings.setState(settings);
+      Logging.setEmitted(emitted);
+      GlobalConstants constants = program.constants();
+      constants.beginLocal();
+      long startAlloc = CompileProfile.threadAllocatedBytes();
+      try {
+        if (sharedFingerprint != null) {
+          pass.optimizeIfChanged(logger, program, f, sharedFingerprint);
+        } else {
+          pass.optimize(logger, program, f);
+        }
+      } catch (Throwable t) {
+        // Rethrown in compiling thread
+        error = t;
+      } finally {
+        localConsts = constants.endLocal();
+        if (startAlloc >= 0) {
+          allocated.addAndGet(
+              CompileProfile.threadAllocatedBytes() - startAlloc);
+        }
+        Settings.setState(prevSettings);
+        Logging.setEmitted(prevEmitted);
+      }
+    }
+  }
+}
@@ -26,10 +26,6 @@ import exm.stc.common.Settings;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.Location;
-import exm.stc.common.lang.Types;
-import exm.stc.common.lang.Types.StructType;
-import exm.stc.common.lang.Types.StructType.StructField;
-import exm.stc.common.lang.Types.Type;
 import exm.stc.common.lang.Var;
 import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
@@ -40,6 +36,7 @@ import exm.stc.ic.tree.ICContinuations.WaitStatement;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 
 /**
  * Compile-time pipelining optimization where we merge sequentially dependent
@@ -51,6 +48,14 @@ import exm.stc.ic.tree.ICTree.Function;
  * Running it multiple times can result in reduction in parallelism
  */
 public class Pipeline extends FunctionOptimizerPass {
+  private final TaskCostModel costModel;
+  private final ExecProfile profile;
+
+  public Pipeline(TaskCostModel costModel, ExecProfile profile) {
+    this.costModel = costModel;
+    this.profile = profile;
+  }
+
   @Override
   public String getPassName() {
     return "Compile time pipelining";
@@ -62,7 +67,7 @@ public class Pipeline extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) {
+  public void optimize(Logger logger, Program program, Function f) {
     boolean maybeInLoop = f.isAsync() ? false : true;
     pipelineTasks(logger, f, f.mainBlock(), ExecContext.control(), maybeInLoop);
   }
@@ -76,7 +81,7 @@ public class Pipeline extends FunctionOptimizerPass {
    * @param maybeInLoop if there's maybe a loop between the current
    *                    context and the root of the task we're in
    */
-  private static void pipelineTasks(Logger logger, Function f, Block curr,
+  private void pipelineTasks(Logger logger, Function f, Block curr,
       ExecContext cx, boolean maybeInLoop) {
     // Do a bottom-up tree walk
     for (Continuation cont: curr.allComplexStatements()) {
@@ -124,6 +129,9 @@ public class Pipeline extends FunctionOptimizerPass {
           // TODO: this is overly conservative, could check location of
           // this block
           compatible = false;
+        } else if (measuredLongRunning(w)) {
+          // Task runs long enough that it's worth load balancing
+          compatible = false;
         }
 
         if (compatible) {
@@ -142,10 +150,10 @@ public class Pipeline extends FunctionOptimizerPass {
     WaitStatement bestCand = candidates.get(0);
 
     if (candidates.size() > 1) {
-      int bestCost = heuristicCost(logger, f, curr, bestCand);
+      long bestCost = heuristicCost(logger, f, curr, bestCand);
       for (int i = 1; i < candidates.size(); i++) {
         WaitStatement cand = candidates.get(i);
-        int cost = heuristicCost(logger, f, curr, cand);
+        long cost = heuristicCost(logger, f, curr, cand);
         if (cost < bestCost) {
           bestCost = cost;
           bestCand = cand;
@@ -165,7 +173,16 @@ public class Pipeline extends FunctionOptimizerPass {
   }
 
 
-  private static int heuristicCost(Logger logger, Function f,
+  /**
+   * @return true if profile shows that wait runs for longer than the
+   *              target task granularity
+   */
+  private boolean measuredLongRunning(WaitStatement w) {
+    long cost = profile.avgCost(w.procName(), costModel);
+    return cost > costModel.taskGranularity();
+  }
+
+  private long heuristicCost(Logger logger, Function f,
                       Block curr, WaitStatement cand) {
 
     final Set<Var> varsReadByChildTask = new HashSet<Var>();
@@ -191,47 +208,10 @@ public class Pipeline extends FunctionOptimizerPass {
     // Only count variables that were passed in
     varsReadByChildTask.removeAll(varsDeclaredWithinChildTask);
 
-    int cost = 0;
+    long cost = 0;
     for (Var passed: varsReadByChildTask) {
-      cost += costOfPassing(logger, passed.type());
+      cost += costModel.passingCost(passed.type());
     }
     return cost;
   }
-
-  /**
-   * Heuristic score
-   *
-   * TODO: this is simplistic, since this doesn't incorporate whether the
-   * variable is produced or consumed by the child or the exact mechanism
-   * of data transfer
-   * @param logger
-   * @param t
-   * @return
-   */
-  private static int costOfPassing(Logger logger, Type t) {
-    if (Types.isFile(t)) {
-      // Files tend to be large
-      return 20;
-    } else if (Types.isBlob(t)) {
-      // Blobs also tend to be fairly large
-      return 5;
-    } else if (Types.isPrimFuture(t) || Types.isRef(t)) {
-      // Baseline cost is plain future: 1
-      return 1;
-    } else if (Types.isPrimValue(t)) {
-      return 0;
-    } else if (Types.isContainer(t)) {
-      return 1;
-    } else if (Types.isStruct(t)) {
-      StructType st = (StructType)t.getImplType();
-      int totalCost = 0;
-      for (StructField sf: st.fields()) {
-        totalCost += costOfPassing(logger, sf.type());
-      }
-      return totalCost;
-    } else {
-      logger.warn("Don't know how to calculate passing cost for type: " + t);
-      return 1;
-    }
-  }
 }
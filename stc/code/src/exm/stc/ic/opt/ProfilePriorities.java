@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Give higher priority to tasks that the execution profile shows run
+ * for a long time, so that they are started early instead of delaying
+ * the end of the run.  Priority increases by one for each factor of ten
+ * that the task's average run time exceeds the target task granularity.
+ *
+ * Only dispatched function calls and wait statements without a
+ * priority from the user are changed.
+ */
+public class ProfilePriorities extends FunctionOptimizerPass {
+
+  /**
+   * Tasks must run for this multiple of task granularity to get priority
+   */
+  private static final long MIN_GRANULARITY_MULTIPLE = 10;
+
+  private static final int MAX_PRIORITY = 10;
+
+  private final TaskCostModel costModel;
+  private final ExecProfile profile;
+
+  public ProfilePriorities(TaskCostModel costModel, ExecProfile profile) {
+    this.costModel = costModel;
+    this.profile = profile;
+  }
+
+  @Override
+  public String getPassName() {
+    return "Profile-guided priorities";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_PROFILE_PRIORITY;
+  }
+
+  @Override
+  public void optimize(final Logger logger, Program program, Function f)
+      throws UserException {
+    if (profile.isEmpty()) {
+      return;
+    }
+
+    TreeWalk.walk(logger, f, new TreeWalker() {
+      @Override
+      protected void visit(Instruction inst) {
+        if (inst.op == Opcode.CALL_CONTROL) {
+          FunctionCall call = (FunctionCall)inst;
+          setPriority(logger, profile, costModel,
+              ExecProfile.functionProc(call.functionID()),
+              call.getTaskProps());
+        }
+      }
+
+      @Override
+      protected void visit(Continuation cont) {
+        if (cont.getType() == ContinuationType.WAIT_STATEMENT) {
+          WaitStatement wait = (WaitStatement)cont;
+          if (wait.target().isDispatched()) {
+            setPriority(logger, profile, costModel, wait.procName(),
+                        wait.props());
+          }
+        }
+      }
+    });
+  }
+
+  private static void setPriority(Logger logger, ExecProfile profile,
+      TaskCostModel costModel, String procName, TaskProps props) {
+    if (props.containsKey(TaskPropKey.PRIORITY)) {
+      // Don't override user
+      return;
+    }
+
+    long cost = profile.avgCost(procName, costModel);
+    long granularity = costModel.taskGranularity();
+    if (cost < granularity * MIN_GRANULARITY_MULTIPLE) {
+      return;
+    }
+
+    int priority = (int)Math.min(MAX_PRIORITY,
+                      Math.floor(Math.log10((double)cost / granularity)));
+    logger.trace("Priority " + priority + " for " + procName +
+                 " with average cost " + cost);
+    props.put(TaskPropKey.PRIORITY, Arg.newInt(priority));
+  }
+}
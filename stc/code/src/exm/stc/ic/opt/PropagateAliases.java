@@ -23,6 +23,7 @@ import exm.stc.ic.tree.ICContinuations.WaitStatement;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.Opcode;
 import exm.stc.ic.tree.TurbineOp;
@@ -46,7 +47,7 @@ public class PropagateAliases extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) throws UserException {
+  public void optimize(Logger logger, Program program, Function f) throws UserException {
     propAliasesRec(logger, f.mainBlock(), new AliasTracker(),
                    new HierarchicalSet<Var>());
   }
@@ -28,6 +28,7 @@ import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.Opcode;
@@ -50,7 +51,7 @@ public class StructBuild extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) throws UserException {
+  public void optimize(Logger logger, Program program, Function f) throws UserException {
     logger.trace("Struct build in " + f.id());
     structBuildRec(logger, f.mainBlock());
   }
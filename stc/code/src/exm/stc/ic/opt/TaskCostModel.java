@@ -0,0 +1,469 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Static estimate of the cost of running IC, shared by optimizer passes
+ * that decide how to divide work into tasks.  Costs are in abstract
+ * units, where a simple local operation costs about 1.
+ *
+ * The costs of task spawns, rules, subscriptions, data store operations,
+ * etc can be calibrated for a machine by providing a properties file
+ * with the stc.opt.cost-model setting.  Any costs not in the file keep
+ * their default values.
+ *
+ * The model also has limits on estimated cost for passes that had
+ * fixed heuristics before this model existed, e.g. inlining and wait
+ * coalescing.  Their defaults reproduce the fixed heuristics, so that
+ * output only changes if the limits are calibrated.
+ */
+public class TaskCostModel {
+
+  /** Simple local operation */
+  public static final String INSTRUCTION = "instruction";
+  /** Round trip to the data store, e.g. load or store of a future */
+  public static final String DATASTORE_OP = "datastore-op";
+  /** Subscribing to a future for a rule or wait */
+  public static final String SUBSCRIBE = "subscribe";
+  /** Expensive call executed in the current task */
+  public static final String LOCAL_CALL = "local-call";
+  /** Setting up a task that waits for data and runs locally */
+  public static final String RULE = "rule";
+  /** Spawning a task that is load balanced */
+  public static final String SPAWN = "spawn";
+  /** Assumed iteration count for loops without fixed bounds */
+  public static final String UNKNOWN_ITERATIONS = "unknown-iterations";
+  /** Passing data of different types to another task */
+  public static final String PASS_FUTURE = "pass-future";
+  public static final String PASS_CONTAINER = "pass-container";
+  public static final String PASS_BLOB = "pass-blob";
+  public static final String PASS_FILE = "pass-file";
+  /** Cost of a second of run time, for converting profile times */
+  public static final String SECOND = "second";
+  /**
+   * Functions estimated to cost at most this are inlined like functions
+   * below the always inline threshold.  Defaults to that threshold.
+   */
+  public static final String INLINE = "inline";
+  /**
+   * Loops with bodies estimated to cost more than this aren't unrolled,
+   * since loop overhead is insignificant.  Defaults to the unroll
+   * threshold for extra instructions.
+   */
+  public static final String UNROLL_BODY = "unroll-body";
+  /**
+   * Waits with bodies estimated to cost at most this can run in the
+   * current task instead of being load balanced.  No limit by default,
+   * leaving it to the opcode checks.
+   */
+  public static final String INLINE_WAIT = "inline-wait";
+
+  private static final Map<String, Long> DEFAULTS =
+                                      new LinkedHashMap<String, Long>();
+  static {
+    DEFAULTS.put(INSTRUCTION, 1L);
+    DEFAULTS.put(DATASTORE_OP, 2L);
+    DEFAULTS.put(SUBSCRIBE, 2L);
+    DEFAULTS.put(LOCAL_CALL, 50L);
+    DEFAULTS.put(RULE, 10L);
+    DEFAULTS.put(SPAWN, 20L);
+    DEFAULTS.put(UNKNOWN_ITERATIONS, 16L);
+    DEFAULTS.put(PASS_FUTURE, 1L);
+    DEFAULTS.put(PASS_CONTAINER, 1L);
+    // Blobs and files tend to be large
+    DEFAULTS.put(PASS_BLOB, 5L);
+    DEFAULTS.put(PASS_FILE, 20L);
+    DEFAULTS.put(SECOND, 1000000L);
+    DEFAULTS.put(INLINE_WAIT, Long.MAX_VALUE);
+  }
+
+  /**
+   * Model loaded from settings, and the settings and file modification
+   * time it was loaded with, so that a changed file is reloaded
+   */
+  private static TaskCostModel current = null;
+  private static String currentFile = null;
+  private static long currentModified = 0;
+  private static long currentGranularity = 0;
+  private static long currentInline = 0;
+  private static long currentUnrollBody = 0;
+
+  private final long instruction;
+  private final long datastoreOp;
+  private final long subscribe;
+  private final long localCall;
+  private final long rule;
+  private final long spawn;
+  private final long unknownIterations;
+  private final long passFuture;
+  private final long passContainer;
+  private final long passBlob;
+  private final long passFile;
+  private final long second;
+  private final long inline;
+  private final long unrollBody;
+  private final long inlineWait;
+
+  /**
+   * Target amount of work for a task
+   */
+  private final long taskGranularity;
+
+  private TaskCostModel(Map<String, Long> costs, long taskGranularity) {
+    this.instruction = costs.get(INSTRUCTION);
+    this.datastoreOp = costs.get(DATASTORE_OP);
+    this.subscribe = costs.get(SUBSCRIBE);
+    this.localCall = costs.get(LOCAL_CALL);
+    this.rule = costs.get(RULE);
+    this.spawn = costs.get(SPAWN);
+    this.unknownIterations = costs.get(UNKNOWN_ITERATIONS);
+    this.passFuture = costs.get(PASS_FUTURE);
+    this.passContainer = costs.get(PASS_CONTAINER);
+    this.passBlob = costs.get(PASS_BLOB);
+    this.passFile = costs.get(PASS_FILE);
+    this.second = costs.get(SECOND);
+    this.inline = costs.get(INLINE);
+    this.unrollBody = costs.get(UNROLL_BODY);
+    this.inlineWait = costs.get(INLINE_WAIT);
+    this.taskGranularity = taskGranularity;
+  }
+
+  /**
+   * Get model for current settings, loading calibration file if needed.
+   * The optimizer gets the model once per compilation and passes it to
+   * the passes that use it.
+   * @throws InvalidOptionException if calibration file is invalid
+   */
+  public static synchronized TaskCostModel get()
+      throws InvalidOptionException {
+    String file = Settings.get(Settings.OPT_COST_MODEL);
+    if (file == null) {
+      file = "";
+    }
+    long modified = file.length() > 0 ? new File(file).lastModified() : 0;
+    long granularity = Settings.getPositiveLong(
+                                  Settings.OPT_LOOP_TASK_GRANULARITY);
+    long inline = Settings.getLong(
+                        Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD);
+    long unrollBody = Settings.getLong(
+                        Settings.OPT_UNROLL_LOOP_THRESHOLD_INSTS);
+    if (current == null || !file.equals(currentFile) ||
+        modified != currentModified || granularity != currentGranularity ||
+        inline != currentInline || unrollBody != currentUnrollBody) {
+      Properties props = new Properties();
+      if (file.length() > 0) {
+        props = loadFile(file);
+      }
+      current = create(props, granularity, inline, unrollBody);
+      currentFile = file;
+      currentModified = modified;
+      currentGranularity = granularity;
+      currentInline = inline;
+      currentUnrollBody = unrollBody;
+    }
+    return current;
+  }
+
+  private static Properties loadFile(String file)
+      throws InvalidOptionException {
+    Properties props = new Properties();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      props.load(in);
+    } catch (IOException e) {
+      throw new InvalidOptionException("Could not read cost model file " +
+                                       file + ": " + e.getMessage());
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+    return props;
+  }
+
+  /**
+   * Create model from properties, using default for any missing costs
+   * @param inline default for {@link #INLINE}
+   * @param unrollBody default for {@link #UNROLL_BODY}
+   */
+  public static TaskCostModel create(Properties props,
+      long taskGranularity, long inline, long unrollBody)
+      throws InvalidOptionException {
+    Map<String, Long> costs = new LinkedHashMap<String, Long>(DEFAULTS);
+    costs.put(INLINE, inline);
+    costs.put(UNROLL_BODY, unrollBody);
+    for (String key: props.stringPropertyNames()) {
+      if (!costs.containsKey(key)) {
+        throw new InvalidOptionException("Unknown cost in cost model: " +
+                                         key);
+      }
+      String val = props.getProperty(key).trim();
+      long cost;
+      try {
+        cost = Long.parseLong(val);
+      } catch (NumberFormatException e) {
+        throw new InvalidOptionException("Invalid value for cost " + key +
+                                         ": " + val);
+      }
+      if (cost < 0) {
+        throw new InvalidOptionException("Cost " + key +
+                                         " must be non-negative: " + val);
+      }
+      costs.put(key, cost);
+    }
+
+    Logger logger = Logging.getSTCLogger();
+    if (logger.isDebugEnabled()) {
+      StringBuilder sb = new StringBuilder("Task cost model:");
+      for (Entry<String, Long> e: costs.entrySet()) {
+        sb.append(" " + e.getKey() + "=" + e.getValue());
+      }
+      logger.debug(sb.toString());
+    }
+    return new TaskCostModel(costs, taskGranularity);
+  }
+
+  public long spawnCost() {
+    return spawn;
+  }
+
+  /**
+   * Convert measured run time to cost
+   */
+  public long secondsToCost(double seconds) {
+    double cost = seconds * second;
+    return cost >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)cost;
+  }
+
+  /**
+   * @return target amount of work for a task.  Work less than this
+   *        isn't worth load balancing separately.
+   */
+  public long taskGranularity() {
+    return taskGranularity;
+  }
+
+  /**
+   * @return true if function estimated to cost this is cheap enough to
+   *        inline at every call site
+   */
+  public boolean cheapToInline(long cost) {
+    return cost <= inline;
+  }
+
+  /**
+   * @return true if loop body is expensive enough that unrolling won't
+   *        reduce overhead significantly
+   */
+  public boolean tooExpensiveToUnroll(Block loopBody) {
+    return blockCost(loopBody) > unrollBody;
+  }
+
+  /**
+   * @return true if wait body is cheap enough to run in the current task
+   *        instead of a separate load balanced task
+   */
+  public boolean cheapToRunInTask(Block waitBody) {
+    return blockCost(waitBody) <= inlineWait;
+  }
+
+  /**
+   * Estimate cost of running block in the current task.  Async work
+   * only counts the cost of spawning it.
+   */
+  public long blockCost(Block block) {
+    long cost = 0;
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        cost = saturatedAdd(cost, instructionCost(stmt.instruction()));
+      }
+    }
+
+    for (Continuation c: block.allComplexStatements()) {
+      cost = saturatedAdd(cost, continuationCost(c));
+    }
+    return cost;
+  }
+
+  /**
+   * Estimate cost of instruction in current task, based on where it
+   * executes and how many data store variables it accesses
+   */
+  public long instructionCost(Instruction inst) {
+    if (inst.op == Opcode.COMMENT) {
+      return 0;
+    }
+
+    ExecTarget mode = inst.execMode();
+    if (mode.isAsync()) {
+      // Subscribe to inputs, then spawn or run rule elsewhere
+      long cost = mode.isDispatched() ? spawn : rule;
+      return cost + subscribe * datastoreArgs(inst, false);
+    } else {
+      long cost = inst.isCheap() ? instruction : localCall;
+      return cost + datastoreOp * datastoreArgs(inst, true);
+    }
+  }
+
+  /**
+   * Estimate cost of continuation in current task
+   */
+  public long continuationCost(Continuation c) {
+    ExecTarget target = c.target();
+    if (target.isAsync()) {
+      long cost = target.isDispatched() ? spawn : rule;
+      return cost + subscribe * c.blockingVars(false).size();
+    }
+
+    switch (c.getType()) {
+    case IF_STATEMENT:
+    case SWITCH_STATEMENT: {
+      // Only one branch runs
+      long max = 0;
+      for (Block b: c.getBlocks()) {
+        max = Math.max(max, blockCost(b));
+      }
+      return saturatedAdd(instruction, max);
+    }
+    case FOREACH_LOOP:
+    case RANGE_LOOP:
+    case LOOP:
+      return saturatedMul(iterationCount(c), blocksCost(c));
+    default:
+      return blocksCost(c);
+    }
+  }
+
+  /**
+   * @return estimated iterations of loop, using default if unknown
+   */
+  public long iterationCount(Continuation loop) {
+    if (loop instanceof AbstractForeachLoop) {
+      long constIters = ((AbstractForeachLoop)loop).constIterCount();
+      if (constIters >= 0) {
+        return constIters;
+      }
+    }
+    return unknownIterations;
+  }
+
+  /**
+   * Cost of passing variable of type to another task
+   */
+  public long passingCost(Type t) {
+    if (Types.isFile(t)) {
+      return passFile;
+    } else if (Types.isBlob(t)) {
+      return passBlob;
+    } else if (Types.isPrimFuture(t) || Types.isRef(t)) {
+      return passFuture;
+    } else if (Types.isPrimValue(t)) {
+      return 0;
+    } else if (Types.isContainer(t)) {
+      return passContainer;
+    } else if (Types.isStruct(t)) {
+      StructType st = (StructType)t.getImplType();
+      long totalCost = 0;
+      for (StructField sf: st.fields()) {
+        totalCost += passingCost(sf.type());
+      }
+      return totalCost;
+    } else {
+      Logging.getSTCLogger().warn("Don't know how to calculate passing " +
+                                  "cost for type: " + t);
+      return passFuture;
+    }
+  }
+
+  private long blocksCost(Continuation c) {
+    long cost = 0;
+    for (Block b: c.getBlocks()) {
+      cost = saturatedAdd(cost, blockCost(b));
+    }
+    return cost;
+  }
+
+  /**
+   * @param includeOutputs if false, only count inputs
+   * @return number of instruction arguments stored in data store
+   */
+  private static int datastoreArgs(Instruction inst, boolean includeOutputs) {
+    int count = 0;
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar() && isDatastoreVar(in.getVar())) {
+        count++;
+      }
+    }
+    if (includeOutputs) {
+      for (Var out: inst.getOutputs()) {
+        if (isDatastoreVar(out)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static boolean isDatastoreVar(Var v) {
+    return v.storage() != Alloc.LOCAL;
+  }
+
+  public static long saturatedAdd(long a, long b) {
+    return Math.min(Long.MAX_VALUE - a, b) + a;
+  }
+
+  public static long saturatedMul(long a, long b) {
+    if (a != 0 && b > Long.MAX_VALUE / a) {
+      return Long.MAX_VALUE;
+    }
+    return a * b;
+  }
+}
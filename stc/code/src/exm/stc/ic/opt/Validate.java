@@ -15,6 +15,7 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -24,6 +25,7 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -32,6 +34,7 @@ import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.Semantics;
 import exm.stc.common.lang.Var;
 import exm.stc.common.util.HierarchicalSet;
+import exm.stc.ic.opt.FixupVariables.FixupVarMode;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -58,15 +61,42 @@ public class Validate implements OptimizerPass {
   private final boolean noNestedBlocks;
   private final boolean checkExecContext;
 
+  /** Functions to check, or null for all */
+  private final Collection<Function> functions;
+
+  /**
+   * How much validation to do between optimizer passes
+   */
+  public static enum Mode {
+    OFF,          // No validation
+    SAMPLED,      // Random subset of functions after each pass
+    INCREMENTAL,  // Functions modified by each pass
+    EXHAUSTIVE,   // Whole program after each pass
+    ;
+
+    public static Mode fromSettings() {
+      return valueOf(Settings.get(Settings.OPT_VALIDATE).toUpperCase());
+    }
+  }
 
   private Validate(boolean checkVarPassing,
                    boolean checkCleanups,
                    boolean noNestedBlocks,
-                   boolean checkExecContext) {
+                   boolean checkExecContext,
+                   Collection<Function> functions) {
     this.checkVarPassing = checkVarPassing;
     this.checkCleanups = checkCleanups;
     this.noNestedBlocks = noNestedBlocks;
     this.checkExecContext = checkExecContext;
+    this.functions = functions;
+  }
+
+  private Validate(boolean checkVarPassing,
+                   boolean checkCleanups,
+                   boolean noNestedBlocks,
+                   boolean checkExecContext) {
+    this(checkVarPassing, checkCleanups, noNestedBlocks, checkExecContext,
+         null);
   }
 
   public static Validate standardValidator() {
@@ -82,6 +112,15 @@ public class Validate implements OptimizerPass {
     return new Validate(false, false, false, true);
   }
 
+  /**
+   * @param functions
+   * @return validator with same checks that only checks given functions
+   */
+  public Validate restrictTo(Collection<Function> functions) {
+    return new Validate(checkVarPassing, checkCleanups, noNestedBlocks,
+                        checkExecContext, functions);
+  }
+
   @Override
   public String getPassName() {
     return "Validate";
@@ -94,21 +133,35 @@ public class Validate implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
-    if (checkVarPassing) {
-      // Check visibility of vars without modifying IC
-      FixupVariables.fixupProgram(logger, program, false);
+    if (functions == null) {
+      if (checkVarPassing) {
+        // Check visibility of vars without modifying IC
+        FixupVariables.fixupProgram(logger, program, false);
+      }
+      for (Function fn : program.functions()) {
+        checkFunction(logger, program, fn);
+      }
+    } else {
+      for (Function fn : functions) {
+        if (checkVarPassing) {
+          FixupVariables.fixupFunction(logger, program.allGlobals(), fn,
+                          new HashSet<Var>(), FixupVarMode.NO_UPDATE);
+        }
+        checkFunction(logger, program, fn);
+      }
     }
+  }
 
-    for (Function fn : program.functions()) {
-      checkParentLinks(logger, program, fn);
-      checkUniqueVarNames(logger, program.allGlobals(), fn);
-      InitVariables.checkVarInit(logger, fn);
-      if (checkExecContext) {
-        checkExecCx(logger, program, fn);
-      }
-      checkDuplicateRefs(logger, fn);
+  private void checkFunction(Logger logger, Program program, Function fn) {
+    checkParentLinks(logger, program, fn);
+    checkUniqueVarNames(logger, program.allGlobals(), fn);
+    InitVariables.checkVarInit(logger, fn);
+    if (checkExecContext) {
+      checkExecCx(logger, program, fn);
     }
+    checkDuplicateRefs(logger, fn);
   }
+
   /**
    * Check that var names are unique within each function, and
    * that all references to variable have same attributes
@@ -51,6 +51,7 @@ import exm.stc.common.util.Sets;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.opt.OptUtil.InstOrCont;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.BlockingVar;
@@ -173,15 +174,19 @@ import exm.stc.ic.tree.ICTree.StatementType;
  * Go to all subblocks and do the same
  *
  */
-public class WaitCoalescer implements OptimizerPass {
+public class WaitCoalescer extends FunctionOptimizerPass {
   // If true, merge continuations
   private final boolean doMerges;
   // If true, retain explicit waits even if removing them is valid
   private final boolean retainExplicit;
+  // Used to avoid running expensive waits without load balancing
+  private final TaskCostModel costModel;
 
-  public WaitCoalescer(boolean doMerges, boolean retainExplicit) {
+  public WaitCoalescer(boolean doMerges, boolean retainExplicit,
+                       TaskCostModel costModel) {
     this.doMerges = doMerges;
     this.retainExplicit = retainExplicit;
+    this.costModel = costModel;
   }
 
   @Override
@@ -189,17 +194,21 @@ public class WaitCoalescer implements OptimizerPass {
     return "Wait coalescing";
   }
 
+  @Override
+  public String passKey() {
+    return getPassName() + (doMerges ? " (merge)" : "") +
+                           (retainExplicit ? " (retain explicit)" : "");
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_WAIT_COALESCE;
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      logger.trace("Wait coalescer entering function " + f.id());
-      rearrangeWaits(logger, prog, f, f.mainBlock(), ExecContext.control());
-    }
+  public void optimize(Logger logger, Program prog, Function f) {
+    logger.trace("Wait coalescer entering function " + f.id());
+    rearrangeWaits(logger, prog, f, f.mainBlock(), ExecContext.control());
   }
 
   public boolean rearrangeWaits(Logger logger, Program prog, Function fn,
@@ -265,7 +274,8 @@ public class WaitCoalescer implements OptimizerPass {
       Function fn, ExecContext currContext,
       ExecContext innerContext, WaitStatement wait) {
     if ((currContext.equals(innerContext) &&
-        ProgressOpcodes.isCheap(wait.getBlock())) ||
+        ProgressOpcodes.isCheap(wait.getBlock()) &&
+        costModel.cheapToRunInTask(wait.getBlock())) ||
         (currContext.isAnyWorkContext() &&
          innerContext.isControlContext() &&
          canSwitchControlToWorker(logger, fn, wait))) {
@@ -308,7 +318,8 @@ public class WaitCoalescer implements OptimizerPass {
    */
   private boolean canSwitchControlToWorker(Logger logger,
       Function fn, WaitStatement wait) {
-    if (!ProgressOpcodes.isCheapWorker(wait.getBlock())) {
+    if (!ProgressOpcodes.isCheapWorker(wait.getBlock()) ||
+        !costModel.cheapToRunInTask(wait.getBlock())) {
       return false;
     }
 
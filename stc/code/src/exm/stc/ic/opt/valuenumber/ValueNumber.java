@@ -47,16 +47,16 @@ import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.WrapUtil;
 import exm.stc.ic.aliases.Alias;
-import exm.stc.ic.opt.ICOptimizer;
 import exm.stc.ic.opt.InitVariables;
 import exm.stc.ic.opt.InitVariables.InitState;
 import exm.stc.ic.opt.OptUtil;
 import exm.stc.ic.opt.OptUtil.OptVarCreator;
-import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.opt.ProgressOpcodes;
 import exm.stc.ic.opt.ProgressOpcodes.Category;
 import exm.stc.ic.opt.TreeWalk;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.Validate;
 import exm.stc.ic.opt.valuenumber.Congruences.OptUnsafeError;
 import exm.stc.ic.opt.valuenumber.ValLoc.IsAssign;
 import exm.stc.ic.tree.Conditionals.Conditional;
@@ -103,7 +103,7 @@ import exm.stc.ic.tree.TurbineOp;
  * of dead code, which can be cleaned up in a pass of the dead code eliminator.
  *
  */
-public class ValueNumber implements OptimizerPass {
+public class ValueNumber extends FunctionOptimizerPass {
 
   private Logger logger;
 
@@ -118,10 +118,23 @@ public class ValueNumber implements OptimizerPass {
    */
   private boolean finalizedVarEnabled;
 
+  /**
+   * True if we should check internal consistency of congruence classes
+   */
+  private final boolean validateCongruences;
+
+  /**
+   * True if waits should be lifted right after optimizing each function,
+   * rather than in {@link #finish(Logger, Program)}
+   */
+  private boolean liftWaitsImmediately = false;
+
   public ValueNumber(boolean reorderingAllowed) {
     this.reorderingAllowed = reorderingAllowed;
 
     finalizedVarEnabled = Settings.getBooleanUnchecked(Settings.OPT_FINALIZED_VAR);
+    validateCongruences =
+              Validate.Mode.fromSettings() == Validate.Mode.EXHAUSTIVE;
   }
 
   @Override
@@ -134,13 +147,49 @@ public class ValueNumber implements OptimizerPass {
     return Settings.OPT_VALUE_NUMBER;
   }
 
+  @Override
+  public String passKey() {
+    return getPassName() + (reorderingAllowed ? "" : " (no reordering)");
+  }
+
+  /**
+   * Lift waits after optimizing each function, so that the updated
+   * blocking inputs can be exploited in callers optimized later.
+   */
   @Override
   public void optimize(Logger logger, Program prog) throws UserException {
+    liftWaitsImmediately = true;
+    try {
+      super.optimize(logger, prog);
+    } finally {
+      liftWaitsImmediately = false;
+    }
+  }
+
+  /**
+   * Optimize a single function.  When functions are processed in parallel,
+   * lifting waits modifies blocking inputs that other functions can
+   * see, so is deferred to {@link #finish(Logger, Program)}.
+   */
+  @Override
+  public void optimize(Logger logger, Program prog, Function f) {
     this.logger = logger;
+    runPass(prog, f);
+    if (liftWaitsImmediately) {
+      liftWaitRec(logger, prog, f, f.mainBlock());
+    }
+  }
+
+  @Override
+  public void finish(Logger logger, Program prog) {
+    if (liftWaitsImmediately) {
+      return;
+    }
     for (Function f: prog.functions()) {
-      runPass(prog, f);
       liftWaitRec(logger, prog, f, f.mainBlock());
     }
+    // Function bodies and signatures may have changed
+    prog.invalidateFingerprints();
   }
 
   private void runPass(Program prog, Function f) {
@@ -1027,7 +1076,7 @@ public class ValueNumber implements OptimizerPass {
    * Do any validations of the state of things
    */
   private void validateState(GlobalConstants consts, Congruences state) {
-    if (ICOptimizer.SUPER_DEBUG) {
+    if (validateCongruences) {
       state.validate(consts);
     }
   }
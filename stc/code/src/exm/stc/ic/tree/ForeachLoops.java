@@ -34,6 +34,7 @@ import exm.stc.common.lang.Var.VarCount;
 import exm.stc.common.lang.Var.VarProvenance;
 import exm.stc.common.util.Pair;
 import exm.stc.ic.ICUtil;
+import exm.stc.ic.opt.TaskCostModel;
 import exm.stc.ic.refcount.RefCountsToPlace;
 import exm.stc.ic.tree.ICContinuations.AbstractLoop;
 import exm.stc.ic.tree.ICContinuations.BlockingVar;
@@ -63,6 +64,12 @@ public class ForeachLoops {
     protected int splitDegree;
     protected int leafDegree;
 
+    /**
+     * True if degrees are defaults that the optimizer can change,
+     * rather than from user annotations
+     */
+    protected boolean autoDegree = false;
+
     /** Increments that should happen before loop spawn.  Each
      * increment is multiplied by the number of loop iterations */
     protected final List<RefCount> startIncrements;
@@ -98,6 +105,37 @@ public class ForeachLoops {
       this.endDecrements = new ArrayList<RefCount>(endDecrements);
     }
 
+    public String loopName() {
+      return loopName;
+    }
+
+    public int getSplitDegree() {
+      return splitDegree;
+    }
+
+    public int getLeafDegree() {
+      return leafDegree;
+    }
+
+    public boolean isAutoDegree() {
+      return autoDegree;
+    }
+
+    public void setAutoDegree(boolean autoDegree) {
+      this.autoDegree = autoDegree;
+    }
+
+    /**
+     * Change degrees.  Caller is responsible for checking that
+     * disabling splitting is valid in the loop's context.
+     * @param splitDegree negative to disable splitting
+     */
+    public void setDegrees(int splitDegree, int leafDegree) {
+      assert(leafDegree > 0);
+      this.splitDegree = splitDegree;
+      this.leafDegree = leafDegree;
+    }
+
     public List<RefCount> getStartIncrements() {
       return Collections.unmodifiableList(startIncrements);
     }
@@ -252,10 +290,12 @@ public class ForeachLoops {
 
     @Override
     public ForeachLoop clone() {
-      return new ForeachLoop(this.loopBody.clone(), loopName,
+      ForeachLoop res = new ForeachLoop(this.loopBody.clone(), loopName,
         container, loopVar, loopCounterVar, splitDegree, leafDegree,
         containerClosed, passedVars, keepOpenVars, startIncrements,
         constStartIncrements, endDecrements, false);
+      res.autoDegree = autoDegree;
+      return res;
     }
 
     @Override
@@ -408,6 +448,7 @@ public class ForeachLoops {
       // annotation parameters should match to respect any
       // user settings
       return this.container.equals(o.container)
+          && this.containerClosed == o.containerClosed
           && this.splitDegree == o.splitDegree;
     }
 
@@ -424,6 +465,8 @@ public class ForeachLoops {
       }
       o.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
 
+      // Keep user-specified degrees from either loop
+      this.autoDegree = this.autoDegree && o.autoDegree;
       fuseIntoAbstract(o, insertAtTop);
     }
 
@@ -509,11 +552,13 @@ public class ForeachLoops {
       } else {
         newLoopBody = new Block(BlockType.RANGELOOP_BODY, null);
       }
-      return new RangeLoop(newLoopBody, loopName, loopVar, loopCounterVar,
-          start, end, increment,
+      RangeLoop res = new RangeLoop(newLoopBody, loopName, loopVar,
+          loopCounterVar, start, end, increment,
           passedVars, keepOpenVars, desiredUnroll, unrolled,
           splitDegree, leafDegree, startIncrements, constStartIncrements,
           endDecrements, !cloneLoopBody);
+      res.autoDegree = autoDegree;
+      return res;
     }
 
     @Override
@@ -724,7 +769,7 @@ public class ForeachLoops {
 
       long iterCount = constIterCount();
 
-      if (iterCount >= 0) {
+      if (iterCount >= 0 && !isAutoSplitEnabled()) {
         if (iterCount <= leafDegree) {
           // Don't need to split
           splitDegree = -1;
@@ -763,7 +808,7 @@ public class ForeachLoops {
                                   Pair.create(false, Collections.<Continuation>emptyList());
     @Override
     public Pair<Boolean, List<Continuation>> tryUnroll(Logger logger,
-        FnID function, Block outerBlock) {
+        FnID function, Block outerBlock, TaskCostModel costModel) {
       logger.trace("DesiredUnroll for " + loopName + ": " + desiredUnroll);
       boolean expandLoops = isExpandLoopsEnabled();
       boolean fullUnroll = isFullUnrollEnabled();
@@ -812,6 +857,13 @@ public class ForeachLoops {
           // Don't do extra unrolling unless we're just expanding a small loop
           return NO_UNROLL;
         }
+
+        if (costModel.tooExpensiveToUnroll(loopBody)) {
+          // Loop overhead is insignificant compared to body
+          logger.trace("Loop body too expensive to benefit from unrolling");
+          return NO_UNROLL;
+        }
+
         // Finally, maybe unroll a few iterations
         long threshold = getUnrollMaxExtraInsts(false);
         long unrollFactor = Math.min(getUnrollMaxIters(false),
@@ -824,6 +876,14 @@ public class ForeachLoops {
       return NO_UNROLL;
     }
 
+    /**
+     * @return true if the optimizer will choose degrees later
+     */
+    private boolean isAutoSplitEnabled() {
+      return autoDegree &&
+          Settings.getBooleanUnchecked(Settings.OPT_AUTO_SPLIT);
+    }
+
     private boolean isExpandLoopsEnabled() {
       return Settings.getBooleanUnchecked(Settings.OPT_EXPAND_LOOPS);
     }
@@ -981,6 +1041,8 @@ public class ForeachLoops {
         renames.put(o.loopCounterVar, Arg.newVar(this.loopCounterVar));
       o.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
 
+      // Keep user-specified degrees from either loop
+      this.autoDegree = this.autoDegree && o.autoDegree;
       this.fuseIntoAbstract(o, insertAtTop);
     }
 
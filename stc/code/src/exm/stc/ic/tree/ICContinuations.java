@@ -49,6 +49,7 @@ import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
+import exm.stc.ic.opt.TaskCostModel;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICInstructions.LoopBreak;
 import exm.stc.ic.tree.ICInstructions.LoopContinue;
@@ -316,11 +317,12 @@ public class ICContinuations {
      * @param logger
      * @param function
      * @param outerBlock
+     * @param costModel used to decide whether unrolling is worthwhile
      * @return true if change made, also any additional continuations to be
      *        added by caller to outerBlock
      */
     public Pair<Boolean, List<Continuation>> tryUnroll(Logger logger,
-                                FnID function, Block outerBlock) {
+            FnID function, Block outerBlock, TaskCostModel costModel) {
       // default: do nothing
       return Pair.create(false, Collections.<Continuation>emptyList());
     }
@@ -1360,6 +1362,14 @@ public class ICContinuations {
       return block;
     }
 
+    public String procName() {
+      return procName;
+    }
+
+    public TaskProps props() {
+      return props;
+    }
+
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
       gen.startWaitStatement(procName, WaitVar.asVarList(waitVars),
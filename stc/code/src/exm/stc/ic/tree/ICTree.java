@@ -23,7 +23,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -62,6 +62,8 @@ import exm.stc.common.lang.Var.DefType;
 import exm.stc.common.lang.Var.VarProvenance;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.GapList;
+import exm.stc.common.util.IndexedSet;
 import exm.stc.common.util.MultiCollection;
 import exm.stc.common.util.StackLite;
 import exm.stc.common.util.TwoWayMap;
@@ -94,6 +96,18 @@ public class ICTree {
 
   public static final String indent = ICUtil.indent;
 
+  /**
+   * 64-bit FNV-1a hash of text, used to fingerprint IC
+   */
+  private static long fingerprint(CharSequence text) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < text.length(); i++) {
+      hash ^= text.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
   public static class Program {
 
     private final GlobalConstants constants = new GlobalConstants();
@@ -334,6 +348,18 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder out) {
+      prettyPrintDeclarations(out);
+
+      for (Function f: functions) {
+        f.prettyPrint(out);
+        out.append("\n");
+      }
+    }
+
+    /**
+     * Print everything apart from functions
+     */
+    private void prettyPrintDeclarations(StringBuilder out) {
       for (RequiredPackage rp: required) {
         out.append("require " + rp.toString() + "\n");
       }
@@ -356,10 +382,45 @@ public class ICTree {
 
       globalVars.prettyPrint(out);
       out.append("\n");
+    }
 
+    /**
+     * Fingerprint of the parts of the program that are visible to all
+     * functions: declarations, global constants and variables, and
+     * function signatures.  Uses cached function fingerprints: see
+     * {@link Function#fingerprint()}.
+     * @return
+     */
+    public long sharedFingerprint() {
+      StringBuilder sb = new StringBuilder();
+      prettyPrintDeclarations(sb);
+      long hash = ICTree.fingerprint(sb);
       for (Function f: functions) {
-        f.prettyPrint(out);
-        out.append("\n");
+        hash = hash * 31 + f.signatureFingerprint();
+      }
+      return hash;
+    }
+
+    /**
+     * Fingerprint of entire program.  Uses cached function fingerprints:
+     * see {@link Function#fingerprint()}.
+     * @return
+     */
+    public long fingerprint() {
+      long hash = sharedFingerprint();
+      for (Function f: functions) {
+        hash = hash * 31 + f.fingerprint();
+      }
+      return hash;
+    }
+
+    /**
+     * Discard cached fingerprints of all functions.  Must be called after
+     * modifying functions other than through a function optimizer pass.
+     */
+    public void invalidateFingerprints() {
+      for (Function f: functions) {
+        f.invalidateFingerprint();
       }
     }
 
@@ -398,10 +459,37 @@ public class ICTree {
                     new TreeMap<Var, Arg>(), ArrayListMultimap.<Arg, Var>create());
     private final HashSet<String> usedNames = new HashSet<String>();
 
+    /**
+     * Constants created by the current thread while functions are being
+     * optimized in parallel.  Null outside of a parallel section.  The
+     * shared constants are only read during a parallel section, and the
+     * constants created are merged in afterwards with
+     * {@link #mergeLocal(LocalConstants, Function)}.
+     */
+    private final ThreadLocal<LocalConstants> local =
+                                  new ThreadLocal<LocalConstants>();
+
+    /**
+     * Constants created by one thread in a parallel section
+     */
+    public static class LocalConstants {
+      /** Keep in creation order so merge is deterministic */
+      private final Map<Var, Arg> created = new LinkedHashMap<Var, Arg>();
+      private final Map<Arg, Var> byValue = new HashMap<Arg, Var>();
+      private final Set<String> usedNames = new HashSet<String>();
+
+      private void add(Var var, Arg val) {
+        created.put(var, val);
+        byValue.put(val, var);
+        usedNames.add(var.name());
+      }
+    }
+
     public void add(Var var, Arg val) {
       assert(var.storage() == Alloc.GLOBAL_CONST);
       assert(var.defType() == DefType.GLOBAL_CONST);
       assert(var.type().getImplType().equals(val.futureType().getImplType()));
+      assert(local.get() == null) : "Adding constant in parallel section";
 
       Arg prevVal = globalConsts.put(var, val);
       assert(prevVal == null) :
@@ -425,37 +513,114 @@ public class ICTree {
     }
 
     private Var autoCreate(Arg val) {
+      LocalConstants localConsts = local.get();
       String origname = Var.generateGlobalConstName(val);
       String name = origname;
       int seq = 0;
-      while (usedNames.contains(name)) {
+      while (usedNames.contains(name) ||
+             (localConsts != null && localConsts.usedNames.contains(name))) {
         seq++;
         name = origname + "-" + seq;
       }
       Var var = new Var(val.futureType(), name, Alloc.GLOBAL_CONST,
                         DefType.GLOBAL_CONST, VarProvenance.optimizerTmp());
-      add(var, val);
+      if (localConsts != null) {
+        localConsts.add(var, val);
+      } else {
+        add(var, val);
+      }
       return var;
     }
 
+    /**
+     * Start a parallel section in the current thread: constants
+     * created by this thread are kept separate until merged.
+     */
+    public void beginLocal() {
+      assert(local.get() == null);
+      local.set(new LocalConstants());
+    }
+
+    /**
+     * End a parallel section in the current thread.
+     * @return constants created by this thread since
+     *         {@link #beginLocal()}
+     */
+    public LocalConstants endLocal() {
+      LocalConstants localConsts = local.get();
+      assert(localConsts != null);
+      local.remove();
+      return localConsts;
+    }
+
+    /**
+     * Merge constants created in a parallel section into the shared
+     * constants.  If another function already created a constant with
+     * the same value or name, references in the function are updated.
+     * Must be called outside of a parallel section.
+     * @param localConsts
+     * @param f function that created the constants
+     */
+    public void mergeLocal(LocalConstants localConsts, Function f) {
+      Map<Var, Arg> renames = new HashMap<Var, Arg>();
+      for (Entry<Var, Arg> e: localConsts.created.entrySet()) {
+        Var var = e.getKey();
+        Arg val = e.getValue();
+        Collection<Var> existing = lookupByValue(val);
+        if (!existing.isEmpty()) {
+          renames.put(var, Iterables.get(existing, 0).asArg());
+        } else if (usedNames.contains(var.name())) {
+          renames.put(var, autoCreate(val).asArg());
+        } else {
+          add(var, val);
+        }
+      }
+      if (!renames.isEmpty()) {
+        f.renameVars(renames, RenameMode.REPLACE_VAR, true);
+        f.invalidateFingerprint();
+      }
+    }
+
     public void remove(Var unused) {
       globalConsts.remove(unused);
     }
 
     public Collection<Var> lookupByValue(Arg val) {
-      return this.globalConsts.getByValue(val);
+      Collection<Var> result = this.globalConsts.getByValue(val);
+      LocalConstants localConsts = local.get();
+      if (result.isEmpty() && localConsts != null) {
+        Var localVar = localConsts.byValue.get(val);
+        if (localVar != null) {
+          return Collections.singletonList(localVar);
+        }
+      }
+      return result;
     }
 
     public Arg lookupByVar(Var var) {
-      return this.globalConsts.get(var);
-
+      Arg result = this.globalConsts.get(var);
+      LocalConstants localConsts = local.get();
+      if (result == null && localConsts != null) {
+        return localConsts.created.get(var);
+      }
+      return result;
     }
 
     public Map<Var, Arg> map() {
+      LocalConstants localConsts = local.get();
+      if (localConsts != null && !localConsts.created.isEmpty()) {
+        Map<Var, Arg> merged = new TreeMap<Var, Arg>(globalConsts);
+        merged.putAll(localConsts.created);
+        return Collections.unmodifiableMap(merged);
+      }
       return Collections.unmodifiableMap(globalConsts);
     }
 
     public Collection<Var> vars() {
+      LocalConstants localConsts = local.get();
+      if (localConsts != null && !localConsts.created.isEmpty()) {
+        return map().keySet();
+      }
       return globalConsts.keySet();
     }
 
@@ -482,7 +647,8 @@ public class ICTree {
    * Variables defined in a context
    */
   public static class Variables {
-    protected final ArrayList<Var> variables;
+    /** Declared variables in declaration order */
+    protected final IndexedSet<Var> variables;
 
     /** Initial reference counts for vars defined in block */
     protected final HashMap<Var, Arg> initReadRefcounts;
@@ -490,11 +656,11 @@ public class ICTree {
 
 
     public Variables() {
-      this (new ArrayList<Var>(), new HashMap<Var, Arg>(),
+      this (new IndexedSet<Var>(), new HashMap<Var, Arg>(),
                            new HashMap<Var, Arg>());
     }
 
-    private Variables(ArrayList<Var> variables, HashMap<Var, Arg> initReadRefcounts,
+    private Variables(IndexedSet<Var> variables, HashMap<Var, Arg> initReadRefcounts,
         HashMap<Var, Arg> initWriteRefcounts) {
       this.variables = variables;
       this.initReadRefcounts = initReadRefcounts;
@@ -503,7 +669,7 @@ public class ICTree {
 
     @Override
     public Variables clone() {
-      return new Variables(new ArrayList<Var>(variables),
+      return new Variables(new IndexedSet<Var>(variables),
           new HashMap<Var, Arg>(initReadRefcounts),
           new HashMap<Var, Arg>(initWriteRefcounts));
     }
@@ -513,36 +679,72 @@ public class ICTree {
     }
 
     public List<Var> variables() {
-      return Collections.unmodifiableList(variables);
+      return variables.asList();
     }
 
-    public ListIterator<Var> variableIterator() {
-      return variables.listIterator();
+    /**
+     * @return iterator over variables that supports removal
+     */
+    public Iterator<Var> variableIterator() {
+      return variables.iterator();
     }
 
     public void addVariable(Var var) {
-      variables.add(var);
+      addVariable(var, false);
     }
 
     public void addVariable(Var variable, boolean atTop) {
+      boolean added;
       if (atTop) {
-        this.variables.add(0, variable);
+        added = this.variables.addFirst(variable);
       } else {
-        this.variables.add(variable);
+        added = this.variables.add(variable);
       }
+      assert(added) : "Variable " + variable + " declared twice";
     }
 
     public void addAllVariables(List<Var> variables2) {
-      variables.addAll(variables2);
+      for (Var var: variables2) {
+        addVariable(var, false);
+      }
     }
 
     public void removeVariable(Var var) {
-      // Remove all
-      while(variables.remove(var));
+      variables.remove(var);
     }
 
-    public void removeAllVariables(Set<Var> vars) {
-      while(variables.removeAll(vars));
+    public void removeAllVariables(Collection<Var> vars) {
+      variables.removeAll(vars);
+    }
+
+    /**
+     * Replace variables in place, keeping declaration order.
+     * @param renames variables replaced with constants are removed
+     */
+    public void renameVariables(Map<Var, Arg> renames) {
+      Map<Var, Var> replacements = new HashMap<Var, Var>();
+      if (renames.size() < variables.size()) {
+        for (Map.Entry<Var, Arg> e: renames.entrySet()) {
+          if (variables.contains(e.getKey())) {
+            replacements.put(e.getKey(), replacementVar(e.getValue()));
+          }
+        }
+      } else {
+        for (Var var: variables) {
+          Arg replacement = renames.get(var);
+          if (replacement != null) {
+            replacements.put(var, replacementVar(replacement));
+          }
+        }
+      }
+      variables.replaceAll(replacements);
+    }
+
+    /**
+     * @return replacement var, or null if value replaced with constant
+     */
+    private static Var replacementVar(Arg replacement) {
+      return replacement.isVar() ? replacement.getVar() : null;
     }
 
     public Arg getInitReadRefcount(Var v) {
@@ -740,6 +942,20 @@ public class ICTree {
 
     private final HashSet<String> usedVarNames;
 
+    /**
+     * Cached fingerprints of function and of function signature.
+     * Null if not computed or if function may have changed since.
+     */
+    private Long fingerprint = null;
+    private long signatureFingerprint;
+
+    /**
+     * Fingerprints of function and shared program state for which an
+     * optimizer pass had no effect, keyed by pass
+     */
+    private final HashMap<String, Long> noOpPasses =
+                                      new HashMap<String, Long>();
+
     public Function(FnID id, List<Var> iList,
         List<Var> oList, ExecTarget mode) {
       this(id, iList, Collections.<WaitVar>emptyList(), oList,
@@ -850,7 +1066,74 @@ public class ICTree {
       logger.debug("Done generating function " + id);
     }
 
+    /**
+     * Structural fingerprint of function, based on printed IC.  The
+     * fingerprint is cached, so {@link #invalidateFingerprint()} must be
+     * called if the function is modified after this is called.
+     * @return
+     */
+    public long fingerprint() {
+      if (fingerprint == null) {
+        StringBuilder sb = new StringBuilder();
+        prettyPrintSignature(sb);
+        signatureFingerprint = ICTree.fingerprint(sb);
+        sb.append(" {\n");
+        mainBlock.prettyPrint(sb, indent);
+        sb.append("}\n");
+        fingerprint = ICTree.fingerprint(sb);
+      }
+      return fingerprint;
+    }
+
+    /**
+     * Fingerprint of function signature, cached as for
+     * {@link #fingerprint()}
+     * @return
+     */
+    public long signatureFingerprint() {
+      fingerprint();
+      return signatureFingerprint;
+    }
+
+    public void invalidateFingerprint() {
+      fingerprint = null;
+    }
+
+    /**
+     * @param passKey identifies pass and its options
+     * @param fingerprint fingerprint of function and shared state
+     * @return true if pass was previously run with same fingerprint
+     *          and did nothing
+     */
+    public boolean passWasNoOp(String passKey, long fingerprint) {
+      Long noOp = noOpPasses.get(passKey);
+      return noOp != null && noOp == fingerprint;
+    }
+
+    /**
+     * Record outcome of running pass on function
+     * @param passKey identifies pass and its options
+     * @param fingerprint fingerprint of function and shared state
+     *                    before running pass
+     * @param noOp true if pass did nothing
+     */
+    public void recordPassResult(String passKey, long fingerprint,
+                                 boolean noOp) {
+      if (noOp) {
+        noOpPasses.put(passKey, fingerprint);
+      } else {
+        noOpPasses.remove(passKey);
+      }
+    }
+
     public void prettyPrint(StringBuilder sb) {
+      prettyPrintSignature(sb);
+      sb.append(" {\n");
+      mainBlock.prettyPrint(sb, indent);
+      sb.append("}\n");
+    }
+
+    private void prettyPrintSignature(StringBuilder sb) {
       ICUtil.prettyPrintFormalArgs(sb, this.oList);
       sb.append(" @" + id + " ");
       ICUtil.prettyPrintFormalArgs(sb, this.iList);
@@ -866,9 +1149,6 @@ public class ICTree {
         ICUtil.prettyPrintVarList(sb, this.oListWriteOnly);
         sb.append("]");
       }
-      sb.append(" {\n");
-      mainBlock.prettyPrint(sb, indent);
-      sb.append("}\n");
     }
 
     @Override
@@ -944,6 +1224,30 @@ public class ICTree {
     }
 
 
+    /**
+     * Number all variables in function: arguments, then variables
+     * declared in each block.
+     * @return a new index, which isn't updated if function changes
+     */
+    public VarIndex buildVarIndex() {
+      VarIndex index = new VarIndex();
+      index.addAll(this.iList);
+      index.addAll(this.oList);
+
+      StackLite<Block> work = new StackLite<Block>();
+      work.push(mainBlock);
+      while (!work.isEmpty()) {
+        Block b = work.pop();
+        index.addAll(b.variables());
+        for (Continuation c: b.allComplexStatements()) {
+          index.addAll(c.constructDefinedVars());
+          work.addAll(c.getBlocks());
+        }
+      }
+      return index;
+    }
+
+
     public void addUsedVarName(Var var) {
       this.usedVarNames.add(var.name());
     }
@@ -1068,7 +1372,7 @@ public class ICTree {
     }
 
     private Block(BlockType type, Continuation parentCont, Function parentFunction) {
-      this(type, parentCont, parentFunction, true, new LinkedList<Statement>(),
+      this(type, parentCont, parentFunction, true, new GapList<Statement>(),
           new Variables(), new ArrayList<Continuation>(), new ArrayList<CleanupAction>());
     }
 
@@ -1081,7 +1385,7 @@ public class ICTree {
     private Block(BlockType type,
         Continuation parentCont, Function parentFunction,
         boolean emptyBlock,
-        LinkedList<Statement> instructions,
+        GapList<Statement> instructions,
         Variables variables,
         ArrayList<Continuation> conds,
         ArrayList<CleanupAction> cleanupActions) {
@@ -1194,7 +1498,7 @@ public class ICTree {
       return type;
     }
 
-    private final LinkedList<Statement> statements;
+    private final GapList<Statement> statements;
 
     private final ArrayList<CleanupAction> cleanupActions;
 
@@ -1213,7 +1517,7 @@ public class ICTree {
     }
 
     public void addInstructionFront(Instruction e) {
-      statements.addFirst(e);
+      statements.add(0, e);
     }
 
     public void addInstructions(List<Instruction> instructions) {
@@ -1484,7 +1788,7 @@ public class ICTree {
       return new AllContIt();
     }
 
-    public ListIterator<Var> variableIterator() {
+    public Iterator<Var> variableIterator() {
       return variables.variableIterator();
     }
 
@@ -1551,23 +1855,8 @@ public class ICTree {
     }
 
     private void renameInDefs(Map<Var, Arg> renames, RenameMode mode) {
-      ListIterator<Var> it = variables.variableIterator();
-      while (it.hasNext()) {
-        // The original variable and the current one
-        Var var;
-        var = it.next();
-        if (mode == RenameMode.REPLACE_VAR) {
-          if (renames.containsKey(var)) {
-            Arg replacement = renames.get(var);
-            if (replacement.isVar()) {
-              var = replacement.getVar();
-              it.set(var);
-            } else {
-              // value replaced with constant
-              it.remove();
-            }
-          }
-        }
+      if (mode == RenameMode.REPLACE_VAR) {
+        variables.renameVariables(renames);
       }
     }
 
@@ -1754,7 +2043,7 @@ public class ICTree {
       insertInline(b, false);
     }
 
-    public void removeVarDeclarations(Set<Var> vars) {
+    public void removeVarDeclarations(Collection<Var> vars) {
       variables.removeAllVariables(vars);
       ListIterator<CleanupAction> it = cleanupActions.listIterator();
       while (it.hasNext()) {
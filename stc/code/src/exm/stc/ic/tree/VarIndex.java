@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.tree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import exm.stc.common.lang.Var;
+
+/**
+ * Dense numbering of variables, so that sets of variables can be
+ * represented as BitSets, and graphs over variables as int arrays.
+ *
+ * Use {@link ICTree.Function#buildVarIndex()} to number all variables
+ * in a function up front.  Any other variables, e.g. globals, are
+ * numbered when first seen.  Indices are not updated if the function
+ * is modified, but remain valid for any variables that still exist.
+ *
+ * Lookups first check Var objects already seen, by identity, so that
+ * they normally don't need to compare variables.  A variable may be
+ * represented by several equal Var objects, so we fall back to
+ * looking the variable up by equality.
+ */
+public class VarIndex {
+
+  private final HashMap<Var, Integer> indices = new HashMap<Var, Integer>();
+  private final IdentityHashMap<Var, Integer> seen =
+                                        new IdentityHashMap<Var, Integer>();
+  private final ArrayList<Var> vars = new ArrayList<Var>();
+
+  /**
+   * @return index of var, numbering it if not already numbered
+   */
+  public int index(Var var) {
+    Integer i = seen.get(var);
+    if (i != null) {
+      return i;
+    }
+    i = indices.get(var);
+    if (i == null) {
+      i = vars.size();
+      indices.put(var, i);
+      vars.add(var);
+    }
+    seen.put(var, i);
+    return i;
+  }
+
+  /**
+   * @return index of var, or -1 if not numbered
+   */
+  public int indexOf(Var var) {
+    Integer i = seen.get(var);
+    if (i != null) {
+      return i;
+    }
+    i = indices.get(var);
+    if (i == null) {
+      return -1;
+    }
+    seen.put(var, i);
+    return i;
+  }
+
+  public Var get(int index) {
+    return vars.get(index);
+  }
+
+  /**
+   * @return number of variables numbered.  All indices are less than this
+   */
+  public int size() {
+    return vars.size();
+  }
+
+  public void addAll(Collection<Var> toAdd) {
+    for (Var var: toAdd) {
+      index(var);
+    }
+  }
+
+  /**
+   * Add var to set
+   */
+  public void set(BitSet set, Var var) {
+    set.set(index(var));
+  }
+
+  public void setAll(BitSet set, Collection<Var> toSet) {
+    for (Var var: toSet) {
+      set.set(index(var));
+    }
+  }
+
+  /**
+   * @return vars in set, in index order
+   */
+  public List<Var> toList(BitSet set) {
+    List<Var> result = new ArrayList<Var>(set.cardinality());
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      result.add(vars.get(i));
+    }
+    return result;
+  }
+
+  public Set<Var> toSet(BitSet set) {
+    return new HashSet<Var>(toList(set));
+  }
+}
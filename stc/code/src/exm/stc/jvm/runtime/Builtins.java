@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IllegalFormatException;
+import java.util.List;
+
+/**
+ * Implementations of builtin functions and operators for generated code,
+ * matching the behaviour of the Turbine versions.
+ */
+public class Builtins {
+
+  public static void trace(Object... args) {
+    StringBuilder sb = new StringBuilder("trace: ");
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(toString(args[i]));
+    }
+    System.out.println(sb);
+  }
+
+  public static void printf(String fmt, Object... args)
+      throws LogicException {
+    System.out.println(sprintf(fmt, args));
+  }
+
+  /**
+   * Format in the same way as Tcl format, which accepts more conversions
+   * and argument types than Java's format.
+   */
+  public static String sprintf(String fmt, Object... args)
+      throws LogicException {
+    StringBuilder sb = new StringBuilder();
+    int argPos = 0;
+    int pos = 0;
+    while (pos < fmt.length()) {
+      char c = fmt.charAt(pos);
+      if (c != '%') {
+        sb.append(c);
+        pos++;
+        continue;
+      }
+
+      int specStart = pos;
+      pos++;
+      while (pos < fmt.length() && "-+ #0123456789.lh".indexOf(
+                                      fmt.charAt(pos)) >= 0) {
+        pos++;
+      }
+      if (pos >= fmt.length()) {
+        throw new LogicException("Incomplete format specifier in \"" + fmt +
+                                 "\"");
+      }
+      char conv = fmt.charAt(pos);
+      pos++;
+      if (conv == '%') {
+        sb.append('%');
+        continue;
+      }
+      if (argPos >= args.length) {
+        throw new LogicException("Not enough arguments for format \"" +
+                                 fmt + "\"");
+      }
+      Object arg = args[argPos++];
+      String flags = javaFlags(fmt.substring(specStart + 1, pos - 1));
+      try {
+        appendFormatted(sb, fmt, flags, conv, arg);
+      } catch (IllegalFormatException e) {
+        throw new LogicException("Invalid format specifier \"" +
+            fmt.substring(specStart, pos) + "\" in format \"" + fmt + "\": " +
+            e.getMessage());
+      }
+    }
+    if (argPos < args.length) {
+      throw new LogicException("Too many arguments for format \"" +
+                               fmt + "\"");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Convert C flags, width and precision to form accepted by Java
+   */
+  private static String javaFlags(String spec) {
+    spec = spec.replace("l", "").replace("h", "");
+    int i = 0;
+    while (i < spec.length() && "-+ #0".indexOf(spec.charAt(i)) >= 0) {
+      i++;
+    }
+    if (i < spec.length() && Character.isDigit(spec.charAt(i))) {
+      return spec;
+    }
+    // Java requires width for padding flags, which do nothing without it
+    return spec.substring(0, i).replace("0", "").replace("-", "") +
+           spec.substring(i);
+  }
+
+  private static void appendFormatted(StringBuilder sb, String fmt,
+      String flags, char conv, Object arg) throws LogicException {
+    switch (conv) {
+    case 'd':
+    case 'i':
+    case 'u':
+      sb.append(String.format("%" + flags + "d", toLong(arg)));
+      break;
+    case 'x':
+    case 'X':
+    case 'o':
+      sb.append(String.format("%" + flags + conv, toLong(arg)));
+      break;
+    case 'c':
+      sb.append(String.format("%" + flags + "c", (int)toLong(arg)));
+      break;
+    case 'e':
+    case 'E':
+    case 'f':
+    case 'g':
+    case 'G':
+      sb.append(String.format("%" + flags + conv, toDouble(arg)));
+      break;
+    case 's':
+      sb.append(String.format("%" + flags + "s", toString(arg)));
+      break;
+    default:
+      throw new LogicException("Unknown conversion %" + conv +
+                               " in format \"" + fmt + "\"");
+    }
+  }
+
+  /**
+   * String representation consistent with Turbine, where booleans are
+   * represented as integers
+   */
+  public static String toString(Object o) {
+    if (o instanceof Boolean) {
+      return ((Boolean)o) ? "1" : "0";
+    }
+    return String.valueOf(o);
+  }
+
+  private static long toLong(Object o) throws LogicException {
+    if (o instanceof Number) {
+      return ((Number)o).longValue();
+    } else if (o instanceof Boolean) {
+      return ((Boolean)o) ? 1 : 0;
+    } else {
+      try {
+        return Long.parseLong(o.toString());
+      } catch (NumberFormatException e) {
+        throw new LogicException("Expected integer but got \"" + o + "\"");
+      }
+    }
+  }
+
+  private static double toDouble(Object o) throws LogicException {
+    if (o instanceof Number) {
+      return ((Number)o).doubleValue();
+    } else if (o instanceof Boolean) {
+      return ((Boolean)o) ? 1 : 0;
+    } else {
+      try {
+        return Double.parseDouble(o.toString());
+      } catch (NumberFormatException e) {
+        throw new LogicException("Expected float but got \"" + o + "\"");
+      }
+    }
+  }
+
+  public static double powInt(long base, long exponent) {
+    return Math.pow(base, exponent);
+  }
+
+  /**
+   * Round half away from zero, as Tcl does
+   */
+  public static double round(double x) {
+    return x < 0 ? -Math.floor(-x + 0.5) : Math.floor(x + 0.5);
+  }
+
+  public static String floatToStr(double x) {
+    return Double.toString(x);
+  }
+
+  public static long parseInt(String s, long base) throws LogicException {
+    try {
+      return Long.parseLong(s.trim(), (int)base);
+    } catch (NumberFormatException e) {
+      throw new LogicException("Could not convert \"" + s + "\" to integer");
+    }
+  }
+
+  public static double parseFloat(String s) throws LogicException {
+    try {
+      return Double.parseDouble(s.trim());
+    } catch (NumberFormatException e) {
+      throw new LogicException("Could not convert \"" + s + "\" to float");
+    }
+  }
+
+  public static String substring(String s, long start, long length) {
+    int begin = (int)Math.max(0, Math.min(start, s.length()));
+    int end = (int)Math.max(begin, Math.min(start + length, s.length()));
+    return s.substring(begin, end);
+  }
+
+  public static String dircat(String... parts) {
+    List<String> nonEmpty = new ArrayList<String>(parts.length);
+    for (String part: parts) {
+      if (part.length() > 0) {
+        nonEmpty.add(part);
+      }
+    }
+    if (nonEmpty.isEmpty()) {
+      return "";
+    }
+    File f = new File(nonEmpty.get(0));
+    for (int i = 1; i < nonEmpty.size(); i++) {
+      f = new File(f, nonEmpty.get(i));
+    }
+    return f.getPath();
+  }
+
+  public static long strlen(String s) {
+    return s.length();
+  }
+
+  public static void assertTrue(boolean condition, String msg)
+      throws LogicException {
+    if (!condition) {
+      throw new LogicException("Assertion failed!: " + msg);
+    }
+  }
+
+  public static void assertEqual(Object v1, Object v2, String msg)
+      throws LogicException {
+    if (!v1.equals(v2)) {
+      throw new LogicException("Assertion failed!: " + msg + " " +
+                       toString(v1) + " != " + toString(v2));
+    }
+  }
+
+  public static void assertLT(double v1, double v2, String msg)
+      throws LogicException {
+    if (v1 >= v2) {
+      throw new LogicException("Assertion failed " + v1 + " >= " + v2 +
+                               ": " + msg);
+    }
+  }
+
+  public static void assertLTE(double v1, double v2, String msg)
+      throws LogicException {
+    if (v1 > v2) {
+      throw new LogicException("Assertion failed " + v1 + " > " + v2 +
+                               ": " + msg);
+    }
+  }
+}
@@ -1,10 +1,312 @@
 package exm.stc.jvm.runtime;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.log4j.Logger;
 
+import exm.stc.jvm.runtime.Vars.BaseVar;
+
+/**
+ * Multithreaded dataflow runtime.  A fixed pool of worker threads run
+ * tasks from the task queue.  Tasks spawn other tasks directly, or
+ * create rules that spawn tasks once their inputs are closed.
+ *
+ * The program finishes once no tasks are queued or running: any rules
+ * remaining at that point can never fire, which is an error.
+ */
 public class JVMRuntime {
 
   public static Logger getLogger() {
     return Logger.getLogger(JVMRuntime.class);
   }
+
+  private final int numThreads;
+  private final TaskQueue queue;
+
+  /**
+   * Rules created but not yet fired
+   */
+  private final AtomicInteger pendingRules = new AtomicInteger(0);
+
+  /**
+   * First error raised by a task
+   */
+  private final AtomicReference<Throwable> error =
+                                new AtomicReference<Throwable>(null);
+
+  /**
+   * System property to set number of worker threads for default runtime
+   */
+  public static final String THREADS_PROPERTY = "swift.jvm.threads";
+
+  /**
+   * System property to set number of worker threads per node, for
+   * tasks targeted with node accuracy.  All threads are in one node by
+   * default.
+   */
+  public static final String THREADS_PER_NODE_PROPERTY =
+                                        "swift.jvm.threads-per-node";
+
+  /**
+   * System property to set time in microseconds before soft targeted
+   * tasks can be stolen by workers elsewhere
+   */
+  public static final String SOFT_TARGET_DELAY_PROPERTY =
+                                        "swift.jvm.soft-target-delay";
+
+  private static final long DEFAULT_SOFT_TARGET_DELAY_US = 1000;
+
+  /**
+   * Create runtime with number of threads from system property, or one
+   * per processor by default
+   */
+  public JVMRuntime() {
+    this(Integer.getInteger(THREADS_PROPERTY,
+                            Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Create runtime with node size and soft target delay from system
+   * properties
+   */
+  public JVMRuntime(int numThreads) {
+    this(numThreads, Integer.getInteger(THREADS_PER_NODE_PROPERTY,
+                                        numThreads),
+         Long.getLong(SOFT_TARGET_DELAY_PROPERTY,
+                      DEFAULT_SOFT_TARGET_DELAY_US));
+  }
+
+  /**
+   * @param threadsPerNode number of consecutive worker threads per node
+   * @param softTargetDelayUs time in microseconds before soft targeted
+   *                          tasks can be stolen
+   */
+  public JVMRuntime(int numThreads, int threadsPerNode,
+                    long softTargetDelayUs) {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("Invalid thread count " +
+                                         numThreads);
+    }
+    if (threadsPerNode <= 0) {
+      throw new IllegalArgumentException("Invalid threads per node " +
+                                         threadsPerNode);
+    }
+    if (softTargetDelayUs < 0) {
+      throw new IllegalArgumentException("Invalid soft target delay " +
+                                         softTargetDelayUs);
+    }
+    this.numThreads = numThreads;
+    this.queue = new TaskQueue(numThreads, threadsPerNode,
+                               softTargetDelayUs * 1000);
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Spawn task to run as soon as possible with default priority
+   */
+  public void spawn(Task task) {
+    spawn(TaskQueue.DEFAULT_PRIORITY, task);
+  }
+
+  /**
+   * Spawn task to run as soon as possible.  Tasks spawned from a worker
+   * go onto that worker's deque.  Higher priority tasks run first.
+   */
+  public void spawn(int priority, Task task) {
+    Worker w = currentWorker();
+    if (w != null) {
+      queue.addTask(w.threadNum, priority, task);
+    } else {
+      queue.addShared(task);
+    }
+  }
+
+  /**
+   * Spawn task to run at target, or anywhere if target is null.
+   * Targeted tasks are run in FIFO order ahead of other tasks, so
+   * priority only applies to untargeted tasks.
+   */
+  public void spawn(int priority, TaskTarget target, Task task) {
+    if (target == null) {
+      spawn(priority, task);
+    } else {
+      checkTarget(target);
+      queue.addTargeted(target, task);
+    }
+  }
+
+  /**
+   * Spawn task that must be run on a given worker thread
+   */
+  public void spawnTargeted(int threadNum, Task task) {
+    spawn(TaskQueue.DEFAULT_PRIORITY,
+          new TaskTarget(threadNum, false, false), task);
+  }
+
+  private void checkTarget(TaskTarget target) {
+    if (target.rank < 0 || target.rank >= numThreads) {
+      throw new IllegalArgumentException("Invalid target " + target +
+                              ": must be between 0 and " + (numThreads - 1));
+    }
+  }
+
+  /**
+   * Create rule for task.  Caller must add inputs then activate.
+   */
+  public Rule newRule(Task task) {
+    return newRule(TaskQueue.DEFAULT_PRIORITY, task);
+  }
+
+  /**
+   * Create rule for task to be spawned with priority
+   */
+  public Rule newRule(int priority, Task task) {
+    return newRule(priority, null, task);
+  }
+
+  /**
+   * Create rule for task to be spawned with priority at target
+   * @param target target location, or null for any
+   */
+  public Rule newRule(int priority, TaskTarget target, Task task) {
+    if (target != null) {
+      checkTarget(target);
+    }
+    pendingRules.incrementAndGet();
+    return new Rule(this, priority, target, task);
+  }
+
+  /**
+   * Spawn task once all inputs are closed
+   */
+  public void rule(Task task, BaseVar ...inputs) {
+    rule(TaskQueue.DEFAULT_PRIORITY, task, inputs);
+  }
+
+  /**
+   * Spawn task with priority once all inputs are closed
+   */
+  public void rule(int priority, Task task, BaseVar ...inputs) {
+    rule(priority, null, task, inputs);
+  }
+
+  /**
+   * Spawn task with priority at target once all inputs are closed
+   * @param target target location, or null for any
+   */
+  public void rule(int priority, TaskTarget target, Task task,
+                   BaseVar ...inputs) {
+    Rule rule = newRule(priority, target, task);
+    for (BaseVar input: inputs) {
+      rule.waitOn(input);
+    }
+    rule.activate();
+  }
+
+  void ruleFired(int priority, TaskTarget target, Task task) {
+    pendingRules.decrementAndGet();
+    spawn(priority, target, task);
+  }
+
+  /**
+   * Run program to completion
+   * @param main initial task
+   * @throws LogicException if a task raised an error, or if rules
+   *                        were left waiting on inputs never closed
+   * @throws InterruptedException
+   */
+  public void run(Task main) throws LogicException, InterruptedException {
+    spawn(main);
+
+    List<Worker> workers = new ArrayList<Worker>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      Worker w = new Worker(i);
+      workers.add(w);
+      w.start();
+    }
+
+    for (Worker w: workers) {
+      w.join();
+    }
+
+    Throwable e = error.get();
+    if (e != null) {
+      if (e instanceof LogicException) {
+        throw (LogicException)e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException)e;
+      } else if (e instanceof Error) {
+        throw (Error)e;
+      } else {
+        throw new RuntimeException(e);
+      }
+    }
+
+    int unfired = pendingRules.get();
+    if (unfired > 0) {
+      throw new LogicException(unfired + " rules never fired: " +
+                               "inputs were never closed");
+    }
+  }
+
+  /**
+   * @return worker number of current thread, or -1 if not a worker
+   */
+  public int getThreadNum() {
+    Worker w = currentWorker();
+    return w == null ? -1 : w.threadNum;
+  }
+
+  /**
+   * @return current thread if it is one of this runtime's workers
+   */
+  private Worker currentWorker() {
+    Thread t = Thread.currentThread();
+    if (t instanceof Worker && ((Worker)t).runtime() == this) {
+      return (Worker)t;
+    }
+    return null;
+  }
+
+  private void execute(Task task) {
+    try {
+      task.run();
+    } catch (Throwable e) {
+      if (error.compareAndSet(null, e)) {
+        getLogger().error("Task failed: " + e.getMessage(), e);
+      }
+      queue.shutdown();
+    }
+  }
+
+  private class Worker extends Thread {
+    private final int threadNum;
+
+    Worker(int threadNum) {
+      super("JVMRuntime-worker-" + threadNum);
+      this.threadNum = threadNum;
+      setDaemon(true);
+    }
+
+    JVMRuntime runtime() {
+      return JVMRuntime.this;
+    }
+
+    @Override
+    public void run() {
+      Random random = new Random(threadNum);
+      Task task;
+      while ((task = queue.waitForTask(threadNum, random)) != null) {
+        execute(task);
+        queue.taskDone();
+      }
+    }
+  }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.InsertListener;
+
+/**
+ * Parallel loops used by generated code.  Iterations are split
+ * recursively into tasks, with up to splitDegree tasks at each level and
+ * up to leafDegree iterations run in sequence by each leaf task.
+ */
+public class Loops {
+
+  public static interface RangeBody {
+    public void run(long i) throws LogicException;
+  }
+
+  public static interface ForeachBody {
+    public void run(Object key, Object value) throws LogicException;
+  }
+
+  /**
+   * Body of loop over container that may still be open.  Refcounts
+   * needed by iterations are acquired as iterations are launched.
+   */
+  public static interface StreamBody extends ForeachBody {
+    /**
+     * Called before launching a batch of iterations
+     * @param iters number of iterations in batch
+     */
+    public void launch(int iters) throws LogicException;
+
+    /**
+     * Called once after container is closed and all iterations launched
+     */
+    public void done() throws LogicException;
+  }
+
+  /**
+   * Interface for iteration over indices in the loop's iteration space
+   */
+  private static interface IndexBody {
+    public void run(long index) throws LogicException;
+  }
+
+  /**
+   * @return number of iterations in range loop
+   */
+  public static long rangeIters(String fn, long start, long end, long incr)
+      throws LogicException {
+    if (incr == 0) {
+      throw new LogicException("Range loop with zero increment in " +
+                               "function " + fn);
+    } else if (incr > 0) {
+      return end < start ? 0 : (end - start) / incr + 1;
+    } else {
+      return end > start ? 0 : (start - end) / -incr + 1;
+    }
+  }
+
+  /**
+   * Loop over start, start + incr, ... up to end inclusive
+   * @param splitDegree split degree, or non-positive to run iterations
+   *        in this task
+   */
+  public static void range(JVMRuntime rt, String fn, final long start,
+      long end, final long incr, int splitDegree, int leafDegree,
+      final RangeBody body) throws LogicException {
+    long iters = rangeIters(fn, start, end, incr);
+    split(rt, 0, iters, splitDegree, leafDegree, new IndexBody() {
+      @Override
+      public void run(long index) throws LogicException {
+        body.run(start + index * incr);
+      }
+    });
+  }
+
+  /**
+   * Loop over members of closed container
+   */
+  public static void foreach(JVMRuntime rt, ContainerVar container,
+      int splitDegree, int leafDegree, final ForeachBody body)
+          throws LogicException {
+    int size = container.size();
+    final Object keys[] = new Object[size];
+    final Object vals[] = new Object[size];
+    int i = 0;
+    for (Map.Entry<Object, Object> e: container.entries()) {
+      keys[i] = e.getKey();
+      vals[i] = e.getValue();
+      i++;
+    }
+    split(rt, 0, i, splitDegree, leafDegree, new IndexBody() {
+      @Override
+      public void run(long index) throws LogicException {
+        body.run(keys[(int)index], vals[(int)index]);
+      }
+    });
+  }
+
+  /**
+   * Loop over members of container as they are inserted, without
+   * waiting for container to be closed.  Members inserted while a batch
+   * is waiting to be launched join that batch, and each batch is split
+   * into tasks in the same way as a loop over a closed container.
+   */
+  public static void foreachStream(JVMRuntime rt, ContainerVar container,
+      int splitDegree, int leafDegree, StreamBody body) {
+    final Stream stream = new Stream(rt, splitDegree, leafDegree, body);
+    for (Object key: container.subscribeInserts(stream)) {
+      stream.inserted(key, container.tryLookup(key));
+    }
+
+    // All inserts are notified before close
+    rt.rule(new Task() {
+      @Override
+      public void run() {
+        stream.add(Stream.CLOSED);
+      }
+    }, container);
+  }
+
+  /**
+   * Queue of inserted members waiting to be launched, with a task to
+   * launch them scheduled whenever the queue is non-empty.
+   */
+  private static class Stream implements InsertListener, Task {
+    /**
+     * Marker added to queue once container is closed
+     */
+    static final Object CLOSED = new Object();
+
+    private final JVMRuntime rt;
+    private final int splitDegree;
+    private final int leafDegree;
+    private final StreamBody body;
+
+    /**
+     * Map entries for members, then CLOSED
+     */
+    private final ConcurrentLinkedQueue<Object> queue =
+                                new ConcurrentLinkedQueue<Object>();
+
+    /**
+     * Number of queue items not yet taken by launch task.  Items are
+     * added to queue before this is incremented.
+     */
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    Stream(JVMRuntime rt, int splitDegree, int leafDegree,
+           StreamBody body) {
+      this.rt = rt;
+      this.splitDegree = splitDegree;
+      this.leafDegree = leafDegree;
+      this.body = body;
+    }
+
+    @Override
+    public void inserted(Object key, Object value) {
+      add(new SimpleImmutableEntry<Object, Object>(key, value));
+    }
+
+    void add(Object item) {
+      queue.add(item);
+      if (queued.getAndIncrement() == 0) {
+        // Launch task wasn't running
+        rt.spawn(this);
+      }
+    }
+
+    /**
+     * Launch queued members until queue is empty
+     */
+    @Override
+    public void run() throws LogicException {
+      int n = queued.get();
+      while (n > 0) {
+        final Object keys[] = new Object[n];
+        final Object vals[] = new Object[n];
+        int iters = 0;
+        boolean closed = false;
+        for (int i = 0; i < n; i++) {
+          Object item = queue.poll();
+          if (item == CLOSED) {
+            closed = true;
+          } else {
+            @SuppressWarnings("unchecked")
+            Map.Entry<Object, Object> e = (Map.Entry<Object, Object>)item;
+            keys[iters] = e.getKey();
+            vals[iters] = e.getValue();
+            iters++;
+          }
+        }
+
+        if (iters > 0) {
+          body.launch(iters);
+          split(rt, 0, iters, splitDegree, leafDegree, new IndexBody() {
+            @Override
+            public void run(long index) throws LogicException {
+              body.run(keys[(int)index], vals[(int)index]);
+            }
+          });
+        }
+        if (closed) {
+          body.done();
+        }
+        n = queued.addAndGet(-n);
+      }
+    }
+  }
+
+  /**
+   * Run body for indices in [lo, hi)
+   */
+  private static void split(final JVMRuntime rt, long lo, long hi,
+      final int splitDegree, final int leafDegree, final IndexBody body)
+          throws LogicException {
+    long count = hi - lo;
+    if (splitDegree <= 0 || count <= Math.max(leafDegree, 1)) {
+      for (long i = lo; i < hi; i++) {
+        body.run(i);
+      }
+      return;
+    }
+
+    long chunk = Math.max(Math.max(leafDegree, 1),
+                          (count + splitDegree - 1) / splitDegree);
+    for (long chunkLo = lo; chunkLo < hi; chunkLo += chunk) {
+      final long taskLo = chunkLo;
+      final long taskHi = Math.min(hi, chunkLo + chunk);
+      rt.spawn(new Task() {
+        @Override
+        public void run() throws LogicException {
+          split(rt, taskLo, taskHi, splitDegree, leafDegree, body);
+        }
+      });
+    }
+  }
+}
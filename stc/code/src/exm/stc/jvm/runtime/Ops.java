@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.RefVar;
+import exm.stc.jvm.runtime.Vars.ScalarVar;
+
+/**
+ * Asynchronous data operations used by generated code.  Each operation
+ * waits for its inputs, then completes in a new task.  Operations on
+ * references consume a read reference to the reference, as in Turbine.
+ *
+ * Container members are stored as boxed values for scalar member types,
+ * and as variables otherwise, e.g. for nested containers.
+ */
+public class Ops {
+
+  /**
+   * Copy value of src to dst once src is set
+   */
+  public static void copy(JVMRuntime rt, final String fn,
+      final String varName, final ScalarVar dst, final ScalarVar src) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        dst.setObject(fn, varName, src.getObject(fn, varName));
+        if (src instanceof RefVar) {
+          ((RefVar)src).incrReaders(fn, varName, -1);
+        }
+      }
+    }, src);
+  }
+
+  /**
+   * Set dst to the value of variable referenced by src
+   */
+  public static void dereference(final JVMRuntime rt, final String fn,
+      final String varName, final ScalarVar dst, final RefVar src) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        copy(rt, fn, varName, dst, (ScalarVar)src.get(fn, varName));
+        src.incrReaders(fn, varName, -1);
+      }
+    }, src);
+  }
+
+  /**
+   * Copy member of array to dst once it is inserted
+   */
+  public static void arrayCopyOut(JVMRuntime rt, final String fn,
+      final String varName, final ContainerVar array, final Object key,
+      final ScalarVar dst) throws LogicException {
+    if (array.containsKey(key) || array.isClosed()) {
+      // Copy immediately: generated code relies on this for aliases to
+      // members of closed arrays.  Fails if closed without member.
+      dst.setObject(fn, varName, array.lookup(fn, varName, key));
+      return;
+    }
+    rt.newRule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        dst.setObject(fn, varName, array.lookup(fn, varName, key));
+      }
+    }).waitOnKey(array, key).activate();
+  }
+
+  public static void arrayCopyOutFuture(final JVMRuntime rt,
+      final String fn, final String varName, final ContainerVar array,
+      final ScalarVar key, final ScalarVar dst) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        arrayCopyOut(rt, fn, varName, array, key.getObject(fn, varName),
+                     dst);
+      }
+    }, key);
+  }
+
+  public static void arrayRefCopyOut(final JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final Object key,
+      final ScalarVar dst) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        arrayCopyOut(rt, fn, varName, container(fn, varName, array), key,
+                     dst);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array);
+  }
+
+  public static void arrayRefCopyOutFuture(final JVMRuntime rt,
+      final String fn, final String varName, final RefVar array,
+      final ScalarVar key, final ScalarVar dst) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        arrayCopyOut(rt, fn, varName, container(fn, varName, array),
+                     key.getObject(fn, varName), dst);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array, key);
+  }
+
+  /**
+   * Insert member into array once key is set
+   */
+  public static void arrayStoreFuture(JVMRuntime rt, final String fn,
+      final String varName, final ContainerVar array, final ScalarVar key,
+      final Object member, final int writersDecr) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        array.insert(fn, varName, key.getObject(fn, varName), member,
+                     writersDecr);
+      }
+    }, key);
+  }
+
+  public static void arrayRefStore(JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final Object key,
+      final Object member) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        container(fn, varName, array).insert(fn, varName, key, member);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array);
+  }
+
+  public static void arrayRefStoreFuture(JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final ScalarVar key,
+      final Object member) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        container(fn, varName, array).insert(fn, varName,
+                                  key.getObject(fn, varName), member);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array, key);
+  }
+
+  /**
+   * Insert value of member into array once member is set
+   */
+  public static void arrayCopyIn(JVMRuntime rt, final String fn,
+      final String varName, final ContainerVar array, final Object key,
+      final ScalarVar member, final int writersDecr) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        array.insert(fn, varName, key, member.getObject(fn, varName),
+                     writersDecr);
+      }
+    }, member);
+  }
+
+  public static void arrayCopyInFuture(JVMRuntime rt, final String fn,
+      final String varName, final ContainerVar array, final ScalarVar key,
+      final ScalarVar member, final int writersDecr) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        array.insert(fn, varName, key.getObject(fn, varName),
+                     member.getObject(fn, varName), writersDecr);
+      }
+    }, key, member);
+  }
+
+  public static void arrayRefCopyIn(JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final Object key,
+      final ScalarVar member) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        container(fn, varName, array).insert(fn, varName, key,
+                                  member.getObject(fn, varName));
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array, member);
+  }
+
+  public static void arrayRefCopyInFuture(JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final ScalarVar key,
+      final ScalarVar member) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        container(fn, varName, array).insert(fn, varName,
+            key.getObject(fn, varName), member.getObject(fn, varName));
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array, key, member);
+  }
+
+  /**
+   * Create nested container once key is set, and set result to refer
+   * to it.  Consumes a write reference to array held by caller.  The
+   * result holds a write reference to the nested container until it has
+   * no readers.
+   */
+  public static void arrayCreateNestedFuture(JVMRuntime rt,
+      final String fn, final String varName, final ContainerVar array,
+      final ScalarVar key, final RefVar result) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        result.setHolding(fn, varName,
+            array.createNested(fn, varName, key.getObject(fn, varName), 1),
+            1);
+        array.incrWriters(fn, varName, -1);
+      }
+    }, key);
+  }
+
+  public static void arrayRefCreateNested(JVMRuntime rt, final String fn,
+      final String varName, final RefVar array, final Object key,
+      final RefVar result) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        result.setHolding(fn, varName, container(fn, varName, array)
+                          .createNested(fn, varName, key, 1), 1);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array);
+  }
+
+  public static void arrayRefCreateNestedFuture(JVMRuntime rt,
+      final String fn, final String varName, final RefVar array,
+      final ScalarVar key, final RefVar result) {
+    rt.rule(new Task() {
+      @Override
+      public void run() throws LogicException {
+        result.setHolding(fn, varName, container(fn, varName, array)
+            .createNested(fn, varName, key.getObject(fn, varName), 1), 1);
+        array.incrReaders(fn, varName, -1);
+      }
+    }, array, key);
+  }
+
+  private static ContainerVar container(String fn, String varName,
+      RefVar ref) throws InvalidReadException {
+    BaseVar referand = ref.get(fn, varName);
+    return (ContainerVar)referand;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Worker's task deques, one per priority level.  The owner pops from
+ * and thieves steal from the highest priority non-empty level.
+ *
+ * Levels are created on demand and kept sorted, so with a few distinct
+ * priorities each operation only looks at a few deques.  The number of
+ * levels is bounded: once the limit is reached, empty levels are
+ * discarded, and if none are empty, tasks go into the level with the
+ * next lowest priority.
+ */
+class PriorityDeques {
+
+  /**
+   * Maximum number of distinct priority levels per worker
+   */
+  private static final int MAX_LEVELS = 16;
+
+  /**
+   * Returned by topPriority if all levels are empty
+   */
+  public static final long EMPTY = Long.MIN_VALUE;
+
+  private static class Level {
+    final int priority;
+    final WorkDeque deque = new WorkDeque();
+
+    Level(int priority) {
+      this.priority = priority;
+    }
+  }
+
+  /**
+   * Levels in descending order of priority.  Only replaced by owner,
+   * and never modified once published.
+   */
+  private volatile Level[] levels = new Level[0];
+
+  /**
+   * Level last pushed to.  Only accessed by owner.
+   */
+  private Level lastPush = null;
+
+  /**
+   * Push task onto bottom of level.  Must only be called by owner.
+   */
+  public void push(int priority, Task task) {
+    Level level = lastPush;
+    if (level == null || level.priority != priority) {
+      level = findLevel(priority);
+      lastPush = level;
+    }
+    level.deque.push(task);
+  }
+
+  /**
+   * Pop most recently pushed task from highest priority level.
+   * Must only be called by owner.
+   * @return task, or null if empty
+   */
+  public Task pop() {
+    for (Level level: levels) {
+      Task task = level.deque.pop();
+      if (task != null) {
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Steal least recently pushed task from highest priority level.
+   * @return task, or null if empty or lost race with another thread
+   */
+  public Task steal() {
+    for (Level level: levels) {
+      Task task = level.deque.steal();
+      if (task != null) {
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return priority of highest non-empty level, or EMPTY
+   */
+  public long topPriority() {
+    for (Level level: levels) {
+      if (!level.deque.isEmpty()) {
+        return level.priority;
+      }
+    }
+    return EMPTY;
+  }
+
+  public boolean isEmpty() {
+    return topPriority() == EMPTY;
+  }
+
+  /**
+   * Find or create level for priority.  Empty levels can be safely
+   * discarded since the owner is the only thread that pushes to them.
+   */
+  private Level findLevel(int priority) {
+    Level[] curr = levels;
+    int pos = insertPos(curr, priority);
+    if (pos < curr.length && curr[pos].priority == priority) {
+      return curr[pos];
+    }
+
+    if (curr.length >= MAX_LEVELS) {
+      curr = removeEmpty(curr);
+      levels = curr;
+      pos = insertPos(curr, priority);
+      if (curr.length >= MAX_LEVELS) {
+        return curr[Math.min(pos, curr.length - 1)];
+      }
+    }
+
+    Level level = new Level(priority);
+    Level[] next = new Level[curr.length + 1];
+    System.arraycopy(curr, 0, next, 0, pos);
+    next[pos] = level;
+    System.arraycopy(curr, pos, next, pos + 1, curr.length - pos);
+    levels = next;
+    return level;
+  }
+
+  /**
+   * @return index of first level with priority <= given priority
+   */
+  private static int insertPos(Level[] levels, int priority) {
+    int pos = 0;
+    while (pos < levels.length && levels[pos].priority > priority) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static Level[] removeEmpty(Level[] levels) {
+    // Thieves may empty levels concurrently, so check each level once
+    Level[] res = new Level[levels.length];
+    int n = 0;
+    for (Level level: levels) {
+      if (!level.deque.isEmpty()) {
+        res[n++] = level;
+      }
+    }
+    return Arrays.copyOf(res, n);
+  }
+}
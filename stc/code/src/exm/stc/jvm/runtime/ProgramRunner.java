@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compile a program generated by the Java backend in-process, and run
+ * it on the JVM runtime.
+ *
+ * Usage: ProgramRunner program.java [program arguments]
+ */
+public class ProgramRunner {
+
+  /**
+   * Name of static method generated program provides to run it
+   */
+  public static final String RUN_METHOD = "run";
+
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println("Usage: ProgramRunner <program.java> [args...]");
+      System.exit(1);
+    }
+    try {
+      Class<?> program = compile(new File(args[0]));
+      run(program, new JVMRuntime(),
+          Arrays.copyOfRange(args, 1, args.length));
+    } catch (LogicException e) {
+      System.err.println("Error: " + e.getMessage());
+      System.exit(1);
+    } catch (Exception e) {
+      System.err.println("Error running " + args[0] + ": " + e);
+      if (e.getCause() != null) {
+        System.err.println("Caused by: " + e.getCause());
+      }
+      JVMRuntime.getLogger().debug("Error running " + args[0], e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Compile program to classes in memory
+   * @return the main class of the program
+   */
+  public static Class<?> compile(File source)
+      throws IOException, ClassNotFoundException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IOException("No Java compiler available: must run " +
+                            "with a JDK rather than a JRE");
+    }
+
+    // Java backend writes source as UTF-8
+    StandardJavaFileManager stdManager = compiler.getStandardFileManager(
+                                      null, null, StandardCharsets.UTF_8);
+    MemoryFileManager fileManager = new MemoryFileManager(stdManager);
+    try {
+      Iterable<? extends JavaFileObject> units =
+                        stdManager.getJavaFileObjects(source);
+      StringWriter diagnostics = new StringWriter();
+      boolean ok = compiler.getTask(diagnostics, fileManager, null,
+          Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                        "-nowarn"),
+          null, units).call();
+      if (!ok) {
+        throw new IOException("Could not compile " + source + ":\n" +
+                              diagnostics);
+      }
+    } finally {
+      fileManager.close();
+    }
+
+    ClassLoader loader = new MemoryClassLoader(fileManager.classes,
+                                  ProgramRunner.class.getClassLoader());
+    return mainClass(source, loader, fileManager.classes.keySet());
+  }
+
+  /**
+   * The generated class name is derived from the program name, and may
+   * not match the file name, so find the single top-level class.
+   */
+  private static Class<?> mainClass(File source, ClassLoader loader,
+      Collection<String> classNames) throws ClassNotFoundException {
+    Class<?> mainClass = null;
+    for (String name: classNames) {
+      Class<?> c = loader.loadClass(name);
+      if (c.getEnclosingClass() == null) {
+        if (mainClass != null) {
+          throw new ClassNotFoundException("Multiple top-level classes in "
+                + source + ": " + mainClass.getName() + " and " + name);
+        }
+        mainClass = c;
+      }
+    }
+    if (mainClass == null) {
+      throw new ClassNotFoundException("No class compiled from " + source);
+    }
+    return mainClass;
+  }
+
+  /**
+   * Run program to completion
+   */
+  public static void run(Class<?> program, JVMRuntime rt, String[] args)
+      throws LogicException, InterruptedException {
+    try {
+      Method m = program.getMethod(RUN_METHOD, JVMRuntime.class,
+                                   String[].class);
+      // Generated class is not public
+      m.setAccessible(true);
+      m.invoke(null, rt, args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof LogicException) {
+        throw (LogicException)cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(program.getName() +
+                          " is not a generated program", e);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(program.getName() +
+                          " is not a generated program", e);
+    }
+  }
+
+  private static class MemoryClassFile extends SimpleJavaFileObject {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    MemoryClassFile(String className) {
+      super(URI.create("mem:///" + className.replace('.', '/') +
+                       Kind.CLASS.extension), Kind.CLASS);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return bytes;
+    }
+  }
+
+  private static class MemoryFileManager
+                extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    private final Map<String, MemoryClassFile> classes =
+                                new HashMap<String, MemoryClassFile>();
+
+    MemoryFileManager(StandardJavaFileManager fileManager) {
+      super(fileManager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(
+        JavaFileManager.Location location, String className, Kind kind,
+        FileObject sibling) throws IOException {
+      MemoryClassFile file = new MemoryClassFile(className);
+      classes.put(className, file);
+      return file;
+    }
+  }
+
+  private static class MemoryClassLoader extends ClassLoader {
+    private final Map<String, MemoryClassFile> classes;
+
+    MemoryClassLoader(Map<String, MemoryClassFile> classes,
+                      ClassLoader parent) {
+      super(parent);
+      this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name)
+        throws ClassNotFoundException {
+      MemoryClassFile file = classes.get(name);
+      if (file == null) {
+        throw new ClassNotFoundException(name);
+      }
+      byte[] b = file.bytes.toByteArray();
+      return defineClass(name, b, 0, b.length);
+    }
+  }
+}
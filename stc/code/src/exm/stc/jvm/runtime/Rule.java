@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+
+/**
+ * Task that is released to the task queue once all inputs are closed.
+ * Inputs are added with waitOn and waitOnKey, then activate is called.
+ */
+public class Rule implements NotifyTarget {
+  private final JVMRuntime runtime;
+  private final int priority;
+
+  /**
+   * Where to run task, or null for anywhere
+   */
+  private final TaskTarget target;
+  private final Task task;
+
+  /**
+   * Number of outstanding inputs, plus one until activated
+   */
+  private final AtomicInteger waiting = new AtomicInteger(1);
+
+  Rule(JVMRuntime runtime, int priority, TaskTarget target, Task task) {
+    this.runtime = runtime;
+    this.priority = priority;
+    this.target = target;
+    this.task = task;
+  }
+
+  /**
+   * Wait for variable to be closed
+   */
+  public Rule waitOn(BaseVar var) {
+    waiting.incrementAndGet();
+    if (!var.subscribe(this)) {
+      ready();
+    }
+    return this;
+  }
+
+  /**
+   * Wait for key to be inserted into container
+   */
+  public Rule waitOnKey(ContainerVar container, Object key) {
+    waiting.incrementAndGet();
+    if (!container.subscribeKey(key, this)) {
+      ready();
+    }
+    return this;
+  }
+
+  /**
+   * Called once all inputs have been added.  Must be called exactly once.
+   */
+  public void activate() {
+    ready();
+  }
+
+  @Override
+  public void notifyFinal(BaseVar var) {
+    ready();
+  }
+
+  private void ready() {
+    int remaining = waiting.decrementAndGet();
+    if (remaining == 0) {
+      runtime.ruleFired(priority, target, task);
+    } else if (remaining < 0) {
+      throw new IllegalStateException("Rule fired twice: " + task);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tasks targeted at a worker thread or node, in FIFO order.  Hard
+ * targeted tasks can only be run by workers at the target.  Soft
+ * targeted tasks can also be stolen by other workers once they have
+ * waited long enough.
+ */
+class TargetQueue {
+
+  private static class SoftTask {
+    final Task task;
+
+    /**
+     * System.nanoTime() when added
+     */
+    final long added;
+
+    SoftTask(Task task, long added) {
+      this.task = task;
+      this.added = added;
+    }
+  }
+
+  private final ConcurrentLinkedQueue<Task> hard =
+                                new ConcurrentLinkedQueue<Task>();
+  private final ConcurrentLinkedQueue<SoftTask> soft =
+                                new ConcurrentLinkedQueue<SoftTask>();
+
+  /**
+   * Count of soft tasks across all queues, shared with other queues
+   */
+  private final AtomicInteger softCount;
+
+  TargetQueue(AtomicInteger softCount) {
+    this.softCount = softCount;
+  }
+
+  public void add(Task task, boolean isSoft) {
+    if (isSoft) {
+      softCount.incrementAndGet();
+      soft.add(new SoftTask(task, System.nanoTime()));
+    } else {
+      hard.add(task);
+    }
+  }
+
+  /**
+   * Get task from a worker at the target
+   * @return task, or null if empty
+   */
+  public Task poll() {
+    Task res = hard.poll();
+    if (res != null) {
+      return res;
+    }
+    SoftTask st = soft.poll();
+    if (st != null) {
+      softCount.decrementAndGet();
+      return st.task;
+    }
+    return null;
+  }
+
+  /**
+   * Get soft targeted task from a worker elsewhere
+   * @param minWaitNs minimum time task must have waited
+   * @return oldest soft task, or null if none or not waited long enough
+   */
+  public Task steal(long minWaitNs) {
+    SoftTask st = soft.peek();
+    if (st == null || System.nanoTime() - st.added < minWaitNs) {
+      return null;
+    }
+    // Only take the task we checked
+    if (!soft.remove(st)) {
+      return null;
+    }
+    softCount.decrementAndGet();
+    return st.task;
+  }
+
+  public boolean isEmpty() {
+    return hard.isEmpty() && soft.isEmpty();
+  }
+}
@@ -1,81 +1,436 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The global task queue
- * TODO: priorities
+ * The global task queue.  Each worker thread owns work-stealing deques,
+ * one per priority level, that it pushes and pops without locking.
+ * Workers run their own highest priority tasks first, and steal the
+ * highest priority task available from other workers.
  *
+ * Tasks can also be targeted at a worker or at a node, i.e. a group of
+ * workers.  Targeted tasks are run before other tasks.  Soft targeted
+ * tasks can be stolen by workers elsewhere once they have waited for a
+ * while, but only when those workers have nothing else to do.
+ *
+ * Workers that find no work spin briefly, then park until a task is
+ * added.  The queue counts tasks that are queued or running: once none
+ * are left, no more tasks can be created, so the queue is terminated
+ * and all workers are woken to exit.
  */
 public class TaskQueue {
-  
+
+  /**
+   * Number of times idle worker rescans queues before parking
+   */
+  private static final int IDLE_SPINS = 64;
+
   /**
-   * TODO: allow passing in of queues so that each thread
-   * can have in own local heap
-   * @param numThreads
+   * Worker flag values for parked
    */
+  private static final int ACTIVE = 0;
+  private static final int IDLE = 1;
+
+  /**
+   * Priority of tasks spawned without one, matching Turbine
+   */
+  public static final int DEFAULT_PRIORITY = 0;
+
   public TaskQueue(int numThreads) {
+    this(numThreads, numThreads, 0);
+  }
+
+  /**
+   * @param threadsPerNode size of groups of consecutive workers that
+   *                       node targeted tasks can run in
+   * @param softStealDelayNs time before soft targeted tasks can be stolen
+   */
+  public TaskQueue(int numThreads, int threadsPerNode,
+                   long softStealDelayNs) {
     this.numThreads = numThreads;
-    this.targeted = new ArrayList<ConcurrentLinkedDeque<Task>>(numThreads);
-    this.regular = new ArrayList<ArrayDeque<Task>>(numThreads);
+    this.threadsPerNode = threadsPerNode;
+    this.softStealDelayNs = softStealDelayNs;
+    this.targeted = new TargetQueue[numThreads];
+    this.regular = new PriorityDeques[numThreads];
     for (int i = 0; i < numThreads; i++) {
-      this.targeted.add(new ConcurrentLinkedDeque<Task>());
-      this.regular.add(new ArrayDeque<Task>());
+      this.targeted[i] = new TargetQueue(softTargeted);
+      this.regular[i] = new PriorityDeques();
     }
+    int numNodes = (numThreads + threadsPerNode - 1) / threadsPerNode;
+    this.nodeTargeted = new TargetQueue[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      this.nodeTargeted[i] = new TargetQueue(softTargeted);
+    }
+    this.workers = new AtomicReferenceArray<Thread>(numThreads);
+    this.idle = new AtomicIntegerArray(numThreads);
   }
-  
+
   private final int numThreads;
-  
+
+  private final int threadsPerNode;
+
+  private final long softStealDelayNs;
+
   /**
    * Targeted task queues (one per thread)
    */
-  private final ArrayList<ConcurrentLinkedDeque<Task>> targeted;
-  
+  private final TargetQueue[] targeted;
+
+  /**
+   * Node targeted task queues (one per node)
+   */
+  private final TargetQueue[] nodeTargeted;
+
+  /**
+   * Number of soft targeted tasks queued.  While non-zero, idle workers
+   * wake periodically to check whether any can be stolen.
+   */
+  private final AtomicInteger softTargeted = new AtomicInteger(0);
+
+  /**
+   * Personal non-targeted task deques (one per thread)
+   */
+  private final PriorityDeques[] regular;
+
+  /**
+   * Tasks added from outside worker threads, run in FIFO order
+   */
+  private final ConcurrentLinkedQueue<Task> shared =
+                                    new ConcurrentLinkedQueue<Task>();
+
+  /**
+   * Worker threads, registered when they first wait for a task
+   */
+  private final AtomicReferenceArray<Thread> workers;
+
+  /**
+   * IDLE if worker is about to park or parked.  Cleared either by the
+   * worker if it finds work, or by the thread that wakes it.
+   */
+  private final AtomicIntegerArray idle;
+
+  /**
+   * Number of workers with idle flag set
+   */
+  private final AtomicInteger numIdle = new AtomicInteger(0);
+
+  /**
+   * Number of tasks added but not yet finished, including tasks
+   * targeted at parked workers.  Incremented before a task is queued
+   * and decremented after it has run, so it only reaches zero once no
+   * task can add any more.
+   */
+  private final AtomicInteger outstanding = new AtomicInteger(0);
+
+  private volatile boolean terminated = false;
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Add task to a thread's local deque.  Must only be called by that
+   * thread.
+   */
+  public void addTask(int threadNum, int priority, Task task) {
+    outstanding.incrementAndGet();
+    regular[threadNum].push(priority, task);
+    wakeAny();
+  }
+
+  /**
+   * Add task from a thread that isn't a worker
+   */
+  public void addShared(Task task) {
+    outstanding.incrementAndGet();
+    shared.add(task);
+    wakeAny();
+  }
+
+  public int getThreadsPerNode() {
+    return threadsPerNode;
+  }
+
+  /**
+   * Add task targeted at a thread or node.  If a soft targeted task
+   * can't run immediately at the target, another worker is woken so it
+   * can steal the task later.
+   */
+  public void addTargeted(TaskTarget target, Task task) {
+    outstanding.incrementAndGet();
+    boolean woken;
+    if (target.node) {
+      int node = target.rank / threadsPerNode;
+      nodeTargeted[node].add(task, target.soft);
+      woken = wakeNode(node);
+    } else {
+      targeted[target.rank].add(task, target.soft);
+      woken = wake(target.rank);
+    }
+    if (target.soft && !woken) {
+      wakeAny();
+    }
+  }
+
+  /**
+   * Must be called by worker after running each task returned by
+   * {@link #waitForTask}.  Terminates queue after the last task.
+   */
+  public void taskDone() {
+    if (outstanding.decrementAndGet() == 0) {
+      terminated = true;
+      wakeAll();
+    }
+  }
+
   /**
-   * Personal non-targeted task queue (one per thread) 
-   * TODO: priorities
+   * Terminate queue early, e.g. after an error.  Workers waiting for
+   * tasks will get null.
    */
-  private final ArrayList<ArrayDeque<Task>> regular;
-  
-  
+  public void shutdown() {
+    terminated = true;
+    wakeAll();
+  }
+
   /**
-   * TODO: each thread should hold local reference to own deque
-   * @return a task, or null if nothing available
+   * @return a task, or null if nothing available right now
    */
-  public Task getTask(int threadNum) {
+  public Task getTask(int threadNum, Random random) {
     // Targeted have highest priority
-    Task res = targeted.get(threadNum).pollLast();
+    Task res = targeted[threadNum].poll();
+    if (res != null)
+      return res;
+
+    res = nodeTargeted[nodeOf(threadNum)].poll();
     if (res != null)
       return res;
-    
+
     // Next, try to see if something in local deque
-    ArrayDeque<Task> myDeque = regular.get(threadNum);
-    synchronized (myDeque) {
-      res = myDeque.pollLast();
-    }
+    res = regular[threadNum].pop();
+    if (res != null)
+      return res;
+
+    res = shared.poll();
+    if (res != null)
+      return res;
+
+    // Finally, steal work from other deques
+    if (numThreads == 1)
+      return null;
+    res = steal(threadNum, random);
     if (res != null)
       return res;
-    
-    // Finally, search other deques to steal work
-    // TODO: exit condition - detect idle, or go to sleep
-    Random r = new Random();
-    while (true) {
-      int deque = r.nextInt(numThreads - 1);
-      if (deque >= threadNum)
-        deque++;
-      
-      ArrayDeque<Task> otherDeque = regular.get(threadNum);
-      // Task from other end
-      synchronized (otherDeque) {
-        res = otherDeque.pollFirst();
+
+    if (softTargeted.get() > 0) {
+      return stealSoft(threadNum);
+    }
+    return null;
+  }
+
+  /**
+   * Steal soft targeted task targeted elsewhere that has waited long
+   * enough
+   */
+  private Task stealSoft(int threadNum) {
+    for (int i = 0; i < numThreads; i++) {
+      if (i != threadNum) {
+        Task res = targeted[i].steal(softStealDelayNs);
+        if (res != null)
+          return res;
+      }
+    }
+    int myNode = nodeOf(threadNum);
+    for (int i = 0; i < nodeTargeted.length; i++) {
+      if (i != myNode) {
+        Task res = nodeTargeted[i].steal(softStealDelayNs);
+        if (res != null)
+          return res;
+      }
+    }
+    return null;
+  }
+
+  private int nodeOf(int threadNum) {
+    return threadNum / threadsPerNode;
+  }
+
+  /**
+   * Steal highest priority task from other workers.  Makes one pass
+   * starting from random victim to find the highest priority, then
+   * steals it, falling back to any task if another thread got there
+   * first.
+   */
+  private Task steal(int threadNum, Random random) {
+    int start = random.nextInt(numThreads - 1);
+    int best = -1;
+    long bestPriority = PriorityDeques.EMPTY;
+    for (int i = 0; i < numThreads - 1; i++) {
+      int victim = victim(threadNum, start, i);
+      long prio = regular[victim].topPriority();
+      if (prio > bestPriority) {
+        best = victim;
+        bestPriority = prio;
       }
+    }
+    if (best < 0)
+      return null;
+
+    // Task from other end
+    Task res = regular[best].steal();
+    if (res != null)
+      return res;
+
+    for (int i = 0; i < numThreads - 1; i++) {
+      res = regular[victim(threadNum, start, i)].steal();
       if (res != null)
-        return res;      
+        return res;
+    }
+    return null;
+  }
+
+  /**
+   * @return i-th victim in sequence starting from start, skipping self
+   */
+  private int victim(int threadNum, int start, int i) {
+    int victim = (start + i) % (numThreads - 1);
+    if (victim >= threadNum)
+      victim++;
+    return victim;
+  }
+
+  /**
+   * Get a task, spinning and then parking until one is available.
+   * @return a task, or null once all work is done or after shutdown
+   */
+  public Task waitForTask(int threadNum, Random random) {
+    if (workers.get(threadNum) == null) {
+      workers.set(threadNum, Thread.currentThread());
+    }
+
+    int spins = 0;
+    while (!terminated) {
+      Task task = getTask(threadNum, random);
+      if (task != null) {
+        return task;
+      }
+
+      if (spins < IDLE_SPINS) {
+        spins++;
+        Thread.yield();
+      } else {
+        idleWait(threadNum);
+        spins = 0;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Mark worker as idle and park until woken by a new task or by
+   * termination.
+   *
+   * Idle flag is set before rechecking queues, and tasks are queued
+   * before checking for idle workers, so either this worker sees the
+   * new task, or the thread adding the task sees this worker is idle.
+   */
+  private void idleWait(int threadNum) {
+    idle.set(threadNum, IDLE);
+    numIdle.incrementAndGet();
+
+    if (hasWork(threadNum) || terminated) {
+      clearIdle(threadNum);
+      return;
+    }
+
+    if (softTargeted.get() > 0) {
+      // Wake up to check if soft targeted tasks can be stolen
+      LockSupport.parkNanos(this, Math.max(softStealDelayNs, 1));
+      clearIdle(threadNum);
+      return;
+    }
+
+    while (idle.get(threadNum) == IDLE && !terminated) {
+      LockSupport.park(this);
+    }
+  }
+
+  private void clearIdle(int threadNum) {
+    if (idle.compareAndSet(threadNum, IDLE, ACTIVE)) {
+      numIdle.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return true if work is queued that threadNum could run.  Only
+   *    checks whether queues are empty, so that the worker doesn't
+   *    hold a task while marked idle.
+   */
+  private boolean hasWork(int threadNum) {
+    if (!targeted[threadNum].isEmpty() ||
+        !nodeTargeted[nodeOf(threadNum)].isEmpty() || !shared.isEmpty()) {
+      return true;
+    }
+    for (PriorityDeques deque: regular) {
+      if (!deque.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wake one idle worker, if any
+   */
+  private void wakeAny() {
+    if (numIdle.get() == 0) {
+      return;
+    }
+    for (int i = 0; i < numThreads; i++) {
+      if (wake(i)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Wake one idle worker in node, if any
+   * @return true if a worker was woken
+   */
+  private boolean wakeNode(int node) {
+    int end = Math.min(numThreads, (node + 1) * threadsPerNode);
+    for (int i = node * threadsPerNode; i < end; i++) {
+      if (wake(i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wake worker if idle
+   * @return true if worker was idle
+   */
+  private boolean wake(int threadNum) {
+    if (idle.get(threadNum) == IDLE &&
+        idle.compareAndSet(threadNum, IDLE, ACTIVE)) {
+      numIdle.decrementAndGet();
+      LockSupport.unpark(workers.get(threadNum));
+      return true;
+    }
+    return false;
+  }
+
+  private void wakeAll() {
+    for (int i = 0; i < numThreads; i++) {
+      Thread t = workers.get(i);
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
     }
   }
-  
-  
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+/**
+ * Location to run a task at.  Ranks are worker thread numbers.  Node
+ * accuracy means any worker in the same node as the rank, where nodes
+ * are fixed-size groups of worker threads.
+ */
+public class TaskTarget {
+
+  public final int rank;
+
+  /**
+   * If true, may run elsewhere if target is busy
+   */
+  public final boolean soft;
+
+  /**
+   * If true, may run on any worker in same node as rank
+   */
+  public final boolean node;
+
+  public TaskTarget(int rank, boolean soft, boolean node) {
+    this.rank = rank;
+    this.soft = soft;
+    this.node = node;
+  }
+
+  @Override
+  public String toString() {
+    return "rank " + rank + " " + (soft ? "SOFT" : "HARD") + " " +
+           (node ? "NODE" : "RANK");
+  }
+}
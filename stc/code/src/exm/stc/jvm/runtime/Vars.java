@@ -1,64 +1,129 @@
 package exm.stc.jvm.runtime;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Vars {
   public static abstract class BaseVar {
     private final AtomicInteger writers;
-    
+
     public BaseVar(int writers) {
       this.writers = new AtomicInteger(writers);
+      if (writers <= 0) {
+        this.subscribers = CLOSED;
+      }
     }
-    
-    public void incrWriters(String fn, String varName, int amount) 
+
+    public void incrWriters(String fn, String varName, int amount)
         throws DoubleWriteException {
       if (amount == 0)
         return;
       long prev = writers.getAndAdd(amount);
       if (prev <= 0) {
-        throw new DoubleWriteException("Variable " + varName + 
+        throw new DoubleWriteException("Variable " + varName +
             " written after close in function " + fn + "!");
       }
-      long curr = prev - amount;
+      long curr = prev + amount;
       if (curr < 0) {
         JVMRuntime.getLogger().warn("Decremented " + varName + " below 0 "
-                    + " in function " + fn + " " + prev + " - " + amount);
+                    + " in function " + fn + " " + prev + " + " + amount);
       }
       if (curr <= 0) {
+        closed();
         notifyWaiters();
       }
     }
 
-    // TODO: more memory-efficient way?
-    // TODO: lock-free way?  AtomicReference?
-    ArrayList<NotifyTarget> notifications = null;
     /**
-     * 
+     * @return true if all writers are finished
+     */
+    public boolean isClosed() {
+      return writers.get() <= 0;
+    }
+
+    /**
+     * Hook called once when variable is closed, before subscribers are
+     * notified
+     */
+    protected void closed() throws DoubleWriteException {
+      // Do nothing by default
+    }
+
+    /**
+     * Subscribers to notify on close, as an immutable stack.  Null if
+     * none, CLOSED once notified.  Updated with CAS so subscribing doesn't
+     * lock, and uses a field updater to avoid allocating anything for
+     * variables without subscribers.
+     */
+    private volatile Subscriber subscribers;
+
+    private static final AtomicReferenceFieldUpdater<BaseVar, Subscriber>
+        SUBSCRIBERS = AtomicReferenceFieldUpdater.newUpdater(BaseVar.class,
+                                        Subscriber.class, "subscribers");
+
+    /**
+     * Sentinel marking that subscribers were notified
+     */
+    private static final Subscriber CLOSED = new Subscriber(null);
+
+    /**
+     *
      * @param target
      * @return true if subscribed, false if closed
      */
-    public synchronized boolean subscribe(NotifyTarget target) {
-      // TODO: I think this avoids race condition with notifications
-      if (writers.get() <= 0) {
+    public boolean subscribe(NotifyTarget target) {
+      Subscriber head = subscribers;
+      if (head == CLOSED) {
         return false;
       }
-      
-      if (notifications == null)
-        notifications = new ArrayList<NotifyTarget>();
-      notifications.add(target);
-      
-      return true;
+
+      Subscriber node = new Subscriber(target);
+      while (true) {
+        node.next = head;
+        if (SUBSCRIBERS.compareAndSet(this, head, node)) {
+          return true;
+        }
+        head = subscribers;
+        if (head == CLOSED) {
+          return false;
+        }
+      }
     }
-    
-    private synchronized void notifyWaiters() {
-      for (NotifyTarget t: notifications)
-        t.notifyFinal(this);
-      
-      notifications = null;
+
+    /**
+     * Notify subscribers.  Swapping in CLOSED ensures each is notified
+     * exactly once, and any later subscribe calls fail.
+     */
+    private void notifyWaiters() {
+      Subscriber s = SUBSCRIBERS.getAndSet(this, CLOSED);
+      while (s != null && s != CLOSED) {
+        s.target.notifyFinal(this);
+        s = s.next;
+      }
     }
   }
-  
+
+  private static class Subscriber {
+    final NotifyTarget target;
+
+    /**
+     * Only modified before node is published
+     */
+    Subscriber next;
+
+    Subscriber(NotifyTarget target) {
+      this.target = target;
+    }
+  }
+
   public static interface NotifyTarget {
     /**
      * Notify that var has been finalized
@@ -66,47 +131,88 @@ public class Vars {
      */
     public void notifyFinal(BaseVar var);
   }
-  
+
+  public static interface InsertListener {
+    /**
+     * Notify that member was inserted into container
+     * @param key
+     * @param value
+     */
+    public void inserted(Object key, Object value);
+  }
+
   public abstract static class ScalarVar extends BaseVar {
     public ScalarVar(int writers, boolean isSet) {
       super(writers);
       this.isSet = isSet;
     }
-    
+
     /**
      * Whether value is available
      */
     protected boolean isSet = false;
+
+    /**
+     * Check that value can be read.
+     * Should subscribe before reading, creating memory barrier
+     */
+    protected void checkRead(String fn, String varName)
+        throws InvalidReadException {
+      if (!isSet) {
+        throw new InvalidReadException(varName + " was read before writing "
+            + " in function " + fn);
+      }
+    }
+
+    /**
+     * Get value boxed as object, e.g. to store in container
+     */
+    public abstract Object getObject(String fn, String varName)
+        throws InvalidReadException;
+
+    /**
+     * Set value from boxed object, e.g. to copy from container
+     */
+    public abstract void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException;
+
+    /**
+     * Mark value as set.  Must be called after value is stored, and
+     * before writers are decremented
+     */
+    protected void markSet(String fn, String varName)
+        throws DoubleWriteException {
+      if (isSet) {
+        throw new DoubleWriteException("Variable " + varName +
+            " written twice in function " + fn + "!");
+      }
+      isSet = true;
+    }
   }
-  
+
   public static class IntVar extends ScalarVar {
     public IntVar(int writers) {
       super(writers, false);
     }
-    
+
     public IntVar(int writers, long value) {
       super(writers, true);
       this.value = value;
     }
 
     private long value;
-    
+
     public long get(String fn, String varName) throws InvalidReadException {
-      // Should subscribe before reading, creating memory barrier
-      if (isSet) {
-        return value;
-      } else {
-        throw new InvalidReadException(varName + " was read before writing " 
-            + " in function " + fn);
-      }
+      checkRead(fn, varName);
+      return value;
     }
-    
+
     /**
-     * 
+     *
      * @param fn
      * @param varName
      * @param value
-     * @throws DoubleWriteException 
+     * @throws DoubleWriteException
      */
     public void set(String fn, String varName, long value)
                                       throws DoubleWriteException {
@@ -116,7 +222,649 @@ public class Vars {
     public void set(String fn, String varName, long value,
                      int writersDecr) throws DoubleWriteException {
       this.value = value;
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, ((Number)value).longValue());
+    }
+  }
+
+  public static class FloatVar extends ScalarVar {
+    public FloatVar(int writers) {
+      super(writers, false);
+    }
+
+    public FloatVar(int writers, double value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private double value;
+
+    public double get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, double value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, double value,
+                     int writersDecr) throws DoubleWriteException {
+      this.value = value;
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, ((Number)value).doubleValue());
+    }
+  }
+
+  public static class BoolVar extends ScalarVar {
+    public BoolVar(int writers) {
+      super(writers, false);
+    }
+
+    public BoolVar(int writers, boolean value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private boolean value;
+
+    public boolean get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, boolean value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, boolean value,
+                     int writersDecr) throws DoubleWriteException {
+      this.value = value;
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, (Boolean)value);
+    }
+  }
+
+  public static class StringVar extends ScalarVar {
+    public StringVar(int writers) {
+      super(writers, false);
+    }
+
+    public StringVar(int writers, String value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private String value;
+
+    public String get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, String value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, String value,
+                     int writersDecr) throws DoubleWriteException {
+      this.value = value;
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, (String)value);
+    }
+  }
+
+  /**
+   * Binary data.  The array is not copied, so should not be modified
+   * after the variable is set.
+   */
+  public static class BlobVar extends ScalarVar {
+    public BlobVar(int writers) {
+      super(writers, false);
+    }
+
+    public BlobVar(int writers, byte[] value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private byte[] value;
+
+    public byte[] get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, byte[] value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, byte[] value,
+                     int writersDecr) throws DoubleWriteException {
+      this.value = value;
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, (byte[])value);
+    }
+  }
+
+  /**
+   * Variable with no value, used for signalling
+   */
+  public static class VoidVar extends ScalarVar {
+    public VoidVar(int writers) {
+      super(writers, false);
+    }
+
+    /**
+     * Placeholder for void value
+     */
+    public static final Boolean VOID_VALUE = Boolean.TRUE;
+
+    /**
+     * @return placeholder value once set
+     */
+    public boolean get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return true;
+    }
+
+    public void set(String fn, String varName)
+                                      throws DoubleWriteException {
+      set(fn, varName, 1);
+    }
+
+    public void set(String fn, String varName, int writersDecr)
+                                      throws DoubleWriteException {
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      get(fn, varName);
+      return VOID_VALUE;
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName);
+    }
+  }
+
+  /**
+   * File variable.  The filename can be known before the file is
+   * closed: the variable is set once the file has been written.
+   */
+  public static class FileVar extends ScalarVar {
+    /**
+     * @param filename filename, or null if a temporary filename should be
+     *                 assigned later
+     */
+    public FileVar(int writers, String filename) {
+      super(writers, false);
+      this.filename = filename;
+    }
+
+    private volatile String filename;
+
+    public synchronized String getFilename(String fn, String varName)
+        throws InvalidReadException {
+      if (filename == null) {
+        throw new InvalidReadException("Filename of " + varName +
+            " was read before being assigned in function " + fn);
+      }
+      return filename;
+    }
+
+    public synchronized void setFilename(String fn, String varName,
+        String filename) throws DoubleWriteException {
+      if (this.filename != null) {
+        throw new DoubleWriteException("Filename of " + varName +
+            " assigned twice in function " + fn + "!");
+      }
+      this.filename = filename;
+    }
+
+    public String get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return filename;
+    }
+
+    /**
+     * Mark file as written
+     */
+    public void set(String fn, String varName)
+        throws DoubleWriteException, InvalidReadException {
+      set(fn, varName, 1);
+    }
+
+    public void set(String fn, String varName, int writersDecr)
+        throws DoubleWriteException, InvalidReadException {
+      getFilename(fn, varName);
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    /**
+     * Set filename if not already assigned, and mark file as written
+     */
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      synchronized (this) {
+        if (filename == null) {
+          filename = (String)value;
+        }
+      }
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1);
+    }
+  }
+
+  /**
+   * Reference to another variable.  A reference to a container can hold
+   * write references to the container, which are released once the
+   * reference itself has no readers left.
+   */
+  public static class RefVar extends ScalarVar {
+    public RefVar(int writers) {
+      this(writers, 1);
+    }
+
+    public RefVar(int writers, int readers) {
+      super(writers, false);
+      this.readers = readers;
+    }
+
+    public RefVar(int writers, BaseVar value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private BaseVar value;
+
+    /**
+     * Read reference count.  Protected by lock on this.
+     */
+    private int readers = 1;
+
+    /**
+     * Write references held to value.  Protected by lock on this.
+     */
+    private int heldWriters = 0;
+
+    public BaseVar get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, BaseVar value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, BaseVar value,
+                     int writersDecr) throws DoubleWriteException {
+      this.value = value;
+      markSet(fn, varName);
       this.incrWriters(fn, varName, -1 * writersDecr);
     }
+
+    /**
+     * Set reference, passing in write references to value that this
+     * reference holds until it has no readers
+     * @param heldWriters write references passed in
+     */
+    public void setHolding(String fn, String varName, BaseVar value,
+                int heldWriters) throws DoubleWriteException {
+      boolean release;
+      synchronized (this) {
+        this.value = value;
+        release = readers <= 0;
+        if (!release) {
+          this.heldWriters = heldWriters;
+        }
+      }
+      if (release) {
+        // No readers left to write through reference
+        value.incrWriters(fn, varName, -heldWriters);
+      }
+      markSet(fn, varName);
+      this.incrWriters(fn, varName, -1);
+    }
+
+    public void incrReaders(String fn, String varName, int amount)
+        throws DoubleWriteException {
+      int release = 0;
+      BaseVar referand;
+      synchronized (this) {
+        readers += amount;
+        if (readers < 0) {
+          JVMRuntime.getLogger().warn("Decremented readers of " + varName +
+                        " below 0 in function " + fn + ": " + readers);
+        }
+        referand = value;
+        if (readers <= 0 && referand != null) {
+          release = heldWriters;
+          heldWriters = 0;
+        }
+      }
+      if (release > 0) {
+        referand.incrWriters(fn, varName, -release);
+      }
+    }
+
+    @Override
+    public Object getObject(String fn, String varName)
+        throws InvalidReadException {
+      return get(fn, varName);
+    }
+
+    @Override
+    public void setObject(String fn, String varName, Object value)
+        throws DoubleWriteException {
+      set(fn, varName, (BaseVar)value);
+    }
+  }
+
+  /**
+   * Associative container, e.g. array or bag.  Members are values or
+   * other variables.  Inserts can happen any time before the container
+   * is closed, and tasks can subscribe to particular keys being inserted,
+   * or to all inserts.
+   */
+  public static class ContainerVar extends BaseVar {
+    private final ConcurrentHashMap<Object, Object> members =
+                              new ConcurrentHashMap<Object, Object>();
+
+    /**
+     * Targets waiting for keys to be inserted.  Protected by lock on this.
+     */
+    private HashMap<Object, List<NotifyTarget>> keyWaiters = null;
+
+    /**
+     * Listeners for all inserts, copied on write so they can be notified
+     * outside lock.  Protected by lock on this.
+     */
+    private InsertListener insertListeners[] = null;
+
+    /**
+     * Nested containers created by createNested, which hold a write
+     * reference that is released when this container is closed.
+     * Protected by lock on this.
+     */
+    private List<ContainerVar> nested = null;
+
+    public ContainerVar(int writers) {
+      super(writers);
+    }
+
+    public void insert(String fn, String varName, Object key, Object value)
+        throws DoubleWriteException {
+      insert(fn, varName, key, value, 0);
+    }
+
+    /**
+     * @param writersDecr amount to decrement writers by after insert
+     */
+    public void insert(String fn, String varName, Object key, Object value,
+        int writersDecr) throws DoubleWriteException {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserted " + varName + "[" + key +
+            "] after close in function " + fn + "!");
+      }
+      if (add(key, value) != null) {
+        throw new DoubleWriteException("Inserted " + varName + "[" + key +
+            "] twice in function " + fn + "!");
+      }
+      incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    /**
+     * Get nested container at key, creating it if not present.  The
+     * nested container is closed once this container is closed and
+     * all caller write references are released.
+     * @param callerWriters write references to give to caller
+     */
+    public ContainerVar createNested(String fn, String varName, Object key,
+        int callerWriters) throws DoubleWriteException {
+      Object existing = members.get(key);
+      if (existing == null) {
+        ContainerVar created = new ContainerVar(1 + callerWriters);
+        existing = add(key, created);
+        if (existing == null) {
+          synchronized (this) {
+            if (nested == null) {
+              nested = new ArrayList<ContainerVar>();
+            }
+            nested.add(created);
+          }
+          return created;
+        }
+      }
+      if (!(existing instanceof ContainerVar)) {
+        throw new DoubleWriteException("Created nested container at " +
+            varName + "[" + key + "] but value was already inserted in " +
+            "function " + fn + "!");
+      }
+      ContainerVar result = (ContainerVar)existing;
+      result.incrWriters(fn, varName + "[" + key + "]", callerWriters);
+      return result;
+    }
+
+    public Object lookup(String fn, String varName, Object key)
+        throws InvalidReadException {
+      Object val = members.get(key);
+      if (val == null) {
+        throw new InvalidReadException(varName + "[" + key + "] was read " +
+            "before insertion in function " + fn);
+      }
+      return val;
+    }
+
+    /**
+     * @return value or null if not present
+     */
+    public Object tryLookup(Object key) {
+      return members.get(key);
+    }
+
+    public boolean containsKey(Object key) {
+      return members.containsKey(key);
+    }
+
+    public int size() {
+      return members.size();
+    }
+
+    /**
+     * @return view of members: should only be iterated over once closed
+     *         to get a consistent view
+     */
+    public Set<Map.Entry<Object, Object>> entries() {
+      return Collections.unmodifiableMap(members).entrySet();
+    }
+
+    /**
+     * Subscribe to key being inserted.  The target is also notified if
+     * the container is closed without the key being inserted.
+     * @return true if subscribed, false if already present or closed
+     */
+    public synchronized boolean subscribeKey(Object key,
+                                             NotifyTarget target) {
+      if (members.containsKey(key) || isClosed()) {
+        return false;
+      }
+
+      if (keyWaiters == null) {
+        keyWaiters = new HashMap<Object, List<NotifyTarget>>();
+      }
+      List<NotifyTarget> waiters = keyWaiters.get(key);
+      if (waiters == null) {
+        waiters = new ArrayList<NotifyTarget>(1);
+        keyWaiters.put(key, waiters);
+      }
+      waiters.add(target);
+      return true;
+    }
+
+    /**
+     * Subscribe to all inserts until container is closed.  The listener
+     * is notified of each key inserted after subscribing, and not of
+     * keys already present.
+     * @return keys present when subscribed
+     */
+    public synchronized List<Object> subscribeInserts(
+                                          InsertListener listener) {
+      List<Object> present = new ArrayList<Object>(members.keySet());
+      if (!isClosed()) {
+        if (insertListeners == null) {
+          insertListeners = new InsertListener[] {listener};
+        } else {
+          InsertListener next[] = Arrays.copyOf(insertListeners,
+                                          insertListeners.length + 1);
+          next[insertListeners.length] = listener;
+          insertListeners = next;
+        }
+      }
+      return present;
+    }
+
+    /**
+     * Add member if key not present, then notify waiters.  The member is
+     * added under the lock so that insert listeners see each key exactly
+     * once, either when subscribing or when notified.
+     * @return existing value, or null if added
+     */
+    private Object add(Object key, Object value) {
+      List<NotifyTarget> waiters = null;
+      InsertListener listeners[];
+      synchronized (this) {
+        Object existing = members.putIfAbsent(key, value);
+        if (existing != null) {
+          return existing;
+        }
+        if (keyWaiters != null) {
+          waiters = keyWaiters.remove(key);
+        }
+        listeners = insertListeners;
+      }
+      if (waiters != null) {
+        for (NotifyTarget t: waiters) {
+          t.notifyFinal(this);
+        }
+      }
+      if (listeners != null) {
+        for (InsertListener l: listeners) {
+          l.inserted(key, value);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    protected void closed() throws DoubleWriteException {
+      // Wake any waiters for keys that will never be inserted so that
+      // errors are detected on lookup
+      HashMap<Object, List<NotifyTarget>> remaining;
+      List<ContainerVar> toClose;
+      synchronized (this) {
+        remaining = keyWaiters;
+        keyWaiters = null;
+        insertListeners = null;
+        toClose = nested;
+        nested = null;
+      }
+      if (remaining != null) {
+        for (List<NotifyTarget> waiters: remaining.values()) {
+          for (NotifyTarget t: waiters) {
+            t.notifyFinal(this);
+          }
+        }
+      }
+      if (toClose != null) {
+        for (ContainerVar c: toClose) {
+          c.incrWriters("", "<nested container>", -1);
+        }
+      }
+    }
   }
 }
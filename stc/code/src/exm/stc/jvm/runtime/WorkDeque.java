@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free work-stealing deque, after Chase and Lev, "Dynamic Circular
+ * Work-Stealing Deque" (SPAA 2005).
+ *
+ * The owning thread pushes and pops at the bottom without locking;
+ * other threads steal from the top, racing with each other and the
+ * owner for the last task with a CAS on top.
+ *
+ * Relies on volatile accesses to top and bottom being sequentially
+ * consistent, which the Java memory model guarantees.
+ */
+public class WorkDeque {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * Index of next task to steal.  Only ever increases.
+   */
+  private final AtomicLong top = new AtomicLong(0);
+
+  /**
+   * Index one past last task pushed.  Only written by owner.
+   */
+  private volatile long bottom = 0;
+
+  private volatile Buffer buffer = new Buffer(INITIAL_CAPACITY);
+
+  /**
+   * Push task onto bottom.  Must only be called by owner.
+   */
+  public void push(Task task) {
+    long b = bottom;
+    long t = top.get();
+    Buffer buf = buffer;
+    if (b - t >= buf.capacity() - 1) {
+      buf = buf.grow(t, b);
+      buffer = buf;
+    }
+    buf.put(b, task);
+    bottom = b + 1;
+  }
+
+  /**
+   * Pop most recently pushed task.  Must only be called by owner.
+   * @return task, or null if empty
+   */
+  public Task pop() {
+    long b = bottom - 1;
+    Buffer buf = buffer;
+    bottom = b;
+    long t = top.get();
+    if (t > b) {
+      // Was empty
+      bottom = b + 1;
+      return null;
+    }
+
+    Task task = buf.get(b);
+    if (t == b) {
+      // Last task: race with thieves for it
+      if (!top.compareAndSet(t, t + 1)) {
+        task = null;
+      }
+      bottom = t + 1;
+    } else {
+      // Thieves only read slots below bottom, so safe to clear
+      buf.put(b, null);
+    }
+    return task;
+  }
+
+  /**
+   * Steal least recently pushed task.  May be called by any thread.
+   * @return task, or null if empty or lost race with another thread
+   */
+  public Task steal() {
+    long t = top.get();
+    long b = bottom;
+    if (t >= b) {
+      return null;
+    }
+    Task task = buffer.get(t);
+    if (!top.compareAndSet(t, t + 1)) {
+      return null;
+    }
+    return task;
+  }
+
+  /**
+   * @return true if deque appeared empty at some point during call
+   */
+  public boolean isEmpty() {
+    return top.get() >= bottom;
+  }
+
+  /**
+   * Circular array indexed by absolute position
+   */
+  private static class Buffer {
+    private final AtomicReferenceArray<Task> tasks;
+    private final int mask;
+
+    Buffer(int capacity) {
+      assert(Integer.bitCount(capacity) == 1);
+      this.tasks = new AtomicReferenceArray<Task>(capacity);
+      this.mask = capacity - 1;
+    }
+
+    int capacity() {
+      return mask + 1;
+    }
+
+    Task get(long i) {
+      return tasks.get((int)i & mask);
+    }
+
+    void put(long i, Task task) {
+      tasks.set((int)i & mask, task);
+    }
+
+    /**
+     * Copy tasks between top and bottom into buffer twice the size.
+     * Old buffer is left intact for thieves still reading it.
+     */
+    Buffer grow(long top, long bottom) {
+      Buffer bigger = new Buffer(capacity() * 2);
+      for (long i = top; i < bottom; i++) {
+        bigger.put(i, get(i));
+      }
+      return bigger;
+    }
+  }
+}
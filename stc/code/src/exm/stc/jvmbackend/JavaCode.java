@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.util.StackLite;
+
+/**
+ * Buffer for generated Java code that tracks indentation.  Constructs
+ * that enclose a block are started with open() and finished with close(),
+ * which adds the closing brace along with any trailing text, e.g. the
+ * remaining arguments of a call that the block was passed to.
+ */
+public class JavaCode {
+  private static final String INDENT = "  ";
+
+  private final StringBuilder code = new StringBuilder();
+
+  private int indent;
+
+  /**
+   * Text to add when closing each open block
+   */
+  private final StackLite<String> closers = new StackLite<String>();
+
+  public JavaCode(int indent) {
+    this.indent = indent;
+  }
+
+  public void line(String text) {
+    if (text.isEmpty()) {
+      code.append('\n');
+      return;
+    }
+    for (int i = 0; i < indent; i++) {
+      code.append(INDENT);
+    }
+    code.append(text).append('\n');
+  }
+
+  public void comment(String text) {
+    for (String commentLine: text.split("\n")) {
+      line("// " + commentLine);
+    }
+  }
+
+  /**
+   * Start block, e.g. open("if (x)") to start an if statement, or
+   * open("") to start a nested block
+   */
+  public void open(String head) {
+    open(head, "}");
+  }
+
+  /**
+   * @param closer text that ends the block, starting with closing brace
+   */
+  public void open(String head, String closer) {
+    line(head.isEmpty() ? "{" : head + " {");
+    closers.push(closer);
+    indent++;
+  }
+
+  public void close() {
+    if (closers.isEmpty()) {
+      throw new STCRuntimeError("No open block to close");
+    }
+    indent--;
+    line(closers.pop());
+  }
+
+  /**
+   * Continue construct with another block, e.g. an else branch
+   */
+  public void reopen(String head) {
+    indent--;
+    line("} " + head + " {");
+    indent++;
+  }
+
+  public int openBlocks() {
+    return closers.size();
+  }
+
+  @Override
+  public String toString() {
+    return code.toString();
+  }
+}
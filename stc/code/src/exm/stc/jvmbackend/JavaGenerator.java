@@ -0,0 +1,1856 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.LocalForeignFunction;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.Operators.UpdateMode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Redirects;
+import exm.stc.common.lang.RefCounting;
+import exm.stc.common.lang.RefCounting.RefCountType;
+import exm.stc.common.lang.RequiredPackage;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.PrimType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.Typed;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.SourceLoc;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.opt.TreeWalk;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
+
+/**
+ * Generate a Java class that runs the program on the multithreaded JVM
+ * runtime in exm.stc.jvm.runtime.
+ *
+ * Each Swift function becomes a static method, and each asynchronous
+ * construct (wait, rule, loop body) becomes an anonymous Task.  Java
+ * requires variables captured by anonymous classes to be final, so the
+ * variables passed into a task are copied to final locals beforehand, and
+ * restored under their original names inside the task.
+ *
+ * Write reference counts are tracked for all variables, but read
+ * reference counts only for references: they are only used by Turbine
+ * to free data, which the JVM garbage collects, except that freeing a
+ * reference releases write references it holds.
+ *
+ * Some features aren't implemented yet, e.g. files, structs, bags,
+ * local containers, checkpointing and app execution: generating code
+ * for these throws an error.
+ */
+public class JavaGenerator implements CompilerBackend {
+
+  private static final String RUNTIME = "rt";
+  /*
+   * Generated names start with a prefix that can't begin a variable name,
+   * since variable names all start with "v_"
+   */
+  private static final String TMP_PREFIX = "t$";
+  private static final String CAPTURE_PREFIX = "c$";
+  private static final String NEXTITER_PREFIX = "next$";
+  private static final String LOOP_COND = "loop$cond";
+
+  private final Logger logger;
+  private final String timestamp;
+
+  private ForeignFunctions foreignFuncs = null;
+
+  /**
+   * Static fields for global variables
+   */
+  private final JavaCode globalFields = new JavaCode(1);
+
+  /**
+   * Initialization of global variables at start of run
+   */
+  private final JavaCode globalInit = new JavaCode(2);
+
+  /**
+   * Methods of generated class, in order of generation
+   */
+  private final List<JavaCode> methods = new ArrayList<JavaCode>();
+
+  /**
+   * Stack of methods being generated.  Loop bodies are generated as
+   * separate methods while generating the enclosing function.
+   */
+  private final StackLite<JavaCode> pointStack = new StackLite<JavaCode>();
+
+  private final StackLite<FnID> functionStack = new StackLite<FnID>();
+
+  private final StackLite<EnclosingLoop> loopStack =
+                                      new StackLite<EnclosingLoop>();
+
+  private final StackLite<SwitchCases> switchStack =
+                                      new StackLite<SwitchCases>();
+
+  private final Set<String> usedMethodNames = new HashSet<String>();
+
+  /**
+   * Counter to generate unique names for temporaries
+   */
+  private int nextTmp = 0;
+
+  public JavaGenerator(Logger logger, String timestamp) {
+    this.logger = logger;
+    this.timestamp = timestamp;
+  }
+
+  @Override
+  public void initialize(CodeGenOptions options,
+                         ForeignFunctions foreignFuncs) {
+    this.foreignFuncs = foreignFuncs;
+  }
+
+  @Override
+  public void finalize() {
+    assert(pointStack.isEmpty()) : "Unfinished methods: " + pointStack.size();
+    assert(loopStack.isEmpty());
+    assert(switchStack.isEmpty());
+  }
+
+  @Override
+  public void generate(OutputStream out) throws IOException {
+    // Class is named after output file, or input file by default.  It
+    // isn't public, so the file can have a name that isn't a valid class
+    // name, e.g. 006-assert-1.java
+    String outputFile = Settings.get(Settings.OUTPUT_FILENAME);
+    if (outputFile.isEmpty()) {
+      outputFile = Settings.get(Settings.INPUT_FILENAME);
+    }
+    String className = JavaNamer.className(outputFile);
+    Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    w.write("// Generated by STC " + Settings.get(Settings.STC_VERSION) +
+            " at " + timestamp + "\n");
+    w.write("import exm.stc.jvm.runtime.*;\n");
+    w.write("import exm.stc.jvm.runtime.Loops.*;\n");
+    w.write("import exm.stc.jvm.runtime.Vars.*;\n");
+    w.write("\n");
+    w.write("class " + className + " {\n");
+    w.write(globalFields.toString());
+    w.write("\n");
+
+    JavaCode main = new JavaCode(1);
+    main.open("public static void main(String[] args) throws Exception");
+    main.line("run(new JVMRuntime(), args);");
+    main.close();
+    main.line("");
+    main.open("public static void run(final JVMRuntime " + RUNTIME +
+        ", String[] args) throws LogicException, InterruptedException");
+    w.write(main.toString());
+    w.write(globalInit.toString());
+    main = new JavaCode(2);
+    main.open(RUNTIME + ".run(new Task()", "});");
+    main.line("@Override");
+    main.open("public void run() throws LogicException");
+    main.line(JavaNamer.fnName(FnID.ENTRY_FUNCTION) + "(" + RUNTIME + ");");
+    main.close();
+    main.close();
+    w.write(main.toString());
+    w.write("  }\n");
+
+    for (JavaCode method: methods) {
+      w.write("\n");
+      w.write(method.toString());
+    }
+    w.write("}\n");
+    w.flush();
+  }
+
+  private JavaCode point() {
+    return pointStack.peek();
+  }
+
+  /**
+   * String literal with name of current function for error messages
+   */
+  private String fnLit() {
+    return JavaNamer.stringLiteral(functionStack.peek().originalName());
+  }
+
+  private static String varLit(Var var) {
+    return JavaNamer.stringLiteral(var.name());
+  }
+
+  private static String varName(Var var) {
+    return JavaNamer.varName(var);
+  }
+
+  private String uniqueTmp(String prefix) {
+    return TMP_PREFIX + prefix + (nextTmp++);
+  }
+
+  private String uniqueMethodName(String name) {
+    String unique = name;
+    int next = 1;
+    while (usedMethodNames.contains(unique)) {
+      unique = name + "$" + next;
+      next++;
+    }
+    usedMethodNames.add(unique);
+    return unique;
+  }
+
+  /**
+   * Error for language feature that can't be compiled to Java.  This is
+   * reported to the user, not as an internal error.
+   * @param where variable to get source location from, may be null
+   */
+  private UnsupportedFeatureException.Unchecked unsupported(String what,
+                                                          Var where) {
+    FnID function = functionStack.isEmpty() ? null : functionStack.peek();
+    return unsupported(what, where, function);
+  }
+
+  private UnsupportedFeatureException.Unchecked unsupported(String what) {
+    return unsupported(what, null);
+  }
+
+  private static UnsupportedFeatureException.Unchecked unsupported(
+                              String what, Var where, FnID function) {
+    String msg = what + " not supported by Java backend";
+    if (function != null) {
+      msg += " in function " + function.originalName();
+    }
+    SourceLoc loc = where == null ? null : sourceLoc(where);
+    UnsupportedFeatureException e;
+    if (loc != null) {
+      e = new UnsupportedFeatureException(loc.file, loc.line, loc.column,
+                                          msg);
+    } else {
+      e = new UnsupportedFeatureException(msg);
+    }
+    return new UnsupportedFeatureException.Unchecked(e);
+  }
+
+  /**
+   * Find source location of variable, or of variable it was derived
+   * from for compiler temporaries
+   * @return null if not known
+   */
+  private static SourceLoc sourceLoc(Var var) {
+    // Limit search in case of long chains of derived vars
+    for (int i = 0; i < 8 && var != null; i++) {
+      VarProvenance prov = var.provenance();
+      if (prov == null) {
+        return null;
+      }
+      if (prov.sourceLoc != null) {
+        return prov.sourceLoc;
+      }
+      var = (prov.predecessors == null || prov.predecessors.isEmpty()) ?
+            null : prov.predecessors.get(0);
+    }
+    return null;
+  }
+
+  /**
+   * Check for variable types that the Java backend doesn't support and
+   * that the optimizer can't handle in Java mode.  Containers of files
+   * are optimized differently without subscript aliases, which the
+   * optimizer doesn't implement correctly for files, so they must be
+   * rejected before optimization rather than during code generation.
+   */
+  public static void checkVarTypes(Logger logger, Program program)
+      throws UnsupportedFeatureException {
+    try {
+      for (Var global: program.globalVars().variables()) {
+        checkVarType(global, null);
+      }
+      for (final Function fn: program.functions()) {
+        for (Var arg: fn.getInputList()) {
+          checkVarType(arg, fn.id());
+        }
+        for (Var arg: fn.getOutputList()) {
+          checkVarType(arg, fn.id());
+        }
+        TreeWalk.walk(logger, fn, new TreeWalker() {
+          @Override
+          protected void visitDeclaration(Var declared) {
+            checkVarType(declared, fn.id());
+          }
+        });
+      }
+    } catch (UnsupportedFeatureException.Unchecked e) {
+      throw e.getCause();
+    }
+  }
+
+  private static void checkVarType(Var var, FnID function) {
+    Type type = var.type();
+    if (!Types.isArray(type)) {
+      return;
+    }
+    // Find innermost member type of nested containers
+    do {
+      type = Types.containerElemType(type);
+      if (Types.isRef(type)) {
+        type = Types.retrievedType(type);
+      }
+    } while (Types.isArray(type));
+
+    if (Types.isFile(type)) {
+      throw unsupported("Containers of files", var, function);
+    }
+  }
+
+  /**
+   * @return Java type used to represent variable of type
+   */
+  private static String javaType(Typed t) {
+    Type type = t.type();
+    if (Types.isScalarValue(type)) {
+      return valueType(type);
+    } else if (Types.isScalarFuture(type)) {
+      switch (primType(type)) {
+      case INT:
+        return "IntVar";
+      case FLOAT:
+        return "FloatVar";
+      case BOOL:
+        return "BoolVar";
+      case STRING:
+        return "StringVar";
+      case BLOB:
+        return "BlobVar";
+      case VOID:
+        return "VoidVar";
+      default:
+        throw unsupported("Type " + type.typeName(),
+                          t instanceof Var ? (Var)t : null, null);
+      }
+    } else if (Types.isArray(type)) {
+      return "ContainerVar";
+    } else if (Types.isRef(type)) {
+      return "RefVar";
+    } else {
+      throw unsupported("Type " + type.typeName(),
+                        t instanceof Var ? (Var)t : null, null);
+    }
+  }
+
+  private static PrimType primType(Type type) {
+    return type.getImplType().primType();
+  }
+
+  private static String valueType(Type type) {
+    switch (primType(type)) {
+    case INT:
+      return "long";
+    case FLOAT:
+      return "double";
+    case BOOL:
+    case VOID:
+      return "boolean";
+    case STRING:
+      return "String";
+    case BLOB:
+      return "byte[]";
+    default:
+      throw unsupported("Type " + type.typeName(), null, null);
+    }
+  }
+
+  /**
+   * @return Java type to cast container members of type to
+   */
+  private static String boxedType(Typed t) {
+    Type type = t.type();
+    if (Types.isScalarValue(type)) {
+      switch (primType(type)) {
+      case INT:
+        return "Long";
+      case FLOAT:
+        return "Double";
+      case BOOL:
+      case VOID:
+        return "Boolean";
+      default:
+        return valueType(type);
+      }
+    } else {
+      return javaType(type);
+    }
+  }
+
+  private static String defaultValue(Typed t) {
+    if (Types.isScalarValue(t)) {
+      switch (primType(t.type())) {
+      case INT:
+        return "0L";
+      case FLOAT:
+        return "0.0";
+      case BOOL:
+      case VOID:
+        return "false";
+      default:
+        return "null";
+      }
+    }
+    return "null";
+  }
+
+  private static String argExpr(Arg arg) {
+    switch (arg.getKind()) {
+    case INTVAL:
+      return JavaNamer.intLiteral(arg.getInt());
+    case FLOATVAL:
+      return JavaNamer.floatLiteral(arg.getFloat());
+    case STRINGVAL:
+      return JavaNamer.stringLiteral(arg.getString());
+    case BOOLVAL:
+      return Boolean.toString(arg.getBool());
+    case VAR:
+      return varName(arg.getVar());
+    default:
+      throw new STCRuntimeError("Unknown arg kind " + arg.getKind());
+    }
+  }
+
+  private static List<String> argExprs(List<Arg> args) {
+    List<String> exprs = new ArrayList<String>(args.size());
+    for (Arg arg: args) {
+      exprs.add(argExpr(arg));
+    }
+    return exprs;
+  }
+
+  /**
+   * Expression for integer argument, e.g. refcount, as a Java int
+   */
+  private static String intExpr(Arg arg) {
+    if (arg.isVar()) {
+      return "(int)" + varName(arg.getVar());
+    }
+    return Long.toString(arg.getInt());
+  }
+
+  private static String negIntExpr(Arg arg) {
+    if (arg.isVar()) {
+      return "-(int)" + varName(arg.getVar());
+    }
+    return Long.toString(-arg.getInt());
+  }
+
+  /**
+   * Expression for value of arg, retrieving the value if it is a closed
+   * future
+   */
+  private String valueExpr(Arg arg) {
+    if (arg.isVar()) {
+      Var var = arg.getVar();
+      if (Types.isScalarFuture(var)) {
+        return varName(var) + ".get(" + fnLit() + ", " + varLit(var) + ")";
+      } else if (!Types.isScalarValue(var)) {
+        // Only foreign functions on scalars are implemented
+        throw unsupported("Passing " + var.name() + " of type " +
+            var.type().typeName() + " to builtin or foreign function", var);
+      }
+    }
+    return argExpr(arg);
+  }
+
+  private static String join(List<String> strs) {
+    StringBuilder sb = new StringBuilder();
+    for (String s: strs) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  private static String varNames(Collection<Var> vars) {
+    List<String> names = new ArrayList<String>(vars.size());
+    for (Var var: vars) {
+      names.add(varName(var));
+    }
+    return join(names);
+  }
+
+  private static String params(Collection<Var> vars) {
+    List<String> params = new ArrayList<String>(vars.size());
+    for (Var var: vars) {
+      params.add(javaType(var) + " " + varName(var));
+    }
+    return join(params);
+  }
+
+  private static List<Var> argVars(Collection<Arg> args) {
+    List<Var> vars = new ArrayList<Var>();
+    for (Arg arg: args) {
+      if (arg.isVar()) {
+        vars.add(arg.getVar());
+      }
+    }
+    return vars;
+  }
+
+  /**
+   * Copy variables to final locals so they can be captured by a task.
+   * @return statements to restore the variables inside the task
+   */
+  private List<String> captureVars(Collection<Var> vars) {
+    List<String> restore = new ArrayList<String>();
+    for (Var var: new LinkedHashSet<Var>(vars)) {
+      if (var.storage().isGlobal()) {
+        // Accessible as static field
+        continue;
+      }
+      String type = javaType(var);
+      String name = varName(var);
+      String copy = CAPTURE_PREFIX + (nextTmp++) + "$" + name;
+      point().line("final " + type + " " + copy + " = " + name + ";");
+      restore.add(type + " " + name + " = " + copy + ";");
+    }
+    return restore;
+  }
+
+  private void startTask(Collection<Var> waitVars, Collection<Var> passIn) {
+    startTask(waitVars, passIn, null);
+  }
+
+  /**
+   * Start task that runs once wait variables are closed
+   * @param waitVars
+   * @param passIn variables used inside task
+   * @param props task properties, or null for defaults
+   */
+  private void startTask(Collection<Var> waitVars, Collection<Var> passIn,
+                         TaskProps props) {
+    List<String> restore = captureVars(passIn);
+    Set<Var> uniqueWaitVars = new LinkedHashSet<Var>(waitVars);
+    String priority = "";
+    if (props != null && props.get(TaskPropKey.PRIORITY) != null) {
+      priority = intExpr(props.get(TaskPropKey.PRIORITY)) + ", ";
+    }
+    JavaCode code = point();
+    if (uniqueWaitVars.isEmpty()) {
+      code.open(RUNTIME + ".spawn(" + priority + "new Task()", "});");
+    } else {
+      code.open(RUNTIME + ".rule(" + priority + "new Task()",
+                "}, " + varNames(uniqueWaitVars) + ");");
+    }
+    code.line("@Override");
+    code.open("public void run() throws LogicException");
+    for (String line: restore) {
+      code.line(line);
+    }
+  }
+
+  private void endTask() {
+    point().close();
+    point().close();
+  }
+
+  @Override
+  public void requirePackage(RequiredPackage pkg) {
+    // Tcl packages aren't needed: foreign functions are implemented
+    // in Java
+  }
+
+  @Override
+  public void addGlobalConst(Var var, Arg val) {
+    globalFields.line("private static final " + javaType(var) + " " +
+        varName(var) + " = new " + javaType(var) + "(0, " + argExpr(val) +
+        ");");
+  }
+
+  @Override
+  public void declareGlobalVars(List<VarDecl> vars) {
+    for (VarDecl decl: vars) {
+      assert(decl.var.storage() == Alloc.GLOBAL_VAR);
+      String type = javaType(decl.var);
+      globalFields.line("private static " + type + " " +
+                        varName(decl.var) + ";");
+      globalInit.line(varName(decl.var) + " = " +
+          newVarExpr(decl.var, decl.initReaders, decl.initWriters) + ";");
+    }
+  }
+
+  @Override
+  public void declareStructType(StructType structType) {
+    // Structs aren't supported: will fail if used
+  }
+
+  @Override
+  public void declareWorkType(WorkContext workType) {
+    // All tasks run in the same worker pool
+  }
+
+  @Override
+  public void defineForeignFunction(FnID id, FunctionType type,
+      LocalForeignFunction localImpl, WrappedForeignFunction wrappedImpl)
+      throws UserException {
+    // Implementations are looked up by name when called
+  }
+
+  @Override
+  public void startFunction(FnID id, List<Var> outArgs, List<Var> inArgs,
+                            ExecTarget mode) throws UserException {
+    List<Var> args = new ArrayList<Var>(outArgs.size() + inArgs.size());
+    args.addAll(outArgs);
+    args.addAll(inArgs);
+
+    String params = "final JVMRuntime " + RUNTIME;
+    if (!args.isEmpty()) {
+      params += ", " + params(args);
+    }
+
+    String methodName = JavaNamer.fnName(id);
+    usedMethodNames.add(methodName);
+
+    JavaCode method = new JavaCode(1);
+    methods.add(method);
+    method.open("private static void " + methodName + "(" + params +
+                ") throws LogicException");
+    pointStack.push(method);
+    functionStack.push(id);
+  }
+
+  @Override
+  public void endFunction() {
+    point().close();
+    assert(point().openBlocks() == 0);
+    pointStack.pop();
+    functionStack.pop();
+  }
+
+  @Override
+  public void declare(List<VarDecl> decls) {
+    for (VarDecl decl: decls) {
+      Var var = decl.var;
+      if (var.storage().isGlobal()) {
+        // Static field
+        continue;
+      }
+
+      String init;
+      if (var.storage() == Alloc.ALIAS) {
+        // Assigned later
+        init = "null";
+      } else if (Types.isScalarValue(var)) {
+        init = defaultValue(var);
+      } else {
+        init = newVarExpr(var, decl.initReaders, decl.initWriters);
+      }
+      point().line(javaType(var) + " " + varName(var) + " = " + init + ";");
+    }
+  }
+
+  private static String newVarExpr(Var var, Arg initReaders,
+                                   Arg initWriters) {
+    String writers = initWriters == null ? "1" : intExpr(initWriters);
+    if (Types.isRef(var) && initReaders != null) {
+      return "new " + javaType(var) + "(" + writers + ", " +
+             intExpr(initReaders) + ")";
+    }
+    return "new " + javaType(var) + "(" + writers + ")";
+  }
+
+  @Override
+  public void startNestedBlock() {
+    point().open("");
+  }
+
+  @Override
+  public void endNestedBlock() {
+    point().close();
+  }
+
+  @Override
+  public void startIfStatement(Arg condition, boolean hasElse) {
+    String cond = argExpr(condition);
+    if (condition.isImmInt()) {
+      cond = cond + " != 0";
+    }
+    point().open("if (" + cond + ")");
+  }
+
+  @Override
+  public void startElseBlock() {
+    point().reopen("else");
+  }
+
+  @Override
+  public void endIfStatement() {
+    point().close();
+  }
+
+  @Override
+  public void startSwitch(Arg switchVar, List<Integer> caseLabels,
+                          boolean hasDefault) {
+    assert(switchVar.isImmInt());
+    // Java doesn't support switch on long, so use if/else chain
+    SwitchCases cases = new SwitchCases(argExpr(switchVar), caseLabels,
+                                        hasDefault);
+    switchStack.push(cases);
+    if (cases.count() > 0) {
+      point().open(cases.caseHead());
+    }
+  }
+
+  @Override
+  public void endCase() {
+    SwitchCases cases = switchStack.peek();
+    cases.current++;
+    if (cases.current < cases.count()) {
+      String head = cases.caseHead();
+      point().reopen(head.isEmpty() ? "else" : "else " + head);
+    } else {
+      point().close();
+    }
+  }
+
+  @Override
+  public void endSwitch() {
+    switchStack.pop();
+  }
+
+  @Override
+  public void startForeachLoop(String loopName, Var container,
+      Var memberVar, Var loopCountVar, int splitDegree, int leafDegree,
+      boolean arrayClosed, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs) {
+    if (!Types.isArray(container)) {
+      throw unsupported("Foreach loop over " + container.type().typeName(), container);
+    }
+    assert(Types.isElemValType(container, memberVar));
+
+    List<String> restore;
+    if (arrayClosed) {
+      if (hasTrackedRefcounts(perIterIncrs)) {
+        String size = uniqueTmp("size");
+        point().line("final int " + size + " = " + varName(container) +
+                     ".size();");
+        handleRefcounts(constIncrs, perIterIncrs, size, false);
+      }
+
+      if (splitDegree <= 0) {
+        // Run in this task as plain loop, since body may reference any
+        // local variables in scope
+        String entry = uniqueTmp("entry");
+        JavaCode code = point();
+        code.open("for (java.util.Map.Entry<Object, Object> " + entry +
+                  ": " + varName(container) + ".entries())");
+        code.line(javaType(memberVar) + " " + varName(memberVar) + " = (" +
+                  boxedType(memberVar) + ")" + entry + ".getValue();");
+        if (loopCountVar != null) {
+          code.line(javaType(loopCountVar) + " " + varName(loopCountVar) +
+                    " = (" + boxedType(loopCountVar) + ")" + entry +
+                    ".getKey();");
+        }
+        return;
+      }
+
+      restore = captureVars(PassedVar.extractVars(passedVars));
+      point().open("Loops.foreach(" + RUNTIME + ", " + varName(container) +
+              ", " + splitDegree + ", " + leafDegree + ", new ForeachBody()",
+              "});");
+    } else {
+      restore = startForeachStream(container, splitDegree, leafDegree,
+                                   passedVars, perIterIncrs, constIncrs);
+    }
+
+    JavaCode code = point();
+    code.line("@Override");
+    code.open("public void run(Object key, Object value) " +
+              "throws LogicException");
+    for (String line: restore) {
+      code.line(line);
+    }
+    code.line(javaType(memberVar) + " " + varName(memberVar) + " = (" +
+              boxedType(memberVar) + ")value;");
+    if (loopCountVar != null) {
+      code.line(javaType(loopCountVar) + " " + varName(loopCountVar) +
+                " = (" + boxedType(loopCountVar) + ")key;");
+    }
+  }
+
+  /**
+   * Start loop that launches iterations as members are inserted.
+   * Refcounts for one iteration are held until the container is closed,
+   * so that they can be acquired for each batch as it is launched.
+   * @return lines to restore captured variables
+   */
+  private List<String> startForeachStream(Var container, int splitDegree,
+      int leafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs) {
+    boolean refcounts = hasTrackedRefcounts(perIterIncrs);
+    if (refcounts) {
+      handleRefcounts(constIncrs, perIterIncrs, "1", false);
+    }
+
+    List<String> restore = captureVars(PassedVar.extractVars(passedVars));
+    JavaCode code = point();
+    code.open("Loops.foreachStream(" + RUNTIME + ", " + varName(container) +
+              ", " + splitDegree + ", " + leafDegree + ", new StreamBody()",
+              "});");
+    code.line("@Override");
+    code.open("public void launch(int iters) throws LogicException");
+    if (refcounts) {
+      for (String line: restore) {
+        code.line(line);
+      }
+      handleRefcounts(null, perIterIncrs, "iters", false);
+    }
+    code.close();
+    code.line("@Override");
+    code.open("public void done() throws LogicException");
+    if (refcounts) {
+      for (String line: restore) {
+        code.line(line);
+      }
+      handleRefcounts(null, perIterIncrs, "1", true);
+    }
+    code.close();
+    return restore;
+  }
+
+  @Override
+  public void endForeachLoop(int splitDegree, boolean arrayClosed,
+                             List<RefCount> perIterDecrs) {
+    if (arrayClosed && splitDegree <= 0) {
+      point().close();
+      return;
+    }
+    endLoopBody(splitDegree, perIterDecrs);
+  }
+
+  @Override
+  public void startRangeLoop(String loopName, Var loopVar, Var countVar,
+      Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+    if (countVar != null) {
+      throw unsupported("Counter variable in range loop", loopVar);
+    }
+    if (!start.isImmInt()) {
+      throw unsupported("Range loop over " + start.type().typeName(), loopVar);
+    }
+
+    String startE = argExpr(start);
+    String endE = argExpr(end);
+    String incrE = argExpr(increment);
+    if (splitDegree <= 0) {
+      // Run in this task as plain loop, since body may reference any
+      // local variables in scope
+      String iters = uniqueTmp("iters");
+      String index = uniqueTmp("i");
+      JavaCode code = point();
+      code.line("final long " + iters + " = Loops.rangeIters(" +
+            fnLit() + ", " + startE + ", " + endE + ", " + incrE + ");");
+      if (hasTrackedRefcounts(perIterIncrs)) {
+        handleRefcounts(constIncrs, perIterIncrs, iters, false);
+      }
+      code.open("for (long " + index + " = 0; " + index + " < " + iters +
+                "; " + index + "++)");
+      code.line("long " + varName(loopVar) + " = " + startE + " + " +
+                index + " * " + incrE + ";");
+      return;
+    }
+
+    if (hasTrackedRefcounts(perIterIncrs)) {
+      String iters = uniqueTmp("iters");
+      point().line("final long " + iters + " = Loops.rangeIters(" +
+            fnLit() + ", " + startE + ", " + endE + ", " + incrE + ");");
+      handleRefcounts(constIncrs, perIterIncrs, iters, false);
+    }
+
+    List<String> restore = captureVars(PassedVar.extractVars(passedVars));
+    JavaCode code = point();
+    code.open("Loops.range(" + RUNTIME + ", " + fnLit() + ", " + startE +
+              ", " + endE + ", " + incrE + ", " + splitDegree + ", " +
+              leafDegree + ", new RangeBody()", "});");
+    code.line("@Override");
+    code.open("public void run(long " + varName(loopVar) +
+              ") throws LogicException");
+    for (String line: restore) {
+      code.line(line);
+    }
+  }
+
+  @Override
+  public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrs) {
+    if (splitDegree <= 0) {
+      point().close();
+      return;
+    }
+    endLoopBody(splitDegree, perIterDecrs);
+  }
+
+  private void endLoopBody(int splitDegree, List<RefCount> perIterDecrs) {
+    if (splitDegree > 0) {
+      // Release refcounts held by this iteration
+      handleRefcounts(null, perIterDecrs, "1", true);
+    }
+    point().close();
+    point().close();
+  }
+
+  /**
+   * @return true if refcount is tracked at runtime
+   */
+  private static boolean trackedRefcount(Var var, RefCountType type) {
+    if (type == RefCountType.WRITERS) {
+      return RefCounting.trackWriteRefCount(var);
+    } else {
+      return Types.isRef(var) && RefCounting.trackReadRefCount(var);
+    }
+  }
+
+  private static String incrMethod(RefCountType type) {
+    return type == RefCountType.WRITERS ? "incrWriters" : "incrReaders";
+  }
+
+  private static boolean hasTrackedRefcounts(List<RefCount> refcounts) {
+    for (RefCount rc: refcounts) {
+      if (trackedRefcount(rc.var, rc.type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Modify refcounts for loop
+   * @param constIncrs constant increments to add to multiplied increments
+   * @param multipliedIncrs increments to multiply
+   * @param multiplier expression for multiplier
+   */
+  private void handleRefcounts(ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> multipliedIncrs, String multiplier, boolean decrement) {
+    for (RefCount rc: multipliedIncrs) {
+      if (!trackedRefcount(rc.var, rc.type)) {
+        continue;
+      }
+      StringBuilder amount = new StringBuilder();
+      amount.append(multiplier).append(" * ").append(argExpr(rc.amount));
+      if (constIncrs != null) {
+        for (RefCount constRC: constIncrs.get(rc.var)) {
+          if (constRC.type == rc.type) {
+            amount.append(" + ").append(argExpr(constRC.amount));
+          }
+        }
+      }
+      point().line(varName(rc.var) + "." + incrMethod(rc.type) + "(" +
+          fnLit() + ", " + varLit(rc.var) + ", " + (decrement ? "-" : "") +
+          "(int)(" + amount + "));");
+    }
+  }
+
+  @Override
+  public void startWaitStatement(String procName, List<Var> waitVars,
+      List<Var> usedVars, boolean recursive, ExecTarget target,
+      TaskProps props) {
+    if (recursive) {
+      for (Var waitVar: waitVars) {
+        if (!Types.isScalarFuture(waitVar) && !(Types.isArray(waitVar) &&
+            Types.isScalarValue(Types.containerElemValType(waitVar)))) {
+          throw unsupported("Recursive wait on " +
+                            waitVar.type().typeName(), waitVar);
+        }
+      }
+    }
+    point().comment(procName);
+    startTask(waitVars, usedVars, props);
+  }
+
+  @Override
+  public void endWaitStatement() {
+    endTask();
+  }
+
+  @Override
+  public void startAsyncExec(String procName, List<Var> passIn,
+      AsyncExecutor executor, Arg cmdName, List<Var> taskOutputs,
+      List<Arg> taskArgs, Map<String, Arg> taskProps,
+      boolean hasContinuation) {
+    throw unsupported("Async executor " + executor);
+  }
+
+  @Override
+  public void endAsyncExec(boolean hasContinuation) {
+    throw unsupported("Async executors");
+  }
+
+  @Override
+  public void startLoop(String loopName, List<Var> loopVars,
+      List<Arg> initVals, List<Var> usedVariables, List<Var> initWaitVars,
+      boolean simpleLoop) {
+    assert(initWaitVars.isEmpty() || !simpleLoop) : initWaitVars;
+    String methodName = uniqueMethodName(JavaNamer.loopName(loopName));
+
+    // Start first iteration
+    callLoop(methodName, initVals, usedVariables, initWaitVars);
+
+    List<Var> params = new ArrayList<Var>(loopVars);
+    params.addAll(usedVariables);
+
+    JavaCode method = new JavaCode(1);
+    methods.add(method);
+    method.open("private static void " + methodName + "(final JVMRuntime " +
+                RUNTIME + ", " + params(params) + ") throws LogicException");
+    pointStack.push(method);
+
+    if (simpleLoop) {
+      // Run iterations immediately in a while loop
+      for (Var loopVar: loopVars) {
+        method.line(javaType(loopVar) + " " + nextIterName(loopVar) +
+                    " = " + defaultValue(loopVar) + ";");
+      }
+      method.line("boolean " + LOOP_COND + " = true;");
+      method.open("while (" + LOOP_COND + ")");
+    }
+
+    loopStack.push(new EnclosingLoop(methodName, simpleLoop, loopVars));
+  }
+
+  /**
+   * Run iteration of loop once wait variables are closed
+   */
+  private void callLoop(String methodName, List<Arg> loopVals,
+                        List<Var> usedVariables, List<Var> waitVars) {
+    List<Var> passIn = argVars(loopVals);
+    passIn.addAll(usedVariables);
+
+    List<String> args = new ArrayList<String>();
+    args.add(RUNTIME);
+    args.addAll(argExprs(loopVals));
+    for (Var used: usedVariables) {
+      args.add(varName(used));
+    }
+
+    startTask(waitVars, passIn);
+    point().line(methodName + "(" + join(args) + ");");
+    endTask();
+  }
+
+  /**
+   * @return name of variable holding value of loop var for next iteration
+   */
+  private static String nextIterName(Var loopVar) {
+    return NEXTITER_PREFIX + varName(loopVar);
+  }
+
+  @Override
+  public void loopContinue(List<Arg> newVals, List<Var> usedVariables,
+                           List<Boolean> blockingVars) {
+    EnclosingLoop loop = loopStack.peek();
+    assert(loop.loopVars.size() == newVals.size());
+    if (loop.simpleLoop) {
+      assert(blockingVars.indexOf(true) == -1) : newVals + " " + blockingVars;
+      for (int i = 0; i < newVals.size(); i++) {
+        point().line(nextIterName(loop.loopVars.get(i)) + " = " +
+                     argExpr(newVals.get(i)) + ";");
+      }
+    } else {
+      List<Var> waitVars = new ArrayList<Var>();
+      for (int i = 0; i < newVals.size(); i++) {
+        Arg newVal = newVals.get(i);
+        if (blockingVars.get(i) && newVal.isVar()) {
+          waitVars.add(newVal.getVar());
+        }
+      }
+      callLoop(loop.methodName, newVals, usedVariables, waitVars);
+    }
+  }
+
+  @Override
+  public void loopBreak(List<Var> loopUsedVars, List<Var> keepOpenVars) {
+    if (loopStack.peek().simpleLoop) {
+      // Exit while loop after rest of body
+      point().line(LOOP_COND + " = false;");
+    }
+    // Otherwise no further iterations are started
+  }
+
+  @Override
+  public void endLoop() {
+    EnclosingLoop loop = loopStack.pop();
+    JavaCode method = point();
+    if (loop.simpleLoop) {
+      method.open("if (" + LOOP_COND + ")");
+      for (Var loopVar: loop.loopVars) {
+        method.line(varName(loopVar) + " = " + nextIterName(loopVar) + ";");
+      }
+      method.close();
+      method.close(); // while loop
+    }
+    method.close();
+    assert(method.openBlocks() == 0);
+    pointStack.pop();
+  }
+
+  @Override
+  public void addComment(String comment) {
+    // Avoid unicode escapes, which are processed even in comments
+    point().comment(comment.replace("\\u", "\\ u"));
+  }
+
+  @Override
+  public void modifyRefCounts(List<DirRefCount> refcounts) {
+    for (DirRefCount rc: refcounts) {
+      if (trackedRefcount(rc.var, rc.type)) {
+        String amount = rc.dir == RCDir.INCR ? intExpr(rc.amount)
+                                             : negIntExpr(rc.amount);
+        point().line(varName(rc.var) + "." + incrMethod(rc.type) + "(" +
+            fnLit() + ", " + varLit(rc.var) + ", " + amount + ");");
+      }
+    }
+  }
+
+  @Override
+  public void localOp(BuiltinOpcode op, Var out, List<Arg> in) {
+    String expr = JavaOps.localOpExpr(op, in, argExprs(in));
+    if (JavaOps.isStatementOp(op)) {
+      point().line(expr + ";");
+      if (out != null) {
+        point().line(varName(out) + " = true;");
+      }
+    } else {
+      point().line(varName(out) + " = " + expr + ";");
+    }
+  }
+
+  @Override
+  public void asyncOp(BuiltinOpcode op, Var out, List<Arg> in,
+                      TaskProps props) {
+    List<String> argExprs = new ArrayList<String>(in.size());
+    for (Arg arg: in) {
+      argExprs.add(valueExpr(arg));
+    }
+    String expr = JavaOps.localOpExpr(op, in, argExprs);
+    List<Var> outputs = new ArrayList<Var>();
+    if (out != null) {
+      outputs.add(out);
+    }
+    asyncCompute(outputs, in, expr, JavaOps.isStatementOp(op), props);
+  }
+
+  /**
+   * Compute outputs once inputs are closed
+   * @param expr expression computing output from input values
+   * @param statement if expr is executed for side effects, in which case
+   *                  the outputs are void
+   * @param props task properties
+   */
+  private void asyncCompute(List<Var> outputs, List<Arg> inputs,
+                      String expr, boolean statement, TaskProps props) {
+    List<Var> passIn = argVars(inputs);
+    passIn.addAll(outputs);
+    List<Var> waitVars = new ArrayList<Var>();
+    for (Var in: argVars(inputs)) {
+      if (Types.isScalarFuture(in)) {
+        waitVars.add(in);
+      }
+    }
+    startTask(waitVars, passIn, props);
+    if (statement) {
+      point().line(expr + ";");
+      for (Var out: outputs) {
+        point().line(setExpr(out, null) + ";");
+      }
+    } else {
+      assert(outputs.size() == 1) : outputs;
+      point().line(setExpr(outputs.get(0), expr) + ";");
+    }
+    endTask();
+  }
+
+  /**
+   * @param value expression for value, ignored for void variables
+   */
+  private String setExpr(Var future, String value) {
+    String args = fnLit() + ", " + varLit(future);
+    if (Types.isVoid(future) || value == null) {
+      return varName(future) + ".set(" + args + ")";
+    }
+    return varName(future) + ".set(" + args + ", " + value + ")";
+  }
+
+  @Override
+  public void callForeignFunctionLocal(FnID id, List<Var> outputs,
+                                       List<Arg> inputs) {
+    if (foreignFuncs.hasOpEquiv(id)) {
+      assert(outputs.size() <= 1) : outputs;
+      localOp(foreignFuncs.getOpEquiv(id),
+              outputs.isEmpty() ? null : outputs.get(0), inputs);
+      return;
+    }
+
+    String name = id.originalName();
+    String expr = foreignFunctionExpr(name, inputs, argExprs(inputs));
+    if (JavaOps.isStatementFunction(name)) {
+      point().line(expr + ";");
+      for (Var out: outputs) {
+        point().line(varName(out) + " = true;");
+      }
+    } else {
+      assert(outputs.size() == 1) : outputs;
+      point().line(varName(outputs.get(0)) + " = " + expr + ";");
+    }
+  }
+
+  @Override
+  public void callForeignFunctionWrapped(FnID id, List<Var> outputs,
+                                         List<Arg> inputs, TaskProps props) {
+    List<String> argExprs = new ArrayList<String>(inputs.size());
+    for (Arg arg: inputs) {
+      argExprs.add(valueExpr(arg));
+    }
+
+    if (foreignFuncs.hasOpEquiv(id)) {
+      BuiltinOpcode op = foreignFuncs.getOpEquiv(id);
+      asyncCompute(outputs, inputs, JavaOps.localOpExpr(op, inputs,
+                   argExprs), JavaOps.isStatementOp(op), props);
+    } else {
+      String name = id.originalName();
+      asyncCompute(outputs, inputs,
+                   foreignFunctionExpr(name, inputs, argExprs),
+                   JavaOps.isStatementFunction(name), props);
+    }
+  }
+
+  private static String foreignFunctionExpr(String name, List<Arg> inputs,
+                                            List<String> argExprs) {
+    String expr = JavaOps.foreignFunctionExpr(name, inputs, argExprs);
+    if (expr == null) {
+      throw unsupported("Foreign function " + name, null, null);
+    }
+    return expr;
+  }
+
+  @Override
+  public void functionCall(FnID id, List<Var> outputs, List<Arg> inputs,
+      List<Boolean> blockOn, ExecTarget mode, TaskProps props) {
+    List<String> args = new ArrayList<String>();
+    args.add(RUNTIME);
+    for (Var out: outputs) {
+      args.add(varName(out));
+    }
+    args.addAll(argExprs(inputs));
+    String call = JavaNamer.fnName(id) + "(" + join(args) + ");";
+
+    if (mode.isAsync()) {
+      List<Var> waitVars = new ArrayList<Var>();
+      for (int i = 0; i < inputs.size(); i++) {
+        Arg input = inputs.get(i);
+        if (input.isVar() && blockOn.get(i)) {
+          waitVars.add(input.getVar());
+        }
+      }
+      List<Var> passIn = new ArrayList<Var>(outputs);
+      passIn.addAll(argVars(inputs));
+
+      startTask(waitVars, passIn, props);
+      point().line(call);
+      endTask();
+    } else {
+      point().line(call);
+    }
+  }
+
+  @Override
+  public void execExternal(Arg cmd, List<Arg> args, List<Var> outFiles,
+      List<Arg> inFiles, Redirects<Arg> redirects, boolean hasSideEffects,
+      boolean deterministic) {
+    throw unsupported("App execution");
+  }
+
+  @Override
+  public void assignScalar(Var dst, Arg src) {
+    assert(Types.isScalarFuture(dst));
+    point().line(setExpr(dst, argExpr(src)) + ";");
+  }
+
+  @Override
+  public void retrieveScalar(Var dst, Var src, Arg decr) {
+    assert(Types.isScalarValue(dst));
+    point().line(varName(dst) + " = " + valueExpr(src.asArg()) + ";");
+  }
+
+  @Override
+  public void assignFile(Var dst, Arg src, Arg setFilename) {
+    throw unsupported("Files", dst);
+  }
+
+  @Override
+  public void retrieveFile(Var dst, Var src, Arg decr) {
+    throw unsupported("Files", dst);
+  }
+
+  @Override
+  public void assignReference(Var dst, Var src, long readRefs,
+                              long writeRefs) {
+    // Reference holds write refs until it is freed
+    point().line(varName(dst) + ".setHolding(" + fnLit() + ", " +
+        varLit(dst) + ", " + varName(src) + ", " + writeRefs + ");");
+  }
+
+  @Override
+  public void retrieveReference(Var dst, Var src, Arg acquireRead,
+                                Arg acquireWrite, Arg decr) {
+    point().line(varName(dst) + " = (" + javaType(dst) + ")" + varName(src) +
+        ".get(" + fnLit() + ", " + varLit(src) + ");");
+    if (!acquireRead.equals(Arg.ZERO) &&
+        trackedRefcount(dst, RefCountType.READERS)) {
+      point().line(varName(dst) + ".incrReaders(" + fnLit() + ", " +
+                   varLit(dst) + ", " + intExpr(acquireRead) + ");");
+    }
+    if (!acquireWrite.equals(Arg.ZERO) &&
+        RefCounting.trackWriteRefCount(dst)) {
+      // Caller will release acquired write refs
+      point().line(varName(dst) + ".incrWriters(" + fnLit() + ", " +
+                   varLit(dst) + ", " + intExpr(acquireWrite) + ");");
+    }
+    if (!decr.equals(Arg.ZERO) &&
+        trackedRefcount(src, RefCountType.READERS)) {
+      point().line(varName(src) + ".incrReaders(" + fnLit() + ", " +
+                   varLit(src) + ", " + negIntExpr(decr) + ");");
+    }
+  }
+
+  @Override
+  public void assignArray(Var dst, Arg src) {
+    throw unsupported("Local arrays", dst);
+  }
+
+  @Override
+  public void retrieveArray(Var dst, Var src, Arg decr) {
+    throw unsupported("Local arrays", dst);
+  }
+
+  @Override
+  public void assignBag(Var dst, Arg src) {
+    throw unsupported("Bags", dst);
+  }
+
+  @Override
+  public void retrieveBag(Var dst, Var src, Arg decr) {
+    throw unsupported("Bags", dst);
+  }
+
+  @Override
+  public void assignStruct(Var dst, Arg src) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void retrieveStruct(Var target, Var src, Arg decr) {
+    throw unsupported("Structs", target);
+  }
+
+  @Override
+  public void assignArrayRecursive(Var dst, Arg src) {
+    throw unsupported("Local arrays", dst);
+  }
+
+  @Override
+  public void assignStructRecursive(Var dst, Arg src) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void assignBagRecursive(Var dst, Arg src) {
+    throw unsupported("Bags", dst);
+  }
+
+  @Override
+  public void retrieveArrayRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("Local arrays", dst);
+  }
+
+  @Override
+  public void retrieveStructRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void retrieveBagRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("Bags", dst);
+  }
+
+  @Override
+  public void unpackArrayToFlat(Var flatLocalArray, Arg inputArray) {
+    throw unsupported("Local arrays", flatLocalArray);
+  }
+
+  @Override
+  public void dereferenceScalar(Var dst, Var src) {
+    point().line("Ops.dereference(" + RUNTIME + ", " + fnLit() + ", " +
+        varLit(src) + ", " + varName(dst) + ", " + varName(src) + ");");
+  }
+
+  @Override
+  public void dereferenceFile(Var dst, Var src) {
+    throw unsupported("Files", dst);
+  }
+
+  @Override
+  public void makeAlias(Var dst, Var src) {
+    assert(dst.storage() == Alloc.ALIAS);
+    point().line(varName(dst) + " = " + varName(src) + ";");
+  }
+
+  @Override
+  public void asyncCopy(Var dst, Var src) {
+    if (!Types.isScalarFuture(src) && !Types.isRef(src)) {
+      throw unsupported("Copy of " + src.type().typeName(), dst);
+    }
+    point().line("Ops.copy(" + RUNTIME + ", " + fnLit() + ", " +
+        varLit(src) + ", " + varName(dst) + ", " + varName(src) + ");");
+  }
+
+  @Override
+  public void syncCopy(Var dst, Var src) {
+    if (!Types.isScalarFuture(src) && !Types.isRef(src)) {
+      throw unsupported("Copy of " + src.type().typeName(), dst);
+    }
+    point().line(varName(dst) + ".setObject(" + fnLit() + ", " +
+        varLit(dst) + ", " + varName(src) + ".getObject(" + fnLit() + ", " +
+        varLit(src) + "));");
+  }
+
+  @Override
+  public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
+                               List<Arg> fieldVals) {
+    throw unsupported("Structs", struct);
+  }
+
+  @Override
+  public void decrLocalFileRefCount(Var fileVal) {
+    throw unsupported("Files", fileVal);
+  }
+
+  @Override
+  public void freeBlob(Var blobval) {
+    // Garbage collected
+  }
+
+  @Override
+  public void getFileNameAlias(Var filename, Var file) {
+    throw unsupported("Files", filename);
+  }
+
+  @Override
+  public void copyInFilename(Var file, Var filename) {
+    throw unsupported("Files", file);
+  }
+
+  @Override
+  public void getLocalFileName(Var filename, Var file) {
+    throw unsupported("Files", filename);
+  }
+
+  @Override
+  public void isMapped(Var isMapped, Var file) {
+    throw unsupported("Files", isMapped);
+  }
+
+  @Override
+  public void chooseTmpFilename(Var filenameVal) {
+    throw unsupported("Files", filenameVal);
+  }
+
+  @Override
+  public void initLocalOutputFile(Var localFile, Arg filenameVal,
+                                  Arg isMapped) {
+    throw unsupported("Files", localFile);
+  }
+
+  @Override
+  public void getFilenameVal(Var filenameVal, Var file) {
+    throw unsupported("Files", filenameVal);
+  }
+
+  @Override
+  public void setFilenameVal(Var file, Arg filenameVal) {
+    throw unsupported("Files", file);
+  }
+
+  @Override
+  public void copyFileContents(Var dst, Var src) {
+    throw unsupported("Files", dst);
+  }
+
+  @Override
+  public void structCreateAlias(Var dst, Var struct, List<String> fields) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void structRetrieveSub(Var dst, Var struct, List<String> fields,
+                                Arg decr) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void structCopyOut(Var dst, Var struct, List<String> fields) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void structRefCopyOut(Var dst, Var struct, List<String> fields) {
+    throw unsupported("Structs", dst);
+  }
+
+  @Override
+  public void structStore(Var struct, List<String> fields, Arg src) {
+    throw unsupported("Structs", struct);
+  }
+
+  @Override
+  public void structCopyIn(Var struct, List<String> fields, Var src) {
+    throw unsupported("Structs", struct);
+  }
+
+  @Override
+  public void structRefStoreSub(Var structRef, List<String> fields,
+                                Arg src) {
+    throw unsupported("Structs", structRef);
+  }
+
+  @Override
+  public void structRefCopyIn(Var structRef, List<String> fields,
+                              Var src) {
+    throw unsupported("Structs", structRef);
+  }
+
+  @Override
+  public void structCreateNested(Var result, Var struct,
+      List<String> fields, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    throw unsupported("Structs", result);
+  }
+
+  @Override
+  public void arrayCreateAlias(Var dst, Var array, Arg key) {
+    // Container members are stored by value in the Java runtime, so there
+    // is nothing to alias.  Unimplemented.subscriptAliasSupported() stops
+    // the optimizer from creating these for this backend.
+    throw new STCRuntimeError("Array member alias " + dst.name() +
+                              " not expected in Java backend");
+  }
+
+
+  @Override
+  public void arrayRetrieve(Var dst, Var array, Arg key, Arg decr,
+                            Arg acquire) {
+    assert(Types.isElemValType(array, dst));
+    point().line(varName(dst) + " = (" + boxedType(dst) + ")" +
+        varName(array) + ".lookup(" + fnLit() + ", " + varLit(array) +
+        ", " + argExpr(key) + ");");
+  }
+
+  @Override
+  public void arrayCopyOutImm(Var dst, Var array, Arg key) {
+    arrayOp("arrayCopyOut", array, argExpr(key), varName(dst));
+  }
+
+  @Override
+  public void arrayCopyOutFuture(Var dst, Var array, Var key) {
+    arrayOp("arrayCopyOutFuture", array, varName(key), varName(dst));
+  }
+
+  @Override
+  public void arrayRefCopyOutImm(Var dst, Var array, Arg key) {
+    arrayOp("arrayRefCopyOut", array, argExpr(key), varName(dst));
+  }
+
+  @Override
+  public void arrayRefCopyOutFuture(Var dst, Var array, Var key) {
+    arrayOp("arrayRefCopyOutFuture", array, varName(key), varName(dst));
+  }
+
+  /**
+   * Call asynchronous array operation in Ops
+   */
+  private void arrayOp(String op, Var array, String... args) {
+    List<String> allArgs = new ArrayList<String>();
+    allArgs.add(RUNTIME);
+    allArgs.add(fnLit());
+    allArgs.add(varLit(array));
+    allArgs.add(varName(array));
+    for (String arg: args) {
+      allArgs.add(arg);
+    }
+    point().line("Ops." + op + "(" + join(allArgs) + ");");
+  }
+
+  @Override
+  public void arrayContains(Var dst, Var array, Arg key) {
+    point().line(varName(dst) + " = " + varName(array) + ".containsKey(" +
+                 argExpr(key) + ");");
+  }
+
+  @Override
+  public void arrayLocalContains(Var dst, Var array, Arg key) {
+    throw unsupported("Local arrays", dst);
+  }
+
+  @Override
+  public void containerSize(Var dst, Var container) {
+    if (!Types.isArray(container)) {
+      throw unsupported("Size of " + container.type().typeName(), dst);
+    }
+    point().line(varName(dst) + " = " + varName(container) + ".size();");
+  }
+
+  @Override
+  public void containerLocalSize(Var dst, Var container) {
+    throw unsupported("Local containers", dst);
+  }
+
+  @Override
+  public void arrayStore(Var array, Arg key, Arg member, Arg writeDecr) {
+    point().line(varName(array) + ".insert(" + fnLit() + ", " +
+        varLit(array) + ", " + argExpr(key) + ", " + argExpr(member) +
+        ", " + intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayStoreFuture(Var array, Var key, Arg member,
+                               Arg writeDecr) {
+    arrayOp("arrayStoreFuture", array, varName(key), argExpr(member),
+            intExpr(writeDecr));
+  }
+
+  @Override
+  public void arrayCopyInImm(Var array, Arg key, Var member,
+                             Arg writeDecr) {
+    arrayOp("arrayCopyIn", array, argExpr(key), varName(member),
+            intExpr(writeDecr));
+  }
+
+  @Override
+  public void arrayCopyInFuture(Var array, Var key, Var member,
+                                Arg writeDecr) {
+    arrayOp("arrayCopyInFuture", array, varName(key), varName(member),
+            intExpr(writeDecr));
+  }
+
+  @Override
+  public void arrayRefStoreImm(Var array, Arg key, Arg member) {
+    arrayOp("arrayRefStore", array, argExpr(key), argExpr(member));
+  }
+
+  @Override
+  public void arrayRefStoreFuture(Var array, Var key, Arg member) {
+    arrayOp("arrayRefStoreFuture", array, varName(key), argExpr(member));
+  }
+
+  @Override
+  public void arrayRefCopyInImm(Var array, Arg ix, Var member) {
+    arrayOp("arrayRefCopyIn", array, argExpr(ix), varName(member));
+  }
+
+  @Override
+  public void arrayRefCopyInFuture(Var array, Var ix, Var member) {
+    arrayOp("arrayRefCopyInFuture", array, varName(ix), varName(member));
+  }
+
+  @Override
+  public void arrayBuild(Var array, List<Arg> keys, List<Arg> vals) {
+    assert(keys.size() == vals.size());
+    for (int i = 0; i < keys.size(); i++) {
+      point().line(varName(array) + ".insert(" + fnLit() + ", " +
+          varLit(array) + ", " + argExpr(keys.get(i)) + ", " +
+          argExpr(vals.get(i)) + ");");
+    }
+    // Array is closed after build
+    point().line(varName(array) + ".incrWriters(" + fnLit() + ", " +
+                 varLit(array) + ", -1);");
+  }
+
+  @Override
+  public void arrayCreateNestedImm(Var result, Var outerArray, Arg key,
+      Arg callerReadRefs, Arg callerWriteRefs, Arg readDecr,
+      Arg writeDecr) {
+    assert(result.storage() == Alloc.ALIAS);
+    point().line(varName(result) + " = " + varName(outerArray) +
+        ".createNested(" + fnLit() + ", " + varLit(outerArray) + ", " +
+        argExpr(key) + ", " + intExpr(callerWriteRefs) + ");");
+    if (!writeDecr.equals(Arg.ZERO)) {
+      point().line(varName(outerArray) + ".incrWriters(" + fnLit() + ", " +
+          varLit(outerArray) + ", " + negIntExpr(writeDecr) + ");");
+    }
+  }
+
+  @Override
+  public void arrayCreateNestedFuture(Var result, Var outerArray,
+                                      Var key) {
+    arrayOp("arrayCreateNestedFuture", outerArray, varName(key),
+            varName(result));
+  }
+
+  @Override
+  public void arrayRefCreateNestedImm(Var result, Var array, Arg ix) {
+    arrayOp("arrayRefCreateNested", array, argExpr(ix), varName(result));
+  }
+
+  @Override
+  public void arrayRefCreateNestedFuture(Var result, Var array, Var ix) {
+    arrayOp("arrayRefCreateNestedFuture", array, varName(ix),
+            varName(result));
+  }
+
+  @Override
+  public void bagInsert(Var bag, Arg value, Arg writeDecr) {
+    throw unsupported("Bags", bag);
+  }
+
+  @Override
+  public void initScalarUpdateable(Var updateable, Arg val) {
+    throw unsupported("Updateables", updateable);
+  }
+
+  @Override
+  public void latestValue(Var result, Var updateable) {
+    throw unsupported("Updateables", result);
+  }
+
+  @Override
+  public void updateScalarFuture(Var updateable, UpdateMode updateMode,
+                                 Var val) {
+    throw unsupported("Updateables", updateable);
+  }
+
+  @Override
+  public void updateScalarImm(Var updateable, UpdateMode updateMode,
+                              Arg val) {
+    throw unsupported("Updateables", updateable);
+  }
+
+  @Override
+  public void checkpointLookupEnabled(Var out) {
+    // Checkpointing is never enabled
+    point().line(varName(out) + " = false;");
+  }
+
+  @Override
+  public void checkpointWriteEnabled(Var out) {
+    point().line(varName(out) + " = false;");
+  }
+
+  @Override
+  public void writeCheckpoint(Arg key, Arg val) {
+    throw unsupported("Checkpointing");
+  }
+
+  @Override
+  public void lookupCheckpoint(Var checkpointExists, Var val, Arg key) {
+    throw unsupported("Checkpointing", checkpointExists);
+  }
+
+  @Override
+  public void packValues(Var packed, List<Arg> unpacked) {
+    throw unsupported("Packing values", packed);
+  }
+
+  @Override
+  public void unpackValues(List<Var> unpacked, Arg packed) {
+    throw unsupported("Packing values");
+  }
+
+  private static class EnclosingLoop {
+    private EnclosingLoop(String methodName, boolean simpleLoop,
+                          List<Var> loopVars) {
+      this.methodName = methodName;
+      this.simpleLoop = simpleLoop;
+      this.loopVars = loopVars;
+    }
+    public final String methodName;
+    public final boolean simpleLoop;
+    public final List<Var> loopVars;
+  }
+
+  /**
+   * Track switch statement being generated as if/else chain
+   */
+  private static class SwitchCases {
+    private SwitchCases(String switchExpr, List<Integer> labels,
+                        boolean hasDefault) {
+      this.switchExpr = switchExpr;
+      this.labels = labels;
+      this.hasDefault = hasDefault;
+    }
+    public final String switchExpr;
+    public final List<Integer> labels;
+    public final boolean hasDefault;
+    /** Index of current case */
+    public int current = 0;
+
+    public int count() {
+      return labels.size() + (hasDefault ? 1 : 0);
+    }
+
+    /**
+     * @return condition for current case
+     */
+    public String caseHead() {
+      if (current < labels.size()) {
+        return "if (" + switchExpr + " == " + labels.get(current) + ")";
+      } else if (current == 0) {
+        // Only default case
+        return "if (true)";
+      } else {
+        return "";
+      }
+    }
+  }
+}
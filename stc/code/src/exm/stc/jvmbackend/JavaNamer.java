@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import javax.lang.model.SourceVersion;
+
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+
+/**
+ * Map Swift names to valid Java identifiers and literals.  Swift names
+ * are prefixed to avoid clashes with names used by generated code.
+ */
+public class JavaNamer {
+  private static final String FN_PREFIX = "f_";
+  private static final String VAR_PREFIX = "v_";
+  private static final String LOOP_PREFIX = "loop_";
+
+  public static String varName(Var var) {
+    return VAR_PREFIX + sanitize(var.name());
+  }
+
+  public static String fnName(FnID id) {
+    return FN_PREFIX + sanitize(id.uniqueName());
+  }
+
+  public static String loopName(String loopName) {
+    return LOOP_PREFIX + sanitize(loopName);
+  }
+
+  /**
+   * Class name for output file, e.g. foo for foo.java
+   */
+  public static String className(String outputFile) {
+    String name = outputFile;
+    int slash = name.lastIndexOf('/');
+    if (slash >= 0) {
+      name = name.substring(slash + 1);
+    }
+    int dot = name.indexOf('.');
+    if (dot >= 0) {
+      name = name.substring(0, dot);
+    }
+    if (name.length() == 0) {
+      return "SwiftProgram";
+    }
+    name = sanitize(name);
+    if (!Character.isJavaIdentifierStart(name.charAt(0)) ||
+        SourceVersion.isKeyword(name)) {
+      name = "_" + name;
+    }
+    return name;
+  }
+
+  /**
+   * Replace characters not valid in Java identifiers.  The colons in
+   * compiler-generated names are replaced with $.
+   */
+  private static String sanitize(String name) {
+    StringBuilder sb = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '_') {
+        sb.append(c);
+      } else if (c == ':') {
+        sb.append('$');
+      } else {
+        sb.append('$').append(Integer.toHexString(c)).append('$');
+      }
+    }
+    return sb.toString();
+  }
+
+  public static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20 || c > 0x7e) {
+          sb.append(String.format("\\u%04x", (int)c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
+  public static String floatLiteral(double d) {
+    if (Double.isNaN(d)) {
+      return "Double.NaN";
+    } else if (Double.isInfinite(d)) {
+      return d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    } else {
+      return Double.toString(d);
+    }
+  }
+
+  public static String intLiteral(long i) {
+    if (i == Long.MIN_VALUE) {
+      return "Long.MIN_VALUE";
+    }
+    return Long.toString(i) + "L";
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.util.List;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.Types.PrimType;
+
+/**
+ * Java implementations of builtin operations and of the foreign functions
+ * in the standard library that don't have an operator equivalent.  Both
+ * are generated as expressions on local values.
+ */
+public class JavaOps {
+
+  private static final String BUILTINS = "Builtins.";
+
+  /**
+   * @param op
+   * @param in input values
+   * @param argExpr expressions for input values
+   * @return Java expression computing op, or statement if op has no output
+   */
+  public static String localOpExpr(BuiltinOpcode op, List<Arg> in,
+                                   List<String> argExpr) {
+    switch (op) {
+    case PLUS_INT:
+    case PLUS_FLOAT:
+      return binary(argExpr, "+");
+    case MINUS_INT:
+    case MINUS_FLOAT:
+      return binary(argExpr, "-");
+    case MULT_INT:
+    case MULT_FLOAT:
+      return binary(argExpr, "*");
+    case DIV_INT:
+    case DIV_FLOAT:
+      return binary(argExpr, "/");
+    case MOD_INT:
+      return binary(argExpr, "%");
+    case NEGATE_INT:
+    case NEGATE_FLOAT:
+      return unary(argExpr, "-");
+    case POW_INT:
+      return call(BUILTINS + "powInt", argExpr);
+    case POW_FLOAT:
+      return call("Math.pow", argExpr);
+    case MAX_INT:
+    case MAX_FLOAT:
+      return call("Math.max", argExpr);
+    case MIN_INT:
+    case MIN_FLOAT:
+      return call("Math.min", argExpr);
+    case ABS_INT:
+    case ABS_FLOAT:
+      return call("Math.abs", argExpr);
+    case EQ_INT:
+    case EQ_FLOAT:
+    case EQ_BOOL:
+      return binary(argExpr, "==");
+    case NEQ_INT:
+    case NEQ_FLOAT:
+    case NEQ_BOOL:
+    case XOR:
+      return binary(argExpr, "!=");
+    case GT_INT:
+    case GT_FLOAT:
+      return binary(argExpr, ">");
+    case LT_INT:
+    case LT_FLOAT:
+      return binary(argExpr, "<");
+    case GTE_INT:
+    case GTE_FLOAT:
+      return binary(argExpr, ">=");
+    case LTE_INT:
+    case LTE_FLOAT:
+      return binary(argExpr, "<=");
+    case EQ_STRING:
+      checkArgs(op, argExpr, 2);
+      return argExpr.get(0) + ".equals(" + argExpr.get(1) + ")";
+    case NEQ_STRING:
+      checkArgs(op, argExpr, 2);
+      return "!" + argExpr.get(0) + ".equals(" + argExpr.get(1) + ")";
+    case NOT:
+      return unary(argExpr, "!");
+    case AND:
+      return binary(argExpr, "&&");
+    case OR:
+      return binary(argExpr, "||");
+    case STRCAT:
+      return strcat(in, argExpr);
+    case DIRCAT:
+      return call(BUILTINS + "dircat", argExpr);
+    case SUBSTRING:
+      checkArgs(op, argExpr, 3);
+      return call(BUILTINS + "substring", argExpr);
+    case COPY_INT:
+    case COPY_FLOAT:
+    case COPY_BOOL:
+    case COPY_STRING:
+    case COPY_BLOB:
+    case COPY_VOID:
+      checkArgs(op, argExpr, 1);
+      return argExpr.get(0);
+    case FLOOR:
+      return call("Math.floor", argExpr);
+    case CEIL:
+      return call("Math.ceil", argExpr);
+    case ROUND:
+      return call(BUILTINS + "round", argExpr);
+    case INTTOFLOAT:
+      return unary(argExpr, "(double)");
+    case FLOATTOINT:
+      return unary(argExpr, "(long)");
+    case PARSE_INT:
+      if (argExpr.size() == 1) {
+        // Default to decimal
+        return BUILTINS + "parseInt(" + argExpr.get(0) + ", 10)";
+      }
+      return call(BUILTINS + "parseInt", argExpr);
+    case INTTOSTR:
+      return call("Long.toString", argExpr);
+    case PARSE_FLOAT:
+      return call(BUILTINS + "parseFloat", argExpr);
+    case FLOATTOSTR:
+      return call(BUILTINS + "floatToStr", argExpr);
+    case LOG:
+      return call("Math.log", argExpr);
+    case EXP:
+      return call("Math.exp", argExpr);
+    case SQRT:
+      return call("Math.sqrt", argExpr);
+    case IS_NAN:
+      return call("Double.isNaN", argExpr);
+    case ASSERT:
+      checkArgs(op, argExpr, 2);
+      return call(BUILTINS + "assertTrue", argExpr);
+    case ASSERT_EQ:
+      checkArgs(op, argExpr, 3);
+      return call(BUILTINS + "assertEqual", argExpr);
+    case SPRINTF:
+      return call(BUILTINS + "sprintf", argExpr);
+    default:
+      throw new STCRuntimeError("Operation " + op + " not supported by " +
+                                "Java backend");
+    }
+  }
+
+  /**
+   * @return true if the op is executed for side-effects only
+   */
+  public static boolean isStatementOp(BuiltinOpcode op) {
+    return op == BuiltinOpcode.ASSERT || op == BuiltinOpcode.ASSERT_EQ;
+  }
+
+  /**
+   * Local implementation of foreign function, identified by its name in
+   * the standard library.
+   * @return Java expression, or null if not implemented
+   */
+  public static String foreignFunctionExpr(String name, List<Arg> in,
+                                           List<String> argExpr) {
+    if (name.equals("trace")) {
+      return call(BUILTINS + "trace", argExpr);
+    } else if (name.equals("printf")) {
+      return call(BUILTINS + "printf", argExpr);
+    } else if (name.equals("sprintf")) {
+      return call(BUILTINS + "sprintf", argExpr);
+    } else if (name.equals("strlen") || name.equals("length")) {
+      return call(BUILTINS + "strlen", argExpr);
+    } else if (name.equals("toString") || name.equals("bool2string") ||
+               name.equals("boolean2string") || name.equals("__ol:toString1")) {
+      return call(BUILTINS + "toString", argExpr);
+    } else if (name.equals("assert")) {
+      return call(BUILTINS + "assertTrue", argExpr);
+    } else if (name.equals("assertEqual") || name.equals("assertLT") ||
+               name.equals("assertLTE")) {
+      // Only first overload has builtin op equivalent
+      return call(BUILTINS + name, argExpr);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * @return true if foreign function has no outputs
+   */
+  public static boolean isStatementFunction(String name) {
+    return name.equals("trace") || name.equals("printf") ||
+           name.startsWith("assert");
+  }
+
+  private static String strcat(List<Arg> in, List<String> argExpr) {
+    StringBuilder sb = new StringBuilder("(\"\"");
+    for (int i = 0; i < argExpr.size(); i++) {
+      sb.append(" + ");
+      if (in.get(i).type().getImplType().primType() == PrimType.STRING) {
+        sb.append(argExpr.get(i));
+      } else {
+        // Convert booleans, etc consistently with Turbine
+        sb.append(BUILTINS + "toString(" + argExpr.get(i) + ")");
+      }
+    }
+    sb.append(")");
+    return sb.toString();
+  }
+
+  private static String binary(List<String> argExpr, String operator) {
+    assert(argExpr.size() == 2) : argExpr;
+    return "(" + argExpr.get(0) + " " + operator + " " +
+                 argExpr.get(1) + ")";
+  }
+
+  private static String unary(List<String> argExpr, String operator) {
+    assert(argExpr.size() == 1) : argExpr;
+    return "(" + operator + "(" + argExpr.get(0) + "))";
+  }
+
+  private static String call(String fn, List<String> argExpr) {
+    StringBuilder sb = new StringBuilder(fn);
+    sb.append('(');
+    boolean first = true;
+    for (String arg: argExpr) {
+      if (!first) {
+        sb.append(", ");
+      }
+      sb.append(arg);
+      first = false;
+    }
+    sb.append(')');
+    return sb.toString();
+  }
+
+  private static void checkArgs(BuiltinOpcode op, List<String> argExpr,
+                                int expected) {
+    if (argExpr.size() != expected) {
+      throw new STCRuntimeError("Expected " + expected + " arguments for " +
+                                op + " but got " + argExpr);
+    }
+  }
+}
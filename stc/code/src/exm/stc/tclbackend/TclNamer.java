@@ -123,4 +123,18 @@ public class TclNamer {
   public static String swiftFuncName(FnID function) {
     return FN_PREFIX + function.uniqueName();
   }
+
+  /**
+   * @return name of proc that recursively splits up a loop
+   */
+  public static String loopSplitProcName(String loopName) {
+    return loopName + ":outer";
+  }
+
+  /**
+   * @return name of proc that runs a range of loop iterations
+   */
+  public static String loopLeafProcName(String loopName) {
+    return loopName + ":inner";
+  }
 }
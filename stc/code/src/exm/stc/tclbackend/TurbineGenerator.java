@@ -20,10 +20,13 @@
  */
 package exm.stc.tclbackend;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -110,6 +113,7 @@ import exm.stc.tclbackend.tree.TclList;
 import exm.stc.tclbackend.tree.TclString;
 import exm.stc.tclbackend.tree.TclTarget;
 import exm.stc.tclbackend.tree.TclTree;
+import exm.stc.tclbackend.tree.TclWriter;
 import exm.stc.tclbackend.tree.Text;
 import exm.stc.tclbackend.tree.Token;
 import exm.stc.tclbackend.tree.Value;
@@ -445,30 +449,39 @@ public class TurbineGenerator implements CompilerBackend {
   }
 
   /**
-     Generate and output Tcl from  our internal TclTree
+   * @return tree of generated code
+   */
+  public Sequence code() {
+    return tree;
+  }
+
+  /**
+     Generate and output Tcl from  our internal TclTree.
+     Code is streamed to output as UTF-8 as it is generated.
    * @throws IOException
    */
   @Override
   public void generate(OutputStream output) throws IOException {
-    StringBuilder sb = new StringBuilder(10*1024);
+    Writer w = new BufferedWriter(new OutputStreamWriter(output,
+                                        StandardCharsets.UTF_8));
+    TclWriter out = new TclWriter(w);
     try
     {
-      tree.appendTo(sb);
+      tree.appendTo(out);
     }
     catch (Exception e)
     {
       System.out.println("CODE GENERATOR INTERNAL ERROR");
       System.out.println(e.getMessage());
       e.printStackTrace();
-      System.out.println("code generated before error:");
-      System.out.println(sb);
+      System.out.println("code generated before error " +
+                         "(earlier code was written to output):");
+      System.out.println(out);
       System.out.println("exiting");
       throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
-    OutputStreamWriter w = new OutputStreamWriter(output);
-    w.write(sb.toString());
     // Check everything is flushed to underlying stream
-    w.flush();
+    out.flush();
   }
 
 
@@ -2922,12 +2935,14 @@ public class TurbineGenerator implements CompilerBackend {
     innerCallArgs.add(incVal);
 
     Sequence outer = new Sequence();
-    String outerProcName = uniqueTCLFunctionName(loopName + ":outer");
+    String outerProcName = uniqueTCLFunctionName(
+                              TclNamer.loopSplitProcName(loopName));
     tree.add(new Proc(outerProcName,
             usedTclFunctionNames, outerFormalArgs, outer));
 
     Sequence inner = new Sequence();
-    String innerProcName = uniqueTCLFunctionName(loopName + ":inner");
+    String innerProcName = uniqueTCLFunctionName(
+                              TclNamer.loopLeafProcName(loopName));
     tree.add(new Proc(innerProcName,
           usedTclFunctionNames, commonFormalArgs, inner));
 
@@ -71,18 +71,18 @@ public class Command extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
+    indent(out);
     Iterator<TclTree> it = tokens.iterator();
     while (it.hasNext())
     {
       TclTree tree = it.next();
       assert (tree != null): this.tokens;
-      tree.appendTo(sb);
+      tree.appendTo(out);
       if (it.hasNext())
-        sb.append(' ');
+        out.append(' ');
     }
-    sb.append('\n');
+    out.append('\n');
   }
 }
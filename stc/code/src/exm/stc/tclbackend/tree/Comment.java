@@ -29,11 +29,11 @@ public class Comment extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
-    sb.append("# ");
-    sb.append(text);
-    sb.append('\n');
+    indent(out);
+    out.append("# ");
+    out.append(text);
+    out.append('\n');
   }
 }
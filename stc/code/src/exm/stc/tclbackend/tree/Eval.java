@@ -24,14 +24,14 @@ public class Eval extends Sequence
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
-    sb.append("::eval {\n");
+    indent(out);
+    out.append("::eval {\n");
     increaseIndent();
-    super.appendTo(sb);
+    super.appendTo(out);
     decreaseIndent();
-    indent(sb);
-    sb.append("}\n");
+    indent(out);
+    out.append("}\n");
   }
 }
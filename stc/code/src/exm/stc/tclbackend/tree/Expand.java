@@ -30,12 +30,12 @@ public class Expand extends Expression {
   }
   
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(TclWriter out, ExprContext mode) {
     if (mode != ExprContext.TCL_CODE) {
       throw new STCRuntimeError("Expand can't be used in " + mode);
     }
-    sb.append("{*}");
-    expr.appendTo(sb, mode);
+    out.append("{*}");
+    expr.appendTo(out, mode);
   }
 
   @Override
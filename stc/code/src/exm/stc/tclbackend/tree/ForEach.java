@@ -36,17 +36,17 @@ public class ForEach extends Sequence
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
-    sb.append("foreach ");
-    loopVar.appendTo(sb);
-    sb.append(" ");
-    list.appendTo(sb);
-    sb.append(" ");
+    indent(out);
+    out.append("foreach ");
+    loopVar.appendTo(out);
+    out.append(" ");
+    list.appendTo(out);
+    out.append(" ");
     loopBody.setIndentation(this.indentation);
-    loopBody.appendToAsBlock(sb);
-    sb.append("\n");
+    loopBody.appendToAsBlock(out);
+    out.append("\n");
   }
   
 
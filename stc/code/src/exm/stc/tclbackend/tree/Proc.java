@@ -79,16 +79,16 @@ public class Proc extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
-    sb.append("\nproc ");
-    sb.append(name);
-    sb.append(" { ");
-    sb.append(StringUtils.join(args, " "));
-    sb.append(" } {\n");
+    indent(out);
+    out.append("\nproc ");
+    out.append(name);
+    out.append(" { ");
+    out.append(StringUtils.join(args, " "));
+    out.append(" } {\n");
     body.setIndentation(indentation+indentWidth);
-    body.appendTo(sb);
-    sb.append("}\n\n");
+    body.appendTo(out);
+    out.append("}\n\n");
   }
 }
@@ -85,14 +85,14 @@ public class Square extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode)
+  public void appendTo(TclWriter out, ExprContext mode)
   {
     boolean brace = treatAsList && mode == ExprContext.LIST_STRING;
 
     if (brace)
-        sb.append("{");
+        out.append("{");
 
-    sb.append("[ ");
+    out.append("[ ");
 
     if (items != null)
     {
@@ -100,20 +100,20 @@ public class Square extends Expression
       while (it.hasNext())
       {
         Expression tree = it.next();
-        tree.appendTo(sb, mode);
+        tree.appendTo(out, mode);
         if (it.hasNext())
-          sb.append(' ');
+          out.append(' ');
       }
     }
     else
     {
-      command.appendTo(sb);
+      command.appendTo(out);
     }
     
-    sb.append(" ]");
+    out.append(" ]");
 
     if (brace)
-      sb.append("}");
+      out.append("}");
   }
 
   public static Square fnCall(String fnName, Expression... args) {
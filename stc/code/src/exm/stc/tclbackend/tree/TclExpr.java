@@ -16,19 +16,19 @@ public class TclExpr extends Square {
     }
 
     @Override
-    public void appendTo(StringBuilder sb, ExprContext mode) {
-      sb.append(fn);
-      sb.append("(");
+    public void appendTo(TclWriter out, ExprContext mode) {
+      out.append(fn);
+      out.append("(");
       boolean first = true;
       for (Expression e: exprs) {
         if (first) {
           first = false;
         } else {
-          sb.append(",");
+          out.append(",");
         }
-        e.appendTo(sb, mode);
+        e.appendTo(out, mode);
       }
-      sb.append(")");
+      out.append(")");
     }
 
     @Override
@@ -47,20 +47,20 @@ public class TclExpr extends Square {
     }
 
     @Override
-    public void appendTo(StringBuilder sb, ExprContext mode) {
+    public void appendTo(TclWriter out, ExprContext mode) {
       if (parenthesise)
-        sb.append("(");
+        out.append("(");
       boolean first = true;
       for (Expression e: exprs) {
         if (first) {
           first = false;
         } else {
-          sb.append(" ");
+          out.append(" ");
         }
-        e.appendTo(sb, mode);
+        e.appendTo(out, mode);
       }
       if (parenthesise)
-        sb.append(")");
+        out.append(")");
     }
 
     @Override
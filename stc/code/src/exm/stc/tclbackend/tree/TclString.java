@@ -24,12 +24,12 @@ import exm.stc.common.exceptions.STCRuntimeError;
 public class TclString extends Expression
 {
   public static final TclTree EMPTY = new TclString("", false);
-  private final StringBuilder sb;
+  private final String string;
   private final boolean escape;
 
   public TclString(String string, boolean escape)
   {
-    this.sb = new StringBuilder(string);
+    this.string = string;
     this.escape = escape;
   }
 
@@ -51,21 +51,28 @@ public class TclString extends Expression
    */
   public TclString(List<? extends Expression> exprs, ExprContext mode)
   {
-    this("", false);
+    this(concat(exprs, mode), false);
+  }
+
+  private static String concat(List<? extends Expression> exprs,
+                               ExprContext mode)
+  {
     assert(mode == ExprContext.LIST_STRING ||
            mode == ExprContext.VALUE_STRING);
+    TclWriter out = new TclWriter();
     boolean first = true;
     for (Expression e: exprs) {
       if (first) {
         first = false;
       } else if (mode == ExprContext.LIST_STRING) {
-        sb.append(' ');
+        out.append(' ');
       }
       if (mode == ExprContext.LIST_STRING) {
         assert(e.supportsStringList()) : e;
       }
-      e.appendTo(sb, mode);
+      e.appendTo(out, mode);
     }
+    return out.toString();
   }
 
 
@@ -74,25 +81,25 @@ public class TclString extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder outSb, ExprContext mode)
+  public void appendTo(TclWriter out, ExprContext mode)
   {
-    CharSequence str;
+    String str;
     if (this.escape) {
-      str = tclEscapeString(this.sb.toString());
+      str = tclEscapeString(this.string);
     } else {
-      str = this.sb;
+      str = this.string;
     }
 
     if (mode == ExprContext.TCL_CODE) {
-      outSb.append('\"');
-      outSb.append(str);
-      outSb.append('\"');
+      out.append('\"');
+      out.append(str);
+      out.append('\"');
     } else if (mode == ExprContext.LIST_STRING) {
       throw new STCRuntimeError("Don't support string escaping for inclusion " +
       		                      "within string");
     } else {
       assert(mode == ExprContext.VALUE_STRING);
-      outSb.append(str);
+      out.append(str);
     }
   }
 
@@ -101,7 +108,7 @@ public class TclString extends Expression
   }
 
   public String value() {
-    return sb.toString();
+    return string;
   }
 
   @Override
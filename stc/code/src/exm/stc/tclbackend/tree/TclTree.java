@@ -16,8 +16,6 @@
 
 package exm.stc.tclbackend.tree;
 
-import org.apache.commons.lang3.StringUtils;
-
 /**
  * The TclTree class hierarchy represents all Tcl constructs
  * necessary for Turbine code generation
@@ -31,25 +29,25 @@ public abstract class TclTree
   int indentation = 0;
   static int indentWidth = 4;
 
-  public abstract void appendTo(StringBuilder sb);
+  public abstract void appendTo(TclWriter out);
 
   /**
-   * Append the body to the StringBuilder inside
+   * Append the body to the output inside
    * curly braces.
-   * @param sb
+   * @param out
    */
-  public void appendToAsBlock(StringBuilder sb) {
-    sb.append("{\n");
+  public void appendToAsBlock(TclWriter out) {
+    out.append("{\n");
     increaseIndent();
-    appendTo(sb);
+    appendTo(out);
     decreaseIndent();
-    indent(sb);
-    sb.append("}");
+    indent(out);
+    out.append("}");
   }
 
-  public void indent(StringBuilder sb)
+  public void indent(TclWriter out)
   {
-    sb.append(StringUtils.repeat(' ', indentation));
+    out.indent(indentation);
   }
 
   public void setIndentation(int i)
@@ -70,8 +68,8 @@ public abstract class TclTree
   @Override
   public String toString()
   {
-    StringBuilder sb = new StringBuilder(2048);
-    appendTo(sb);
-    return sb.toString();
+    TclWriter out = new TclWriter();
+    appendTo(out);
+    return out.toString();
   }
 }
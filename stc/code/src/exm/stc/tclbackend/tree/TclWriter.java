@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package exm.stc.tclbackend.tree;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Destination for Tcl code appended by TclTree.
+ *
+ * Code is either accumulated in memory, or streamed to a Writer, in
+ * which case only a bounded amount of code is held in memory at once.
+ * Errors from the Writer are held until {@link #flush()}, so that
+ * TclTree classes don't need to handle IOExceptions.
+ */
+public class TclWriter implements Appendable
+{
+  /** Characters to buffer before writing out */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Shared source of indentation, so that indenting doesn't allocate */
+  private static final String SPACES = spaces(256);
+
+  private final StringBuilder buffer;
+
+  /** Null if accumulating in memory */
+  private final Writer out;
+
+  /** Reused for copying buffer to out */
+  private char chars[] = null;
+
+  /** First error writing to out */
+  private IOException error = null;
+
+  /**
+   * Accumulate code in memory
+   */
+  public TclWriter()
+  {
+    this.buffer = new StringBuilder(2048);
+    this.out = null;
+  }
+
+  /**
+   * Stream code to out.  The caller should call {@link #flush()} once
+   * done to write out remaining code and check for errors.
+   */
+  public TclWriter(Writer out)
+  {
+    this.buffer = new StringBuilder(BUFFER_SIZE + 1024);
+    this.out = out;
+  }
+
+  @Override
+  public TclWriter append(CharSequence csq)
+  {
+    buffer.append(csq);
+    checkBuffer();
+    return this;
+  }
+
+  @Override
+  public TclWriter append(CharSequence csq, int start, int end)
+  {
+    buffer.append(csq, start, end);
+    checkBuffer();
+    return this;
+  }
+
+  @Override
+  public TclWriter append(char c)
+  {
+    buffer.append(c);
+    checkBuffer();
+    return this;
+  }
+
+  /**
+   * Append spaces
+   * @param width number of spaces
+   */
+  public TclWriter indent(int width)
+  {
+    while (width > SPACES.length()) {
+      buffer.append(SPACES);
+      width -= SPACES.length();
+    }
+    if (width > 0) {
+      buffer.append(SPACES, 0, width);
+    }
+    checkBuffer();
+    return this;
+  }
+
+  private void checkBuffer()
+  {
+    if (out != null && buffer.length() >= BUFFER_SIZE) {
+      drain();
+    }
+  }
+
+  /**
+   * Move buffered code to out.  After an error, code is discarded.
+   */
+  private void drain()
+  {
+    int length = buffer.length();
+    if (error == null && length > 0) {
+      if (chars == null || chars.length < length) {
+        chars = new char[Math.max(length, BUFFER_SIZE)];
+      }
+      buffer.getChars(0, length, chars, 0);
+      try {
+        out.write(chars, 0, length);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    buffer.setLength(0);
+  }
+
+  /**
+   * Write all code appended so far to out and flush it
+   * @throws IOException if any error occurred writing to out
+   */
+  public void flush() throws IOException
+  {
+    if (out == null) {
+      return;
+    }
+    drain();
+    if (error != null) {
+      throw error;
+    }
+    out.flush();
+  }
+
+  /**
+   * @return all code if accumulating in memory, otherwise only the code
+   *         not yet written out
+   */
+  @Override
+  public String toString()
+  {
+    return buffer.toString();
+  }
+
+  private static String spaces(int n)
+  {
+    StringBuilder sb = new StringBuilder(n);
+    for (int i = 0; i < n; i++) {
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+}
@@ -35,9 +35,9 @@ public class Token extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode)
+  public void appendTo(TclWriter out, ExprContext mode)
   {
-    sb.append(token);
+    out.append(token);
   }
 
   public String value() {
@@ -59,7 +59,7 @@ public class Value extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(TclWriter out, ExprContext mode) {
     boolean brace = mode == ExprContext.LIST_STRING && treatAsList;
     
     if (mode == ExprContext.LIST_STRING) {
@@ -68,14 +68,14 @@ public class Value extends Expression
     }
     
     if (brace)
-        sb.append("{");
+        out.append("{");
     // enclose in {} to allow a wider range of characters to be used in 
     // var names, such as :
-    sb.append("${");
-    sb.append(variable);
-    sb.append("}");
+    out.append("${");
+    out.append(variable);
+    out.append("}");
     if (brace)
-      sb.append("}");
+      out.append("}");
   }
   
 
@@ -43,18 +43,18 @@ public class WhileLoop extends TclTree {
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(TclWriter out)
   {
-    indent(sb);
+    indent(out);
     
     // E.g. while { $i > 2 } 
-    sb.append("while {");
+    out.append("while {");
     // condition
-    condition.appendTo(sb);
-    sb.append("} ");
+    condition.appendTo(out);
+    out.append("} ");
     
     loopBody.setIndentation(this.indentation);
-    loopBody.appendToAsBlock(sb);
-    sb.append("\n");
+    loopBody.appendToAsBlock(out);
+    out.append("\n");
   }
 }
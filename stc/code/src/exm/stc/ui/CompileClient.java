@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Thin client for {@link CompileServer}.  Takes the same command line
+ * arguments as {@link Main}.  If no server is running, or the server
+ * can't handle the request, falls back to compiling in-process.
+ */
+public class CompileClient {
+
+  /** Timeout to connect to server in ms */
+  private static final int CONNECT_TIMEOUT = 1000;
+
+  /** Indicates that request was not handled by server */
+  private static final int NOT_HANDLED = -1;
+
+  public static void main(String[] args) {
+    int exitCode;
+    try {
+      exitCode = compileRemote(CompileServer.portFile(), args);
+    } catch (IOException e) {
+      System.err.println("Lost connection to stc server: " + e.getMessage());
+      exitCode = ExitCode.ERROR_IO.code();
+    }
+
+    if (exitCode == NOT_HANDLED) {
+      Main.main(args);
+    } else if (exitCode != ExitCode.SUCCESS.code()) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Send compile request to server
+   * @param portFile
+   * @param args
+   * @return exit code of compilation, or NOT_HANDLED if server didn't
+   *          handle the request
+   * @throws IOException if connection lost during request
+   */
+  private static int compileRemote(File portFile, String args[])
+      throws IOException {
+    Socket socket = connect(portFile, CompileServer.REQUEST_COMPILE);
+    if (socket == null) {
+      return NOT_HANDLED;
+    }
+
+    try {
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream()));
+      out.writeUTF(System.getProperty("user.dir"));
+      out.writeInt(args.length);
+      for (String arg: args) {
+        out.writeUTF(arg);
+      }
+
+      // Forward STC settings passed by wrapper script
+      Properties sysProps = System.getProperties();
+      List<String> keys = new ArrayList<String>();
+      for (String key: sysProps.stringPropertyNames()) {
+        if (key.startsWith("stc.")) {
+          keys.add(key);
+        }
+      }
+      out.writeInt(keys.size());
+      for (String key: keys) {
+        out.writeUTF(key);
+        out.writeUTF(sysProps.getProperty(key));
+      }
+      out.flush();
+
+      return readResponse(new DataInputStream(
+              new BufferedInputStream(socket.getInputStream())));
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Read response frames from server until exit
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  private static int readResponse(DataInputStream in) throws IOException {
+    byte buf[] = new byte[8192];
+    while (true) {
+      byte frameType = in.readByte();
+      if (frameType == CompileServer.RESPONSE_EXIT) {
+        return in.readInt();
+      } else if (frameType == CompileServer.RESPONSE_REJECT) {
+        return NOT_HANDLED;
+      }
+
+      PrintStream dest;
+      if (frameType == CompileServer.RESPONSE_STDOUT) {
+        dest = System.out;
+      } else if (frameType == CompileServer.RESPONSE_STDERR) {
+        dest = System.err;
+      } else {
+        throw new IOException("Invalid frame type " + frameType);
+      }
+
+      int len = in.readInt();
+      while (len > 0) {
+        int chunk = Math.min(len, buf.length);
+        in.readFully(buf, 0, chunk);
+        dest.write(buf, 0, chunk);
+        len -= chunk;
+      }
+      dest.flush();
+    }
+  }
+
+  /**
+   * Ask the server to shut down
+   * @param portFile
+   * @return true if server was running
+   * @throws IOException
+   */
+  static boolean requestShutdown(File portFile) throws IOException {
+    Socket socket = connect(portFile, CompileServer.REQUEST_SHUTDOWN);
+    if (socket == null) {
+      return false;
+    }
+    try {
+      readResponse(new DataInputStream(
+              new BufferedInputStream(socket.getInputStream())));
+      return true;
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Connect to server and send request header.
+   * @param portFile
+   * @param requestType
+   * @return connected socket, or null if no server is running
+   * @throws IOException
+   */
+  private static Socket connect(File portFile, byte requestType)
+      throws IOException {
+    String portAndToken[] = CompileServer.readPortFile(portFile);
+    if (portAndToken == null) {
+      return null;
+    }
+
+    Socket socket = new Socket();
+    try {
+      int port = Integer.parseInt(portAndToken[0]);
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                           port), CONNECT_TIMEOUT);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeUTF(CompileServer.PROTOCOL);
+      out.writeUTF(portAndToken[1]);
+      out.writeByte(requestType);
+      return socket;
+    } catch (NumberFormatException e) {
+      socket.close();
+      return null;
+    } catch (IOException e) {
+      // Stale port file: server not running
+      socket.close();
+      return null;
+    }
+  }
+}
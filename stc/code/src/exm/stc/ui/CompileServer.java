@@ -0,0 +1,447 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+
+/**
+ * Long-running compile server, which avoids paying JVM startup, class
+ * loading and JIT warmup costs on every invocation of stc.
+ *
+ * The server listens on a loopback socket for requests from
+ * {@link CompileClient}.  The port number and a secret token are written
+ * to a port file that only the current user can read, so that other users
+ * on the same machine cannot submit requests.  Each request is compiled
+ * in a separate thread with its own {@link Settings} state.  Output that
+ * the compiler writes to stdout and stderr is forwarded to the client.
+ *
+ * Usage: CompileServer [start|stop]
+ */
+public class CompileServer {
+
+  /** Java property to override location of port file */
+  public static final String PORT_FILE_PROPERTY = "stc.server.port-file";
+
+  /** Java property to set number of concurrent compiles */
+  public static final String THREADS_PROPERTY = "stc.server.threads";
+
+  /** Identifies protocol version */
+  static final String PROTOCOL = "stc-server-1";
+
+  /* Request types */
+  static final byte REQUEST_COMPILE = 1;
+  static final byte REQUEST_SHUTDOWN = 2;
+
+  /* Response frame types */
+  static final byte RESPONSE_STDOUT = 1;
+  static final byte RESPONSE_STDERR = 2;
+  static final byte RESPONSE_EXIT = 3;
+  /** Server can't handle request: client should compile in-process */
+  static final byte RESPONSE_REJECT = 4;
+
+  private final Logger logger;
+  private final ServerSocket socket;
+  private final File portFile;
+  private final String token;
+  private final ExecutorService workers;
+  private volatile boolean shuttingDown = false;
+
+  /** Original process streams */
+  private static final PrintStream processOut = System.out;
+  private static final PrintStream processErr = System.err;
+
+  private static final RoutingOutputStream routedOut =
+                            new RoutingOutputStream(processOut);
+  private static final RoutingOutputStream routedErr =
+                            new RoutingOutputStream(processErr);
+
+  public static void main(String[] args) {
+    String command = args.length > 0 ? args[0] : "start";
+    File portFile = portFile();
+    try {
+      if (command.equals("start")) {
+        CompileServer server = new CompileServer(portFile, numThreads());
+        server.serve();
+      } else if (command.equals("stop")) {
+        if (!CompileClient.requestShutdown(portFile)) {
+          processErr.println("No stc server running for " + portFile);
+          System.exit(1);
+        }
+      } else {
+        processErr.println("Usage: CompileServer [start|stop]");
+        System.exit(ExitCode.ERROR_COMMAND.code());
+      }
+    } catch (IOException e) {
+      processErr.println("stc server I/O error: " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  /**
+   * @return location of port file for this user
+   */
+  public static File portFile() {
+    String path = System.getProperty(PORT_FILE_PROPERTY);
+    if (path != null && path.length() > 0) {
+      return new File(path);
+    }
+    // Default to home directory, where other users can't create it
+    return new File(System.getProperty("user.home"), ".stc-server.port");
+  }
+
+  private static int numThreads() {
+    String threads = System.getProperty(THREADS_PROPERTY);
+    if (threads != null && threads.length() > 0) {
+      return Integer.parseInt(threads);
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  public CompileServer(File portFile, int threads) throws IOException {
+    // Route output by thread so that each client gets its own output
+    System.setOut(new PrintStream(routedOut, true));
+    System.setErr(new PrintStream(routedErr, true));
+    this.logger = Logging.setupLogging(null, false);
+
+    this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.portFile = portFile;
+    this.token = newToken();
+    this.workers = Executors.newFixedThreadPool(threads);
+    writePortFile();
+  }
+
+  /**
+   * Accept and process requests until shutdown
+   */
+  public void serve() {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        portFile.delete();
+      }
+    });
+    processErr.println("stc server listening on port " +
+                        socket.getLocalPort() + ": " + portFile);
+
+    while (!shuttingDown) {
+      final Socket client;
+      try {
+        client = socket.accept();
+      } catch (SocketException e) {
+        // Socket closed by shutdown
+        break;
+      } catch (IOException e) {
+        logger.error("Error accepting connection", e);
+        continue;
+      }
+
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            handleRequest(client);
+          } catch (IOException e) {
+            logger.debug("I/O error handling request", e);
+          } finally {
+            try {
+              client.close();
+            } catch (IOException e) {
+              // Ignore
+            }
+          }
+        }
+      });
+    }
+    workers.shutdown();
+    portFile.delete();
+  }
+
+  private void shutdown() {
+    shuttingDown = true;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  private void handleRequest(Socket client) throws IOException {
+    DataInputStream in = new DataInputStream(
+                new BufferedInputStream(client.getInputStream()));
+    DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(client.getOutputStream()));
+
+    if (!in.readUTF().equals(PROTOCOL) || !in.readUTF().equals(token)) {
+      logger.debug("Rejected connection with invalid protocol or token");
+      return;
+    }
+
+    byte requestType = in.readByte();
+    if (requestType == REQUEST_SHUTDOWN) {
+      sendExit(out, ExitCode.SUCCESS.code());
+      shutdown();
+      return;
+    } else if (requestType != REQUEST_COMPILE) {
+      logger.debug("Unknown request type: " + requestType);
+      return;
+    }
+
+    String workDir = in.readUTF();
+    String args[] = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+    Properties props = new Properties();
+    int numProps = in.readInt();
+    for (int i = 0; i < numProps; i++) {
+      String key = in.readUTF();
+      props.setProperty(key, in.readUTF());
+    }
+
+    if (!canHandle(props)) {
+      synchronized (out) {
+        out.writeByte(RESPONSE_REJECT);
+        out.flush();
+      }
+      return;
+    }
+
+    int exitCode;
+    routedOut.setTarget(new FrameOutputStream(out, RESPONSE_STDOUT));
+    routedErr.setTarget(new FrameOutputStream(out, RESPONSE_STDERR));
+    try {
+      Main main = new Main(new File(workDir), true);
+      exitCode = main.run(args, props);
+    } catch (Throwable t) {
+      STCompiler.reportInternalError(logger, t);
+      exitCode = ExitCode.ERROR_INTERNAL.code();
+    } finally {
+      routedOut.setTarget(null);
+      routedErr.setTarget(null);
+      Settings.resetState();
+    }
+    sendExit(out, exitCode);
+  }
+
+  /**
+   * Check if we can handle the request in the server.
+   * Logging is set up once per process, so requests that want
+   * their own log must be compiled by the client.
+   * @param props
+   * @return
+   */
+  private static boolean canHandle(Properties props) {
+    String logFile = props.getProperty(Settings.LOG_FILE);
+    String logTrace = props.getProperty(Settings.LOG_TRACE);
+    return (logFile == null || logFile.length() == 0) &&
+           (logTrace == null || !logTrace.equalsIgnoreCase("true"));
+  }
+
+  private static void sendExit(DataOutputStream out, int exitCode)
+      throws IOException {
+    synchronized (out) {
+      out.writeByte(RESPONSE_EXIT);
+      out.writeInt(exitCode);
+      out.flush();
+    }
+  }
+
+  private static String newToken() {
+    byte bytes[] = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b: bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private void writePortFile() throws IOException {
+    portFile.delete();
+    try {
+      Files.createFile(portFile.toPath(), PosixFilePermissions.asFileAttribute(
+                              PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system
+      portFile.createNewFile();
+    }
+    Writer w = Files.newBufferedWriter(portFile.toPath(),
+                                       StandardCharsets.UTF_8);
+    try {
+      w.write(socket.getLocalPort() + " " + token + "\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Read port file written by server.  The file is ignored unless it is
+   * owned by the current user and not writable by others, since another
+   * user could otherwise direct our compiles to their own server.
+   * @param portFile
+   * @return (port, token) pair, or null if not present or not trusted
+   * @throws IOException
+   */
+  static String[] readPortFile(File portFile) throws IOException {
+    if (!portFile.isFile()) {
+      return null;
+    }
+    String problem = checkPortFileOwner(portFile.toPath());
+    if (problem != null) {
+      System.err.println("Ignoring stc server port file " + portFile +
+                         ": " + problem);
+      return null;
+    }
+    BufferedReader r = new BufferedReader(new FileReader(portFile));
+    try {
+      String line = r.readLine();
+      if (line == null) {
+        return null;
+      }
+      String toks[] = line.trim().split(" ");
+      return toks.length == 2 ? toks : null;
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * @return description of problem if port file can't be trusted,
+   *          otherwise null
+   */
+  static String checkPortFileOwner(Path path) throws IOException {
+    if (Files.isSymbolicLink(path)) {
+      return "is a symbolic link";
+    }
+    String user = System.getProperty("user.name");
+    String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+    if (!owner.equals(user)) {
+      return "owned by " + owner + ", not " + user;
+    }
+    Set<PosixFilePermission> perms;
+    try {
+      perms = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system: owner check is all we can do
+      return null;
+    }
+    if (perms.contains(PosixFilePermission.GROUP_WRITE) ||
+        perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+      return "writable by other users";
+    }
+    return null;
+  }
+
+  /**
+   * Output stream that sends data to a per-thread target, or to a
+   * fallback if no target is set for the thread.
+   */
+  private static class RoutingOutputStream extends OutputStream {
+    private final OutputStream fallback;
+    private final ThreadLocal<OutputStream> target =
+                                new ThreadLocal<OutputStream>();
+
+    public RoutingOutputStream(OutputStream fallback) {
+      this.fallback = fallback;
+    }
+
+    public void setTarget(OutputStream stream) {
+      if (stream == null) {
+        target.remove();
+      } else {
+        target.set(stream);
+      }
+    }
+
+    private OutputStream current() {
+      OutputStream stream = target.get();
+      return stream == null ? fallback : stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+  }
+
+  /**
+   * Output stream that forwards data to client in frames
+   */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte frameType;
+
+    public FrameOutputStream(DataOutputStream out, byte frameType) {
+      this.out = out;
+      this.frameType = frameType;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (out) {
+        out.writeByte(frameType);
+        out.writeInt(len);
+        out.write(b, off, len);
+        out.flush();
+      }
+    }
+  }
+}
@@ -53,31 +53,83 @@ import exm.stc.common.lang.CompileTimeArgs;
  * Command line interface to STC compiler.  Some compiler options
  * are passed indirectly through Java properties.  See Settings.java
  * for handling of these options.
+ *
+ * Each instance handles a single invocation of the compiler, either
+ * from the command line or on behalf of a {@link CompileServer} client.
  */
 public class Main {
   private static final String SWIFT_PROG_ARG_FLAG = "A";
   private static final String PREPROC_MACRO_FLAG = "D";
   private static final String INCLUDE_FLAG = "I";
   private static final String UPDATE_FLAG = "u";
-  private static final List<File> temporaries = new ArrayList<File>();
 
+  /**
+   * Directory to resolve relative paths against.  If null, use the
+   * working directory of the JVM.
+   */
+  private final File workDir;
+
+  /**
+   * If true, logging is already set up for the process, e.g. by the
+   * compile server, and this invocation should not modify it.
+   */
+  private final boolean sharedLogging;
+
+  private final List<File> temporaries = new ArrayList<File>();
+
+  public Main(File workDir, boolean sharedLogging) {
+    this.workDir = workDir;
+    this.sharedLogging = sharedLogging;
+  }
 
   public static void main(String[] args) {
+    Main main = new Main(null, false);
+    int exitCode = main.run(args, System.getProperties());
+    if (exitCode != ExitCode.SUCCESS.code()) {
+      System.exit(exitCode);
+    }
+  }
 
+  /**
+   * Run the compiler with the given command line arguments.
+   * Settings for the compilation are taken from the provided properties
+   * and stored in the current thread's settings state.
+   * @param args command line arguments
+   * @param props source of Java properties to initialize settings
+   * @return exit code
+   */
+  public int run(String[] args, Properties props) {
+    Settings.resetState();
+    try {
+      runCompiler(args, props);
+      return ExitCode.SUCCESS.code();
+    } catch (STCFatal ex) {
+      return ex.exitCode;
+    } finally {
+      for (File temp: temporaries) {
+        if (temp.exists()) {
+          temp.delete();
+        }
+      }
+      temporaries.clear();
+    }
+  }
+
+  private void runCompiler(String[] args, Properties props) {
     Args stcArgs = processArgs(args);
 
     try {
-      Settings.initSTCProperties();
+      Settings.initSTCProperties(props, currentDir());
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up options: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
     Logger logger = null;
     try {
       logger = setupLogging();
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up logging: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
 
 
@@ -105,8 +157,28 @@ public class Main {
     } catch (STCFatal ex) {
       // Cleanup output file if present
       cleanupFiles(false, stcArgs);
-      System.exit(ex.exitCode);
+      throw ex;
+    }
+  }
+
+  /**
+   * Resolve a path provided by the user
+   * @param path
+   * @return
+   */
+  private File resolve(String path) {
+    File file = new File(path);
+    if (workDir == null || file.isAbsolute()) {
+      return file;
     }
+    return new File(workDir, path);
+  }
+
+  /**
+   * @return directory to search for modules last
+   */
+  private String currentDir() {
+    return workDir == null ? "." : workDir.getPath();
   }
 
 
@@ -132,7 +204,7 @@ public class Main {
   }
 
 
-  private static Args processArgs(String[] args) {
+  private Args processArgs(String[] args) {
     Options opts = initOptions();
 
     CommandLine cmd = null;
@@ -143,15 +215,14 @@ public class Main {
       // Use Apache CLI-provided messages
       System.err.println(ex.getMessage());
       usage(opts);
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
 
     boolean updateOutput = cmd.hasOption(UPDATE_FLAG);
 
     if (cmd.hasOption(INCLUDE_FLAG)) {
       for (String dir: cmd.getOptionValues(INCLUDE_FLAG)) {
-        Settings.addModulePath(dir);
+        Settings.addModulePath(resolve(dir).getPath());
       }
     }
 
@@ -169,7 +240,7 @@ public class Main {
       System.out.println("Expected input file and optional output file, but got "
               + remainingArgs.length + " arguments");
       usage(opts);
-      System.exit(ExitCode.ERROR_COMMAND.code());
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
     }
 
     String input = remainingArgs[0];
@@ -202,7 +273,7 @@ public class Main {
       }
     } catch (InvalidOptionException e) {
       STCompiler.reportInternalError(logger, e);
-      System.exit(1);
+      throw new STCFatal(1);
     }
     return false;
   }
@@ -211,10 +282,11 @@ public class Main {
    * Store in properties for later logging
    * @param args
    */
-  private static void recordArgValues(Args args) {
-    Settings.set(Settings.INPUT_FILENAME, args.inputFilename);
+  private void recordArgValues(Args args) {
+    Settings.set(Settings.INPUT_FILENAME, resolve(args.inputFilename).getPath());
     if (args.outputFilename != null) {
-      Settings.set(Settings.OUTPUT_FILENAME, args.outputFilename);
+      Settings.set(Settings.OUTPUT_FILENAME,
+                   resolve(args.outputFilename).getPath());
     }
 
     for (String macro: args.preprocessorMacros) {
@@ -230,7 +302,10 @@ public class Main {
   }
 
 
-  private static Logger setupLogging() throws InvalidOptionException {
+  private Logger setupLogging() throws InvalidOptionException {
+    if (sharedLogging) {
+      return Logging.getSTCLogger();
+    }
     String logfile = Settings.get(Settings.LOG_FILE);
     boolean trace = Settings.getBoolean(Settings.LOG_TRACE);
     return Logging.setupLogging(logfile, trace);
@@ -252,14 +327,14 @@ public class Main {
    * @param args
    * @return
    */
-  private static File setupInputFile(Logger logger, boolean preprocess, Args args) {
+  private File setupInputFile(Logger logger, boolean preprocess, Args args) {
     File result;
     try {
       if (preprocess) {
-        File input = new File(args.inputFilename);
+        File input = resolve(args.inputFilename);
         if (!input.isFile() || !input.canRead()) {
           System.out.println("Input file \"" + input + "\" is not readable");
-          System.exit(1);
+          throw new STCFatal(1);
         }
 
         result = File.createTempFile("stc-preproc", ".swift");
@@ -267,25 +342,26 @@ public class Main {
         runPreprocessor(logger, args.inputFilename, result.getPath(),
                         args.preprocessorMacros);
       } else {
-        result = new File(args.inputFilename);
+        result = resolve(args.inputFilename);
       }
       if (!result.isFile() || !result.canRead()) {
         System.out.println("Input file \"" + result + "\" is not readable");
-        System.exit(1);
+        throw new STCFatal(1);
       }
       return result;
+    } catch (STCFatal ex) {
+      throw ex;
     } catch (IOException ex) {
       System.out.println("Error while setting up input file: " +
               ex.toString());
-      System.exit(1);
+      throw new STCFatal(1);
     } catch (Throwable t) {
       STCompiler.reportInternalError(logger, t);
-      System.exit(1);
+      throw new STCFatal(1);
     }
-    return null;
   }
 
-  private static File selectOutputFile(Args args) {
+  private File selectOutputFile(Args args) {
     String outputFilename;
     if (args.outputFilename != null) {
       outputFilename =  args.outputFilename;
@@ -298,12 +374,16 @@ public class Main {
       } else {
         prefix = infile;
       }
-      outputFilename = prefix + ".tic";
+      if (Settings.get(Settings.OUTPUT_MODE).equalsIgnoreCase("java")) {
+        outputFilename = prefix + ".java";
+      } else {
+        outputFilename = prefix + ".tic";
+      }
     }
-    return new File(outputFilename);
+    return resolve(outputFilename);
   }
 
-  private static File setupTmpOutput() {
+  private File setupTmpOutput() {
     try {
       File result = File.createTempFile("stc-out", ".swift");
       temporaries.add(result);
@@ -311,8 +391,7 @@ public class Main {
     } catch (IOException e) {
       System.out.println("Error while setting up temporary output: "
           + e.getMessage());
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
@@ -324,14 +403,13 @@ public class Main {
       e.printStackTrace();
       System.err.println("Unexpected error opening " +
                          outfile.getAbsolutePath() + " for output.") ;
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
 
-  private static void runPreprocessor(Logger logger, String input, String output,
-                                      List<String> preprocArgs) {
+  private void runPreprocessor(Logger logger, String input, String output,
+                               List<String> preprocArgs) {
     List<String> cmd = new ArrayList<String>();
     /*
       -undef flag is provided to disable non-standard macros
@@ -358,7 +436,8 @@ public class Main {
     String cmdString = StringUtils.join(cmd, ' ');
     try {
       logger.debug("Running cpp: " + cmdString);
-      Process cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}));
+      Process cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}),
+                                              null, workDir);
       int cppExitCode = -1;
       boolean done = false;
       do {
@@ -382,14 +461,14 @@ public class Main {
         System.out.println(cppStderr);
         System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
             cmdString + ". " + ("Exit code was " + cppExitCode + ". "));
-        System.exit(1);
+        throw new STCFatal(1);
       } else if (cppStderr.length() != 0){
         logger.warn("Preprocessor warnings:\n" + cppStderr);
       }
     } catch (IOException e) {
       System.out.println("I/O error while launching preprocessor with command line:" +
                           cmdString + ": " + e.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
   }
 
@@ -406,8 +485,7 @@ public class Main {
       }
     } catch (InvalidOptionException e) {
       System.out.println("Internal error with settings: " + e.getMessage());
-      System.exit(ExitCode.ERROR_INTERNAL.code());
-      return false;
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
   }
 
@@ -436,7 +514,7 @@ public class Main {
     return modTime1 < modTime2;
   }
 
-  private static PrintStream setupICOutput() {
+  private PrintStream setupICOutput() {
     String icFileName = Settings.get(Settings.IC_OUTPUT_FILE);
     if (icFileName == null || icFileName.equals("")) {
       return null;
@@ -445,7 +523,7 @@ public class Main {
     try
     {
       @SuppressWarnings("resource")
-      FileOutputStream stream = new FileOutputStream(icFileName);
+      FileOutputStream stream = new FileOutputStream(resolve(icFileName));
       BufferedOutputStream buffer = new BufferedOutputStream(stream);
       output = new PrintStream(buffer);
     }
@@ -453,14 +531,14 @@ public class Main {
     {
       System.out.println("Error opening IC output file " + icFileName
                       + ": " + e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
     return output;
   }
 
-  private static void cleanupFiles(boolean success, Args stcArgs) {
+  private void cleanupFiles(boolean success, Args stcArgs) {
     if (!success && stcArgs.outputFilename != null) {
-      File outFile = new File(stcArgs.outputFilename);
+      File outFile = resolve(stcArgs.outputFilename);
       if (outFile.exists()) {
         outFile.delete();
       }
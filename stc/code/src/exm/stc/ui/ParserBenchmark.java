@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.runtime.ANTLRInputStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+
+import exm.stc.ast.antlr.ExMLexer;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.frontend.ParsedModule;
+
+/**
+ * Measure throughput of the lexer and parser, so that performance
+ * regressions in the grammar are visible.  Sources are read into memory
+ * up front so that only lexing, parsing and AST construction are timed.
+ *
+ * Usage: ParserBenchmark [-w warmup iterations] [-n iterations]
+ *                        <file or directory>...
+ *
+ * Directories are searched (non-recursively) for .swift files.  Files
+ * with syntax errors are excluded from the corpus.
+ */
+public class ParserBenchmark {
+
+  private static final int DEFAULT_WARMUP = 5;
+  private static final int DEFAULT_ITERATIONS = 10;
+
+  private static class Source {
+    final String path;
+    final byte content[];
+
+    Source(String path, byte content[]) {
+      this.path = path;
+      this.content = content;
+    }
+  }
+
+  private final List<Source> corpus = new ArrayList<Source>();
+  private long tokens = 0;
+  private long lines = 0;
+
+  public static void main(String[] args) {
+    int warmup = DEFAULT_WARMUP;
+    int iterations = DEFAULT_ITERATIONS;
+    List<String> paths = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-w") && i + 1 < args.length) {
+          warmup = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-n") && i + 1 < args.length) {
+          iterations = Integer.parseInt(args[++i]);
+        } else {
+          paths.add(args[i]);
+        }
+      }
+    } catch (NumberFormatException e) {
+      paths.clear();
+    }
+
+    if (paths.isEmpty() || iterations <= 0 || warmup < 0) {
+      System.err.println("Usage: ParserBenchmark [-w warmup iterations] " +
+                         "[-n iterations] <file or directory>...");
+      System.exit(ExitCode.ERROR_COMMAND.code());
+    }
+
+    try {
+      ParserBenchmark bench = new ParserBenchmark();
+      for (String path: paths) {
+        bench.add(new File(path));
+      }
+      bench.run(warmup, iterations);
+    } catch (IOException e) {
+      System.err.println("Error reading input: " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  private void add(File path) throws IOException {
+    if (path.isDirectory()) {
+      File files[] = path.listFiles();
+      Arrays.sort(files);
+      for (File file: files) {
+        if (file.isFile() && file.getName().endsWith(".swift")) {
+          addFile(file);
+        }
+      }
+    } else {
+      addFile(path);
+    }
+  }
+
+  private void addFile(File file) throws IOException {
+    byte content[] = Files.readAllBytes(file.toPath());
+    Source src = new Source(file.getPath(), content);
+
+    // Exclude files with lexer or parser errors, which would otherwise
+    // be reported on every iteration
+    PrintStream out = System.out, err = System.err;
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    PrintStream capture = new PrintStream(errors);
+    System.setOut(capture);
+    System.setErr(capture);
+    boolean ok;
+    try {
+      parse(src);
+      ok = true;
+    } catch (STCFatal e) {
+      ok = false;
+    } finally {
+      System.setOut(out);
+      System.setErr(err);
+    }
+    if (!ok || errors.size() > 0) {
+      err.println("Excluding " + file + ": does not parse cleanly");
+      return;
+    }
+
+    corpus.add(src);
+    tokens += countTokens(content);
+    for (byte b: content) {
+      if (b == '\n') {
+        lines++;
+      }
+    }
+  }
+
+  /**
+   * Count tokens that the parser sees, i.e. excluding whitespace
+   * and comments.
+   */
+  private static long countTokens(byte content[]) throws IOException {
+    ExMLexer lexer = new ExMLexer(new ANTLRInputStream(
+                                  new ByteArrayInputStream(content)));
+    lexer.quiet = true;
+    CommonTokenStream stream = new CommonTokenStream(lexer);
+    stream.fill();
+    long count = 0;
+    for (Token tok: stream.getTokens()) {
+      if (tok.getChannel() == Token.DEFAULT_CHANNEL &&
+          tok.getType() != Token.EOF) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void parse(Source src) throws IOException {
+    ParsedModule.parse("bench", src.path,
+                       new ByteArrayInputStream(src.content), false);
+  }
+
+  private void run(int warmup, int iterations) throws IOException {
+    System.out.println("Corpus: " + corpus.size() + " files, " +
+                       lines + " lines, " + tokens + " tokens");
+    if (corpus.isEmpty()) {
+      return;
+    }
+
+    for (int i = 0; i < warmup; i++) {
+      parseCorpus();
+    }
+
+    List<Long> times = new ArrayList<Long>();
+    for (int i = 0; i < iterations; i++) {
+      long time = parseCorpus();
+      times.add(time);
+      System.out.println(String.format("Iteration %d: %s", i + 1,
+                                       describe(time)));
+    }
+
+    Collections.sort(times);
+    System.out.println("Best:   " + describe(times.get(0)));
+    System.out.println("Median: " + describe(times.get(times.size() / 2)));
+  }
+
+  /**
+   * @return elapsed time in nanoseconds
+   */
+  private long parseCorpus() throws IOException {
+    long start = System.nanoTime();
+    for (Source src: corpus) {
+      parse(src);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private String describe(long nanos) {
+    double ms = nanos / 1e6;
+    double tokensPerSec = tokens / (nanos / 1e9);
+    double msPerKLOC = ms / (lines / 1000.0);
+    return String.format("%.1f ms, %.0f tokens/sec, %.2f ms/KLOC",
+                         ms, tokensPerSec, msPerKLOC);
+  }
+}
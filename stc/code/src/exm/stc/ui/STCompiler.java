@@ -15,19 +15,27 @@
  */
 package exm.stc.ui;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Writer;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompileProfile;
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.Misc;
 import exm.stc.frontend.ASTWalker;
+import exm.stc.frontend.VarRepr;
 import exm.stc.ic.STCMiddleEnd;
+import exm.stc.jvmbackend.JavaGenerator;
 import exm.stc.tclbackend.TurbineGenerator;
 
 /**
@@ -103,28 +111,92 @@ public class STCompiler {
   private void compileOnce(String inputFile, String originalInputFile,
       boolean preprocessed,
       OutputStream output, PrintStream icOutput) throws UserException {
-    ForeignFunctions foreignFuncs = new ForeignFunctions();
-    STCMiddleEnd intermediate = new STCMiddleEnd(logger, icOutput, foreignFuncs);
-    ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
-    walker.walk(inputFile, originalInputFile, preprocessed);
-
-    /* Optimise intermediate representation by repeatedly rewriting tree
-     * NOTE: currently the optimizer pass is actually required for correctness,
-     * as the frontend doesn't always provide correct information about which variables
-     * need to be passed into blocks.  The optimizer will fix this problem
-     */
-    intermediate.optimize();
-
-    /* Generate output tcl code from intermediate representation */
-    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
-    intermediate.regenerate(codeGen);
+    // Discard any state left over from previous compilations in this thread
+    VarRepr.clearCache();
+    Logging.clearEmitted();
+
+    CompileProfile profile = CompileProfile.start();
+    try {
+      long start = System.nanoTime();
+      long startAlloc = CompileProfile.threadAllocatedBytes();
+
+      ForeignFunctions foreignFuncs = new ForeignFunctions();
+      STCMiddleEnd intermediate = new STCMiddleEnd(logger, icOutput,
+                                                   foreignFuncs);
+      ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
+      walker.walk(inputFile, originalInputFile, preprocessed);
+      start = endPhase(profile, "Frontend", start, startAlloc);
+      startAlloc = CompileProfile.threadAllocatedBytes();
+
+      /* Optimise intermediate representation by repeatedly rewriting tree
+       * NOTE: currently the optimizer pass is actually required for
+       * correctness, as the frontend doesn't always provide correct
+       * information about which variables need to be passed into blocks.
+       * The optimizer will fix this problem
+       */
+      boolean javaOutput = Settings.get(Settings.OUTPUT_MODE)
+                                   .equalsIgnoreCase("java");
+      if (javaOutput) {
+        JavaGenerator.checkVarTypes(logger, intermediate.getProgram());
+      }
+      intermediate.optimize();
+      start = endPhase(profile, "Optimizer", start, startAlloc);
+      startAlloc = CompileProfile.threadAllocatedBytes();
+
+      /* Generate output code from intermediate representation */
+      CompilerBackend codeGen;
+      if (javaOutput) {
+        codeGen = new JavaGenerator(logger, Misc.timestamp());
+      } else {
+        codeGen = new TurbineGenerator(logger, Misc.timestamp());
+      }
+      intermediate.regenerate(codeGen);
+      try {
+        codeGen.generate(output);
+      } catch (IOException e) {
+        System.err.println("I/O error while writing to output");
+        System.err.println(e.getMessage());
+        throw new STCFatal(ExitCode.ERROR_IO.code());
+      }
+      endPhase(profile, "Code generation", start, startAlloc);
+
+      if (profile != null) {
+        writeProfile(profile);
+      }
+    } finally {
+      CompileProfile.end();
+    }
+  }
+
+  /**
+   * Record time and allocation for phase if profiling
+   * @return current time
+   */
+  private static long endPhase(CompileProfile profile, String phase,
+                               long start, long startAlloc) {
+    long now = System.nanoTime();
+    if (profile != null) {
+      long alloc = startAlloc < 0 ? -1 :
+                   CompileProfile.threadAllocatedBytes() - startAlloc;
+      profile.addPhase(phase, now - start, alloc);
+    }
+    return now;
+  }
+
+  private void writeProfile(CompileProfile profile) {
+    String reportFile = Settings.get(Settings.PROFILE_REPORT);
     try {
-      codeGen.generate(output);
+      Writer w = new BufferedWriter(new FileWriter(reportFile));
+      try {
+        profile.writeJSON(w);
+      } finally {
+        w.close();
+      }
     } catch (IOException e) {
-      System.err.println("I/O error while writing to output");
-      System.err.println(e.getMessage());
-      throw new STCFatal(ExitCode.ERROR_IO.code());
+      logger.warn("Could not write profile report to " + reportFile + ": "
+                  + e.getMessage());
     }
+    profile.writeTable(System.err);
   }
 
   public static void reportInternalError(Logger logger, Throwable e) {
@@ -0,0 +1,41 @@
+package exm.stc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import exm.stc.common.exceptions.InvalidOptionException;
+
+public class SettingsTest {
+
+  @Test(expected=InvalidOptionException.class)
+  public void testZeroWorkersRejected() throws Exception {
+    Settings.resetState();
+    Properties props = new Properties();
+    props.setProperty(Settings.OPT_LOOP_TARGET_WORKERS, "0");
+    Settings.initSTCProperties(props, ".");
+  }
+
+  /**
+   * Values set after validation are checked when read
+   */
+  @Test
+  public void testGetPositiveLong() throws Exception {
+    Settings.resetState();
+    Settings.set(Settings.OPT_LOOP_TARGET_WORKERS, "3");
+    assertEquals(3, Settings.getPositiveLong(
+                              Settings.OPT_LOOP_TARGET_WORKERS));
+    for (String bad: new String[] {"0", "-2"}) {
+      Settings.set(Settings.OPT_LOOP_TARGET_WORKERS, bad);
+      try {
+        Settings.getPositiveLong(Settings.OPT_LOOP_TARGET_WORKERS);
+        fail("Expected error for " + bad);
+      } catch (InvalidOptionException e) {
+        // Expected
+      }
+    }
+  }
+}
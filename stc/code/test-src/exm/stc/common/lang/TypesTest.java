@@ -0,0 +1,72 @@
+package exm.stc.common.lang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import exm.stc.common.lang.Types.ArrayType;
+import exm.stc.common.lang.Types.RefType;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.UnionType;
+
+public class TypesTest {
+
+  @Test
+  public void testInternSameStructure() {
+    assertSame(ArrayType.sharedArray(Types.F_INT, Types.F_STRING),
+               ArrayType.sharedArray(Types.F_INT, Types.F_STRING));
+    assertFalse(ArrayType.sharedArray(Types.F_INT, Types.F_STRING).equals(
+                ArrayType.sharedArray(Types.F_INT, Types.F_FLOAT)));
+  }
+
+  /**
+   * Types containing unions with alternatives in a different order are
+   * equal, but interned separately so that order isn't lost
+   */
+  @Test
+  public void testUnionOrder() {
+    Type intFloat = UnionType.makeUnion(
+                          Arrays.asList(Types.F_INT, Types.F_FLOAT));
+    Type floatInt = UnionType.makeUnion(
+                          Arrays.asList(Types.F_FLOAT, Types.F_INT));
+    Type arr1 = ArrayType.sharedArray(Types.F_INT, intFloat);
+    Type arr2 = ArrayType.sharedArray(Types.F_INT, floatInt);
+
+    assertNotSame(arr1, arr2);
+    assertEquals(arr1, arr2);
+    assertEquals(arr1.hashCode(), arr2.hashCode());
+    assertSame(floatInt, arr2.memberType());
+  }
+
+  /**
+   * References are equal regardless of mutability, including
+   * when inside another type
+   */
+  @Test
+  public void testRefMutability() {
+    Type mutable = RefType.create(Types.F_INT, true);
+    Type immutable = RefType.create(Types.F_INT, false);
+    assertNotSame(mutable, immutable);
+    assertEquals(mutable, immutable);
+
+    Type arr1 = ArrayType.sharedArray(Types.F_INT, mutable);
+    Type arr2 = ArrayType.sharedArray(Types.F_INT, immutable);
+    assertNotSame(arr1, arr2);
+    assertEquals(arr1, arr2);
+    assertEquals(arr1.hashCode(), arr2.hashCode());
+  }
+
+  @Test
+  public void testNotEqualToOtherObjects() {
+    assertFalse(Types.F_INT.equals("int"));
+    assertFalse(Types.F_INT.equals(null));
+    assertFalse(RefType.create(Types.F_INT, true).equals("int"));
+    assertFalse(UnionType.makeUnion(
+          Arrays.asList(Types.F_INT, Types.F_FLOAT)).equals("int"));
+  }
+}
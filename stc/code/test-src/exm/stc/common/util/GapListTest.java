@@ -0,0 +1,155 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GapListTest {
+
+  @Test
+  public void testInsertEnds() {
+    GapList<Integer> l = new GapList<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    // Enough to grow several times
+    for (int i = 0; i < 100; i++) {
+      l.add(i);
+      expected.add(i);
+      l.add(0, -i);
+      expected.add(0, -i);
+    }
+    checkContents(expected, l);
+  }
+
+  @Test
+  public void testInsertMiddle() {
+    GapList<Integer> l = new GapList<Integer>(Arrays.asList(0, 1, 2, 3));
+    l.add(2, 10);
+    l.add(2, 11);
+    l.add(5, 12);
+    l.add(1, 13);
+    checkContents(Arrays.asList(0, 13, 1, 11, 10, 2, 12, 3), l);
+  }
+
+  @Test
+  public void testRemove() {
+    GapList<Integer> l = new GapList<Integer>(range(0, 10));
+    assertEquals(0, (int)l.remove(0));
+    assertEquals(9, (int)l.remove(8));
+    assertEquals(5, (int)l.remove(4));
+    assertEquals(4, (int)l.remove(3));
+    checkContents(Arrays.asList(1, 2, 3, 6, 7, 8), l);
+
+    l.add(3, 4);
+    checkContents(Arrays.asList(1, 2, 3, 4, 6, 7, 8), l);
+
+    while (!l.isEmpty()) {
+      l.remove(l.size() / 2);
+    }
+    checkContents(new ArrayList<Integer>(), l);
+    l.add(1);
+    checkContents(Arrays.asList(1), l);
+  }
+
+  @Test
+  public void testSet() {
+    GapList<Integer> l = new GapList<Integer>(range(0, 5));
+    // Move gap into middle, then set on both sides of it
+    l.add(2, 10);
+    assertEquals(0, (int)l.set(0, 20));
+    assertEquals(4, (int)l.set(5, 24));
+    checkContents(Arrays.asList(20, 1, 10, 2, 3, 24), l);
+  }
+
+  /**
+   * Insert, remove and replace through a list iterator in one pass
+   */
+  @Test
+  public void testListIterator() {
+    GapList<Integer> l = new GapList<Integer>(range(0, 20));
+    List<Integer> expected = new ArrayList<Integer>(range(0, 20));
+    modifyThroughIterator(l.listIterator());
+    modifyThroughIterator(expected.listIterator());
+    checkContents(expected, l);
+
+    // Walk backwards from end
+    ListIterator<Integer> it = l.listIterator(l.size());
+    ListIterator<Integer> expectedIt = expected.listIterator(
+                                                  expected.size());
+    while (it.hasPrevious()) {
+      Integer x = it.previous();
+      assertEquals(expectedIt.previous(), x);
+      if (x % 2 == 0) {
+        it.remove();
+        expectedIt.remove();
+      } else {
+        it.add(x + 1000);
+        it.previous();
+        expectedIt.add(x + 1000);
+        expectedIt.previous();
+      }
+    }
+    checkContents(expected, l);
+  }
+
+  private static void modifyThroughIterator(ListIterator<Integer> it) {
+    while (it.hasNext()) {
+      int x = it.next();
+      if (x % 3 == 0) {
+        it.remove();
+      } else if (x % 3 == 1) {
+        it.set(x + 100);
+      } else {
+        it.add(x + 200);
+        it.add(x + 300);
+      }
+    }
+  }
+
+  /**
+   * Compare against ArrayList for random edits, to check the index
+   * arithmetic as the gap moves and the array grows
+   */
+  @Test
+  public void testRandomOps() {
+    Random r = new Random(54321);
+    GapList<Integer> l = new GapList<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int op = 0; op < 5000; op++) {
+      int size = expected.size();
+      if (size == 0 || r.nextInt(5) < 3) {
+        int pos = r.nextInt(size + 1);
+        l.add(pos, op);
+        expected.add(pos, op);
+      } else {
+        int pos = r.nextInt(size);
+        assertEquals(expected.remove(pos), l.remove(pos));
+      }
+      if (op % 100 == 0) {
+        checkContents(expected, l);
+      }
+    }
+    checkContents(expected, l);
+  }
+
+  private static <T> void checkContents(List<T> expected, GapList<T> l) {
+    assertEquals(expected.size(), l.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), l.get(i));
+    }
+    assertEquals(expected, new ArrayList<T>(l));
+  }
+
+  private static List<Integer> range(int start, int end) {
+    List<Integer> res = new ArrayList<Integer>();
+    for (int i = start; i < end; i++) {
+      res.add(i);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,162 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IndexedSetTest {
+
+  @Test
+  public void testAddOrder() {
+    IndexedSet<String> s = new IndexedSet<String>();
+    assertTrue(s.add("b"));
+    assertTrue(s.add("c"));
+    assertTrue(s.addFirst("a"));
+    assertFalse(s.add("a"));
+    assertFalse(s.addFirst("c"));
+    assertEquals(3, s.size());
+    checkContents(Arrays.asList("a", "b", "c"), s);
+  }
+
+  @Test
+  public void testRemove() {
+    IndexedSet<Integer> s = new IndexedSet<Integer>(range(0, 10));
+    assertTrue(s.remove(0));
+    assertTrue(s.remove(9));
+    assertTrue(s.remove(5));
+    assertFalse(s.remove(5));
+    assertTrue(s.removeAll(Arrays.asList(2, 3, 42)));
+    checkContents(Arrays.asList(1, 4, 6, 7, 8), s);
+
+    // Add after removal goes at the end, not in a gap
+    s.add(5);
+    s.addFirst(0);
+    checkContents(Arrays.asList(0, 1, 4, 6, 7, 8, 5), s);
+
+    s.clear();
+    checkContents(new ArrayList<Integer>(), s);
+    s.add(3);
+    checkContents(Arrays.asList(3), s);
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    IndexedSet<Integer> s = new IndexedSet<Integer>(range(0, 10));
+    Iterator<Integer> it = s.iterator();
+    while (it.hasNext()) {
+      if (it.next() % 3 != 1) {
+        it.remove();
+      }
+    }
+    checkContents(Arrays.asList(1, 4, 7), s);
+  }
+
+  @Test(expected=ConcurrentModificationException.class)
+  public void testConcurrentModification() {
+    IndexedSet<Integer> s = new IndexedSet<Integer>(range(0, 3));
+    for (Integer i: s) {
+      s.add(i + 10);
+    }
+  }
+
+  @Test
+  public void testReplaceAll() {
+    IndexedSet<String> s = new IndexedSet<String>(
+                              Arrays.asList("a", "b", "c", "d"));
+    Map<String, String> renames = new HashMap<String, String>();
+    // Replacements are simultaneous, so a doesn't become c
+    renames.put("a", "b");
+    renames.put("b", "c");
+    renames.put("c", "x");
+    // Replacement already present: removed
+    renames.put("d", "x");
+    s.replaceAll(renames);
+    assertEquals(3, s.size());
+    assertEquals(Arrays.asList("b", "c"), s.asList().subList(0, 2));
+    assertTrue(s.contains("x"));
+    assertFalse(s.contains("a"));
+    assertFalse(s.contains("d"));
+  }
+
+  /**
+   * Reading by position shouldn't invalidate iterators
+   */
+  @Test
+  public void testListReadOnly() {
+    IndexedSet<Integer> s = new IndexedSet<Integer>(range(0, 10));
+    s.remove(3);
+    List<Integer> list = s.asList();
+    Iterator<Integer> it = s.iterator();
+    assertEquals(Integer.valueOf(0), it.next());
+    assertEquals(Integer.valueOf(4), list.get(3));
+    assertEquals(Integer.valueOf(1), it.next());
+  }
+
+  /**
+   * Compare against list for random operations, to check that the
+   * positions stay consistent as the array grows and is compacted
+   */
+  @Test
+  public void testRandomOps() {
+    Random r = new Random(12345);
+    IndexedSet<Integer> s = new IndexedSet<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int op = 0; op < 5000; op++) {
+      Integer x = r.nextInt(200);
+      switch (r.nextInt(4)) {
+        case 0:
+          assertEquals(!expected.contains(x), s.add(x));
+          if (!expected.contains(x)) {
+            expected.add(x);
+          }
+          break;
+        case 1:
+          assertEquals(!expected.contains(x), s.addFirst(x));
+          if (!expected.contains(x)) {
+            expected.add(0, x);
+          }
+          break;
+        default:
+          assertEquals(expected.remove(x), s.remove(x));
+          break;
+      }
+      if (op % 100 == 0) {
+        checkContents(expected, s);
+      }
+    }
+    checkContents(expected, s);
+  }
+
+  private static <T> void checkContents(List<T> expected,
+                                        IndexedSet<T> s) {
+    assertEquals(expected.size(), s.size());
+    assertEquals(expected, new ArrayList<T>(s));
+
+    List<T> list = s.asList();
+    assertEquals(expected.size(), list.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), list.get(i));
+      assertTrue(s.contains(expected.get(i)));
+    }
+    assertEquals(expected, new ArrayList<T>(list));
+  }
+
+  private static List<Integer> range(int start, int end) {
+    List<Integer> res = new ArrayList<Integer>();
+    for (int i = start; i < end; i++) {
+      res.add(i);
+    }
+    return res;
+  }
+}
@@ -220,6 +220,94 @@ public class ScopedUnionFindTest {
     assertEquals((Integer)4, subscriber.notifs.get(1).val2);
   }
 
+  /**
+   * Check lookups in deeply nested scopes, with merges at each level
+   */
+  @Test
+  public void testDeepNesting() {
+    final int depth = 200;
+    List<ScopedUnionFind<Integer>> scopes =
+                        new ArrayList<ScopedUnionFind<Integer>>();
+    ScopedUnionFind<Integer> curr = ScopedUnionFind.createRoot();
+    for (int i = 0; i < depth; i++) {
+      scopes.add(curr);
+      // Merge a new value at each level, and chain with previous level
+      curr.merge(i, 1000 + i);
+      if (i > 0) {
+        curr.merge(0, i);
+      }
+      curr = curr.newScope();
+    }
+
+    ScopedUnionFind<Integer> deepest = scopes.get(depth - 1);
+    for (int i = 0; i < depth; i++) {
+      assertEquals(0, (int)deepest.lookup(i));
+      assertEquals(0, (int)deepest.lookup(1000 + i));
+    }
+    assertEquals(2 * depth, deepest.members(0).size());
+
+    // Merges are only visible at and below level of merge
+    ScopedUnionFind<Integer> middle = scopes.get(depth / 2);
+    assertEquals(0, (int)middle.lookup(1000 + depth / 2));
+    assertEquals(1000 + depth / 2 + 1,
+                 (int)middle.lookup(1000 + depth / 2 + 1));
+    assertEquals(depth + 2, middle.members(0).size());
+  }
+
+  /**
+   * Check that changes in ancestors are seen in descendants after
+   * descendants have already done lookups
+   */
+  @Test
+  public void testAncestorChangeAfterLookup() {
+    ScopedUnionFind<Integer> uf = buildBasic();
+    ScopedUnionFind<Integer> child = uf.newScope();
+    ScopedUnionFind<Integer> grandchild = child.newScope();
+
+    assertEquals(5, (int)grandchild.lookup(30));
+    assertEquals(40, (int)grandchild.lookup(40));
+
+    grandchild.merge(50, 60);
+    assertEquals(50, (int)grandchild.lookup(60));
+
+    // Merge in root after lookups in descendants
+    uf.merge(5, 40);
+    assertEquals(5, (int)child.lookup(40));
+    assertEquals(5, (int)grandchild.lookup(40));
+    assertEquals(50, (int)grandchild.lookup(60));
+    assertEquals(new HashSet<Integer>(Arrays.asList(5, 10, 15, 20, 30, 40)),
+                 grandchild.members(5));
+
+    // Merge in middle scope
+    child.merge(5, 50);
+    assertEquals(5, (int)grandchild.lookup(50));
+    assertEquals(5, (int)grandchild.lookup(60));
+    assertEquals(50, (int)uf.lookup(50));
+    assertEquals(new HashSet<Integer>(Arrays.asList(50)), uf.members(50));
+  }
+
+  /**
+   * Sets returned should not change with later merges
+   */
+  @Test
+  public void testMembersSnapshot() {
+    ScopedUnionFind<Integer> uf = buildBasic();
+    ScopedUnionFind<Integer> child = uf.newScope();
+
+    Set<Integer> members = child.members(5);
+    Set<Integer> affected = child.merge(1, 5);
+    child.merge(1, 2);
+
+    Set<Integer> expected =
+        new HashSet<Integer>(Arrays.asList(5, 10, 15, 20, 30));
+    assertEquals(expected, members);
+    assertEquals(expected, affected);
+
+    assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 5, 10, 15, 20, 30)),
+                 child.members(1));
+    assertEquals(expected, uf.members(5));
+  }
+
   private static class NotificationSaver<T> implements UnionFindSubscriber<T> {
     final List<Pair<T, T>> notifs = new ArrayList<Pair<T, T>>();
 
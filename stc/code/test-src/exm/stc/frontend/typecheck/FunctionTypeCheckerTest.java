@@ -42,7 +42,8 @@ public class FunctionTypeCheckerTest {
 
   private static final FnID FAKE_FN_ID = new FnID("foobar", "foobar");
 
-  private static final SubType FLOAT_SUB_TYPE = new SubType(Types.F_FLOAT, "float2");
+  private static final SubType FLOAT_SUB_TYPE =
+                              SubType.create(Types.F_FLOAT, "float2");
   private static final Type INT_OR_FLOAT =
       UnionType.createUnionType(Types.F_INT, Types.F_FLOAT);
   private static final Type FLOAT_OR_INT =
@@ -100,7 +101,7 @@ public class FunctionTypeCheckerTest {
         selectArgType(INT_OR_FLOAT, Types.F_FLOAT, false));
   }
 
-  private static final FunctionType VARARGS_TYPE = new FunctionType(
+  private static final FunctionType VARARGS_TYPE = FunctionType.create(
                             Arrays.asList(Types.F_INT, INT_OR_FLOAT),
                             Arrays.asList(Types.F_STRING), true);
 
@@ -546,7 +547,7 @@ public class FunctionTypeCheckerTest {
 
   private FunctionType makeFT(List<Type> outputs, List<Type> inputs,
       boolean varArgs) {
-    return new FunctionType(inputs, outputs, varArgs);
+    return FunctionType.create(inputs, outputs, varArgs);
   }
 
 }
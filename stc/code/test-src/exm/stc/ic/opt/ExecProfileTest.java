@@ -0,0 +1,46 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import exm.stc.common.Settings;
+
+public class ExecProfileTest {
+
+  /**
+   * Profile should be reloaded if a file is rewritten between
+   * compilations
+   */
+  @Test
+  public void testReload() throws Exception {
+    Settings.resetState();
+    File file = File.createTempFile("profile", ".txt");
+    try {
+      writeProfile(file, "swift:f 3 0.5\n");
+      Settings.set(Settings.OPT_PROFILE, file.getPath());
+      assertEquals(3, ExecProfile.get().count("swift:f"));
+
+      writeProfile(file, "swift:f 7 0.5\n");
+      file.setLastModified(file.lastModified() + 2000);
+      assertEquals(7, ExecProfile.get().count("swift:f"));
+
+      Settings.set(Settings.OPT_PROFILE, "");
+      assertTrue(ExecProfile.get().isEmpty());
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void writeProfile(File file, String text)
+      throws IOException {
+    FileWriter w = new FileWriter(file);
+    w.write(text);
+    w.close();
+  }
+}
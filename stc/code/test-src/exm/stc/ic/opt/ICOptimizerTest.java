@@ -0,0 +1,100 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import exm.stc.common.Settings;
+import exm.stc.ui.ExitCode;
+import exm.stc.ui.Main;
+
+public class ICOptimizerTest {
+
+  private static final File TESTS_DIR = new File("../tests");
+  private static final File TURBINE_HOME = new File("../../turbine/code");
+
+  /**
+   * Skipping iterations once optimizer reaches fixed point should give
+   * same output as running every pass in every iteration.
+   */
+  @Test
+  public void testFixedPoint() throws Exception {
+    for (String test: new String[] {"225-branch-assign", "400-foreach-1",
+                                    "503-strings-4"}) {
+      File in = new File(TESTS_DIR, test + ".swift");
+      long start = System.nanoTime();
+      Result all = compile(in, false);
+      long allNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      Result skip = compile(in, true);
+      long skipNanos = System.nanoTime() - start;
+
+      System.err.println(test + ": " + all.passes + " passes in " +
+          allNanos / 1000000 + "ms, with skipping " + skip.passes +
+          " passes in " + skipNanos / 1000000 + "ms");
+      assertEquals(test, all.code, skip.code);
+      assertTrue(test, skip.passes < all.passes);
+    }
+  }
+
+  private static class Result {
+    final List<String> code;
+    final int passes;
+
+    Result(List<String> code, int passes) {
+      this.code = code;
+      this.passes = passes;
+    }
+  }
+
+  private static Result compile(File in, boolean trackChanges)
+      throws IOException {
+    File out = File.createTempFile("optimizer", ".tic");
+    File report = File.createTempFile("optimizer", ".json");
+    try {
+      Properties props = new Properties();
+      props.setProperty(Settings.STC_HOME, new File(".").getAbsolutePath());
+      props.setProperty(Settings.TURBINE_HOME,
+                        TURBINE_HOME.getAbsolutePath());
+      props.setProperty(Settings.OPT_MAX_ITERATIONS, "30");
+      props.setProperty(Settings.OPT_TRACK_CHANGES,
+                        Boolean.toString(trackChanges));
+      props.setProperty(Settings.PROFILE_REPORT, report.getPath());
+      int exitCode = new Main(null, false).run(new String[] {
+                "-I", TESTS_DIR.getPath(), in.getPath(), out.getPath()},
+                props);
+      assertEquals("Compile " + in, ExitCode.SUCCESS.code(), exitCode);
+
+      // Comments include timestamp
+      List<String> code = new ArrayList<String>();
+      for (String line: Files.readAllLines(out.toPath(),
+                                           StandardCharsets.UTF_8)) {
+        if (!line.startsWith("# ")) {
+          code.add(line);
+        }
+      }
+
+      int passes = 0;
+      for (String line: Files.readAllLines(report.toPath(),
+                                           StandardCharsets.UTF_8)) {
+        if (line.contains("\"iteration\":")) {
+          passes++;
+        }
+      }
+      return new Result(code, passes);
+    } finally {
+      out.delete();
+      report.delete();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import exm.stc.common.Settings;
+
+public class TaskCostModelTest {
+
+  /**
+   * Limits should follow optimizer settings unless calibrated
+   */
+  @Test
+  public void testDefaultLimits() throws Exception {
+    Settings.resetState();
+    Settings.set(Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD, "7");
+    TaskCostModel model = TaskCostModel.get();
+    assertTrue(model.cheapToInline(7));
+    assertFalse(model.cheapToInline(8));
+
+    File file = File.createTempFile("costs", ".properties");
+    try {
+      writeCosts(file, "inline=3\n");
+      Settings.set(Settings.OPT_COST_MODEL, file.getPath());
+      model = TaskCostModel.get();
+      assertTrue(model.cheapToInline(3));
+      assertFalse(model.cheapToInline(4));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Model should be reloaded if file or granularity change between
+   * compilations
+   */
+  @Test
+  public void testReload() throws Exception {
+    Settings.resetState();
+    File file = File.createTempFile("costs", ".properties");
+    try {
+      writeCosts(file, "spawn=30\n");
+      Settings.set(Settings.OPT_COST_MODEL, file.getPath());
+      TaskCostModel model = TaskCostModel.get();
+      assertEquals(30, model.spawnCost());
+
+      writeCosts(file, "spawn=40\n");
+      file.setLastModified(file.lastModified() + 2000);
+      model = TaskCostModel.get();
+      assertEquals(40, model.spawnCost());
+
+      Settings.set(Settings.OPT_LOOP_TASK_GRANULARITY, "12345");
+      model = TaskCostModel.get();
+      assertEquals(12345, model.taskGranularity());
+      assertEquals(40, model.spawnCost());
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void writeCosts(File file, String text)
+      throws IOException {
+    FileWriter w = new FileWriter(file);
+    w.write(text);
+    w.close();
+  }
+}
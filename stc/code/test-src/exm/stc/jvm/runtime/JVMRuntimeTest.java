@@ -0,0 +1,365 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+
+public class JVMRuntimeTest {
+
+  private static final String FN = "test";
+
+  /**
+   * Chain of rules, each adding one to previous variable
+   */
+  @Test
+  public void testRuleChain() throws Exception {
+    final int n = 10000;
+    final JVMRuntime rt = new JVMRuntime(4);
+    final IntVar[] vars = new IntVar[n];
+    for (int i = 0; i < n; i++) {
+      vars[i] = new IntVar(1);
+    }
+
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        // Create rules in reverse order so most have to wait
+        for (int i = n - 1; i > 0; i--) {
+          final IntVar in = vars[i - 1];
+          final IntVar out = vars[i];
+          rt.rule(new Task() {
+            @Override
+            public void run() throws LogicException {
+              out.set(FN, "out", in.get(FN, "in") + 1);
+            }
+          }, in);
+        }
+        vars[0].set(FN, "vars[0]", 0);
+      }
+    });
+    assertEquals(n - 1, vars[n - 1].get(FN, "vars[n-1]"));
+  }
+
+  /**
+   * Spawn tree of tasks and check all ran
+   */
+  @Test
+  public void testSpawnTree() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(4);
+    final AtomicLong leaves = new AtomicLong();
+    rt.run(new SpawnTree(rt, 12, leaves));
+    assertEquals(1 << 12, leaves.get());
+  }
+
+  private static class SpawnTree implements Task {
+    private final JVMRuntime rt;
+    private final int depth;
+    private final AtomicLong leaves;
+
+    SpawnTree(JVMRuntime rt, int depth, AtomicLong leaves) {
+      this.rt = rt;
+      this.depth = depth;
+      this.leaves = leaves;
+    }
+
+    @Override
+    public void run() {
+      if (depth == 0) {
+        leaves.incrementAndGet();
+      } else {
+        rt.spawn(new SpawnTree(rt, depth - 1, leaves));
+        rt.spawn(new SpawnTree(rt, depth - 1, leaves));
+      }
+    }
+  }
+
+  /**
+   * Chain of slow tasks targeted at each thread in turn, so that other
+   * workers go idle and must be woken
+   */
+  @Test
+  public void testIdleWake() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(4);
+    final AtomicLong count = new AtomicLong();
+    rt.run(new SlowChain(rt, 20, count));
+    assertEquals(20, count.get());
+  }
+
+  private static class SlowChain implements Task {
+    private final JVMRuntime rt;
+    private final int remaining;
+    private final AtomicLong count;
+
+    SlowChain(JVMRuntime rt, int remaining, AtomicLong count) {
+      this.rt = rt;
+      this.remaining = remaining;
+      this.count = count;
+    }
+
+    @Override
+    public void run() {
+      count.incrementAndGet();
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (remaining > 1) {
+        rt.spawnTargeted(remaining % rt.getNumThreads(),
+                         new SlowChain(rt, remaining - 1, count));
+      }
+    }
+  }
+
+  /**
+   * Rule on variable that was created closed
+   */
+  @Test
+  public void testRuleOnClosed() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(2);
+    final IntVar in = new IntVar(0, 20);
+    final IntVar out = new IntVar(1);
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        rt.rule(new Task() {
+          @Override
+          public void run() throws LogicException {
+            out.set(FN, "out", in.get(FN, "in") + 1);
+          }
+        }, in);
+      }
+    });
+    assertEquals(21, out.get(FN, "out"));
+  }
+
+  /**
+   * Higher priority tasks should run first on a single worker
+   */
+  @Test
+  public void testPriority() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(1);
+    final StringBuffer order = new StringBuffer();
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        for (final int prio: new int[] {0, 5, -3, 5, 10, 0}) {
+          rt.spawn(prio, new Task() {
+            @Override
+            public void run() {
+              order.append(prio).append(' ');
+            }
+          });
+        }
+      }
+    });
+    assertEquals("10 5 5 0 0 -3 ", order.toString());
+  }
+
+  /**
+   * Hard targeted tasks run at target even if it is busy, soft targeted
+   * tasks are stolen if target is busy
+   */
+  @Test
+  public void testTargeted() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(4, 2, 1000);
+    final AtomicLong hardRan = new AtomicLong(-1);
+    final AtomicLong softRan = new AtomicLong(-1);
+    final AtomicLong nodeRan = new AtomicLong(-1);
+    final AtomicLong mainRan = new AtomicLong(-1);
+    rt.run(new Task() {
+      @Override
+      public void run() {
+        final int self = rt.getThreadNum();
+        mainRan.set(self);
+        rt.spawn(0, new TaskTarget(self, false, false), new Task() {
+          @Override
+          public void run() {
+            hardRan.set(rt.getThreadNum());
+          }
+        });
+        rt.spawn(0, new TaskTarget(self, true, false), new Task() {
+          @Override
+          public void run() {
+            softRan.set(rt.getThreadNum());
+          }
+        });
+        rt.spawn(0, new TaskTarget(3, false, true), new Task() {
+          @Override
+          public void run() {
+            nodeRan.set(rt.getThreadNum());
+          }
+        });
+
+        // Stay busy until soft targeted task is stolen
+        long start = System.currentTimeMillis();
+        while (softRan.get() < 0 &&
+               System.currentTimeMillis() - start < 10000) {
+          Thread.yield();
+        }
+      }
+    });
+    assertEquals(mainRan.get(), hardRan.get());
+    assertTrue(softRan.get() >= 0 && softRan.get() != mainRan.get());
+    assertTrue(nodeRan.get() == 2 || nodeRan.get() == 3);
+  }
+
+  /**
+   * Hard targeted task at a parked worker must run before the program
+   * finishes
+   */
+  @Test
+  public void testTargetedAtParked() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(4);
+    final AtomicLong ran = new AtomicLong(-1);
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final int target = (rt.getThreadNum() + 1) % rt.getNumThreads();
+        try {
+          // Let other workers park
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new LogicException(e.getMessage());
+        }
+        rt.spawn(0, new TaskTarget(target, false, false), new Task() {
+          @Override
+          public void run() {
+            ran.set(rt.getThreadNum());
+          }
+        });
+      }
+    });
+    assertTrue(ran.get() >= 0);
+  }
+
+  @Test(expected=LogicException.class)
+  public void testUnfiredRule() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(2);
+    final IntVar x = new IntVar(1);
+    rt.run(new Task() {
+      @Override
+      public void run() {
+        rt.rule(new Task() {
+          @Override
+          public void run() {
+            fail("Rule should not fire");
+          }
+        }, x);
+      }
+    });
+  }
+
+  @Test
+  public void testKeyWait() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(2);
+    final ContainerVar A = new ContainerVar(1);
+    final IntVar result = new IntVar(1);
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        rt.newRule(new Task() {
+          @Override
+          public void run() throws LogicException {
+            IntVar v = (IntVar)A.lookup(FN, "A", 1L);
+            result.set(FN, "result", v.get(FN, "v") * 2);
+          }
+        }).waitOnKey(A, 1L).activate();
+        A.insert(FN, "A", 1L, new IntVar(0, 21), 1);
+      }
+    });
+    assertEquals(42, result.get(FN, "result"));
+  }
+
+  /**
+   * Streaming foreach should run each member once, starting before the
+   * container is closed
+   */
+  @Test
+  public void testForeachStream() throws Exception {
+    final int n = 1000;
+    final JVMRuntime rt = new JVMRuntime(4);
+    final ContainerVar A = new ContainerVar(1);
+    final AtomicIntegerArray runs = new AtomicIntegerArray(n);
+    final AtomicLong totalRuns = new AtomicLong();
+    final AtomicLong launched = new AtomicLong();
+    final AtomicLong launchedAtDone = new AtomicLong(-1);
+    final AtomicLong doneCalls = new AtomicLong();
+    final AtomicLong runsBeforeClose = new AtomicLong(-1);
+    rt.run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        for (long i = 0; i < 10; i++) {
+          A.insert(FN, "A", i, i);
+        }
+        Loops.foreachStream(rt, A, 4, 2, new Loops.StreamBody() {
+          @Override
+          public void run(Object key, Object value) {
+            assertEquals(key, value);
+            runs.incrementAndGet((int)(long)(Long)key);
+            totalRuns.incrementAndGet();
+          }
+
+          @Override
+          public void launch(int iters) {
+            launched.addAndGet(iters);
+          }
+
+          @Override
+          public void done() {
+            launchedAtDone.set(launched.get());
+            doneCalls.incrementAndGet();
+          }
+        });
+        rt.spawn(new Task() {
+          @Override
+          public void run() throws LogicException {
+            for (long i = 10; i < n; i++) {
+              A.insert(FN, "A", i, i);
+            }
+            long start = System.currentTimeMillis();
+            while (totalRuns.get() == 0 &&
+                   System.currentTimeMillis() - start < 10000) {
+              Thread.yield();
+            }
+            runsBeforeClose.set(totalRuns.get());
+            A.incrWriters(FN, "A", -1);
+          }
+        });
+      }
+    });
+    for (int i = 0; i < n; i++) {
+      assertEquals("runs of " + i, 1, runs.get(i));
+    }
+    assertEquals(n, launched.get());
+    assertEquals(1, doneCalls.get());
+    assertEquals(n, launchedAtDone.get());
+    assertTrue(runsBeforeClose.get() > 0);
+  }
+
+  @Test
+  public void testDoubleWrite() throws Exception {
+    final JVMRuntime rt = new JVMRuntime(2);
+    final IntVar x = new IntVar(2);
+    try {
+      rt.run(new Task() {
+        @Override
+        public void run() throws LogicException {
+          x.set(FN, "x", 1);
+          x.set(FN, "x", 2);
+        }
+      });
+      fail("Expected double write");
+    } catch (DoubleWriteException e) {
+      // Expected
+    }
+  }
+}
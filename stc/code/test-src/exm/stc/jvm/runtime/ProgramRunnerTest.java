@@ -0,0 +1,259 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import exm.stc.common.Settings;
+import exm.stc.ui.ExitCode;
+import exm.stc.ui.Main;
+
+/**
+ * Compile system test programs with the Java backend and run them
+ */
+public class ProgramRunnerTest {
+
+  private static final File TESTS_DIR = new File("../tests");
+  private static final File TURBINE_HOME = new File("../../turbine/code");
+
+  /**
+   * Test names aren't valid Java class names, so this checks that the
+   * runner finds the generated class
+   */
+  @Test
+  public void testSystemTests() throws Exception {
+    for (String test: new String[] {"006-assert-1", "041-keyword-arg",
+                                    "120-sub-1"}) {
+      File out = compile(new File(TESTS_DIR, test + ".swift"),
+                         test + ".java", ExitCode.SUCCESS);
+      try {
+        Class<?> program = ProgramRunner.compile(out);
+        ProgramRunner.run(program, new JVMRuntime(2), new String[0]);
+      } finally {
+        out.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testAssertFails() throws Exception {
+    File in = writeProgram("import assert;\n" +
+                           "main { assertEqual(1, 2, \"one is two\"); }\n");
+    File out = compile(in, "assert.java", ExitCode.SUCCESS);
+    try {
+      ProgramRunner.run(ProgramRunner.compile(out), new JVMRuntime(2),
+                        new String[0]);
+      fail("Expected assertion failure");
+    } catch (LogicException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("one is two"));
+    } finally {
+      in.delete();
+      out.delete();
+    }
+  }
+
+  /**
+   * Container can only be closed after an iteration of the streaming
+   * loop has run, so the program would never finish if the loop waited
+   * for the container to be closed
+   */
+  @Test
+  public void testForeachStream() throws Exception {
+    File in = writeProgram("import assert;\n" +
+                           "main {\n" +
+                           "  int A[];\n" +
+                           "  int B[];\n" +
+                           "  A[0] = 0;\n" +
+                           "  @stream\n" +
+                           "  foreach x, i in A {\n" +
+                           "    B[i] = x + 1;\n" +
+                           "  }\n" +
+                           "  A[1] = B[0];\n" +
+                           "  assertEqual(B[1], 2, \"B[1]\");\n" +
+                           "}\n");
+    File out = compile(in, "stream.java", ExitCode.SUCCESS);
+    try {
+      ProgramRunner.run(ProgramRunner.compile(out), new JVMRuntime(2),
+                        new String[0]);
+    } finally {
+      in.delete();
+      out.delete();
+    }
+  }
+
+  /**
+   * Unsupported features are user errors, not compiler errors
+   */
+  @Test
+  public void testUnsupported() throws Exception {
+    File in = writeProgram("app (file o) f() { \"touch\" o; }\n" +
+                           "main { file x<\"x.txt\"> = f(); }\n");
+    PrintStream stderr = System.err;
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(errors, true));
+    try {
+      compile(in, "unsupported.java", ExitCode.ERROR_USER).delete();
+    } finally {
+      System.setErr(stderr);
+      in.delete();
+    }
+    // Error should point to the declaration
+    assertTrue(errors.toString(), errors.toString().contains(
+          in.getPath() + ":2:15: Type file not supported by Java backend"));
+  }
+
+  /**
+   * Every system test should either compile and run as expected, or be
+   * rejected as using a feature the Java backend doesn't support.
+   * Output isn't compared, since expected output is for Turbine.
+   */
+  @Test
+  public void testCorpus() throws Exception {
+    File tests[] = TESTS_DIR.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.matches("[0-9].*\\.swift");
+      }
+    });
+    Arrays.sort(tests);
+
+    List<String> failures = new ArrayList<String>();
+    int run = 0;
+    for (File test: tests) {
+      String name = test.getName().replaceFirst("\\.swift$", "");
+      String source = new String(Files.readAllBytes(test.toPath()),
+                                 StandardCharsets.UTF_8);
+      if (source.contains("SKIP-THIS-TEST")) {
+        continue;
+      }
+      String failure = runCorpusTest(name, test, source);
+      if (failure != null) {
+        failures.add(name + ": " + failure);
+      }
+      run++;
+    }
+    StringBuilder msg = new StringBuilder();
+    msg.append(failures.size() + " of " + run + " tests failed:");
+    for (String failure: failures) {
+      msg.append("\n  " + failure);
+    }
+    assertTrue(msg.toString(), failures.isEmpty());
+  }
+
+  /**
+   * @return description of failure, or null if test passed
+   */
+  private static String runCorpusTest(String name, File test, String source)
+      throws IOException {
+    File out = new File(System.getProperty("java.io.tmpdir"),
+                        name + ".java");
+    try {
+      PrintStream stderr = System.err;
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      System.setErr(new PrintStream(errors, true));
+      int exitCode;
+      try {
+        exitCode = runCompiler(test, out, readArgs(name + ".stcargs"));
+      } finally {
+        System.setErr(stderr);
+      }
+
+      if (exitCode == ExitCode.ERROR_USER.code() &&
+          errors.toString().contains("not supported by Java backend")) {
+        return null;
+      } else if (source.contains("THIS-TEST-SHOULD-NOT-COMPILE")) {
+        return exitCode == ExitCode.ERROR_USER.code() ? null :
+               "expected compile error, got exit code " + exitCode;
+      } else if (exitCode != ExitCode.SUCCESS.code()) {
+        return "compile failed with exit code " + exitCode + ": " +
+               errors.toString().trim();
+      } else if (source.contains("COMPILE-ONLY-TEST")) {
+        return null;
+      }
+
+      boolean shouldFail = source.contains("THIS-TEST-SHOULD-NOT-RUN");
+      try {
+        ProgramRunner.run(ProgramRunner.compile(out), new JVMRuntime(2),
+                          readArgs(name + ".args"));
+      } catch (Exception e) {
+        return shouldFail ? null : "run failed: " + e;
+      }
+      return shouldFail ? "expected run to fail" : null;
+    } finally {
+      out.delete();
+    }
+  }
+
+  /**
+   * @return whitespace-separated arguments from file in test directory,
+   *         or none if file doesn't exist
+   */
+  private static String[] readArgs(String fileName) throws IOException {
+    File file = new File(TESTS_DIR, fileName);
+    if (!file.exists()) {
+      return new String[0];
+    }
+    String text = new String(Files.readAllBytes(file.toPath()),
+                             StandardCharsets.UTF_8).trim();
+    return text.isEmpty() ? new String[0] : text.split("\\s+");
+  }
+
+  private static File writeProgram(String text) throws IOException {
+    File in = File.createTempFile("program", ".swift");
+    FileWriter w = new FileWriter(in);
+    w.write(text);
+    w.close();
+    return in;
+  }
+
+  private static File compile(File in, String outName, ExitCode expected)
+      throws IOException {
+    File out = new File(System.getProperty("java.io.tmpdir"), outName);
+    int exitCode = runCompiler(in, out, new String[0]);
+    assertEquals("Compile " + in, expected.code(), exitCode);
+    return out;
+  }
+
+  /**
+   * @param stcArgs arguments as for bin/stc
+   */
+  private static int runCompiler(File in, File out, String[] stcArgs) {
+    Properties props = new Properties();
+    props.setProperty(Settings.OUTPUT_MODE, "java");
+    props.setProperty(Settings.USE_C_PREPROCESSOR, "true");
+    props.setProperty(Settings.STC_HOME, new File(".").getAbsolutePath());
+    props.setProperty(Settings.TURBINE_HOME, TURBINE_HOME.getAbsolutePath());
+    List<String> args = new ArrayList<String>();
+    // Translate flags that bin/stc handles itself into settings
+    for (int i = 0; i < stcArgs.length; i++) {
+      if (stcArgs[i].equals("-p")) {
+        props.setProperty(Settings.USE_C_PREPROCESSOR, "false");
+      } else if (stcArgs[i].equals("-f") || stcArgs[i].equals("-F")) {
+        props.setProperty("stc.opt." + stcArgs[i + 1],
+                          Boolean.toString(stcArgs[i].equals("-f")));
+        i++;
+      } else {
+        args.add(stcArgs[i]);
+      }
+    }
+    args.addAll(Arrays.asList("-I", TESTS_DIR.getPath(), in.getPath(),
+                              out.getPath()));
+    return new Main(null, false).run(args.toArray(new String[args.size()]),
+                                     props);
+  }
+}
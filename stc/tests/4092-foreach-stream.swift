@@ -0,0 +1,41 @@
+import assert;
+
+// Streaming foreach loops, which start iterations as members are
+// inserted rather than waiting for the container to be closed.
+// The Turbine backend waits for the container instead, so this only
+// checks results: ProgramRunnerTest checks that the Java backend
+// starts iterations before the container is closed.
+
+main {
+  // Members are inserted one at a time along a dependency chain
+  int A[];
+  A[0] = 0;
+  foreach i in [1:99] {
+    A[i] = A[i - 1] + 1;
+  }
+
+  int B[];
+  @stream
+  foreach x, i in A {
+    B[i] = x * 2;
+  }
+
+  int C[];
+  @stream
+  @nosplit
+  foreach y in B {
+    C[y] = y + 1;
+  }
+
+  int D[][];
+  D[0] = B;
+  @stream
+  foreach z, k in D[0] {
+    assertEqual(z, 2 * k, "D[0][" + fromint(k) + "]");
+  }
+
+  foreach c, j in C {
+    assertEqual(c, j + 1, "C[" + fromint(j) + "]");
+  }
+  assertEqual(C[198], 199, "C[198]");
+}
@@ -0,0 +1,19 @@
+#!/usr/bin/env bash
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+# Conditional only runs in the same task as the assignments once wait
+# coalescing is enabled at -O2
+if [[ ${TCL_FILE} == *.O0.tic || ${TCL_FILE} == *.O1.tic ]]
+then
+  exit 0
+fi
+
+if grep -q 'u:a\b' ${TCL_FILE}
+then
+  echo "Expected a to be demoted to a value in ${TCL_FILE}"
+  grep 'u:a\b' ${TCL_FILE}
+  exit 1
+fi
+
+exit 0
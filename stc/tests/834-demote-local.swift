@@ -0,0 +1,27 @@
+// Test that a local future assigned on every branch of a conditional,
+// and only read in the same task, is demoted to a value
+
+(int o) pick(int branch) {
+  int a;
+  if (branch == 1) {
+    a = 10;
+  } else if (branch == 2) {
+    a = 20;
+  } else {
+    a = 30;
+  }
+  o = a + branch;
+}
+
+trace("RESULT: " + fromint(pick(f(1))));
+trace("RESULT: " + fromint(pick(f(2))));
+trace("RESULT: " + fromint(pick(f(3))));
+
+// Opaque function that can't be inlined
+(int o) test (int i) "turbine" "0.0.1" [
+  "set <<o>> <<i>>"
+];
+
+(int o) f ( int i ) {
+  o = test(i);
+}
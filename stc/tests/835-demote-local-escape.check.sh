@@ -0,0 +1,12 @@
+#!/usr/bin/env bash
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+# The future must be passed to the task that assigns it
+if ! grep -q 'double.*\${u:a}' ${TCL_FILE}
+then
+  echo "Expected future a to be passed to double in ${TCL_FILE}"
+  exit 1
+fi
+
+exit 0
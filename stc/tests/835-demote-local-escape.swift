@@ -0,0 +1,26 @@
+// Test that a local future assigned on every branch of a conditional
+// is not demoted to a value if a spawned task assigns it
+
+int a;
+int branch = f(1);
+if (branch == 1) {
+  a = double(branch);
+} else {
+  a = 3;
+}
+trace("RESULT: " + fromint(a));
+
+// Opaque function that can't be inlined
+(int o) test (int i) "turbine" "0.0.1" [
+  "set <<o>> <<i>>"
+];
+
+(int o) f ( int i ) {
+  o = test(i);
+}
+
+// Runs as a separate task on a worker
+@dispatch=WORKER
+(int o) double (int i) "turbine" "0.0.1" [
+  "set <<o>> [ expr {2 * <<i>>} ]"
+];
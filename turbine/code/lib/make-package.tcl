@@ -55,6 +55,7 @@ set items [ eval list -load $libtclturbine \
                 -source launch.tcl     \
                 -source python.tcl     \
                 -source gemtc_worker.tcl \
+                -source profile.tcl    \
                 -source helpers.tcl ]
 
 puts [ eval ::pkg::create $metadata $items ]
@@ -0,0 +1,106 @@
+# Copyright 2013 University of Chicago and Argonne National Laboratory
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License
+
+# PROFILE.TCL
+# Execution profile of the procs in a compiled Swift program,
+# for profile-guided optimization in STC.
+# Enabled by setting TURBINE_PROFILE to a file name prefix:
+# each worker then writes counts and inclusive times of procs it ran
+# to <prefix>.<rank> at shutdown.  Give the files to STC with
+# STC_PROFILE.
+
+namespace eval turbine {
+
+    # Dicts from proc name to number of calls and total seconds
+    variable profile_counts
+    variable profile_times
+    # Start times of procs currently running
+    variable profile_starts
+
+    proc profile_enabled { } {
+        return [ expr { [ info exists ::env(TURBINE_PROFILE) ] &&
+                        ! [ string equal $::env(TURBINE_PROFILE) "" ] } ]
+    }
+
+    # Start tracing the procs defined by the program.  These are in the
+    # global namespace and, unlike Tcl library procs, have : or - in
+    # their names
+    proc profile_start { } {
+        variable profile_counts [ dict create ]
+        variable profile_times  [ dict create ]
+        variable profile_starts [ list ]
+
+        foreach p [ info procs ::* ] {
+            set name [ string trimleft $p ":" ]
+            if { [ string first ":" $name ] < 0 &&
+                 [ string first "-" $name ] < 0 } {
+                continue
+            }
+            trace add execution $p enter turbine::profile_enter
+            trace add execution $p leave turbine::profile_leave
+        }
+    }
+
+    proc profile_enter { cmd op } {
+        variable profile_starts
+        lappend profile_starts [ clock microseconds ]
+    }
+
+    proc profile_leave { cmd code result op } {
+        variable profile_counts
+        variable profile_times
+        variable profile_starts
+
+        set start [ lindex $profile_starts end ]
+        set profile_starts [ lreplace $profile_starts end end ]
+        set t [ expr { ( [ clock microseconds ] - $start ) / 1000000.0 } ]
+
+        set name [ string trimleft [ lindex $cmd 0 ] ":" ]
+        if { [ regexp {:inner(-[0-9]+)?$} $name ] } {
+            # Loop leaf: count iterations, from lo hi inc arguments
+            lassign [ lrange $cmd end-2 end ] lo hi inc
+            set n [ expr { ( $hi - $lo ) / $inc + 1 } ]
+        } else {
+            set n 1
+        }
+        dict incr profile_counts $name $n
+        if { [ dict exists $profile_times $name ] } {
+            set t [ expr { [ dict get $profile_times $name ] + $t } ]
+        }
+        dict set profile_times $name $t
+    }
+
+    # Write profile for this rank, if it ran anything
+    proc profile_finalize { } {
+        variable profile_counts
+        variable profile_times
+
+        if { ! [ info exists profile_counts ] ||
+             [ dict size $profile_counts ] == 0 } {
+            return
+        }
+
+        set filename "$::env(TURBINE_PROFILE).[ adlb::rank ]"
+        if { [ catch { set fd [ open $filename w ] } e ] } {
+            puts "WARNING: could not write profile: $e"
+            return
+        }
+        puts $fd "# proc count seconds"
+        dict for { name count } $profile_counts {
+            puts $fd [ format "%s %i %.6f" $name $count \
+                           [ dict get $profile_times $name ] ]
+        }
+        close $fd
+    }
+}
@@ -415,6 +415,10 @@ namespace eval turbine {
             set startup_cmd ""
         }
 
+        if { [ profile_enabled ] } {
+            profile_start
+        }
+
         set success true
         if { [ catch { enter_mode $rules $startup_cmd } e d ] } {
           set success false
@@ -571,6 +575,9 @@ namespace eval turbine {
     proc finalize { } {
         log "turbine finalizing"
         turbine::final_cmds
+        if { [ profile_enabled ] } {
+            profile_finalize
+        }
         mktemp_cleanup
         turbine::c::finalize
         if { [ info exists ::TURBINE_ADLB_COMM ] } {